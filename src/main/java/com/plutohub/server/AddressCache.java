@@ -0,0 +1,244 @@
+package com.plutohub.server;
+
+import com.arcadedb.database.Database;
+import com.arcadedb.database.RID;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Bounded cache of address key -> RID kept off-heap, so millions of entries do not create any object on the heap. The table is set
+ * associative: a key can only live in the {@link #WAYS} slots of its set, so a lookup reads at most one set and no rehashing is ever
+ * needed. Every slot has a small access counter: on a miss in a full set the slot with the lowest counter is evicted, so hot addresses
+ * (exchanges, faucets, pools) stay in the cache while addresses seen once are recycled. When a counter saturates all the counters of
+ * the set are halved, so old popularity fades.
+ * <p>
+ * Entries of records created in the current transaction are marked as pending: {@link #commit()} makes them permanent, while
+ * {@link #rollback()} removes them because their RIDs are not valid anymore. Keys longer than {@link #getMaxKeyLength()} are not cached.
+ * The cache is thread safe.
+ */
+public class AddressCache {
+  public static final  int WAYS             = 8;
+  private static final int MAX_FREQUENCY    = 255;
+  private static final int OFFSET_HASH      = 0;
+  private static final int OFFSET_LENGTH    = 4;
+  private static final int OFFSET_FREQUENCY = 5;
+  private static final int OFFSET_PENDING   = 6;
+  private static final int OFFSET_BUCKET    = 7;
+  private static final int OFFSET_POSITION  = 11;
+  private static final int OFFSET_KEY       = 19;
+
+  private final ByteBuffer slots;
+  private final int        sets;
+  private final int        maxKeyLength;
+  private final int        slotSize;
+  private       int[]      pendingSlots = new int[1024];
+  private       int        pendingCount = 0;
+  private       int        size         = 0;
+  private       long       hits         = 0;
+  private       long       misses       = 0;
+  private       long       evictions    = 0;
+
+  /**
+   * @param capacity     maximum number of entries, rounded up to a power of 2
+   * @param maxKeyLength maximum length in bytes of the keys to cache
+   */
+  public AddressCache(final int capacity, final int maxKeyLength) {
+    int sets = 1;
+    while ((long) sets * WAYS < capacity)
+      sets <<= 1;
+
+    this.sets = sets;
+    this.maxKeyLength = maxKeyLength;
+    this.slotSize = OFFSET_KEY + maxKeyLength;
+
+    if ((long) sets * WAYS * slotSize > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Address cache of " + capacity + " entries is too big");
+
+    this.slots = ByteBuffer.allocateDirect(sets * WAYS * slotSize).order(ByteOrder.nativeOrder());
+  }
+
+  /**
+   * Returns the RID of the key, or null if it is not in the cache.
+   */
+  public synchronized RID get(final Database database, final byte[] key) {
+    if (key.length > maxKeyLength)
+      return null;
+
+    final int hash = hash(key);
+    final int slot = find(hash, key);
+    if (slot < 0) {
+      ++misses;
+      return null;
+    }
+
+    ++hits;
+    touch(slot);
+    return new RID(database, slots.getInt(slot + OFFSET_BUCKET), slots.getLong(slot + OFFSET_POSITION));
+  }
+
+  /**
+   * Adds or updates an entry.
+   *
+   * @param pending true if the record has been created in the current transaction and it is not committed yet
+   */
+  public synchronized void put(final byte[] key, final RID rid, final boolean pending) {
+    if (key.length > maxKeyLength)
+      return;
+
+    final int hash = hash(key);
+    int slot = find(hash, key);
+    if (slot < 0) {
+      slot = evict(hash);
+      slots.putInt(slot + OFFSET_HASH, hash);
+      slots.put(slot + OFFSET_LENGTH, (byte) key.length);
+      slots.put(slot + OFFSET_FREQUENCY, (byte) 1);
+      for (int i = 0; i < key.length; i++)
+        slots.put(slot + OFFSET_KEY + i, key[i]);
+    }
+
+    slots.putInt(slot + OFFSET_BUCKET, rid.getBucketId());
+    slots.putLong(slot + OFFSET_POSITION, rid.getPosition());
+    slots.put(slot + OFFSET_PENDING, (byte) (pending ? 1 : 0));
+
+    if (pending) {
+      if (pendingCount == pendingSlots.length)
+        pendingSlots = Arrays.copyOf(pendingSlots, pendingSlots.length * 2);
+      pendingSlots[pendingCount++] = slot;
+    }
+  }
+
+  /**
+   * Makes permanent the entries added as pending since the last commit or rollback.
+   */
+  public synchronized void commit() {
+    for (int i = 0; i < pendingCount; i++)
+      slots.put(pendingSlots[i] + OFFSET_PENDING, (byte) 0);
+    pendingCount = 0;
+  }
+
+  /**
+   * Removes the entries added as pending since the last commit or rollback.
+   */
+  public synchronized void rollback() {
+    for (int i = 0; i < pendingCount; i++) {
+      final int slot = pendingSlots[i];
+      // THE SLOT COULD HAVE BEEN RECYCLED BY A COMMITTED ENTRY IN THE MEANTIME
+      if (slots.get(slot + OFFSET_PENDING) != 0 && slots.get(slot + OFFSET_LENGTH) != 0) {
+        slots.put(slot + OFFSET_LENGTH, (byte) 0);
+        slots.put(slot + OFFSET_PENDING, (byte) 0);
+        --size;
+      }
+    }
+    pendingCount = 0;
+  }
+
+  public synchronized void clear() {
+    for (int slot = 0; slot < sets * WAYS * slotSize; slot += slotSize)
+      slots.put(slot + OFFSET_LENGTH, (byte) 0);
+    size = 0;
+    pendingCount = 0;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  public int getCapacity() {
+    return sets * WAYS;
+  }
+
+  public int getMaxKeyLength() {
+    return maxKeyLength;
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  public synchronized String getStats() {
+    final long total = hits + misses;
+    return String.format("%,d/%,d entries, %,d hits, %,d misses (%.2f%% hit ratio), %,d evictions", size, getCapacity(), hits, misses,
+        total > 0 ? hits * 100F / total : 0F, evictions);
+  }
+
+  private int find(final int hash, final byte[] key) {
+    final int first = firstSlot(hash);
+    for (int w = 0; w < WAYS; w++) {
+      final int slot = first + w * slotSize;
+      if (slots.getInt(slot + OFFSET_HASH) == hash && (slots.get(slot + OFFSET_LENGTH) & 0xFF) == key.length && keyEquals(slot, key))
+        return slot;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns a free slot in the set of the hash, evicting the least frequently used entry if the set is full.
+   */
+  private int evict(final int hash) {
+    final int first = firstSlot(hash);
+    int victim = first;
+    int victimFrequency = Integer.MAX_VALUE;
+    for (int w = 0; w < WAYS; w++) {
+      final int slot = first + w * slotSize;
+      if (slots.get(slot + OFFSET_LENGTH) == 0) {
+        ++size;
+        return slot;
+      }
+
+      final int frequency = slots.get(slot + OFFSET_FREQUENCY) & 0xFF;
+      if (frequency < victimFrequency) {
+        victim = slot;
+        victimFrequency = frequency;
+      }
+    }
+    ++evictions;
+    return victim;
+  }
+
+  private void touch(final int slot) {
+    final int frequency = slots.get(slot + OFFSET_FREQUENCY) & 0xFF;
+    if (frequency < MAX_FREQUENCY) {
+      slots.put(slot + OFFSET_FREQUENCY, (byte) (frequency + 1));
+      return;
+    }
+
+    // AGING: HALVE ALL THE COUNTERS OF THE SET
+    final int first = slot - (slot % (WAYS * slotSize));
+    for (int w = 0; w < WAYS; w++) {
+      final int s = first + w * slotSize;
+      slots.put(s + OFFSET_FREQUENCY, (byte) Math.max(1, (slots.get(s + OFFSET_FREQUENCY) & 0xFF) >>> 1));
+    }
+  }
+
+  private boolean keyEquals(final int slot, final byte[] key) {
+    for (int i = 0; i < key.length; i++)
+      if (slots.get(slot + OFFSET_KEY + i) != key[i])
+        return false;
+    return true;
+  }
+
+  private int firstSlot(final int hash) {
+    return (hash & (sets - 1)) * WAYS * slotSize;
+  }
+
+  private static int hash(final byte[] key) {
+    // FNV-1a + FINAL MIXING, SO ALSO THE LOW BITS USED TO SELECT THE SET ARE WELL DISTRIBUTED
+    int h = 0x811C9DC5;
+    for (byte b : key)
+      h = (h ^ b) * 0x01000193;
+    h ^= h >>> 16;
+    h *= 0x85EBCA6B;
+    h ^= h >>> 13;
+    return h;
+  }
+}
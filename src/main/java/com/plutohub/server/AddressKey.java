@@ -0,0 +1,123 @@
+package com.plutohub.server;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptOpCodes;
+import org.bitcoinj.script.ScriptPattern;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Compact binary form of an address: one byte with the type of the script followed by the hash in the script (20 or 32 bytes). It is
+ * what is stored when addresses are binary, while the Base58/Bech32 form is computed only to show it to the user. The index of the
+ * addresses uses the Base64 form of the key ({@link #encode(byte[])}) because the LSM index does not support BINARY keys.
+ */
+public class AddressKey {
+  public static final byte TYPE_P2PKH  = 1;
+  public static final byte TYPE_P2SH   = 2;
+  public static final byte TYPE_P2WPKH = 3;
+  public static final byte TYPE_P2WSH  = 4;
+
+  /**
+   * Returns the key of a raw script by matching the bytes of the standard P2PKH, P2SH and P2WH scripts, without parsing it.
+   *
+   * @return null if the script has no address
+   */
+  public static byte[] fromScript(final byte[] bytes, final int offset, final int length) {
+    if (length == 25 && bytes[offset] == ScriptOpCodes.OP_DUP && bytes[offset + 1] == (byte) ScriptOpCodes.OP_HASH160 && bytes[offset + 2] == 20
+        && bytes[offset + 23] == (byte) ScriptOpCodes.OP_EQUALVERIFY && bytes[offset + 24] == (byte) ScriptOpCodes.OP_CHECKSIG)
+      return create(TYPE_P2PKH, bytes, offset + 3, 20);
+    else if (length == 23 && bytes[offset] == (byte) ScriptOpCodes.OP_HASH160 && bytes[offset + 1] == 20
+        && bytes[offset + 22] == (byte) ScriptOpCodes.OP_EQUAL)
+      return create(TYPE_P2SH, bytes, offset + 2, 20);
+    else if (length == 22 && bytes[offset] == ScriptOpCodes.OP_0 && bytes[offset + 1] == 20)
+      return create(TYPE_P2WPKH, bytes, offset + 2, 20);
+    else if (length == 34 && bytes[offset] == ScriptOpCodes.OP_0 && bytes[offset + 1] == 32)
+      return create(TYPE_P2WSH, bytes, offset + 2, 32);
+
+    return null;
+  }
+
+  /**
+   * Returns the key of a script parsed by bitcoinj.
+   *
+   * @return null if the script has no address
+   */
+  public static byte[] fromScript(final Script script) {
+    if (ScriptPattern.isP2PKH(script))
+      return create(TYPE_P2PKH, ScriptPattern.extractHashFromP2PKH(script));
+    else if (ScriptPattern.isP2SH(script))
+      return create(TYPE_P2SH, ScriptPattern.extractHashFromP2SH(script));
+    else if (ScriptPattern.isP2WH(script)) {
+      final byte[] hash = ScriptPattern.extractHashFromP2WH(script);
+      return create(hash.length == 20 ? TYPE_P2WPKH : TYPE_P2WSH, hash);
+    }
+    return null;
+  }
+
+  /**
+   * Parses an address in the Base58 or Bech32 form.
+   *
+   * @return null if the address is of a type that is never stored, like a segwit address of version > 0
+   *
+   * @throws AddressFormatException if the address is not valid
+   */
+  public static byte[] fromString(final String address, final NetworkParameters params) throws AddressFormatException {
+    final Address parsed = Address.fromString(params, address);
+    if (parsed instanceof LegacyAddress)
+      return create(parsed.getOutputScriptType() == Script.ScriptType.P2SH ? TYPE_P2SH : TYPE_P2PKH, parsed.getHash());
+
+    final SegwitAddress segwit = (SegwitAddress) parsed;
+    if (segwit.getWitnessVersion() != 0)
+      return null;
+
+    final byte[] program = segwit.getWitnessProgram();
+    return create(program.length == 20 ? TYPE_P2WPKH : TYPE_P2WSH, program);
+  }
+
+  /**
+   * Returns the Base58 or Bech32 form of the key.
+   *
+   * @throws IllegalArgumentException if the key is not valid
+   */
+  public static String toString(final byte[] key, final NetworkParameters params) {
+    final byte[] hash = Arrays.copyOfRange(key, 1, key.length);
+    switch (key[0]) {
+    case TYPE_P2PKH:
+      return LegacyAddress.fromPubKeyHash(params, hash).toString();
+    case TYPE_P2SH:
+      return LegacyAddress.fromScriptHash(params, hash).toString();
+    case TYPE_P2WPKH:
+    case TYPE_P2WSH:
+      return SegwitAddress.fromHash(params, hash).toString();
+    default:
+      throw new IllegalArgumentException("Invalid address key type " + key[0]);
+    }
+  }
+
+  /**
+   * Returns the indexed form of the key: Base64 without padding, 28 chars for the 20 bytes hashes and 44 for the 32 bytes ones.
+   */
+  public static String encode(final byte[] key) {
+    return Base64.getEncoder().withoutPadding().encodeToString(key);
+  }
+
+  public static byte[] decode(final String encoded) {
+    return Base64.getDecoder().decode(encoded);
+  }
+
+  /**
+   * Returns the key of an address from its type (see the TYPE_* constants) and its hash.
+   */
+  public static byte[] create(final byte type, final byte[] hash) {
+    return create(type, hash, 0, hash.length);
+  }
+
+  private static byte[] create(final byte type, final byte[] bytes, final int offset, final int length) {
+    final byte[] key = new byte[length + 1];
+    key[0] = type;
+    System.arraycopy(bytes, offset, key, 1, length);
+    return key;
+  }
+}
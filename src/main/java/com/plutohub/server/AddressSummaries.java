@@ -0,0 +1,244 @@
+package com.plutohub.server;
+
+import com.arcadedb.database.Database;
+import com.arcadedb.database.MutableDocument;
+import com.arcadedb.index.IndexCursor;
+import org.bitcoinj.params.MainNetParams;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps the totals of every address (received, sent, number of inputs, outputs and transactions, first and last time seen) in the
+ * {@link BitcoinSchema#DOCUMENT_ADDRESS_SUMMARY} documents, so the balance of an address is read with a single lookup instead of
+ * visiting all its inputs and outputs.
+ * <p>
+ * The totals of a block are collected in a {@link BlockTotals} by the thread parsing it, then merged into the pending totals once the
+ * block is fully parsed. All the totals are sums, minimums and maximums, so the merge is commutative: the blocks can be parsed by any
+ * thread in any order without locking. The pending totals are written in batches by {@link #flush(Database)}, adding them to the
+ * totals already in the database, so also incremental imports keep the summaries up to date.
+ * <p>
+ * The totals of a block saved in a transaction that is not committed yet, like those of the async executor, are staged instead with
+ * {@link #stage(BlockTotals)} and become pending only with {@link #commitStaged(Runnable)}, once that transaction is committed: a flush
+ * never writes the totals of a block that a crash could leave not fully parsed, and then import again.
+ */
+public class AddressSummaries {
+  private final boolean             binaryAddresses;
+  private       Map<String, Totals> pending = new ConcurrentHashMap<>();
+  private       Map<String, Totals> staged  = new ConcurrentHashMap<>();
+  private final ReadWriteLock       lock    = new ReentrantReadWriteLock();
+  private       long                flushedAddresses;
+
+  /**
+   * Totals of an address.
+   */
+  public static class Totals {
+    public long received;
+    public long sent;
+    public long inputs;
+    public long outputs;
+    public long transactions;
+    public long firstSeen = Long.MAX_VALUE;
+    public long lastSeen  = Long.MIN_VALUE;
+
+    private Totals merge(final Totals other) {
+      received += other.received;
+      sent += other.sent;
+      inputs += other.inputs;
+      outputs += other.outputs;
+      transactions += other.transactions;
+      firstSeen = Math.min(firstSeen, other.firstSeen);
+      lastSeen = Math.max(lastSeen, other.lastSeen);
+      return this;
+    }
+  }
+
+  /**
+   * Totals of the addresses of a block, collected by a single thread.
+   */
+  public static class BlockTotals {
+    private final long                timeSeconds;
+    private final Map<String, Totals> totals               = new HashMap<>();
+    private final Set<String>         transactionAddresses = new HashSet<>();
+
+    private BlockTotals(final long timeSeconds) {
+      this.timeSeconds = timeSeconds;
+    }
+
+    public void addInput(final byte[] addressKey, final long value) {
+      final Totals t = get(addressKey);
+      t.sent += value;
+      t.inputs++;
+    }
+
+    public void addOutput(final byte[] addressKey, final long value) {
+      final Totals t = get(addressKey);
+      t.received += value;
+      t.outputs++;
+    }
+
+    /**
+     * Counts the transaction once for every address found in its inputs and outputs.
+     */
+    public void endTransaction() {
+      for (String address : transactionAddresses)
+        totals.get(address).transactions++;
+      transactionAddresses.clear();
+    }
+
+    private Totals get(final byte[] addressKey) {
+      final String address = AddressKey.encode(addressKey);
+      transactionAddresses.add(address);
+      return totals.computeIfAbsent(address, k -> {
+        final Totals t = new Totals();
+        t.firstSeen = timeSeconds;
+        t.lastSeen = timeSeconds;
+        return t;
+      });
+    }
+  }
+
+  /**
+   * @param binaryAddresses true if the addresses are indexed by their binary key (see {@link AddressKey#encode(byte[])}) instead of
+   *                        their string form
+   */
+  public AddressSummaries(final boolean binaryAddresses) {
+    this.binaryAddresses = binaryAddresses;
+  }
+
+  public BlockTotals newBlock(final long timeSeconds) {
+    return new BlockTotals(timeSeconds);
+  }
+
+  /**
+   * Merges the totals of a fully parsed block into the pending totals. It can be called by any thread, also while flushing.
+   */
+  public void merge(final BlockTotals block) {
+    lock.readLock().lock();
+    try {
+      merge(pending, block.totals);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Keeps the totals of a fully parsed block aside until the transaction saving the block is committed. It can be called by any thread,
+   * also while flushing.
+   */
+  public void stage(final BlockTotals block) {
+    lock.readLock().lock();
+    try {
+      merge(staged, block.totals);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Makes pending the totals staged so far, once the transactions of their blocks are committed.
+   *
+   * @param waitCommitted waits until the transactions of the blocks staged before its call are committed
+   */
+  public void commitStaged(final Runnable waitCommitted) {
+    final Map<String, Totals> toCommit;
+    lock.writeLock().lock();
+    try {
+      toCommit = staged;
+      staged = new ConcurrentHashMap<>();
+    } finally {
+      lock.writeLock().unlock();
+    }
+
+    if (toCommit.isEmpty())
+      return;
+
+    waitCommitted.run();
+
+    lock.readLock().lock();
+    try {
+      merge(pending, toCommit);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the number of addresses with pending totals.
+   */
+  public int getPendingAddresses() {
+    return pending.size();
+  }
+
+  /**
+   * Returns the number of addresses with staged totals.
+   */
+  public int getStagedAddresses() {
+    return staged.size();
+  }
+
+  public synchronized long getFlushedAddresses() {
+    return flushedAddresses;
+  }
+
+  /**
+   * Adds the pending totals to the summaries in the database, in the transaction of the current thread. Only one thread at a time can
+   * flush, and the transaction must be committed before the next flush of another thread: the callers hold the lock of this object until
+   * the commit.
+   *
+   * @return the number of addresses updated
+   */
+  public synchronized int flush(final Database database) {
+    final Map<String, Totals> toFlush;
+    lock.writeLock().lock();
+    try {
+      toFlush = pending;
+      pending = new ConcurrentHashMap<>();
+    } finally {
+      lock.writeLock().unlock();
+    }
+
+    final String property = binaryAddresses ? "key" : "hash";
+    for (Map.Entry<String, Totals> entry : toFlush.entrySet()) {
+      final Object key = binaryAddresses ? entry.getKey() : AddressKey.toString(AddressKey.decode(entry.getKey()), MainNetParams.get());
+      final Totals totals = entry.getValue();
+
+      final IndexCursor cursor = database.lookupByKey(BitcoinSchema.DOCUMENT_ADDRESS_SUMMARY, property, key);
+      final MutableDocument summary;
+      if (cursor.hasNext()) {
+        summary = cursor.next().asDocument().modify();
+        summary.set("received", summary.getLong("received") + totals.received);
+        summary.set("sent", summary.getLong("sent") + totals.sent);
+        summary.set("inputs", summary.getLong("inputs") + totals.inputs);
+        summary.set("outputs", summary.getLong("outputs") + totals.outputs);
+        summary.set("transactions", summary.getLong("transactions") + totals.transactions);
+        summary.set("firstSeen", Math.min(summary.getLong("firstSeen"), totals.firstSeen));
+        summary.set("lastSeen", Math.max(summary.getLong("lastSeen"), totals.lastSeen));
+      } else {
+        summary = database.newDocument(BitcoinSchema.DOCUMENT_ADDRESS_SUMMARY);
+        summary.set(property, key);
+        summary.set("received", totals.received);
+        summary.set("sent", totals.sent);
+        summary.set("inputs", totals.inputs);
+        summary.set("outputs", totals.outputs);
+        summary.set("transactions", totals.transactions);
+        summary.set("firstSeen", totals.firstSeen);
+        summary.set("lastSeen", totals.lastSeen);
+      }
+      summary.save();
+    }
+
+    flushedAddresses += toFlush.size();
+    return toFlush.size();
+  }
+
+  private static void merge(final Map<String, Totals> target, final Map<String, Totals> totals) {
+    for (Map.Entry<String, Totals> entry : totals.entrySet())
+      target.merge(entry.getKey(), entry.getValue(), Totals::merge);
+  }
+}
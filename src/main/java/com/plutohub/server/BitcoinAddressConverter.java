@@ -25,6 +25,9 @@ public class BitcoinAddressConverter extends BitcoinJob {
     try (DatabaseFactory factory = new DatabaseFactory("bitcoin")) {
       database = factory.open();
 
+      // DATABASES IMPORTED BY OLDER VERSIONS COULD MISS THE EDGE TYPES
+      new BitcoinSchema().setBinaryAddresses(binaryAddresses).sync(database);
+
       try {
         final long beginTime = System.currentTimeMillis();
 
@@ -48,8 +51,8 @@ public class BitcoinAddressConverter extends BitcoinJob {
 
         try {
 
-          convertTxPart(VERTEX_INPUT_TX);
-          convertTxPart(VERTEX_OUTPUT_TX);
+          convertTxPart(VERTEX_INPUT_TX, BitcoinSchema.EDGE_HAS_IN_ADDRESS);
+          convertTxPart(VERTEX_OUTPUT_TX, BitcoinSchema.EDGE_HAS_OUT_ADDRESS);
 
           database.async().waitCompletion();
 
@@ -66,6 +69,10 @@ public class BitcoinAddressConverter extends BitcoinJob {
           importVertex.set("endTime", endTime);
           importVertex.set("elapsed", endTime - beginTime);
           importVertex.set("convertedAddresses", convertedAddresses.get());
+          if (addressCache != null) {
+            importVertex.set("addressCacheHits", addressCache.getHits());
+            importVertex.set("addressCacheMisses", addressCache.getMisses());
+          }
           importVertex.save();
 
           System.out.println("Import results:");
@@ -81,15 +88,16 @@ public class BitcoinAddressConverter extends BitcoinJob {
 
   }
 
-  private void convertTxPart(final String type) {
-    final ResultSet resultSet = database.query("sql", "select from " + type + " where address is not null");
+  private void convertTxPart(final String type, final String edgeType) {
+    final String property = binaryAddresses ? "addressKey" : "address";
+    final ResultSet resultSet = database.query("sql", "select from " + type + " where " + property + " is not null");
     for (int i = 0; resultSet.hasNext(); ++i) {
       final Vertex txPartVertex = resultSet.next().getRecord().get().asVertex();
 
-      final String addressHash = txPartVertex.getString("address");
-
-      final Vertex addressVertex = getOrCreateAddress(addressHash);
-      txPartVertex.newEdge(BitcoinSchema.EDGE_HAS_ADDRESS, addressVertex, true);
+      final Vertex addressVertex = binaryAddresses ?
+          getOrCreateAddress((byte[]) txPartVertex.get(property)) :
+          getOrCreateAddress(txPartVertex.getString(property));
+      txPartVertex.newEdge(edgeType, addressVertex, true);
 
       convertedAddresses.incrementAndGet();
 
@@ -115,6 +123,8 @@ public class BitcoinAddressConverter extends BitcoinJob {
     System.out.println("\nSettings:");
     System.out.println("-DcommitEvery=integer (default=100)");
     System.out.println("-DparallelWorkers=integer (default=0 -> auto)");
+    System.out.println("-DaddressCacheSize=integer (default=1000000, 0 to disable)");
+    System.out.println("-DbinaryAddresses=true|false (default=false)");
     System.out.println();
   }
 }
\ No newline at end of file
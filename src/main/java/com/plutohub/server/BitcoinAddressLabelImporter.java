@@ -1,11 +1,16 @@
 package com.plutohub.server;
 
 import com.arcadedb.database.DatabaseFactory;
+import com.arcadedb.database.Document;
+import com.arcadedb.database.MutableDocument;
+import com.arcadedb.database.RID;
 import com.arcadedb.graph.MutableVertex;
 import com.arcadedb.graph.Vertex;
 import com.arcadedb.index.IndexCursor;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.*;
 
 public class BitcoinAddressLabelImporter extends DatabaseJob {
@@ -22,10 +27,13 @@ public class BitcoinAddressLabelImporter extends DatabaseJob {
       try {
         final long beginTime = System.currentTimeMillis();
 
+        new BitcoinSchema().syncAddressLabels(database);
+
         prepareAsync();
 
         final AtomicLong created = new AtomicLong();
         final AtomicLong updated = new AtomicLong();
+        final List<Object[]> replacedLabels = new ArrayList<>();
 
         System.out.printf("Importing addresses from CSV file '%s'", csvFilePath);
 
@@ -52,11 +60,34 @@ public class BitcoinAddressLabelImporter extends DatabaseJob {
                 updated.incrementAndGet();
               });
             }
+
+            // THE DIRECTORY OF THE LABELS IS ALSO FILLED FOR THE LABELS IMPORTED BY THE OLDER VERSIONS
+            final IndexCursor labels = database.lookupByKey(BitcoinSchema.DOCUMENT_ADDRESS_LABEL, "hash", values[1]);
+            final Document label = labels.hasNext() ? labels.next().asDocument() : null;
+            if (label == null)
+              database.async().createRecord(newLabel(values[1], values[2]), null);
+            else if (!values[2].equals(label.getString("label"))) {
+              if (BitcoinSchema.getLabelKey(values[2]).equals(label.getString("labelKey")))
+                database.async().updateRecord(label.modify().set("label", values[2]), null);
+              else
+                // REPLACED AT THE END: UPDATING THE KEYS OF A COMPOSITE INDEX IN PLACE BREAKS ITS RANGE SCANS
+                replacedLabels.add(new Object[] { label.getIdentity(), values[1], values[2] });
+            }
           }
         }
 
         database.async().waitCompletion();
 
+        // THE SAME KEYS CANNOT BE REMOVED AND ADDED IN THE SAME TRANSACTION. IF INTERRUPTED, THE LABELS REMOVED ARE CREATED BY THE NEXT RUN
+        database.transaction(() -> {
+          for (Object[] replaced : replacedLabels)
+            database.deleteRecord(((RID) replaced[0]).asDocument());
+        });
+        database.transaction(() -> {
+          for (Object[] replaced : replacedLabels)
+            newLabel((String) replaced[1], (String) replaced[2]).save();
+        });
+
         System.out.println(
             "- completed in " + ((System.currentTimeMillis() - beginTime) / 1000) + " secs updated " + updated + " vertices, created " + created + " vertices");
 
@@ -67,6 +98,11 @@ public class BitcoinAddressLabelImporter extends DatabaseJob {
 
   }
 
+  private MutableDocument newLabel(final String hash, final String label) {
+    return database.newDocument(BitcoinSchema.DOCUMENT_ADDRESS_LABEL).set("labelKey", BitcoinSchema.getLabelKey(label)).set("hash", hash)
+        .set("label", label);
+  }
+
   public static void main(final String[] args) throws IOException {
     if (args.length == 0) {
       printHelp();
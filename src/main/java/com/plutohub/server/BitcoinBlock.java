@@ -1,27 +1,70 @@
 package com.plutohub.server;
 
 import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Sha256Hash;
 
 import java.io.File;
 
 /**
+ * A block read from a block file. It holds either the block parsed by bitcoinj or, when decoded in raw mode, a {@link BlockView} over its
+ * bytes.
+ *
  * @author Luca Garulli (l.garulli@arcadedata.com)
  **/
 public class BitcoinBlock {
-  private final File  originFile;
-  private final long  originFileOffset;
-  private final Block originBlock;
+  public static final long UNRESOLVED = -1L;
+
+  private final File      originFile;
+  private final long      originFileOffset;
+  private final Block     originBlock;
+  private final BlockView view;
+  private       long[]    spentValues;
+  private       byte[][]  spentAddressKeys;
 
   public BitcoinBlock(final File originFile, final long originFileOffset, final Block originBlock) {
     this.originFile = originFile;
     this.originFileOffset = originFileOffset;
     this.originBlock = originBlock;
+    this.view = null;
+  }
+
+  public BitcoinBlock(final File originFile, final long originFileOffset, final BlockView view) {
+    this.originFile = originFile;
+    this.originFileOffset = originFileOffset;
+    this.originBlock = null;
+    this.view = view;
   }
 
+  /**
+   * Returns the block parsed by bitcoinj, or null if the block has been decoded in raw mode.
+   */
   public Block getOriginBlock() {
     return originBlock;
   }
 
+  /**
+   * Returns the view over the raw bytes of the block, or null if the block has been parsed by bitcoinj.
+   */
+  public BlockView getView() {
+    return view;
+  }
+
+  public Sha256Hash getHash() {
+    return view != null ? view.getHash() : originBlock.getHash();
+  }
+
+  public String getHashAsString() {
+    return view != null ? view.getHashAsString() : originBlock.getHashAsString();
+  }
+
+  public Sha256Hash getPrevBlockHash() {
+    return view != null ? view.getPrevBlockHash() : originBlock.getPrevBlockHash();
+  }
+
+  public long getTimeSeconds() {
+    return view != null ? view.getTimeSeconds() : originBlock.getTimeSeconds();
+  }
+
   public File getOriginFile() {
     return originFile;
   }
@@ -29,4 +72,47 @@ public class BitcoinBlock {
   public long getOriginFileOffset() {
     return originFileOffset;
   }
+
+  /**
+   * Sets the value and the address key of the outputs spent by the inputs of the block, resolved by {@link UtxoResolver}. The arrays
+   * are indexed by the position of the input in the block, counting the inputs of all the transactions in order.
+   */
+  public void setSpentOutputs(final long[] values, final byte[][] addressKeys) {
+    this.spentValues = values;
+    this.spentAddressKeys = addressKeys;
+  }
+
+  /**
+   * Returns the value of the output spent by an input, or {@link #UNRESOLVED} if it has not been resolved.
+   *
+   * @param input position of the input in the block, counting the inputs of all the transactions in order
+   */
+  public long getSpentValue(final int input) {
+    return spentValues != null && input < spentValues.length ? spentValues[input] : UNRESOLVED;
+  }
+
+  /**
+   * Returns the sum of the values of the outputs spent by some consecutive inputs, like the inputs of a transaction, or
+   * {@link #UNRESOLVED} if any of them has not been resolved.
+   *
+   * @param firstInput position of the first input in the block
+   * @param inputs     number of inputs
+   */
+  public long getSpentValueSum(final int firstInput, final int inputs) {
+    long sum = 0;
+    for (int i = firstInput; i < firstInput + inputs; i++) {
+      final long value = getSpentValue(i);
+      if (value == UNRESOLVED)
+        return UNRESOLVED;
+      sum += value;
+    }
+    return sum;
+  }
+
+  /**
+   * Returns the address key of the output spent by an input, or null if the input has not been resolved or the output has no address.
+   */
+  public byte[] getSpentAddressKey(final int input) {
+    return spentAddressKeys != null && input < spentAddressKeys.length ? spentAddressKeys[input] : null;
+  }
 }
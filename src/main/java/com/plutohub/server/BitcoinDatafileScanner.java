@@ -6,7 +6,9 @@ import org.bitcoinj.params.MainNetParams;
 import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class BitcoinDatafileScanner {
   // SETTINGS, THE USER CAN OVERRIDE BY SETTING PROPERTIES AT JVM LEVEL
@@ -14,6 +16,10 @@ public class BitcoinDatafileScanner {
   private       int                  expectedTotalBlocks  = 700_000;
   private       int                  parallelWorkers      = 3;
   private       int                  verbose              = 1;
+  private       boolean              memoryMapped         = true;
+  private       boolean              orderedBlocks        = true;
+  private       boolean              blockIndex           = true;
+  private       String               blockIndexDirectory  = null;
   private final BitcoinImportMetrics metrics              = new BitcoinImportMetrics();
 
   public BitcoinDatafileScanner(final String bitcoinDataDirectory) {
@@ -41,7 +47,17 @@ public class BitcoinDatafileScanner {
 
     //System.out.println("- scanning from the following files: " + dataFiles);
 
-    BlockFileLoader loader = new BlockFileLoader(np, dataFiles);
+    BlockFileLoader loader = new BlockFileLoader(np, dataFiles).setMemoryMapped(memoryMapped).setParallelWorkers(parallelWorkers)
+        .setOrdered(orderedBlocks).setUseIndex(blockIndex).setIndexDirectory(blockIndexDirectory != null ? new File(blockIndexDirectory) : null);
+
+    if (txs.length == 0 && addresses.length == 0) {
+      // ONLY BLOCKS: USE THE INDEX TO PARSE ONLY THE BLOCKS WITH THE REQUESTED HASH OR PREVIOUS HASH
+      final Set<Sha256Hash> blockHashes = new HashSet<>();
+      for (String blockHash : blocks)
+        blockHashes.add(Sha256Hash.wrap(blockHash));
+
+      loader.setBlockFilter((index, entry) -> blockHashes.contains(index.getHash(entry)) || blockHashes.contains(index.getPrevHash(entry)));
+    }
 
     final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
@@ -49,6 +65,12 @@ public class BitcoinDatafileScanner {
       loader.registerCallback(new BlockFileLoader.OnNewFile() {
         @Override
         public void onNewFile(File prevFile, BitcoinBlock firstBlock, BitcoinBlock lastBlock) {
+          if (firstBlock == null || lastBlock == null) {
+            // THE FILTER SKIPPED ALL THE BLOCKS OF THE FILE
+            System.out.println("- finished file " + prevFile + " no matching blocks");
+            return;
+          }
+
           System.out.println("- finished file " + prevFile +//
               " blocks " + firstBlock.getOriginBlock().getHashAsString() + " (" + df.format(firstBlock.getOriginBlock().getTimeSeconds() * 1000) + ") - "
               + lastBlock.getOriginBlock().getHashAsString() + "(" + df.format(lastBlock.getOriginBlock().getTimeSeconds() * 1000) + ")");
@@ -142,6 +164,10 @@ public class BitcoinDatafileScanner {
     expectedTotalBlocks = Integer.parseInt(System.getProperty("expectedTotalBlocks", "" + expectedTotalBlocks));
     parallelWorkers = Integer.parseInt(System.getProperty("parallelWorkers", "" + parallelWorkers));
     verbose = Integer.parseInt(System.getProperty("verbose", "" + verbose));
+    memoryMapped = Boolean.parseBoolean(System.getProperty("memoryMapped", "" + memoryMapped));
+    orderedBlocks = Boolean.parseBoolean(System.getProperty("orderedBlocks", "" + orderedBlocks));
+    blockIndex = Boolean.parseBoolean(System.getProperty("blockIndex", "" + blockIndex));
+    blockIndexDirectory = System.getProperty("blockIndexDirectory", blockIndexDirectory);
   }
 
   public static void main(final String[] args) throws Exception {
@@ -194,6 +220,10 @@ public class BitcoinDatafileScanner {
     System.out.println("-DexpectedTotalBlocks=integer (default=700000)");
     System.out.println("-DparallelWorkers=integer (default=3)");
     System.out.println("-Dverbose=integer (default=0)");
+    System.out.println("-DmemoryMapped=true|false (default=true)");
+    System.out.println("-DorderedBlocks=true|false (default=true)");
+    System.out.println("-DblockIndex=true|false (default=true)");
+    System.out.println("-DblockIndexDirectory=path (default=the directory of the block files)");
     System.out.println();
   }
 }
\ No newline at end of file
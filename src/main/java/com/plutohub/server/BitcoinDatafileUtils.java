@@ -14,7 +14,18 @@ import java.util.List;
 import java.util.Locale;
 
 public class BitcoinDatafileUtils {
-  public static final String FIRST_BLOCK_HASH = "0000000000000000000000000000000000000000000000000000000000000000";
+  public static final  String FIRST_BLOCK_HASH = "0000000000000000000000000000000000000000000000000000000000000000";
+  private static final Field  MESSAGE_OFFSET;
+
+  static {
+    // RESOLVED ONCE: LOOKING UP THE FIELD FOR EVERY TRANSACTION, INPUT AND OUTPUT IS EXPENSIVE
+    try {
+      MESSAGE_OFFSET = Message.class.getDeclaredField("offset");
+      MESSAGE_OFFSET.setAccessible(true);
+    } catch (NoSuchFieldException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
 
   // The method returns a list of files in a directory according to a certain
   // pattern (block files have name blkNNNNN.dat)
@@ -29,6 +40,27 @@ public class BitcoinDatafileUtils {
     return list;
   }
 
+  /**
+   * Returns the undo file that Bitcoin Core writes next to a block file (blkNNNNN.dat -> revNNNNN.dat), with the outputs spent by its
+   * blocks. The file may not exist, like for a pruned node.
+   */
+  public static File getUndoFile(final File blockFile) {
+    return new File(blockFile.getParentFile(), "rev" + blockFile.getName().substring(3));
+  }
+
+  /**
+   * Returns the number of a block file from its name (blkNNNNN.dat), or -1 if the name is not in this format.
+   */
+  public static int getDataFileIndex(final String fileName) {
+    if (!fileName.startsWith("blk") || !fileName.endsWith(".dat"))
+      return -1;
+    try {
+      return Integer.parseInt(fileName.substring(3, fileName.length() - 4));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
   public static String blockToStringWithoutTxDetail(final Block block) {
     StringBuilder s = new StringBuilder();
     s.append(" block: \n");
@@ -52,8 +84,12 @@ public class BitcoinDatafileUtils {
 
   public static void printStatus(final String operation, final List<File> dataFiles, final BlockFileLoader loader, final long beginTime,
       final long loadedBlocks, final long txCounter, final long loadedAddresses, final long linkedAddresses) {
-    final int currentFile = loader.getCurrentFileIndex();
-    final long totalParsedSize = loader.getTotalParsedSize();
+    printStatus(operation, dataFiles, loader.getCurrentFileIndex(), loader.getTotalParsedSize(), beginTime, loadedBlocks, txCounter, loadedAddresses,
+        linkedAddresses);
+  }
+
+  public static void printStatus(final String operation, final List<File> dataFiles, final int currentFile, final long totalParsedSize,
+      final long beginTime, final long loadedBlocks, final long txCounter, final long loadedAddresses, final long linkedAddresses) {
     final long elapsedInSec = (System.currentTimeMillis() - beginTime) / 1000;
     final float progress = currentFile * 100F / dataFiles.size();
     final float extRemainingInSec = (elapsedInSec * dataFiles.size() / currentFile) - elapsedInSec;
@@ -76,6 +112,25 @@ public class BitcoinDatafileUtils {
     return null;
   }
 
+  /**
+   * Returns the address of a raw script by matching the bytes of the standard P2PKH, P2SH and P2WH scripts, without parsing it.
+   */
+  public static String getAddress(final byte[] bytes, final int offset, final int length, final NetworkParameters params) {
+    final byte[] key = AddressKey.fromScript(bytes, offset, length);
+    return key != null ? AddressKey.toString(key, params) : null;
+  }
+
+  /**
+   * Returns the offset of the message in the payload it has been parsed from.
+   */
+  public static int getMessageOffset(final Message message) {
+    try {
+      return MESSAGE_OFFSET.getInt(message);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException("Cannot read the offset of message " + message, e);
+    }
+  }
+
   public static MutableVertex blockToVertex(final Database database, final Block block, final File originFile, final long originFileOffset) {
     final String hash = block.getHashAsString();
     if (hash == null) {
@@ -101,7 +156,13 @@ public class BitcoinDatafileUtils {
     return persistentBlock;
   }
 
-  public static MutableVertex txToVertex(Database database, Transaction tx) {
+  /**
+   * Creates the vertex of a transaction parsed by bitcoinj. The input sum and the fee are set only if the values of all the spent outputs
+   * are known.
+   *
+   * @param inputSum sum of the values of the outputs spent by the inputs, or {@link BitcoinBlock#UNRESOLVED}
+   */
+  public static MutableVertex txToVertex(final Database database, final Transaction tx, final long inputSum) {
     final MutableVertex persistentTx = database.newVertex(BitcoinSchema.VERTEX_TRANSACTION);
     persistentTx.set("id", tx.getTxId().toString());
     persistentTx.set("confidence", tx.getConfidence().getConfidenceType().toString());
@@ -110,13 +171,7 @@ public class BitcoinDatafileUtils {
     persistentTx.set("sigOpCount", tx.getSigOpCount());
     persistentTx.set("version", tx.getVersion());
     persistentTx.set("coinbase", tx.isCoinBase());
-    try {
-      final Field offset = tx.getClass().getSuperclass().getSuperclass().getDeclaredField("offset");
-      offset.setAccessible(true);
-      persistentTx.set("originFileOffset", offset.get(tx));
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
+    persistentTx.set("originFileOffset", getMessageOffset(tx));
 
     if (tx.getExchangeRate() != null)
       persistentTx.set("exchangeRateCoin", tx.getExchangeRate().coin.value);
@@ -124,14 +179,59 @@ public class BitcoinDatafileUtils {
       persistentTx.set("memo", tx.getMemo());
     if (tx.getPurpose() != null)
       persistentTx.set("purpose", tx.getPurpose().toString());
-    if (tx.getInputSum() != null)
-      persistentTx.set("inputSum", tx.getInputSum().value);
     if (tx.getOutputSum() != null)
       persistentTx.set("outputSum", tx.getOutputSum().value);
-    if (tx.getFee() != null)
-      persistentTx.set("fee", tx.getFee().value);
+    if (inputSum != BitcoinBlock.UNRESOLVED && tx.getOutputSum() != null) {
+      persistentTx.set("inputSum", inputSum);
+      persistentTx.set("fee", inputSum - tx.getOutputSum().value);
+    }
 
     return persistentTx;
   }
 
+  public static MutableVertex blockToVertex(final Database database, final BlockView block, final File originFile, final long originFileOffset) {
+    final MutableVertex persistentBlock = database.newVertex("Block");
+    persistentBlock.set("hash", block.getHashAsString()); // TODO CHANGE IN ID
+    persistentBlock.set("prevBlockHash", block.getPrevBlockHash().toString());
+    persistentBlock.set("time", block.getTimeSeconds() * 1000);
+    persistentBlock.set("difficultyTarget", block.getDifficultyTarget());
+    persistentBlock.set("nonce", block.getNonce());
+    persistentBlock.set("timeSeconds", block.getTimeSeconds());
+    persistentBlock.set("version", block.getVersion());
+    persistentBlock.set("witnessRoot", block.getWitnessRoot().toString());
+
+    persistentBlock.set("originFile", originFile.getName());
+    persistentBlock.set("originFileOffset", originFileOffset);
+
+    persistentBlock.set("fullyParsed", false);
+
+    return persistentBlock;
+  }
+
+  /**
+   * Creates the vertex of a transaction read from a raw block. The properties are the same as the ones of a transaction parsed by
+   * bitcoinj: confidence and purpose are always UNKNOWN. The input sum and the fee are set only if the values of all the spent outputs
+   * are known.
+   *
+   * @param inputSum sum of the values of the outputs spent by the inputs, or {@link BitcoinBlock#UNRESOLVED}
+   */
+  public static MutableVertex txToVertex(final Database database, final TransactionView tx, final long inputSum) {
+    final MutableVertex persistentTx = database.newVertex(BitcoinSchema.VERTEX_TRANSACTION);
+    persistentTx.set("id", tx.getTxId().toString());
+    persistentTx.set("confidence", TransactionConfidence.ConfidenceType.UNKNOWN.toString());
+    persistentTx.set("lockTime", tx.getLockTime());
+    persistentTx.set("wtxid", tx.getWTxId().toString());
+    persistentTx.set("sigOpCount", tx.getSigOpCount());
+    persistentTx.set("version", tx.getVersion());
+    persistentTx.set("coinbase", tx.isCoinBase());
+    persistentTx.set("originFileOffset", tx.getOffset());
+    persistentTx.set("purpose", Transaction.Purpose.UNKNOWN.toString());
+    persistentTx.set("outputSum", tx.getOutputSum());
+    if (inputSum != BitcoinBlock.UNRESOLVED) {
+      persistentTx.set("inputSum", inputSum);
+      persistentTx.set("fee", inputSum - tx.getOutputSum());
+    }
+
+    return persistentTx;
+  }
 }
\ No newline at end of file
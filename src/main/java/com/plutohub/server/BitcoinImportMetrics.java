@@ -14,11 +14,16 @@ public class BitcoinImportMetrics {
   public final AtomicLong                        loadBlocksNewTransactionOutputs = new AtomicLong();
   public       RID                               loadBlocksHeadBlock             = null;
   public       RID                               loadBlocksTailBlock             = null;
-  public       long                              loadBlocksLastBlockTimestamp    = 0L;
+  public       int                               loadBlocksLastFileIndex         = -1;
+  public       long                              loadBlocksLastFileOffset        = -1L;
+  public       int                               loadBlocksFirstUnreadFileIndex  = -1;
+  public       long                              loadBlocksFirstUnreadFileOffset = -1L;
+  public final AtomicLong                        loadBlocksSkippedBlocks         = new AtomicLong();
+  public final AtomicLong                        loadBlocksRepairedBlocks        = new AtomicLong();
+  public final AtomicLong                        loadBlocksUnresolvedInputs      = new AtomicLong();
   public       AtomicLong                        loadBlocksAddresses             = new AtomicLong();
   public       AtomicLong                        errorParsingAddresses           = new AtomicLong();
   public final AtomicLong                        connectBlocksLoadedBlocks       = new AtomicLong();
-  public final AtomicLong                        connectBlocksSkipped            = new AtomicLong();
   public final AtomicLong                        connectBlocksOkLinks            = new AtomicLong();
   public final AtomicLong                        connectBlocksKoLinks            = new AtomicLong();
   public final ConcurrentHashMap<String, String> connectBlocksNotFound           = new ConcurrentHashMap<>();
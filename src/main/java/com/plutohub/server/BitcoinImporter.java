@@ -1,21 +1,27 @@
 package com.plutohub.server;
 
 import com.arcadedb.database.DatabaseFactory;
+import com.arcadedb.database.RID;
 import com.arcadedb.graph.Edge;
 import com.arcadedb.graph.MutableVertex;
 import com.arcadedb.graph.Vertex;
 import com.arcadedb.index.IndexCursor;
+import com.arcadedb.query.sql.executor.ResultSet;
 import org.bitcoinj.core.*;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.script.ScriptException;
 
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Field;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class BitcoinImporter extends BitcoinJob {
-  private static final int DUMP_PROGRESS_EVERY = 5_000;
+  private static final int DUMP_PROGRESS_EVERY        = 5_000;
+  private static final int BLOCK_HEIGHTS_COMMIT_EVERY = 10_000;
 
   // SETTINGS, THE USER CAN OVERRIDE BY SETTING PROPERTIES AT JVM LEVEL
   private       String               bitcoinDataDirectory = "/Volumes/ext/BitCoin/datafiles/blocks/";
@@ -25,8 +31,60 @@ public class BitcoinImporter extends BitcoinJob {
   private       int                  expectedTotalBlocks  = 700_000;
   private       int                  limitBlocks          = 0;
   private       int                  limitTransactions    = 0;
+  private       boolean              memoryMapped         = true;
+  private       int                  decoderWorkers       = 0;
+  private       boolean              orderedBlocks        = true;
+  private       boolean              blockIndex           = true;
+  private       String               blockIndexDirectory  = null;
+  private       boolean              pipeline             = false;
+  private       int                  pipelineReaders      = 1;
+  private       int                  pipelineBuilders     = 1;
+  private       int                  pipelinePersisters   = 1;
+  private       int                  pipelineQueueMB      = 64;
+  private       boolean              rawDecoder           = true;
+  private       boolean              incremental          = false;
+  private       int                  resumeFileIndex      = 0; // FIRST POSITION TO IMPORT WITH INCREMENTAL=TRUE
+  private       long                 resumeFileOffset     = 0;
+  private       boolean              follow               = false;
+  private       int                  followPollMs         = 5_000;
+  private volatile boolean           following            = false;
+  private       boolean              utxo                 = true;
+  private       long                 utxoCapacity         = 50_000_000;
+  private       String               utxoDirectory        = null;
+  private       int                  utxoMaxParkedBlocks  = 1024;
+  private       UtxoResolver         utxoResolver;
+  private       boolean              undoFiles            = false;
+  private       BlockUndoReader      undoReader;
+  private       boolean              addressSummary       = true;
+  private       int                  addressSummaryBatch  = 100_000;
+  private       AddressSummaries     addressSummaries;
   private final BitcoinImportMetrics metrics              = new BitcoinImportMetrics();
   private final BitcoinSchema        schema               = new BitcoinSchema();
+  private       BlockChainLinker     blockLinker;
+  private       BlockHeights         blockHeights;
+  private final Queue<RID[]>         pendingBlockLinks    = new ConcurrentLinkedQueue<>();
+
+  private static class RawBlock {
+    private final File   file;
+    private final long   offset;
+    private final byte[] bytes;
+
+    private RawBlock(final File file, final long offset, final byte[] bytes) {
+      this.file = file;
+      this.offset = offset;
+      this.bytes = bytes;
+    }
+  }
+
+  private static class PendingBlock {
+    private final BitcoinBlock  block;
+    private final MutableVertex vertex;
+
+    private PendingBlock(final BitcoinBlock block, final MutableVertex vertex) {
+      this.block = block;
+      this.vertex = vertex;
+    }
+  }
 
   // A simple method with everything in it
   public void load(final String bitcoinDataDirectory) {
@@ -44,7 +102,13 @@ public class BitcoinImporter extends BitcoinJob {
         database = factory.create();
 
       try {
-        schema.sync(database);
+        schema.setBinaryAddresses(binaryAddresses).sync(database);
+
+        blockLinker = new BlockChainLinker(database, expectedTotalBlocks);
+        blockHeights = new BlockHeights(database, BLOCK_HEIGHTS_COMMIT_EVERY, this::commitAndStartNewTransaction);
+
+        if (addressSummary)
+          addressSummaries = new AddressSummaries(binaryAddresses);
 
         final long beginTime = System.currentTimeMillis();
 
@@ -54,10 +118,24 @@ public class BitcoinImporter extends BitcoinJob {
         final MutableVertex importVertex = database.newVertex("Import");
         importVertex.set("beginTime", beginTime);
         importVertex.set("status", "in progress");
+        importVertex.set("incremental", incremental);
 
         try {
+          if (undoFiles)
+            // THE UNDO FILES ARE READ BY THE THREADS BUILDING THE BLOCKS
+            undoReader = new BlockUndoReader(MainNetParams.get()).setMaxOpenFiles(Math.max(4, pipelineBuilders * 2));
+          else if (utxo)
+            utxoResolver = new UtxoResolver(new UtxoSet(utxoDirectory != null ? new File(utxoDirectory) : null, utxoCapacity))
+                .setMaxParkedBlocks(utxoMaxParkedBlocks);
+
+          if (incremental)
+            prepareIncrementalImport();
+
           loadBlocks();
-          connectBlocks(importVertex);
+          printBlockLinks();
+
+          if (follow)
+            followBlocks(importVertex, beginTime);
 
           database.async().waitCompletion();
 
@@ -68,36 +146,7 @@ public class BitcoinImporter extends BitcoinJob {
 
         } finally {
           // SAVE THE IMPORT STATUS ALSO IN CASE OF ERROR
-          final long endTime = System.currentTimeMillis();
-          importVertex.set("endTime", endTime);
-          importVertex.set("elapsed", endTime - beginTime);
-          importVertex.set("parsedBlocks", metrics.loadBlocksParsedBlocks.get());
-          importVertex.set("parsedTransactions", metrics.loadBlocksParsedTransactions.get());
-          importVertex.set("newAddresses", metrics.loadBlocksAddresses.get());
-          importVertex.set("newBlocks", metrics.loadBlocksNewBlocks.get());
-          importVertex.set("newTransactions", metrics.loadBlocksNewTransactions.get());
-          importVertex.set("newTransactionInputs", metrics.loadBlocksNewTransactionInputs.get());
-          importVertex.set("hashNotFound", metrics.connectBlocksNotFound.size());
-          importVertex.save();
-
-          if (metrics.loadBlocksHeadBlock != null)
-            importVertex.newLightEdge(BitcoinSchema.EDGE_HEAD_BLOCK, metrics.loadBlocksHeadBlock, false);
-          if (metrics.loadBlocksTailBlock != null) {
-            importVertex.newLightEdge(BitcoinSchema.EDGE_TAIL_BLOCK, metrics.loadBlocksTailBlock, false);
-
-            // FROM THE TAIL GO BACK TO GET A SAFE NODE
-            Vertex latestSafeBlock = ((Vertex) metrics.loadBlocksTailBlock.getRecord());
-
-            for (int i = 0; i < safeBlocksFromTail; i++) {
-              final Iterator<Edge> prevCursor = latestSafeBlock.getEdges(Vertex.DIRECTION.OUT, BitcoinSchema.EDGE_PREVIOUS_BLOCK).iterator();
-              if (!prevCursor.hasNext())
-                break;
-
-              latestSafeBlock = (Vertex) prevCursor.next().getRecord();
-            }
-
-            importVertex.newLightEdge(BitcoinSchema.EDGE_SAFE_TAIL_BLOCK, latestSafeBlock, false);
-          }
+          saveImportVertex(importVertex, beginTime);
 
           if (!metrics.connectBlocksNotFound.isEmpty()) {
             System.out.println("The following blocks were not found to create the blockchain:");
@@ -113,12 +162,82 @@ public class BitcoinImporter extends BitcoinJob {
         }
 
       } finally {
+        if (utxoResolver != null)
+          utxoResolver.close();
+        if (undoReader != null)
+          undoReader.close();
         database.close();
       }
     }
 
   }
 
+  /**
+   * Saves the metrics of the import and links the Import vertex to the head, the tail and the safe tail blocks, replacing the previous
+   * links when it is called again while following the block files.
+   */
+  private void saveImportVertex(final MutableVertex importVertex, final long beginTime) {
+    final long endTime = System.currentTimeMillis();
+    importVertex.set("endTime", endTime);
+    importVertex.set("elapsed", endTime - beginTime);
+    importVertex.set("parsedBlocks", metrics.loadBlocksParsedBlocks.get());
+    importVertex.set("parsedTransactions", metrics.loadBlocksParsedTransactions.get());
+    importVertex.set("newAddresses", metrics.loadBlocksAddresses.get());
+    importVertex.set("newBlocks", metrics.loadBlocksNewBlocks.get());
+    importVertex.set("newTransactions", metrics.loadBlocksNewTransactions.get());
+    importVertex.set("newTransactionInputs", metrics.loadBlocksNewTransactionInputs.get());
+    importVertex.set("hashNotFound", metrics.connectBlocksNotFound.size());
+    importVertex.set("skippedBlocks", metrics.loadBlocksSkippedBlocks.get());
+    importVertex.set("repairedBlocks", metrics.loadBlocksRepairedBlocks.get());
+    importVertex.set("unresolvedInputs", metrics.loadBlocksUnresolvedInputs.get());
+    synchronized (metrics) {
+      int lastFileIndex = metrics.loadBlocksLastFileIndex;
+      long lastFileOffset = metrics.loadBlocksLastFileOffset;
+      if (metrics.loadBlocksFirstUnreadFileIndex > -1
+          && comparePosition(metrics.loadBlocksFirstUnreadFileIndex, metrics.loadBlocksFirstUnreadFileOffset, lastFileIndex, lastFileOffset) <= 0) {
+        // THE NEXT IMPORT RESUMES FROM THE FIRST BLOCK NOT READ, THE BLOCKS ALREADY IMPORTED AFTER IT ARE SKIPPED BY HASH
+        lastFileIndex = metrics.loadBlocksFirstUnreadFileIndex;
+        lastFileOffset = metrics.loadBlocksFirstUnreadFileOffset - 1;
+      }
+      if (lastFileIndex > -1) {
+        importVertex.set("lastOriginFile", String.format(Locale.US, "blk%05d.dat", lastFileIndex));
+        importVertex.set("lastOriginFileOffset", lastFileOffset);
+      }
+    }
+    if (addressSummaries != null)
+      importVertex.set("updatedAddressSummaries", addressSummaries.getFlushedAddresses());
+    if (addressCache != null) {
+      importVertex.set("addressCacheHits", addressCache.getHits());
+      importVertex.set("addressCacheMisses", addressCache.getMisses());
+    }
+    if (metrics.loadBlocksTailBlock != null)
+      importVertex.set("tailHeight", ((Vertex) metrics.loadBlocksTailBlock.getRecord()).getLong("height"));
+    importVertex.save();
+
+    for (Edge edge : importVertex.getEdges(Vertex.DIRECTION.OUT, BitcoinSchema.EDGE_HEAD_BLOCK, BitcoinSchema.EDGE_TAIL_BLOCK,
+        BitcoinSchema.EDGE_SAFE_TAIL_BLOCK))
+      edge.delete();
+
+    if (metrics.loadBlocksHeadBlock != null)
+      importVertex.newLightEdge(BitcoinSchema.EDGE_HEAD_BLOCK, metrics.loadBlocksHeadBlock, false);
+    if (metrics.loadBlocksTailBlock != null) {
+      importVertex.newLightEdge(BitcoinSchema.EDGE_TAIL_BLOCK, metrics.loadBlocksTailBlock, false);
+
+      // FROM THE TAIL GO BACK TO GET A SAFE NODE
+      Vertex latestSafeBlock = ((Vertex) metrics.loadBlocksTailBlock.getRecord());
+
+      for (int i = 0; i < safeBlocksFromTail; i++) {
+        final Iterator<Vertex> prevCursor = latestSafeBlock.getVertices(Vertex.DIRECTION.OUT, BitcoinSchema.EDGE_PREVIOUS_BLOCK).iterator();
+        if (!prevCursor.hasNext())
+          break;
+
+        latestSafeBlock = prevCursor.next();
+      }
+
+      importVertex.newLightEdge(BitcoinSchema.EDGE_SAFE_TAIL_BLOCK, latestSafeBlock, false);
+    }
+  }
+
   private void loadBlocks() {
     System.out.println("Parsing .dat block files and create the graph database (commitEvery=" + commitEvery + ")...");
 
@@ -126,80 +245,639 @@ public class BitcoinImporter extends BitcoinJob {
     NetworkParameters np = new MainNetParams();
     Context.getOrCreate(MainNetParams.get());
 
-    final List<File> dataFiles = BitcoinDatafileUtils.getBitcoinDataFiles(bitcoinDataDirectory, 0);
-    BlockFileLoader loader = new BlockFileLoader(np, dataFiles);
+    final List<File> dataFiles = BitcoinDatafileUtils.getBitcoinDataFiles(bitcoinDataDirectory, resumeFileIndex);
 
     final long beginTime = System.currentTimeMillis();
 
     if (!addressAsVertex)
       prepareAsync();
 
+    if (pipeline)
+      loadBlocksWithPipeline(np, dataFiles, beginTime);
+    else
+      loadBlocksWithLoader(np, dataFiles, beginTime);
+
+    completeBlocks();
+
+    System.out.println("- completed in " + ((System.currentTimeMillis() - beginTime) / 1000) + " secs");
+  }
+
+  /**
+   * Waits for the blocks passed to {@link #persistBlock(BitcoinBlock, MutableVertex, Runnable)} to be saved and links the last ones.
+   */
+  private void completeBlocks() {
+    if (addressAsVertex)
+      commitAndStartNewTransaction();
+    else
+      // THE LAST BLOCKS ARE LINKED ONLY ONCE THE ASYNC EXECUTOR HAS SAVED THEM
+      do {
+        database.async().waitCompletion();
+      } while (flushBlockLinks() > 0);
+
+    // ALL THE BLOCKS ARE SAVED: THE ORPHANS LEFT CAN BE LINKED TO THE BLOCKS OF THE PREVIOUS IMPORTS IN THE CURRENT THREAD
+    final int linked = blockLinker.linkOrphans(this::lookupBlock,
+        (child, previous) -> child.asVertex().newLightEdge(BitcoinSchema.EDGE_PREVIOUS_BLOCK, previous, true));
+    if (linked > 0)
+      System.out.println("- linked " + linked + " blocks to blocks of previous imports");
+
+    // ALL THE BLOCKS ARE LINKED: THE TAIL IS THE BLOCK WITH THE MOST CUMULATIVE WORK
+    final long assigned = blockHeights.assign();
+    if (blockHeights.getTail() != null)
+      metrics.loadBlocksTailBlock = blockHeights.getTail();
+    if (assigned > 0)
+      System.out.println("- assigned the height to " + assigned + " blocks, tail block " + metrics.loadBlocksTailBlock);
+
+    flushAddressSummaries(true);
+  }
+
+  /**
+   * Follows the block files written by a running Bitcoin Core node, importing the new blocks as soon as they are appended. Every batch
+   * of new blocks is committed together with the Import vertex, so its TailBlock and SafeTailBlock edges move forward. It runs until
+   * the JVM is shut down.
+   */
+  private void followBlocks(final MutableVertex importVertex, final long beginTime) throws IOException, InterruptedException {
+    final int fileIndex = metrics.loadBlocksLastFileIndex > -1 ? metrics.loadBlocksLastFileIndex : resumeFileIndex;
+    final long afterOffset = metrics.loadBlocksLastFileIndex > -1 ? metrics.loadBlocksLastFileOffset : -1;
+
+    importVertex.set("status", "following");
+    saveImportVertex(importVertex, beginTime);
+    commitAndStartNewTransaction();
+
+    // ON SHUTDOWN, LET THE CURRENT BATCH COMPLETE SO THE DATABASE IS CLOSED WITH ALL THE BLOCKS FULLY PARSED
+    final Thread followingThread = Thread.currentThread();
+    following = true;
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      following = false;
+      try {
+        followingThread.join(followPollMs * 4L);
+      } catch (InterruptedException e) {
+        // SHUTDOWN ANYWAY
+      }
+    }));
+
+    System.out.println("Following the block files from blk" + String.format(Locale.US, "%05d", fileIndex) + ".dat (pollMs=" + followPollMs + ")...");
+
+    try (BlockFileFollower follower = new BlockFileFollower(MainNetParams.get(), new File(bitcoinDataDirectory), fileIndex,
+        afterOffset).setRaw(rawDecoder)) {
+      while (following) {
+        final int blocks = follower.poll((b) -> importBlocks(resolveInputs(b)));
+
+        if (blocks > 0) {
+          // BITCOIN CORE APPENDS THE BLOCKS IN CHAIN ORDER ONCE IN SYNC: DO NOT LEAVE A BLOCK PARKED UNTIL THE NEXT BATCH
+          importBlocks(flushUnresolvedBlocks());
+
+          completeBlocks();
+          saveImportVertex(importVertex, beginTime);
+          commitAndStartNewTransaction();
+
+          System.out.println("- imported " + blocks + " new blocks, tail block " + metrics.loadBlocksTailBlock + " (blk" + String.format(Locale.US,
+              "%05d", follower.getFileIndex()) + ".dat offset " + follower.getPosition() + ")");
+        }
+
+        if (following)
+          follower.await(followPollMs);
+      }
+    }
+  }
+
+  private void loadBlocksWithLoader(final NetworkParameters np, final List<File> dataFiles, final long beginTime) {
+    BlockFileLoader loader = new BlockFileLoader(np, dataFiles).setMemoryMapped(memoryMapped).setParallelWorkers(decoderWorkers)
+        .setOrdered(orderedBlocks).setUseIndex(blockIndex).setIndexDirectory(getBlockIndexDirectory()).setRaw(rawDecoder)
+        .setBlockFilter(getResumeFilter());
+
     final Timer timer = new Timer();
     timer.schedule(new TimerTask() {
       @Override
       public void run() {
         BitcoinDatafileUtils.printStatus("imported", dataFiles, loader, beginTime, metrics.loadBlocksParsedBlocks.get(),
             metrics.loadBlocksParsedTransactions.get(), metrics.loadBlocksAddresses.get(), metrics.connectAddressesEdges.get());
+        if (addressCache != null)
+          System.out.println("  address cache: " + addressCache.getStats());
+        if (utxoResolver != null)
+          System.out.println("  utxo set: " + utxoResolver.getStats());
+        if (undoReader != null)
+          System.out.println("  undo files: " + undoReader.getStats());
       }
     }, DUMP_PROGRESS_EVERY, DUMP_PROGRESS_EVERY);
 
     try {
       for (BitcoinBlock b : loader) {
-        final Block block = b.getOriginBlock();
-
-        final long loadedBlocks = metrics.loadBlocksParsedBlocks.incrementAndGet();
+        importBlocks(resolveInputs(b));
 
-        final MutableVertex persistentBlock = BitcoinDatafileUtils.blockToVertex(database, block, b.getOriginFile(), b.getOriginFileOffset());
-
-        if (persistentBlock == null)
-          continue;
+        if (isLimitReached())
+          break;
+      }
 
-        if (block.getPrevBlockHash().toString().equals(BitcoinDatafileUtils.FIRST_BLOCK_HASH))
-          // 1ST BLOCK, NO PREVIOUS
-          metrics.loadBlocksHeadBlock = persistentBlock.getIdentity();
+      if (!isLimitReached())
+        importBlocks(flushUnresolvedBlocks());
+    } finally {
+      timer.cancel();
+      loader.close();
+    }
+  }
 
-        if (block.getTimeSeconds() > metrics.loadBlocksLastBlockTimestamp) {
-          metrics.loadBlocksTailBlock = persistentBlock.getIdentity();
-          metrics.loadBlocksLastBlockTimestamp = block.getTimeSeconds() * 1000L;
+  /**
+   * Imports the blocks through a pipeline of stages: read of the raw blocks from the files, decode, construction of the vertices and
+   * persistence. Every stage has its own threads and a queue bounded in bytes, so the memory used stays flat whatever is the slowest
+   * stage.
+   */
+  private void loadBlocksWithPipeline(final NetworkParameters np, final List<File> dataFiles, final long beginTime) {
+    final File indexDirectory = getBlockIndexDirectory();
+    final AtomicInteger parsedFiles = new AtomicInteger();
+    final AtomicLong parsedSize = new AtomicLong();
+
+    final ImportPipeline pipeline = new ImportPipeline(pipelineQueueMB * 1024L * 1024L);
+
+    pipeline.addStage("read", pipelineReaders, (File file, long bytes, ImportPipeline.Emitter<RawBlock> output) -> {
+      try (BlockFileReader reader = new BlockFileReader(np, file)) {
+        if (blockIndex)
+          reader.useIndex(indexDirectory, getResumeFilter());
+
+        while (reader.nextFrame()) {
+          if (pipeline.isDraining()) {
+            // LIMIT REACHED: THE OTHER READERS MAY HAVE READ FURTHER, THE NEXT IMPORT MUST RESUME FROM HERE
+            trackFirstUnread(file, reader.getBlockOffset());
+            break;
+          }
+          output.emit(new RawBlock(file, reader.getBlockOffset(), reader.readBlockBytes()), reader.getBlockSize());
         }
+      } catch (IOException e) {
+        System.err.println("Error on reading block file '" + file + "': " + e);
+      }
+      parsedSize.addAndGet(file.length());
+      parsedFiles.incrementAndGet();
+    });
 
-        metrics.loadBlocksNewBlocks.incrementAndGet();
-
-        if (addressAsVertex) {
-          persistentBlock.save();
-          parseTransactions(block, persistentBlock);
-          persistentBlock.set("fullyParsed", true).save();
-        } else {
-          database.async().createRecord(persistentBlock, (savedRecord) -> {
-            final MutableVertex saved = savedRecord.asVertex().modify();
-            parseTransactions(block, saved);
-            saved.modify().set("fullyParsed", true).save();
-          });
-        }
+    pipeline.addStage("decode", decoderWorkers > 0 ? decoderWorkers : Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+        (RawBlock raw, long bytes, ImportPipeline.Emitter<BitcoinBlock> output) -> {
+          try {
+            if (rawDecoder)
+              output.emit(new BitcoinBlock(raw.file, raw.offset, new BlockView(raw.bytes)), bytes);
+            else
+              output.emit(new BitcoinBlock(raw.file, raw.offset, np.getDefaultSerializer().makeBlock(raw.bytes)), bytes);
+          } catch (ProtocolException e) {
+            // SKIP IT, LIKE THE BLOCK LOADER DOES
+          }
+        });
+
+    // WHEN THE LIMIT IS REACHED ONLY THE READ STOPS: THE BLOCKS ALREADY READ ARE BUILT AND PERSISTED, SO NONE IS LOST
+    pipeline.addStage("build", pipelineBuilders, (BitcoinBlock b, long bytes, ImportPipeline.Emitter<PendingBlock> output) -> {
+      for (BitcoinBlock resolved : resolveInputs(b)) {
+        final MutableVertex persistentBlock = buildBlockVertex(resolved);
+        if (persistentBlock != null)
+          // THE BLOCKS RELEASED BY THE RESOLVER ARE COUNTED WITH THE WEIGHT OF THE BLOCK THAT RELEASED THEM
+          output.emit(new PendingBlock(resolved, persistentBlock), bytes);
+      }
 
-        if (limitTransactions > 0 && metrics.loadBlocksNewTransactions.get() > limitTransactions)
-          break;
+      if (!pipeline.isDraining() && isLimitReached())
+        pipeline.drain();
+    });
 
-        if (limitBlocks > 0 && loadedBlocks > limitBlocks) {
-          System.out.println("- reached limit of " + limitBlocks + " blocks");
-          break;
-        }
+    if (addressAsVertex)
+      // ADDRESSES ARE LOOKED UP AND CREATED IN THE SAME TRANSACTION, SO ONLY ONE THREAD CAN PERSIST
+      pipeline.addStage("persist", 1, (PendingBlock pending, long bytes, ImportPipeline.Emitter<Object> output) -> {
+        persistBlock(pending.block, pending.vertex, null);
+        flushAddressSummaries(false);
+      }, this::commitAndStartNewTransaction, () -> database.commit());
+    else
+      pipeline.addStage("persist", pipelinePersisters, (PendingBlock pending, long bytes, ImportPipeline.Emitter<Object> output) -> {
+        // THE ASYNC EXECUTOR KEEPS THE BLOCK UNTIL IT IS SAVED: COUNT IT AS IN FLIGHT TO KEEP THE MEMORY BOUNDED
+        pipeline.acquireInFlight(bytes);
+        persistBlock(pending.block, pending.vertex, () -> pipeline.releaseInFlight(bytes));
+        flushBlockLinks();
+        flushAddressSummaries(false);
+      });
+
+    final Timer timer = new Timer();
+    timer.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        BitcoinDatafileUtils.printStatus("imported", dataFiles, parsedFiles.get(), parsedSize.get(), beginTime, metrics.loadBlocksParsedBlocks.get(),
+            metrics.loadBlocksParsedTransactions.get(), metrics.loadBlocksAddresses.get(), metrics.connectAddressesEdges.get());
+        System.out.println("  pipeline: " + pipeline.getStatus());
+        if (addressCache != null)
+          System.out.println("  address cache: " + addressCache.getStats());
+        if (utxoResolver != null)
+          System.out.println("  utxo set: " + utxoResolver.getStats());
+        if (undoReader != null)
+          System.out.println("  undo files: " + undoReader.getStats());
       }
+    }, DUMP_PROGRESS_EVERY, DUMP_PROGRESS_EVERY);
+
+    try {
+      pipeline.start(dataFiles).waitCompletion();
+
+      // THE BLOCKS STILL PARKED BY THE RESOLVER ARE IMPORTED BY THE CURRENT THREAD, ALSO WHEN THE LIMIT IS REACHED SINCE THEY HAVE BEEN READ
+      importBlocks(flushUnresolvedBlocks());
     } finally {
       timer.cancel();
     }
+  }
 
-    if (addressAsVertex)
-      commitAndStartNewTransaction();
+  /**
+   * Resolves the inputs of the block through the undo files or the UTXO set, if enabled.
+   *
+   * @return the blocks ready to be imported, in chain order: none if the block is waiting for its previous block
+   */
+  private List<BitcoinBlock> resolveInputs(final BitcoinBlock block) {
+    if (undoReader == null && utxoResolver == null)
+      return Collections.singletonList(block);
+
+    try {
+      if (undoReader != null) {
+        // A BLOCK WITHOUT UNDO DATA (NOT CONNECTED TO THE CHAIN) IS IMPORTED WITH THE INPUTS NOT RESOLVED
+        undoReader.resolve(block);
+        return Collections.singletonList(block);
+      }
+
+      return utxoResolver.offer(block);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Error on resolving the inputs of block " + block.getHashAsString(), e);
+    }
+  }
+
+  private List<BitcoinBlock> flushUnresolvedBlocks() {
+    if (utxoResolver == null)
+      return Collections.emptyList();
+
+    try {
+      return utxoResolver.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Error on resolving the inputs of the parked blocks", e);
+    }
+  }
+
+  private void importBlocks(final List<BitcoinBlock> blocks) {
+    for (BitcoinBlock b : blocks) {
+      final MutableVertex persistentBlock = buildBlockVertex(b);
+      if (persistentBlock != null)
+        persistBlock(b, persistentBlock, null);
+
+      flushBlockLinks();
+      flushAddressSummaries(false);
+    }
+  }
+
+  /**
+   * Writes the pending totals of the addresses in a transaction of the current thread, if there are enough of them or if forced. It
+   * must not be called by the threads of the async executor. The lock is held until the commit: with many persisters, two threads
+   * updating the same summaries in two open transactions would fail the second commit and lose its totals.
+   */
+  private void flushAddressSummaries(final boolean force) {
+    if (addressSummaries == null || (!force
+        && addressSummaries.getPendingAddresses() + addressSummaries.getStagedAddresses() < addressSummaryBatch))
+      return;
+
+    synchronized (addressSummaries) {
+      if (!addressAsVertex)
+        // THE TOTALS OF THE BLOCKS SAVED BY THE ASYNC EXECUTOR ARE WRITTEN ONLY ONCE THEIR TRANSACTIONS ARE COMMITTED, OTHERWISE A CRASH
+        // COULD LEAVE A BLOCK NOT FULLY PARSED WITH ITS TOTALS STORED, AND THE REPAIR WOULD COUNT THEM TWICE
+        addressSummaries.commitStaged(() -> database.async().waitCompletion());
+
+      final boolean transactionActive = database.isTransactionActive();
+      if (!transactionActive)
+        database.begin();
+
+      addressSummaries.flush(database);
+
+      if (transactionActive)
+        commitAndStartNewTransaction();
+      else
+        database.commit();
+    }
+  }
+
+  private MutableVertex buildBlockVertex(final BitcoinBlock b) {
+    metrics.loadBlocksParsedBlocks.incrementAndGet();
+
+    if ((incremental || following) && isAlreadyImported(b)) {
+      metrics.loadBlocksSkippedBlocks.incrementAndGet();
+      return null;
+    }
+
+    final MutableVertex persistentBlock = b.getView() != null ?
+        BitcoinDatafileUtils.blockToVertex(database, b.getView(), b.getOriginFile(), b.getOriginFileOffset()) :
+        BitcoinDatafileUtils.blockToVertex(database, b.getOriginBlock(), b.getOriginFile(), b.getOriginFileOffset());
+    if (persistentBlock != null)
+      metrics.loadBlocksNewBlocks.incrementAndGet();
+
+    return persistentBlock;
+  }
+
+  /**
+   * Saves the block and its transactions, synchronously if addresses are vertices, otherwise through the async executor.
+   *
+   * @param onPersisted optional callback executed when the block and its transactions have been saved
+   */
+  private void persistBlock(final BitcoinBlock block, final MutableVertex persistentBlock, final Runnable onPersisted) {
+    if (addressAsVertex) {
+      try {
+        persistentBlock.save();
+        trackHead(block, persistentBlock.getIdentity());
+        final AddressSummaries.BlockTotals totals = parseTransactions(block, persistentBlock);
+        persistentBlock.set("fullyParsed", true).save();
+        trackLastParsed(block);
+        if (totals != null)
+          addressSummaries.merge(totals);
+        linkBlock(block, persistentBlock.getIdentity());
+      } finally {
+        if (onPersisted != null)
+          onPersisted.run();
+      }
+    } else {
+      database.async().createRecord(persistentBlock, (savedRecord) -> {
+        try {
+          trackHead(block, savedRecord.getIdentity());
+          final MutableVertex saved = savedRecord.asVertex().modify();
+          final AddressSummaries.BlockTotals totals = parseTransactions(block, saved);
+          saved.modify().set("fullyParsed", true).save();
+          trackLastParsed(block);
+          if (totals != null)
+            addressSummaries.stage(totals);
+          linkBlock(block, saved.getIdentity());
+        } finally {
+          if (onPersisted != null)
+            onPersisted.run();
+        }
+      });
+    }
+  }
+
+  /**
+   * Links the block to its previous block, and the orphans waiting for this block to it, as soon as the block is saved. When addresses
+   * are vertices the edges are created in the current transaction, otherwise they are queued and created by
+   * {@link #flushBlockLinks()} through the async executor, that saves the two sides of the edge in the threads owning their buckets.
+   */
+  private void linkBlock(final BitcoinBlock block, final RID blockRID) {
+    blockLinker.add(block.getHash(), block.getPrevBlockHash(), blockRID, (child, previous) -> {
+      if (addressAsVertex)
+        child.asVertex().newLightEdge(BitcoinSchema.EDGE_PREVIOUS_BLOCK, previous, true);
+      else
+        pendingBlockLinks.add(new RID[] { child, previous });
+    });
+  }
+
+  /**
+   * Creates the queued links between blocks through the async executor. It must not be called by the threads of the async executor.
+   *
+   * @return the number of links created
+   */
+  private int flushBlockLinks() {
+    int flushed = 0;
+    for (RID[] link; (link = pendingBlockLinks.poll()) != null; ++flushed)
+      database.async().newEdge(link[0].asVertex(false), BitcoinSchema.EDGE_PREVIOUS_BLOCK, link[1], true, true, null);
+    return flushed;
+  }
+
+  /**
+   * Tracks the head and adds the block to the ones to assign the height to. The tail is chosen by {@link BlockHeights} once the blocks
+   * are linked: the block times are not in chain order.
+   */
+  private void trackHead(final BitcoinBlock block, final RID blockRID) {
+    if (block.getPrevBlockHash().toString().equals(BitcoinDatafileUtils.FIRST_BLOCK_HASH))
+      // 1ST BLOCK, NO PREVIOUS
+      synchronized (metrics) {
+        metrics.loadBlocksHeadBlock = blockRID;
+      }
+
+    blockHeights.add(blockRID);
+  }
+
+  /**
+   * Keeps the highest position (file, offset) of the fully parsed blocks, the point where the next incremental import resumes.
+   */
+  private void trackLastParsed(final BitcoinBlock block) {
+    final int fileIndex = BitcoinDatafileUtils.getDataFileIndex(block.getOriginFile().getName());
+    synchronized (metrics) {
+      if (comparePosition(fileIndex, block.getOriginFileOffset(), metrics.loadBlocksLastFileIndex, metrics.loadBlocksLastFileOffset) > 0) {
+        metrics.loadBlocksLastFileIndex = fileIndex;
+        metrics.loadBlocksLastFileOffset = block.getOriginFileOffset();
+      }
+    }
+  }
+
+  /**
+   * Keeps the lowest position of the blocks left unread when the limit is reached: the next incremental import resumes from it, even if
+   * blocks after it have been imported by other readers.
+   */
+  private void trackFirstUnread(final File file, final long fileOffset) {
+    final int fileIndex = BitcoinDatafileUtils.getDataFileIndex(file.getName());
+    synchronized (metrics) {
+      if (metrics.loadBlocksFirstUnreadFileIndex < 0
+          || comparePosition(fileIndex, fileOffset, metrics.loadBlocksFirstUnreadFileIndex, metrics.loadBlocksFirstUnreadFileOffset) < 0) {
+        metrics.loadBlocksFirstUnreadFileIndex = fileIndex;
+        metrics.loadBlocksFirstUnreadFileOffset = fileOffset;
+      }
+    }
+  }
+
+  /**
+   * Prepares an incremental import from the last completed (or following) import: the blocks up to its last fully parsed position are
+   * skipped, while the blocks left not fully parsed by an interrupted import are deleted, with their transactions, to be imported again.
+   */
+  private void prepareIncrementalImport() {
+    String lastFileName = null;
+    final ResultSet lastImports = database.query("sql",
+        "select from " + BitcoinSchema.VERTEX_IMPORT + " where status in ['completed', 'following'] and type is null order by endTime desc limit 1");
+    if (lastImports.hasNext()) {
+      final Vertex lastImport = lastImports.next().getVertex().get();
+
+      String lastFile = lastImport.getString("lastOriginFile");
+      Long lastFileOffset = lastImport.getLong("lastOriginFileOffset");
+
+      final Vertex tail = getLinkedBlock(lastImport, BitcoinSchema.EDGE_TAIL_BLOCK);
+      if (lastFile == null && tail != null) {
+        // IMPORTED BEFORE THE LAST POSITION WAS SAVED: THE TAIL IS THE BEST APPROXIMATION, THE BLOCKS AFTER IT ARE SKIPPED BY HASH
+        lastFile = tail.getString("originFile");
+        lastFileOffset = tail.getLong("originFileOffset");
+      }
+
+      if (lastFile != null) {
+        lastFileName = lastFile;
+        resumeFileIndex = BitcoinDatafileUtils.getDataFileIndex(lastFile);
+        resumeFileOffset = lastFileOffset + 1;
+        metrics.loadBlocksLastFileIndex = resumeFileIndex;
+        metrics.loadBlocksLastFileOffset = lastFileOffset;
+      }
+
+      // THE HEAD AND THE TAIL MOVE ONLY IF THIS IMPORT FINDS BETTER ONES
+      final Vertex head = getLinkedBlock(lastImport, BitcoinSchema.EDGE_HEAD_BLOCK);
+      if (head != null) {
+        metrics.loadBlocksHeadBlock = head.getIdentity();
+        if (head.getLong("height") == null)
+          // IMPORTED BY AN OLDER VERSION: ASSIGN THE HEIGHTS OF ALL THE BLOCKS FROM THE HEAD
+          blockHeights.add(head.getIdentity());
+      }
+      if (tail != null) {
+        metrics.loadBlocksTailBlock = tail.getIdentity();
+        blockHeights.setTail(tail);
+      }
+    }
+
+    // REPAIR THE BLOCKS OF INTERRUPTED IMPORTS, ALL AFTER THE FILE OF THE LAST IMPORT SINCE THEY RESUMED FROM IT. FULLYPARSED IS NOT
+    // INDEXED: A 2ND INDEX ON BLOCK DOES NOT WORK WITH THE BUCKETS PARTITIONED BY HASH
+    final ResultSet unfinished = lastFileName != null ?
+        database.query("sql", "select from " + BitcoinSchema.VERTEX_BLOCK + " where originFile >= ? and fullyParsed = false", lastFileName) :
+        database.query("sql", "select from " + BitcoinSchema.VERTEX_BLOCK + " where fullyParsed = false");
+    final List<Vertex> toRepair = new ArrayList<>();
+    while (unfinished.hasNext())
+      toRepair.add(unfinished.next().getVertex().get());
+
+    for (Vertex block : toRepair) {
+      final int fileIndex = BitcoinDatafileUtils.getDataFileIndex(block.getString("originFile"));
+      final long fileOffset = block.getLong("originFileOffset");
+      if (comparePosition(fileIndex, fileOffset, resumeFileIndex, resumeFileOffset) < 0) {
+        resumeFileIndex = fileIndex;
+        resumeFileOffset = fileOffset;
+      }
+
+      // THE NEXT BLOCKS ARE LINKED AGAIN WHEN THE BLOCK IS IMPORTED AGAIN
+      final Sha256Hash hash = Sha256Hash.wrap(block.getString("hash"));
+      for (Vertex next : block.getVertices(Vertex.DIRECTION.IN, BitcoinSchema.EDGE_PREVIOUS_BLOCK))
+        if (next.getBoolean("fullyParsed"))
+          blockLinker.addOrphan(Sha256Hash.wrap(next.getString("hash")), hash, next.getIdentity());
+
+      deleteBlock(block);
+      metrics.loadBlocksRepairedBlocks.incrementAndGet();
+    }
+
+    commitAndStartNewTransaction();
+
+    System.out.println(
+        "Incremental import from blk" + String.format(Locale.US, "%05d", resumeFileIndex) + ".dat offset " + resumeFileOffset + " (repaired "
+            + toRepair.size() + " blocks)");
+  }
+
+  private Vertex getLinkedBlock(final Vertex importVertex, final String edgeType) {
+    final Iterator<Vertex> it = importVertex.getVertices(Vertex.DIRECTION.OUT, edgeType).iterator();
+    return it.hasNext() ? it.next() : null;
+  }
+
+  /**
+   * Deletes a block not fully parsed with its transactions, their inputs and outputs and the edges to their addresses. The address
+   * summaries are left as they are: the totals of a block are written only after the block is saved as fully parsed.
+   */
+  private void deleteBlock(final Vertex block) {
+    final List<Edge> edgesToDelete = new ArrayList<>();
+    final List<Vertex> toDelete = new ArrayList<>();
+    for (Vertex tx : block.getVertices(Vertex.DIRECTION.OUT, BitcoinSchema.EDGE_BLOCK_TX)) {
+      for (Vertex txPart : tx.getVertices(Vertex.DIRECTION.OUT, BitcoinSchema.EDGE_INPUT, BitcoinSchema.EDGE_OUTPUT)) {
+        for (Edge edge : txPart.getEdges(Vertex.DIRECTION.OUT, BitcoinSchema.EDGE_HAS_IN_ADDRESS, BitcoinSchema.EDGE_HAS_OUT_ADDRESS))
+          edgesToDelete.add(edge);
+        toDelete.add(txPart);
+      }
+      toDelete.add(tx);
+    }
+    toDelete.add(block);
+
+    for (Edge e : edgesToDelete)
+      e.delete();
+    for (Vertex v : toDelete)
+      v.delete();
+  }
+
+  /**
+   * Returns true if the block is before the resume position or it is already in the database.
+   */
+  private boolean isAlreadyImported(final BitcoinBlock block) {
+    final int fileIndex = BitcoinDatafileUtils.getDataFileIndex(block.getOriginFile().getName());
+    if (comparePosition(fileIndex, block.getOriginFileOffset(), resumeFileIndex, resumeFileOffset) < 0)
+      return true;
+    return lookupBlock(block.getHash()) != null;
+  }
+
+  /**
+   * Returns a filter that skips the blocks before the resume position without reading them.
+   */
+  private BlockFileIndex.Filter getResumeFilter() {
+    if (!incremental)
+      return null;
+    return (index, entry) -> BitcoinDatafileUtils.getDataFileIndex(index.getBlockFile().getName()) != resumeFileIndex
+        || index.getOffset(entry) >= resumeFileOffset;
+  }
+
+  private RID lookupBlock(final Sha256Hash hash) {
+    final IndexCursor cursor = database.lookupByKey(BitcoinSchema.VERTEX_BLOCK, "hash", hash.toString());
+    return cursor.hasNext() ? cursor.next().getIdentity() : null;
+  }
+
+  private static int comparePosition(final int fileIndex1, final long offset1, final int fileIndex2, final long offset2) {
+    if (fileIndex1 != fileIndex2)
+      return Integer.compare(fileIndex1, fileIndex2);
+    return Long.compare(offset1, offset2);
+  }
+
+  private boolean isLimitReached() {
+    if (limitTransactions > 0 && metrics.loadBlocksNewTransactions.get() > limitTransactions)
+      return true;
+
+    if (limitBlocks > 0 && metrics.loadBlocksParsedBlocks.get() > limitBlocks) {
+      System.out.println("- reached limit of " + limitBlocks + " blocks");
+      return true;
+    }
+    return false;
+  }
+
+  private File getBlockIndexDirectory() {
+    return blockIndexDirectory != null ? new File(blockIndexDirectory) : null;
+  }
+
+  /**
+   * @return the totals of the addresses of the block to merge in the address summaries once the block is fully parsed, or null if the
+   * summaries are disabled
+   */
+  private AddressSummaries.BlockTotals parseTransactions(final BitcoinBlock block, final MutableVertex persistentBlock) {
+    final AddressSummaries.BlockTotals totals = addressSummaries != null ? addressSummaries.newBlock(block.getTimeSeconds()) : null;
+    if (block.getView() != null)
+      parseTransactionViews(block, persistentBlock, totals);
     else
-      database.async().waitCompletion();
+      parseTransactions(block.getOriginBlock(), block, persistentBlock, totals);
+    return totals;
+  }
 
-    System.out.println("- completed in " + ((System.currentTimeMillis() - beginTime) / 1000) + " secs");
+  /**
+   * Parses the transactions of a raw block through a single {@link TransactionView}, without creating any bitcoinj object.
+   */
+  private void parseTransactionViews(final BitcoinBlock block, final MutableVertex persistentBlock, final AddressSummaries.BlockTotals totals) {
+    final TransactionView tx = new TransactionView();
+    int blockInput = 0;
+    for (int i = 0; i < block.getView().getTransactionCount(); i++) {
+      block.getView().getTransaction(i, tx);
+
+      final MutableVertex persistentTransaction = BitcoinDatafileUtils.txToVertex(database, tx,
+          block.getSpentValueSum(blockInput, tx.getInputCount()));
+      persistentTransaction.save();
+
+      metrics.loadBlocksNewTransactions.incrementAndGet();
+
+      persistentBlock.newLightEdge(BitcoinSchema.EDGE_BLOCK_TX, persistentTransaction, true);
+
+      for (int k = 0; k < tx.getInputCount(); k++, blockInput++) {
+        parseTxInput(persistentTransaction, tx, k, block.getSpentValue(blockInput), block.getSpentAddressKey(blockInput), totals);
+        metrics.loadBlocksNewTransactionInputs.incrementAndGet();
+      }
+
+      for (int k = 0; k < tx.getOutputCount(); k++) {
+        parseTxOutput(persistentTransaction, tx, k, totals);
+        metrics.loadBlocksNewTransactionOutputs.incrementAndGet();
+      }
+
+      if (totals != null)
+        totals.endTransaction();
+
+      if (onTransactionParsed())
+        break;
+    }
   }
 
-  private void parseTransactions(final Block block, final MutableVertex persistentBlock) {
+  private void parseTransactions(final Block block, final BitcoinBlock bitcoinBlock, final MutableVertex persistentBlock,
+      final AddressSummaries.BlockTotals totals) {
+    int blockInput = 0;
     for (Transaction tx : block.getTransactions()) {
-      final MutableVertex persistentTransaction = BitcoinDatafileUtils.txToVertex(database, tx);
+      final long inputSum = tx.getInputs() != null && !tx.getInputs().isEmpty() ?
+          bitcoinBlock.getSpentValueSum(blockInput, tx.getInputs().size()) :
+          BitcoinBlock.UNRESOLVED;
+      final MutableVertex persistentTransaction = BitcoinDatafileUtils.txToVertex(database, tx, inputSum);
       persistentTransaction.save();
 
       metrics.loadBlocksNewTransactions.incrementAndGet();
@@ -208,8 +886,9 @@ public class BitcoinImporter extends BitcoinJob {
 
       if (tx.getInputs() != null && !tx.getInputs().isEmpty()) {
         for (TransactionInput txInput : tx.getInputs()) {
+          final int input = blockInput++;
           try {
-            parseTxInput(persistentTransaction, txInput);
+            parseTxInput(persistentTransaction, txInput, bitcoinBlock.getSpentValue(input), bitcoinBlock.getSpentAddressKey(input), totals);
             metrics.loadBlocksNewTransactionInputs.incrementAndGet();
           } catch (IOException e) {
             e.printStackTrace();
@@ -221,7 +900,7 @@ public class BitcoinImporter extends BitcoinJob {
       if (tx.getOutputs() != null && !tx.getOutputs().isEmpty()) {
         for (TransactionOutput txOutput : tx.getOutputs()) {
           try {
-            parseTxOutput(persistentTransaction, txOutput);
+            parseTxOutput(persistentTransaction, txOutput, totals);
             metrics.loadBlocksNewTransactionOutputs.incrementAndGet();
           } catch (IOException e) {
             e.printStackTrace();
@@ -230,152 +909,177 @@ public class BitcoinImporter extends BitcoinJob {
         }
       }
 
-      final long txCounter = metrics.loadBlocksParsedTransactions.incrementAndGet();
+      if (totals != null)
+        totals.endTransaction();
 
-      if (addressAsVertex) {
-        if (txCounter > 0 && txCounter % commitEvery == 0)
-          commitAndStartNewTransaction();
-      }
-
-      if (limitTransactions > 0 && metrics.loadBlocksNewTransactions.get() > limitTransactions) {
-        System.out.println("- reached limit of " + limitTransactions + " transactions");
+      if (onTransactionParsed())
         break;
-      }
     }
   }
 
-  private void connectBlocks(MutableVertex importVertex) {
-    System.out.println("Build the block chain...");
-
-    final long beginTime = System.currentTimeMillis();
+  /**
+   * Commits every {@link #commitEvery} transactions when addresses are vertices.
+   *
+   * @return true if the limit of transactions has been reached
+   */
+  private boolean onTransactionParsed() {
+    final long txCounter = metrics.loadBlocksParsedTransactions.incrementAndGet();
+
+    if (addressAsVertex) {
+      if (txCounter > 0 && txCounter % commitEvery == 0)
+        commitAndStartNewTransaction();
+    }
 
-    database.scanType(BitcoinSchema.VERTEX_BLOCK, false, (record) -> {
-      final Vertex block = (Vertex) record;
-      final long loaded = metrics.connectBlocksLoadedBlocks.incrementAndGet();
+    if (limitTransactions > 0 && metrics.loadBlocksNewTransactions.get() > limitTransactions) {
+      System.out.println("- reached limit of " + limitTransactions + " transactions");
+      return true;
+    }
+    return false;
+  }
 
-      if (loaded % 100_000 == 0) {
-        System.out.println(
-            "- elapsed " + ((System.currentTimeMillis() - beginTime) / 1000) + " secs loaded: " + loaded + " okLinks: " + metrics.connectBlocksOkLinks
-                + " koLinks: " + metrics.connectBlocksKoLinks + " skipped: " + metrics.connectBlocksSkipped);
-      }
+  private void printBlockLinks() {
+    metrics.connectBlocksLoadedBlocks.set(blockLinker.size());
+    metrics.connectBlocksOkLinks.set(blockLinker.getLinks());
+    metrics.connectBlocksNotFound.putAll(blockLinker.getOrphans());
+    metrics.connectBlocksKoLinks.set(metrics.connectBlocksNotFound.size());
 
-      final String blockHash = block.getString("hash");
+    System.out.println("Block chain built while loading: blocks: " + metrics.connectBlocksLoadedBlocks.get() + " okLinks: "
+        + metrics.connectBlocksOkLinks + " koLinks: " + metrics.connectBlocksKoLinks);
+  }
 
-      if (block.getEdges(Vertex.DIRECTION.OUT, BitcoinSchema.EDGE_PREVIOUS_BLOCK).iterator().hasNext()) {
-        //System.out.println("- Skip block with hash '" + block.get("hash") + "' because already connected");
-        metrics.connectBlocksSkipped.incrementAndGet();
-        return true;
+  /**
+   * @param spentValue      value of the spent output resolved by the UTXO set, or {@link BitcoinBlock#UNRESOLVED}
+   * @param spentAddressKey address of the spent output resolved by the UTXO set
+   * @param totals          totals of the addresses of the block, or null if the address summaries are disabled
+   */
+  protected void parseTxInput(final Vertex transaction, final TransactionInput txInput, final long spentValue, final byte[] spentAddressKey,
+      final AddressSummaries.BlockTotals totals) throws IOException {
+    try {
+      if (spentValue != BitcoinBlock.UNRESOLVED) {
+        createTxInput(transaction, BitcoinDatafileUtils.getMessageOffset(txInput), txInput.getIndex(), spentValue, spentAddressKey, totals);
+        return;
       }
 
-      final String prevBlockHash = block.getString("prevBlockHash");
-
-      if (prevBlockHash.equals(BitcoinDatafileUtils.FIRST_BLOCK_HASH))
-        return true;
-
-      if (prevBlockHash == null) {
-        System.out.println("- error: cannot find prevBlockHash in block with hash '" + blockHash + "'");
-        return true;
-      }
+      if ((utxoResolver != null || undoReader != null) && !txInput.isCoinBase())
+        metrics.loadBlocksUnresolvedInputs.incrementAndGet();
 
-      final IndexCursor previousBlockCursor = database.lookupByKey(BitcoinSchema.VERTEX_BLOCK, new String[] { "hash" }, new Object[] { prevBlockHash });
-      if (!previousBlockCursor.hasNext()) {
-        metrics.connectBlocksNotFound.put(prevBlockHash, blockHash);
-        System.out.println("- error: block with hash '" + prevBlockHash + "' not found in database");
-        metrics.connectBlocksKoLinks.incrementAndGet();
-        return true;
-      }
+      final byte[] addressKey = txInput.isCoinBase() ? null : AddressKey.fromScript(txInput.getScriptSig());
 
-      final Vertex previousBlock = (Vertex) previousBlockCursor.next().getRecord();
+      createTxInput(transaction, BitcoinDatafileUtils.getMessageOffset(txInput), txInput.getIndex(),
+          txInput.getValue() != null ? txInput.getValue().value : 0, addressKey, totals);
 
-      block.newLightEdge(BitcoinSchema.EDGE_PREVIOUS_BLOCK, previousBlock, true);
+    } catch (ScriptException e) {
+      metrics.errorParsingAddresses.incrementAndGet();
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
 
-      metrics.connectBlocksOkLinks.incrementAndGet();
+  protected void parseTxInput(final Vertex transaction, final TransactionView tx, final int input, final long spentValue,
+      final byte[] spentAddressKey, final AddressSummaries.BlockTotals totals) {
+    try {
+      if (spentValue != BitcoinBlock.UNRESOLVED) {
+        createTxInput(transaction, tx.getInputOffset(input), input, spentValue, spentAddressKey, totals);
+        return;
+      }
 
-      return true;
-    });
+      if ((utxoResolver != null || undoReader != null) && !tx.isCoinBase())
+        metrics.loadBlocksUnresolvedInputs.incrementAndGet();
 
-    commitAndStartNewTransaction();
+      final byte[] addressKey = tx.isCoinBase() ?
+          null :
+          AddressKey.fromScript(tx.getBytes(), tx.getBlockOffset() + tx.getInputScriptOffset(input), tx.getInputScriptLength(input));
 
-    final long endTime = System.currentTimeMillis();
+      // WITHOUT THE SPENT OUTPUT THE VALUE IS UNKNOWN: THE ADDRESS IS TAKEN FROM THE SCRIPTSIG, THAT WORKS FOR P2PKH ONLY
+      createTxInput(transaction, tx.getInputOffset(input), input, 0, addressKey, totals);
 
-    System.out.println("- completed in " + ((endTime - beginTime) / 1000) + " secs loaded: " + metrics.connectBlocksLoadedBlocks.get() + " okLinks: "
-        + metrics.connectBlocksOkLinks + " koLinks: " + metrics.connectBlocksKoLinks + " skipped: " + metrics.connectBlocksSkipped);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
   }
 
-  protected void parseTxInput(final Vertex transaction, final TransactionInput txInput) throws IOException {
-    try {
-      final Field offset = txInput.getClass().getSuperclass().getSuperclass().getDeclaredField("offset");
-      offset.setAccessible(true);
+  private void createTxInput(final Vertex transaction, final int sourceOffset, final int index, final long value, final byte[] addressKey,
+      final AddressSummaries.BlockTotals totals) {
+    final MutableVertex txInputVertex = database.newVertex(BitcoinSchema.VERTEX_INPUT_TX);
+    txInputVertex.set("sourceOffset", sourceOffset);
+    txInputVertex.set("index", index);
+    txInputVertex.set("value", value);
 
-      final String hexAddress = txInput.isCoinBase() ? null : BitcoinDatafileUtils.getAddress(txInput.getScriptSig(), txInput.getParams());
+    if (!addressAsVertex && addressKey != null)
+      setAddress(txInputVertex, addressKey);
 
-      final MutableVertex txInputVertex = database.newVertex(BitcoinSchema.VERTEX_INPUT_TX);
-      txInputVertex.set("sourceOffset", (Integer) offset.get(txInput));
-      txInputVertex.set("index", txInput.getIndex());
-      txInputVertex.set("value", txInput.getValue() != null ? txInput.getValue().value : 0);
+    txInputVertex.save();
 
-      if (!addressAsVertex && hexAddress != null)
-        txInputVertex.set("address", hexAddress);
+    transaction.newLightEdge(BitcoinSchema.EDGE_INPUT, txInputVertex, true);
 
-      txInputVertex.save();
+    if (addressKey == null)
+      return;
 
-      transaction.newLightEdge(BitcoinSchema.EDGE_INPUT, txInputVertex, true);
+    if (totals != null)
+      totals.addInput(addressKey, value);
 
-      if (txInput.isCoinBase())
-        return;
+    if (addressAsVertex) {
+      final Vertex address = getOrCreateAddress(addressKey);
 
-      if (hexAddress == null)
-        return;
+      txInputVertex.newLightEdge(BitcoinSchema.EDGE_HAS_IN_ADDRESS, address, true);
 
-      if (addressAsVertex) {
-        final Vertex address = getOrCreateAddress(hexAddress);
+      metrics.connectAddressesEdges.incrementAndGet();
+    }
+  }
 
-        txInputVertex.newLightEdge(BitcoinSchema.EDGE_HAS_ADDRESS, address, true);
+  protected void parseTxOutput(final Vertex transaction, final TransactionOutput txOutput, final AddressSummaries.BlockTotals totals)
+      throws IOException {
+    try {
+      final byte[] addressKey = AddressKey.fromScript(txOutput.getScriptPubKey());
 
-        metrics.connectAddressesEdges.incrementAndGet();
-      }
+      createTxOutput(transaction, BitcoinDatafileUtils.getMessageOffset(txOutput), txOutput.getIndex(),
+          txOutput.getValue() != null ? txOutput.getValue().value : 0, addressKey, totals);
 
     } catch (ScriptException e) {
       metrics.errorParsingAddresses.incrementAndGet();
-    } catch (Exception e) {
-      e.printStackTrace();
+    } catch (Exception e2) {
+      e2.printStackTrace();
     }
   }
 
-  protected void parseTxOutput(final Vertex transaction, final TransactionOutput txOutput) throws IOException {
+  protected void parseTxOutput(final Vertex transaction, final TransactionView tx, final int output, final AddressSummaries.BlockTotals totals) {
     try {
-      final Field offset = txOutput.getClass().getSuperclass().getSuperclass().getDeclaredField("offset");
-      offset.setAccessible(true);
+      final byte[] addressKey = AddressKey.fromScript(tx.getBytes(), tx.getBlockOffset() + tx.getOutputScriptOffset(output),
+          tx.getOutputScriptLength(output));
 
-      final String hexAddress = BitcoinDatafileUtils.getAddress(txOutput.getScriptPubKey(), txOutput.getParams());
+      createTxOutput(transaction, tx.getOutputOffset(output), output, tx.getOutputValue(output), addressKey, totals);
+
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
 
-      final MutableVertex txOutputVertex = database.newVertex(BitcoinSchema.VERTEX_INPUT_TX);
-      txOutputVertex.set("sourceOffset", (Integer) offset.get(txOutput));
-      txOutputVertex.set("index", txOutput.getIndex());
-      txOutputVertex.set("value", txOutput.getValue() != null ? txOutput.getValue().value : 0);
+  private void createTxOutput(final Vertex transaction, final int sourceOffset, final int index, final long value, final byte[] addressKey,
+      final AddressSummaries.BlockTotals totals) {
+    final MutableVertex txOutputVertex = database.newVertex(BitcoinSchema.VERTEX_OUTPUT_TX);
+    txOutputVertex.set("sourceOffset", sourceOffset);
+    txOutputVertex.set("index", index);
+    txOutputVertex.set("value", value);
 
-      if (!addressAsVertex && hexAddress != null)
-        txOutputVertex.set("address", hexAddress);
+    if (!addressAsVertex && addressKey != null)
+      setAddress(txOutputVertex, addressKey);
 
-      txOutputVertex.save();
+    txOutputVertex.save();
 
-      transaction.newLightEdge(BitcoinSchema.EDGE_OUTPUT, txOutputVertex, true);
+    transaction.newLightEdge(BitcoinSchema.EDGE_OUTPUT, txOutputVertex, true);
 
-      if (hexAddress == null)
-        return;
+    if (addressKey == null)
+      return;
 
-      if (addressAsVertex) {
-        final Vertex address = getOrCreateAddress(hexAddress);
+    if (totals != null)
+      totals.addOutput(addressKey, value);
 
-        txOutputVertex.newLightEdge(BitcoinSchema.EDGE_HAS_ADDRESS, address, true);
+    if (addressAsVertex) {
+      final Vertex address = getOrCreateAddress(addressKey);
 
-        metrics.connectAddressesEdges.incrementAndGet();
-      }
+      txOutputVertex.newLightEdge(BitcoinSchema.EDGE_HAS_OUT_ADDRESS, address, true);
 
-    } catch (ScriptException e) {
-      metrics.errorParsingAddresses.incrementAndGet();
-    } catch (Exception e2) {
-      e2.printStackTrace();
+      metrics.connectAddressesEdges.incrementAndGet();
     }
   }
 
@@ -388,6 +1092,27 @@ public class BitcoinImporter extends BitcoinJob {
     limitBlocks = Integer.parseInt(System.getProperty("limitBlocks", "" + limitBlocks));
     limitTransactions = Integer.parseInt(System.getProperty("limitTransactions", "" + limitTransactions));
     addressAsVertex = Boolean.parseBoolean(System.getProperty("addressAsVertex", "false"));
+    memoryMapped = Boolean.parseBoolean(System.getProperty("memoryMapped", "" + memoryMapped));
+    decoderWorkers = Integer.parseInt(System.getProperty("decoderWorkers", "" + decoderWorkers));
+    orderedBlocks = Boolean.parseBoolean(System.getProperty("orderedBlocks", "" + orderedBlocks));
+    blockIndex = Boolean.parseBoolean(System.getProperty("blockIndex", "" + blockIndex));
+    blockIndexDirectory = System.getProperty("blockIndexDirectory", blockIndexDirectory);
+    pipeline = Boolean.parseBoolean(System.getProperty("pipeline", "" + pipeline));
+    pipelineReaders = Integer.parseInt(System.getProperty("pipelineReaders", "" + pipelineReaders));
+    pipelineBuilders = Integer.parseInt(System.getProperty("pipelineBuilders", "" + pipelineBuilders));
+    pipelinePersisters = Integer.parseInt(System.getProperty("pipelinePersisters", "" + pipelinePersisters));
+    pipelineQueueMB = Integer.parseInt(System.getProperty("pipelineQueueMB", "" + pipelineQueueMB));
+    rawDecoder = Boolean.parseBoolean(System.getProperty("rawDecoder", "" + rawDecoder));
+    incremental = Boolean.parseBoolean(System.getProperty("incremental", "" + incremental));
+    follow = Boolean.parseBoolean(System.getProperty("follow", "" + follow));
+    followPollMs = Integer.parseInt(System.getProperty("followPollMs", "" + followPollMs));
+    utxo = Boolean.parseBoolean(System.getProperty("utxo", "" + utxo));
+    utxoCapacity = Long.parseLong(System.getProperty("utxoCapacity", "" + utxoCapacity));
+    utxoDirectory = System.getProperty("utxoDirectory", utxoDirectory);
+    utxoMaxParkedBlocks = Integer.parseInt(System.getProperty("utxoMaxParkedBlocks", "" + utxoMaxParkedBlocks));
+    undoFiles = Boolean.parseBoolean(System.getProperty("undoFiles", "" + undoFiles));
+    addressSummary = Boolean.parseBoolean(System.getProperty("addressSummary", "" + addressSummary));
+    addressSummaryBatch = Integer.parseInt(System.getProperty("addressSummaryBatch", "" + addressSummaryBatch));
   }
 
   public static void main(final String[] args) throws IOException {
@@ -415,10 +1140,33 @@ public class BitcoinImporter extends BitcoinJob {
     System.out.println("-DdropExistentDatabase=true|false (default=false)");
     System.out.println("-DcommitEvery=integer (default=100)");
     System.out.println("-DaddressAsVertex=true|false (default=false)");
+    System.out.println("-DbinaryAddresses=true|false (default=false -> addresses stored as type + hash bytes instead of strings)");
+    System.out.println("-DaddressCacheSize=integer (default=1000000, 0 to disable -> addresses cached off-heap with addressAsVertex=true)");
     System.out.println("-DsafeBlocksFromTail=integer (default=6)");
     System.out.println("-DexpectedTotalBlocks=integer (default=700000)");
     System.out.println("-DparallelWorkers=integer (default=0 -> auto)");
     System.out.println("-DlimitBlocks=integer (default=0 - unlimited)");
+    System.out.println("-DmemoryMapped=true|false (default=true)");
+    System.out.println("-DdecoderWorkers=integer (default=0 -> blocks decoded by the importer thread)");
+    System.out.println("-DorderedBlocks=true|false (default=true)");
+    System.out.println("-DblockIndex=true|false (default=true)");
+    System.out.println("-DblockIndexDirectory=path (default=the directory of the block files)");
+    System.out.println("-Dpipeline=true|false (default=false)");
+    System.out.println("-DpipelineReaders=integer (default=1)");
+    System.out.println("-DpipelineBuilders=integer (default=1)");
+    System.out.println("-DpipelinePersisters=integer (default=1)");
+    System.out.println("-DpipelineQueueMB=integer (default=64)");
+    System.out.println("-DrawDecoder=true|false (default=true -> blocks read without bitcoinj objects)");
+    System.out.println("-Dincremental=true|false (default=false -> resume from the last completed import and repair interrupted ones)");
+    System.out.println("-Dfollow=true|false (default=false -> after the import, keep importing the blocks appended by Bitcoin Core)");
+    System.out.println("-DfollowPollMs=integer (default=5000)");
+    System.out.println("-Dutxo=true|false (default=true -> value and address of the inputs resolved from the unspent outputs)");
+    System.out.println("-DutxoCapacity=integer (default=50000000 -> initial number of unspent outputs, the set grows if needed)");
+    System.out.println("-DutxoDirectory=path (default=the temporary directory -> where the memory mapped UTXO set is stored)");
+    System.out.println("-DutxoMaxParkedBlocks=integer (default=1024 -> blocks kept in memory waiting for their previous block)");
+    System.out.println("-DundoFiles=true|false (default=false -> inputs resolved from the revNNNNN.dat undo files instead of the UTXO set)");
+    System.out.println("-DaddressSummary=true|false (default=true -> balance and totals of every address kept in AddressSummary)");
+    System.out.println("-DaddressSummaryBatch=integer (default=100000 -> addresses with pending totals written together)");
     System.out.println();
   }
 }
\ No newline at end of file
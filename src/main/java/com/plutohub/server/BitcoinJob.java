@@ -1,18 +1,103 @@
 package com.plutohub.server;
 
+import com.arcadedb.database.MutableDocument;
+import com.arcadedb.database.RID;
 import com.arcadedb.graph.Vertex;
 import com.arcadedb.index.IndexCursor;
+import org.bitcoinj.params.MainNetParams;
+
+import java.nio.charset.StandardCharsets;
 
 public class BitcoinJob extends DatabaseJob {
+  private static final int ADDRESS_KEY_MAX_LENGTH = 64; // LONGEST BECH32 ADDRESS IS 62 CHARS
+
+  protected int          addressCacheSize = 1_000_000; // 0 = DISABLED
+  protected boolean      binaryAddresses  = false;
+  protected AddressCache addressCache     = null;
+
   protected Vertex getOrCreateAddress(final String hexAddress) {
-    final IndexCursor cursor = database.lookupByKey(BitcoinSchema.VERTEX_ADDRESS, "hash", hexAddress);
+    final byte[] cacheKey = hexAddress.getBytes(StandardCharsets.US_ASCII);
 
-    final Vertex address;
-    if (cursor.hasNext()) {
-      address = cursor.next().asVertex();
-    } else {
-      address = database.newVertex(BitcoinSchema.VERTEX_ADDRESS).set("hash", hexAddress).save();
-    }
+    final Vertex cached = getCachedAddress(cacheKey);
+    if (cached != null)
+      return cached;
+
+    return cacheAddress(cacheKey, lookupOrCreateAddress("hash", hexAddress));
+  }
+
+  /**
+   * Returns the address vertex of a binary address key (see {@link AddressKey}). The key is converted to the string form only if the
+   * addresses are not binary and the address is not in the cache.
+   */
+  protected Vertex getOrCreateAddress(final byte[] addressKey) {
+    final Vertex cached = getCachedAddress(addressKey);
+    if (cached != null)
+      return cached;
+
+    final Vertex address = binaryAddresses ?
+        lookupOrCreateAddress("key", AddressKey.encode(addressKey)) :
+        lookupOrCreateAddress("hash", AddressKey.toString(addressKey, MainNetParams.get()));
+    return cacheAddress(addressKey, address);
+  }
+
+  /**
+   * Sets the address of an input or output: the binary key if addresses are binary, otherwise the string form.
+   */
+  protected void setAddress(final MutableDocument txPart, final byte[] addressKey) {
+    if (binaryAddresses)
+      txPart.set("addressKey", addressKey);
+    else
+      txPart.set("address", AddressKey.toString(addressKey, MainNetParams.get()));
+  }
+
+  protected AddressCache getAddressCache() {
+    if (addressCache == null && addressCacheSize > 0)
+      addressCache = new AddressCache(addressCacheSize, ADDRESS_KEY_MAX_LENGTH);
+    return addressCache;
+  }
+
+  private Vertex lookupOrCreateAddress(final String property, final Object value) {
+    final IndexCursor cursor = database.lookupByKey(BitcoinSchema.VERTEX_ADDRESS, property, value);
+    if (cursor.hasNext())
+      return cursor.next().asVertex();
+    return database.newVertex(BitcoinSchema.VERTEX_ADDRESS).set(property, value).save();
+  }
+
+  private Vertex getCachedAddress(final byte[] cacheKey) {
+    final AddressCache cache = getAddressCache();
+    if (cache == null)
+      return null;
+
+    final RID rid = cache.get(database, cacheKey);
+    return rid != null ? rid.asVertex(false) : null;
+  }
+
+  private Vertex cacheAddress(final byte[] cacheKey, final Vertex address) {
+    if (addressCache != null)
+      // THE ADDRESS COULD HAVE BEEN CREATED IN THE CURRENT TRANSACTION: KEEP IT PENDING UNTIL THE COMMIT
+      addressCache.put(cacheKey, address.getIdentity(), database.isTransactionActive());
     return address;
   }
-}
\ No newline at end of file
+
+  @Override
+  protected void commitAndStartNewTransaction() {
+    try {
+      super.commitAndStartNewTransaction();
+    } catch (RuntimeException e) {
+      // THE RIDS OF THE ADDRESSES CREATED IN THE FAILED TRANSACTION ARE NOT VALID ANYMORE
+      if (addressCache != null)
+        addressCache.rollback();
+      throw e;
+    }
+
+    if (addressCache != null)
+      addressCache.commit();
+  }
+
+  @Override
+  protected void loadSettings() {
+    super.loadSettings();
+    addressCacheSize = Integer.parseInt(System.getProperty("addressCacheSize", "" + addressCacheSize));
+    binaryAddresses = Boolean.parseBoolean(System.getProperty("binaryAddresses", "" + binaryAddresses));
+  }
+}
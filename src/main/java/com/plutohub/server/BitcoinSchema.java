@@ -2,36 +2,66 @@ package com.plutohub.server;
 
 import com.arcadedb.database.Database;
 import com.arcadedb.database.bucketselectionstrategy.PartitionedBucketSelectionStrategy;
+import com.arcadedb.index.lsm.LSMTreeIndexAbstract;
+import com.arcadedb.schema.DocumentType;
 import com.arcadedb.schema.Property;
 import com.arcadedb.schema.Schema;
 import com.arcadedb.schema.Type;
 import com.arcadedb.schema.VertexType;
 
+import java.util.Locale;
+
 public class BitcoinSchema {
-  public static final String VERTEX_BLOCK         = "Block";
-  public static final String VERTEX_IMPORT        = "Import";
-  public static final String VERTEX_ADDRESS       = "Address";
-  public static final String VERTEX_INPUT_TX      = "InputTx";
-  public static final String VERTEX_OUTPUT_TX     = "OutputTx";
-  public static final String EDGE_HAS_ADDRESS     = "HasAddress"; // TODO: SEPARATE IN 2 EDGES SO IT'S FASTER TO RETRIEVE IN AND OUT TX WIHTOUT FILTERING
-  public static final String EDGE_PREVIOUS_BLOCK  = "PreviousBlock";
-  public static final String EDGE_HEAD_BLOCK      = "HeadBlock";
-  public static final String EDGE_TAIL_BLOCK      = "TailBlock";
-  public static final String EDGE_SAFE_TAIL_BLOCK = "SafeTailBlock";
-  public static final String EDGE_BLOCK_TX        = "BlockTx";
-  public static final String EDGE_INPUT           = "Input";
-  public static final String EDGE_OUTPUT          = "Output";
-  public static final String VERTEX_TRANSACTION   = "Transaction";
+  public static final String VERTEX_BLOCK             = "Block";
+  public static final String VERTEX_IMPORT            = "Import";
+  public static final String VERTEX_ADDRESS           = "Address";
+  public static final String VERTEX_INPUT_TX          = "InputTx";
+  public static final String VERTEX_OUTPUT_TX         = "OutputTx";
+  public static final String EDGE_HAS_IN_ADDRESS      = "HasInAddress";
+  public static final String EDGE_HAS_OUT_ADDRESS     = "HasOutAddress";
+  public static final String EDGE_HAS_ADDRESS         = "HasAddress"; // LEGACY: INPUTS AND OUTPUTS OF DATABASES IMPORTED BEFORE THE 2 EDGES ABOVE
+  public static final String EDGE_PREVIOUS_BLOCK      = "PreviousBlock";
+  public static final String EDGE_HEAD_BLOCK          = "HeadBlock";
+  public static final String EDGE_TAIL_BLOCK          = "TailBlock";
+  public static final String EDGE_SAFE_TAIL_BLOCK     = "SafeTailBlock";
+  public static final String EDGE_BLOCK_TX            = "BlockTx";
+  public static final String EDGE_INPUT               = "Input";
+  public static final String EDGE_OUTPUT              = "Output";
+  public static final String VERTEX_TRANSACTION       = "Transaction";
+  public static final String DOCUMENT_ADDRESS_SUMMARY = "AddressSummary";
+  public static final String DOCUMENT_BLOCK_HEIGHT    = "BlockHeight";
+  public static final String DOCUMENT_ADDRESS_LABEL   = "AddressLabel";
+
+  private boolean binaryAddresses = false;
+
+  /**
+   * Indexes the addresses by their binary key (see {@link AddressKey#encode(byte[])}) instead of their string form.
+   */
+  public BitcoinSchema setBinaryAddresses(final boolean binaryAddresses) {
+    this.binaryAddresses = binaryAddresses;
+    return this;
+  }
 
   public void sync(final Database database) {
     database.getSchema().getOrCreateVertexType(VERTEX_IMPORT);
 
     final VertexType addressType = database.getSchema().getOrCreateVertexType(VERTEX_ADDRESS);
-    final Property addressHash = addressType.getOrCreateProperty("hash", Type.STRING); // TODO: RENAME IN ID
+    final Property addressHash = binaryAddresses ?
+        addressType.getOrCreateProperty("key", Type.STRING) :
+        addressType.getOrCreateProperty("hash", Type.STRING); // TODO: RENAME IN ID
     database.transaction(() -> {
       addressHash.getOrCreateIndex(Schema.INDEX_TYPE.LSM_TREE, true);
     });
 
+    syncAddressLabels(database);
+
+    // SAME KEY OF THE ADDRESS
+    final DocumentType summaryType = database.getSchema().getOrCreateDocumentType(DOCUMENT_ADDRESS_SUMMARY);
+    final Property summaryHash = summaryType.getOrCreateProperty(binaryAddresses ? "key" : "hash", Type.STRING);
+    database.transaction(() -> {
+      summaryHash.getOrCreateIndex(Schema.INDEX_TYPE.LSM_TREE, true);
+    });
+
     final VertexType tx = database.getSchema().getOrCreateVertexType(VERTEX_TRANSACTION);
     final Property txId = tx.getOrCreateProperty("id", Type.STRING);
     database.transaction(() -> {
@@ -41,13 +71,32 @@ public class BitcoinSchema {
     final VertexType blockType = database.getSchema().getOrCreateVertexType(VERTEX_BLOCK);
     final Property blockHash = blockType.getOrCreateProperty("hash", Type.STRING);
     database.transaction(() -> {
+      blockHash.getOrCreateIndex(Schema.INDEX_TYPE.LSM_TREE, true);
     });
     blockType.setBucketSelectionStrategy(new PartitionedBucketSelectionStrategy(new String[] { "hash" }));
 
+    // ASSIGNED ONCE THE BLOCK IS LINKED TO THE CHAIN (SEE BlockHeights)
+    blockType.getOrCreateProperty("height", Type.LONG);
+    blockType.getOrCreateProperty("chainWork", Type.STRING);
+    blockType.getOrCreateProperty("mainChain", Type.BOOLEAN);
+
+    // THE BLOCKS OF THE MAIN CHAIN BY HEIGHT AND BY TIME: A 2ND INDEX ON BLOCK DOES NOT WORK WITH THE BUCKETS PARTITIONED BY HASH
+    final DocumentType blockHeightType = database.getSchema().getOrCreateDocumentType(DOCUMENT_BLOCK_HEIGHT);
+    final Property blockHeight = blockHeightType.getOrCreateProperty("height", Type.LONG);
+    blockHeightType.getOrCreateProperty("block", Type.LINK);
+    blockHeightType.getOrCreateProperty("timeSeconds", Type.LONG);
+    database.transaction(() -> {
+      blockHeight.getOrCreateIndex(Schema.INDEX_TYPE.LSM_TREE, true);
+      // BLOCK TIMES ARE NOT UNIQUE
+      blockHeightType.getOrCreateTypeIndex(Schema.INDEX_TYPE.LSM_TREE, false, new String[] { "timeSeconds" }, LSMTreeIndexAbstract.DEF_PAGE_SIZE,
+          LSMTreeIndexAbstract.NULL_STRATEGY.SKIP, null);
+    });
+
     database.getSchema().getOrCreateVertexType(VERTEX_INPUT_TX);
     database.getSchema().getOrCreateVertexType(VERTEX_OUTPUT_TX);
 
-    database.getSchema().getOrCreateEdgeType(EDGE_HAS_ADDRESS);
+    database.getSchema().getOrCreateEdgeType(EDGE_HAS_IN_ADDRESS);
+    database.getSchema().getOrCreateEdgeType(EDGE_HAS_OUT_ADDRESS);
 
     database.getSchema().getOrCreateEdgeType(EDGE_PREVIOUS_BLOCK);
     database.getSchema().getOrCreateEdgeType(EDGE_BLOCK_TX);
@@ -57,4 +106,24 @@ public class BitcoinSchema {
     database.getSchema().getOrCreateEdgeType(EDGE_TAIL_BLOCK);
     database.getSchema().getOrCreateEdgeType(EDGE_SAFE_TAIL_BLOCK);
   }
+
+  /**
+   * Creates the directory of the labeled addresses, sorted by the label in lower case ("labelKey", see {@link #getLabelKey(String)}) and
+   * by the address ("hash"), for the lookups by label, also by prefix and ignoring the case, and indexed by address to update the labels.
+   * It is a separate type, so only the labeled addresses are indexed and the import of the addresses does not update another index.
+   */
+  public void syncAddressLabels(final Database database) {
+    final DocumentType labelType = database.getSchema().getOrCreateDocumentType(DOCUMENT_ADDRESS_LABEL);
+    labelType.getOrCreateProperty("labelKey", Type.STRING);
+    final Property labelHash = labelType.getOrCreateProperty("hash", Type.STRING);
+    labelType.getOrCreateProperty("label", Type.STRING);
+    database.transaction(() -> {
+      labelType.getOrCreateTypeIndex(Schema.INDEX_TYPE.LSM_TREE, true, "labelKey", "hash");
+      labelHash.getOrCreateIndex(Schema.INDEX_TYPE.LSM_TREE, true);
+    });
+  }
+
+  public static String getLabelKey(final String label) {
+    return label.toLowerCase(Locale.ROOT);
+  }
 }
\ No newline at end of file
@@ -0,0 +1,220 @@
+package com.plutohub.server;
+
+import com.arcadedb.database.Database;
+import com.arcadedb.database.RID;
+import org.bitcoinj.core.Sha256Hash;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Links every block to its previous block while the blocks are loaded, so no second pass on the database and no index on the hash are
+ * needed. The hashes of the loaded blocks are kept in a map of primitive arrays: an open addressing table with the 32 bytes of the
+ * hash as 4 longs, the bucket and the position of the RID, about 60 bytes per block. A block whose previous block is not loaded yet
+ * (block files are not in chain order) is parked as orphan until its previous block arrives.
+ * <p>
+ * The linker is thread safe: {@link #add(Sha256Hash, Sha256Hash, RID, LinkCallback)} can be called by the threads of the async
+ * executor as soon as the RID of the block is known.
+ */
+public class BlockChainLinker {
+  private static final float LOAD_FACTOR = 0.75F;
+
+  private final Database                      database;
+  private       long[]                        hashes;
+  private       int[]                         buckets;
+  private       long[]                        positions;
+  private       int                           mask;
+  private       int                           size    = 0;
+  private       long                          links   = 0;
+  private final Map<Sha256Hash, List<Orphan>> orphans = new HashMap<>();
+
+  public interface LinkCallback {
+    void link(RID block, RID previousBlock);
+  }
+
+  private static class Orphan {
+    private final Sha256Hash hash;
+    private final RID        rid;
+
+    private Orphan(final Sha256Hash hash, final RID rid) {
+      this.hash = hash;
+      this.rid = rid;
+    }
+  }
+
+  /**
+   * @param expectedBlocks number of blocks expected, used to size the table to avoid rehashing
+   */
+  public BlockChainLinker(final Database database, final int expectedBlocks) {
+    this.database = database;
+
+    int capacity = 1024;
+    while (capacity * LOAD_FACTOR < expectedBlocks)
+      capacity <<= 1;
+    allocate(capacity);
+  }
+
+  /**
+   * Adds a loaded block and calls the callback for every link that can be created: the link from the block to its previous block if
+   * it has been already loaded, plus the links of the orphans that were waiting for this block. The callback is called while holding
+   * the lock of the linker.
+   *
+   * @param prevHash hash of the previous block, or {@link Sha256Hash#ZERO_HASH} for the genesis block
+   */
+  public synchronized void add(final Sha256Hash hash, final Sha256Hash prevHash, final RID rid, final LinkCallback callback) {
+    final byte[] hashBytes = hash.getBytes();
+    if (find(hashBytes) >= 0)
+      // DUPLICATED BLOCK: THE FIRST ONE IS THE BLOCK OTHER BLOCKS LINK TO
+      return;
+
+    insert(hashBytes, rid);
+
+    if (!prevHash.equals(Sha256Hash.ZERO_HASH)) {
+      final RID previous = get(prevHash);
+      if (previous != null) {
+        callback.link(rid, previous);
+        ++links;
+      } else
+        orphans.computeIfAbsent(prevHash, k -> new ArrayList<>(1)).add(new Orphan(hash, rid));
+    }
+
+    final List<Orphan> children = orphans.remove(hash);
+    if (children != null)
+      for (Orphan child : children) {
+        callback.link(child.rid, rid);
+        ++links;
+      }
+  }
+
+  /**
+   * Parks a block already in the database as orphan, to link it to its previous block once it is loaded again.
+   */
+  public synchronized void addOrphan(final Sha256Hash hash, final Sha256Hash prevHash, final RID rid) {
+    orphans.computeIfAbsent(prevHash, k -> new ArrayList<>(1)).add(new Orphan(hash, rid));
+  }
+
+  /**
+   * Links the orphans whose previous block has not been loaded but can be found by the lookup, like the blocks imported by a previous
+   * run.
+   *
+   * @param lookup returns the RID of a block by its hash, or null if not found
+   *
+   * @return the number of orphans linked
+   */
+  public synchronized int linkOrphans(final Function<Sha256Hash, RID> lookup, final LinkCallback callback) {
+    int linked = 0;
+    for (Iterator<Map.Entry<Sha256Hash, List<Orphan>>> it = orphans.entrySet().iterator(); it.hasNext(); ) {
+      final Map.Entry<Sha256Hash, List<Orphan>> entry = it.next();
+      final RID previous = lookup.apply(entry.getKey());
+      if (previous == null)
+        continue;
+
+      for (Orphan orphan : entry.getValue()) {
+        callback.link(orphan.rid, previous);
+        ++linked;
+      }
+      it.remove();
+    }
+    links += linked;
+    return linked;
+  }
+
+  /**
+   * Returns the RID of a loaded block, or null if the block has not been loaded.
+   */
+  public synchronized RID get(final Sha256Hash hash) {
+    final int slot = find(hash.getBytes());
+    return slot < 0 ? null : new RID(database, buckets[slot], positions[slot]);
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  public synchronized long getLinks() {
+    return links;
+  }
+
+  /**
+   * Returns the blocks still waiting for their previous block, as previous block hash -> block hash.
+   */
+  public synchronized Map<String, String> getOrphans() {
+    final Map<String, String> result = new LinkedHashMap<>();
+    for (Map.Entry<Sha256Hash, List<Orphan>> entry : orphans.entrySet())
+      for (Orphan orphan : entry.getValue())
+        result.put(entry.getKey().toString(), orphan.hash.toString());
+    return result;
+  }
+
+  private int find(final byte[] hash) {
+    final long h0 = readLong(hash, 0), h1 = readLong(hash, 8), h2 = readLong(hash, 16), h3 = readLong(hash, 24);
+    for (int slot = slot(h3); ; slot = (slot + 1) & mask) {
+      if (buckets[slot] < 0)
+        return -1;
+
+      final int i = slot * 4;
+      if (hashes[i + 3] == h3 && hashes[i + 2] == h2 && hashes[i + 1] == h1 && hashes[i] == h0)
+        return slot;
+    }
+  }
+
+  private void insert(final byte[] hash, final RID rid) {
+    if (size + 1 > (mask + 1) * LOAD_FACTOR)
+      rehash();
+
+    final long h3 = readLong(hash, 24);
+    int slot = slot(h3);
+    while (buckets[slot] >= 0)
+      slot = (slot + 1) & mask;
+
+    final int i = slot * 4;
+    hashes[i] = readLong(hash, 0);
+    hashes[i + 1] = readLong(hash, 8);
+    hashes[i + 2] = readLong(hash, 16);
+    hashes[i + 3] = h3;
+    buckets[slot] = rid.getBucketId();
+    positions[slot] = rid.getPosition();
+    ++size;
+  }
+
+  private void rehash() {
+    final long[] oldHashes = hashes;
+    final int[] oldBuckets = buckets;
+    final long[] oldPositions = positions;
+
+    allocate((mask + 1) * 2);
+
+    for (int oldSlot = 0; oldSlot < oldBuckets.length; oldSlot++) {
+      if (oldBuckets[oldSlot] < 0)
+        continue;
+
+      int slot = slot(oldHashes[oldSlot * 4 + 3]);
+      while (buckets[slot] >= 0)
+        slot = (slot + 1) & mask;
+
+      System.arraycopy(oldHashes, oldSlot * 4, hashes, slot * 4, 4);
+      buckets[slot] = oldBuckets[oldSlot];
+      positions[slot] = oldPositions[oldSlot];
+    }
+  }
+
+  private void allocate(final int capacity) {
+    hashes = new long[capacity * 4];
+    buckets = new int[capacity];
+    positions = new long[capacity];
+    Arrays.fill(buckets, -1); // -1 = FREE SLOT
+    mask = capacity - 1;
+  }
+
+  private int slot(final long h) {
+    // THE LAST BYTES OF THE HASH ARE THE LEAST SIGNIFICANT AND THE MOST RANDOM (THE FIRST ONES ARE THE ZEROS OF THE PROOF OF WORK)
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+
+  private static long readLong(final byte[] bytes, final int offset) {
+    long v = 0;
+    for (int i = 0; i < 8; i++)
+      v = (v << 8) | (bytes[offset + i] & 0xFF);
+    return v;
+  }
+}
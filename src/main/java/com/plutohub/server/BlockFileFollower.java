@@ -0,0 +1,144 @@
+package com.plutohub.server;
+
+import org.bitcoinj.core.NetworkParameters;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows the block files of a running Bitcoin Core node: every {@link #poll(Listener)} reads the blocks appended since the previous
+ * call, starting from the end of the last complete block read from the current blkNNNNN.dat file, and moves to the next file when
+ * Bitcoin Core creates it. A block still being written is not returned until it is complete, and the zeros that Bitcoin Core
+ * pre-allocates at the end of the file are read again at the next call, because new blocks are written over them.
+ * <p>
+ * {@link #await(long)} waits for changes in the directory through a {@link WatchService}. Since the watch service is not available or
+ * not reliable on every file system (on some it is implemented by polling every few seconds), the wait never exceeds the timeout, so
+ * the caller polls the files also without notifications.
+ */
+public class BlockFileFollower implements Closeable {
+  private final NetworkParameters params;
+  private final File              directory;
+  private       WatchService      watchService;
+  private       int               fileIndex;
+  private       long              position;
+  private       long              skipUpToOffset;
+  private       boolean           raw = false;
+
+  public interface Listener {
+    void onBlock(BitcoinBlock block);
+  }
+
+  /**
+   * @param fileIndex   number of the block file to start from
+   * @param afterOffset offset of the last block already read in the file (see {@link BlockFileReader#getBlockOffset()}), or -1 to
+   *                    start from the beginning of the file
+   */
+  public BlockFileFollower(final NetworkParameters params, final File directory, final int fileIndex, final long afterOffset) {
+    this.params = params;
+    this.directory = directory;
+    this.fileIndex = fileIndex;
+    // START FROM THE MAGIC OF THE LAST BLOCK READ, SO THE FRAMING IS NOT LOST SCANNING IN THE MIDDLE OF IT
+    this.position = Math.max(afterOffset - 4, 0);
+    this.skipUpToOffset = afterOffset;
+
+    try {
+      watchService = FileSystems.getDefault().newWatchService();
+      directory.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    } catch (IOException | UnsupportedOperationException e) {
+      System.err.println("Cannot watch the directory '" + directory + "', polling it: " + e);
+      watchService = null;
+    }
+  }
+
+  /**
+   * In raw mode the blocks are returned as {@link BlockView} over their bytes instead of parsing them with bitcoinj.
+   */
+  public BlockFileFollower setRaw(final boolean raw) {
+    this.raw = raw;
+    return this;
+  }
+
+  /**
+   * Reads the complete blocks appended since the last call.
+   *
+   * @return the number of blocks read
+   */
+  public int poll(final Listener listener) throws IOException {
+    int blocks = 0;
+    while (true) {
+      final File file = getFile(fileIndex);
+      if (file.exists()) {
+        try (BlockFileReader reader = new BlockFileReader(params, file, position, null)) {
+          reader.setRaw(raw);
+
+          while (reader.nextFrame()) {
+            // THE NEXT READ STARTS AFTER THE LAST COMPLETE FRAME, NOT FROM THE POSITION OF THE READER THAT COULD BE AFTER THE ZEROS
+            position = reader.getBlockOffset() + 4 + reader.getBlockSize();
+            if (reader.getBlockOffset() <= skipUpToOffset)
+              continue;
+
+            final BitcoinBlock block;
+            try {
+              block = reader.readBlock();
+            } catch (RuntimeException e) {
+              // SKIP IT, LIKE THE BLOCK LOADER DOES
+              continue;
+            }
+
+            listener.onBlock(block);
+            ++blocks;
+          }
+        }
+      }
+
+      // BITCOIN CORE MOVES TO THE NEXT FILE ONLY WHEN THE CURRENT ONE IS FULL: A FILE IS NEVER APPENDED AFTER THE NEXT ONE EXISTS
+      if (!getFile(fileIndex + 1).exists())
+        return blocks;
+
+      ++fileIndex;
+      position = 0;
+      skipUpToOffset = -1;
+    }
+  }
+
+  /**
+   * Waits until something changes in the directory or the timeout expires.
+   */
+  public void await(final long timeoutMs) throws InterruptedException {
+    if (watchService == null) {
+      Thread.sleep(timeoutMs);
+      return;
+    }
+
+    final WatchKey key = watchService.poll(timeoutMs, TimeUnit.MILLISECONDS);
+    if (key != null) {
+      key.pollEvents();
+      key.reset();
+    }
+  }
+
+  public int getFileIndex() {
+    return fileIndex;
+  }
+
+  /**
+   * Returns the position in the current file where the next read starts.
+   */
+  public long getPosition() {
+    return position;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (watchService != null)
+      watchService.close();
+  }
+
+  private File getFile(final int index) {
+    return new File(directory, String.format(Locale.US, "blk%05d.dat", index));
+  }
+}
@@ -0,0 +1,265 @@
+package com.plutohub.server;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sidecar index of a block file (blkNNNNN.dat -> blkNNNNN.pidx) with the location of every block in it. The index is built by reading
+ * only the 80 bytes header of each block, so it costs a fraction of a full parsing, and it is stored as fixed size entries that are
+ * memory mapped on the next runs. An index is valid only if the size and the last modified time of its block file did not change,
+ * otherwise it is rebuilt.
+ * <p>
+ * File layout (little endian): magic, version, block file size, block file last modified time, number of entries, then for each block
+ * in file order: hash (32 bytes), previous block hash (32 bytes), offset of the length prefix, size and header timestamp in seconds.
+ */
+public class BlockFileIndex {
+  public static final  String EXTENSION     = ".pidx";
+  public static final  int    ENTRY_SIZE    = 76;
+  private static final int    MAGIC         = 0x58494250; // "PBIX"
+  private static final int    VERSION       = 1;
+  private static final int    HEADER_SIZE   = 32;
+  private static final int    OFFSET_PREV   = 32;
+  private static final int    OFFSET_OFFSET = 64;
+  private static final int    OFFSET_SIZE   = 68;
+  private static final int    OFFSET_TIME   = 72;
+
+  private final File       blockFile;
+  private final long       blockFileSize;
+  private final long       blockFileLastModified;
+  private final ByteBuffer entries;
+  private final int        count;
+
+  public interface Filter {
+    /**
+     * Returns true if the block at the specified entry of the index must be read.
+     */
+    boolean accept(BlockFileIndex index, int entry);
+  }
+
+  private BlockFileIndex(final File blockFile, final long blockFileSize, final long blockFileLastModified, final ByteBuffer entries, final int count) {
+    this.blockFile = blockFile;
+    this.blockFileSize = blockFileSize;
+    this.blockFileLastModified = blockFileLastModified;
+    this.entries = entries.order(ByteOrder.LITTLE_ENDIAN);
+    this.count = count;
+  }
+
+  /**
+   * Returns the index of the block file, loading it from the index directory if still valid, otherwise building and saving it. If the
+   * index cannot be saved (read only directory), the index is kept in memory only.
+   *
+   * @param indexDirectory directory of the index files. If null the directory of the block file is used
+   */
+  public static BlockFileIndex getOrBuild(final NetworkParameters params, final File blockFile, final File indexDirectory) throws IOException {
+    final BlockFileIndex index = load(blockFile, indexDirectory);
+    if (index != null)
+      return index;
+
+    final BlockFileIndex newIndex = build(params, blockFile);
+    try {
+      newIndex.save(indexDirectory);
+    } catch (IOException e) {
+      System.err.println("Cannot save the index of block file '" + blockFile + "': " + e);
+    }
+    return newIndex;
+  }
+
+  /**
+   * Loads the index of the block file.
+   *
+   * @return null if the index does not exist or it is not valid anymore
+   */
+  public static BlockFileIndex load(final File blockFile, final File indexDirectory) throws IOException {
+    final File indexFile = getIndexFile(blockFile, indexDirectory);
+    if (!indexFile.exists())
+      return null;
+
+    try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+      final long indexSize = channel.size();
+      if (indexSize < HEADER_SIZE)
+        return null;
+
+      final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, indexSize).order(ByteOrder.LITTLE_ENDIAN);
+      if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+        return null;
+
+      final long fileSize = buffer.getLong(8);
+      final long lastModified = buffer.getLong(16);
+      final int count = buffer.getInt(24);
+
+      if (fileSize != blockFile.length() || lastModified != blockFile.lastModified() || indexSize != HEADER_SIZE + (long) count * ENTRY_SIZE)
+        // STALE OR CORRUPTED
+        return null;
+
+      buffer.position(HEADER_SIZE);
+      return new BlockFileIndex(blockFile, fileSize, lastModified, buffer.slice(), count);
+    }
+  }
+
+  /**
+   * Builds the index by scanning the block frames of the file and hashing their headers.
+   */
+  public static BlockFileIndex build(final NetworkParameters params, final File blockFile) throws IOException {
+    // READ THE LAST MODIFIED TIME BEFORE THE CONTENT, SO IF THE FILE IS APPENDED IN THE MEANTIME THE INDEX WILL BE REBUILT AT THE NEXT RUN
+    final long lastModified = blockFile.lastModified();
+
+    try (BlockFileReader reader = new BlockFileReader(params, blockFile)) {
+      ByteBuffer entries = ByteBuffer.allocate(ENTRY_SIZE * 256).order(ByteOrder.LITTLE_ENDIAN);
+      int count = 0;
+
+      while (reader.nextFrame()) {
+        if (reader.getBlockSize() < BlockFileReader.HEADER_SIZE)
+          continue;
+
+        if (entries.remaining() < ENTRY_SIZE) {
+          final ByteBuffer enlarged = ByteBuffer.allocate(entries.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+          entries.flip();
+          enlarged.put(entries);
+          entries = enlarged;
+        }
+
+        final byte[] header = reader.readHeader();
+
+        // HASHES ARE STORED IN THE SAME ORDER AS THEY ARE DISPLAYED, WHILE IN THE HEADER THEY ARE REVERSED
+        putReversed(entries, Sha256Hash.hashTwice(header, 0, BlockFileReader.HEADER_SIZE), 0);
+        putReversed(entries, header, 4);
+        entries.putInt((int) reader.getBlockOffset());
+        entries.putInt(reader.getBlockSize());
+        entries.putInt(ByteBuffer.wrap(header, 68, 4).order(ByteOrder.LITTLE_ENDIAN).getInt());
+        ++count;
+      }
+
+      entries.flip();
+      return new BlockFileIndex(blockFile, reader.getFileSize(), lastModified, entries.slice(), count);
+    }
+  }
+
+  /**
+   * Saves the index in the index directory. The file is written in a temporary file and then renamed, so a concurrent reader never sees
+   * a partial index.
+   */
+  public void save(final File indexDirectory) throws IOException {
+    final File indexFile = getIndexFile(blockFile, indexDirectory);
+    indexFile.getParentFile().mkdirs();
+
+    final File tempFile = new File(indexFile.getPath() + ".tmp");
+
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(MAGIC);
+    header.putInt(VERSION);
+    header.putLong(blockFileSize);
+    header.putLong(blockFileLastModified);
+    header.putInt(count);
+    header.position(HEADER_SIZE); // RESERVED
+    header.flip();
+
+    try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.WRITE)) {
+      final ByteBuffer content = entries.duplicate();
+      content.position(0);
+      content.limit(count * ENTRY_SIZE);
+      while (header.hasRemaining())
+        channel.write(header);
+      while (content.hasRemaining())
+        channel.write(content);
+    }
+
+    Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  public static File getIndexFile(final File blockFile, final File indexDirectory) {
+    final String name = blockFile.getName();
+    final int dot = name.lastIndexOf('.');
+    final String indexName = (dot > -1 ? name.substring(0, dot) : name) + EXTENSION;
+    return new File(indexDirectory != null ? indexDirectory : blockFile.getAbsoluteFile().getParentFile(), indexName);
+  }
+
+  public File getBlockFile() {
+    return blockFile;
+  }
+
+  public int size() {
+    return count;
+  }
+
+  public Sha256Hash getHash(final int entry) {
+    return Sha256Hash.wrap(getBytes(entry * ENTRY_SIZE));
+  }
+
+  public Sha256Hash getPrevHash(final int entry) {
+    return Sha256Hash.wrap(getBytes(entry * ENTRY_SIZE + OFFSET_PREV));
+  }
+
+  /**
+   * Returns the offset of the block in the block file, that is the position of its length prefix.
+   */
+  public long getOffset(final int entry) {
+    return entries.getInt(entry * ENTRY_SIZE + OFFSET_OFFSET) & 0xFFFFFFFFL;
+  }
+
+  public int getSize(final int entry) {
+    return entries.getInt(entry * ENTRY_SIZE + OFFSET_SIZE);
+  }
+
+  /**
+   * Returns the timestamp in seconds of the block header.
+   */
+  public long getTimeSeconds(final int entry) {
+    return entries.getInt(entry * ENTRY_SIZE + OFFSET_TIME) & 0xFFFFFFFFL;
+  }
+
+  /**
+   * Returns the entry of the block with the specified hash, or -1 if not found.
+   */
+  public int indexOf(final Sha256Hash hash) {
+    final byte[] bytes = hash.getBytes();
+    for (int i = 0; i < count; i++)
+      if (equals(i * ENTRY_SIZE, bytes))
+        return i;
+    return -1;
+  }
+
+  /**
+   * Returns the first entry with offset equal or greater than the specified one, or the number of entries if there is none.
+   */
+  public int indexOfOffset(final long offset) {
+    int low = 0;
+    int high = count;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (getOffset(mid) < offset)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+  private byte[] getBytes(final int position) {
+    final byte[] bytes = new byte[Sha256Hash.LENGTH];
+    for (int i = 0; i < bytes.length; i++)
+      bytes[i] = entries.get(position + i);
+    return bytes;
+  }
+
+  private boolean equals(final int position, final byte[] bytes) {
+    for (int i = 0; i < bytes.length; i++)
+      if (entries.get(position + i) != bytes[i])
+        return false;
+    return true;
+  }
+
+  private static void putReversed(final ByteBuffer buffer, final byte[] bytes, final int offset) {
+    for (int i = offset + Sha256Hash.LENGTH - 1; i >= offset; i--)
+      buffer.put(bytes[i]);
+  }
+}
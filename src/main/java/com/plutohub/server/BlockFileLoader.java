@@ -21,6 +21,7 @@ import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.ProtocolException;
 import org.bitcoinj.core.Utils;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -28,7 +29,8 @@ import java.io.IOException;
 import java.util.*;
 
 /**
- * Modified version that keeps track of the current file and MB parsed.
+ * Modified version that keeps track of the current file and MB parsed. By default the files are memory mapped and read with
+ * {@link BlockFileReader}, use {@link #setMemoryMapped(boolean)} to go back to the stream based reader.
  *
  * @author Luca Garulli (l.garulli@arcadedata.com)
  *
@@ -48,7 +50,7 @@ import java.util.*;
  * }
  * }</p>
  */
-public class BlockFileLoader implements Iterable<BitcoinBlock>, Iterator<BitcoinBlock> {
+public class BlockFileLoader implements Iterable<BitcoinBlock>, Iterator<BitcoinBlock>, Closeable {
   private BitcoinBlock prevFileFirstBlock;
   private BitcoinBlock prevFileLastBlock;
 
@@ -56,9 +58,17 @@ public class BlockFileLoader implements Iterable<BitcoinBlock>, Iterator<Bitcoin
     void onNewFile(File prevFile, BitcoinBlock firstBlock, BitcoinBlock lastBlock);
   }
 
-  private int       currentFileIndex = 0;
-  private long      totalParsedSize  = 0;
-  private OnNewFile onNewFile        = null;
+  private int                   currentFileIndex = 0;
+  private long                  totalParsedSize  = 0;
+  private OnNewFile             onNewFile        = null;
+  private boolean               memoryMapped     = true;
+  private int                   parallelWorkers  = 0;
+  private boolean               ordered          = true;
+  private int                   queueSize        = 32;
+  private boolean               useIndex         = false;
+  private File                  indexDirectory   = null;
+  private BlockFileIndex.Filter blockFilter      = null;
+  private boolean               raw              = false;
 
   public int getCurrentFileIndex() {
     return currentFileIndex;
@@ -81,6 +91,105 @@ public class BlockFileLoader implements Iterable<BitcoinBlock>, Iterator<Bitcoin
     onNewFile = callback;
   }
 
+  public boolean isMemoryMapped() {
+    return memoryMapped;
+  }
+
+  /**
+   * Reads the files by memory mapping them (default) instead of scanning them through a {@link FileInputStream}. Must be set before
+   * starting the iteration.
+   */
+  public BlockFileLoader setMemoryMapped(final boolean memoryMapped) {
+    this.memoryMapped = memoryMapped;
+    return this;
+  }
+
+  public int getParallelWorkers() {
+    return parallelWorkers;
+  }
+
+  /**
+   * Decodes the files in parallel with the specified number of workers. With 0 or 1 the files are read by the calling thread. The
+   * parallel decoding always memory maps the files. In this mode {@link #getCurrentFileIndex()} returns the number of files
+   * completely consumed. Must be set before starting the iteration.
+   */
+  public BlockFileLoader setParallelWorkers(final int parallelWorkers) {
+    this.parallelWorkers = parallelWorkers;
+    return this;
+  }
+
+  public boolean isOrdered() {
+    return ordered;
+  }
+
+  /**
+   * With parallel workers, returns the blocks in file/offset order (default) or as soon as they are decoded (false) for maximum
+   * throughput. In unordered mode the {@link OnNewFile} callback is called as soon as all the blocks of a file have been returned.
+   */
+  public BlockFileLoader setOrdered(final boolean ordered) {
+    this.ordered = ordered;
+    return this;
+  }
+
+  public int getQueueSize() {
+    return queueSize;
+  }
+
+  /**
+   * Sets the maximum number of decoded blocks waiting to be consumed for each parallel worker (default 32).
+   */
+  public BlockFileLoader setQueueSize(final int queueSize) {
+    this.queueSize = queueSize;
+    return this;
+  }
+
+  public boolean isUseIndex() {
+    return useIndex;
+  }
+
+  /**
+   * Reads the block locations from the sidecar index of each file ({@link BlockFileIndex}), building it the first time, instead of
+   * scanning the file for the magic. Works only with memory mapped files. Must be set before starting the iteration.
+   */
+  public BlockFileLoader setUseIndex(final boolean useIndex) {
+    this.useIndex = useIndex;
+    return this;
+  }
+
+  public File getIndexDirectory() {
+    return indexDirectory;
+  }
+
+  /**
+   * Sets the directory where to store the index files. By default they are stored next to the block files.
+   */
+  public BlockFileLoader setIndexDirectory(final File indexDirectory) {
+    this.indexDirectory = indexDirectory;
+    return this;
+  }
+
+  /**
+   * Sets a filter to skip blocks by looking at their index entry, without reading them. The filter is applied only when the index is
+   * used and available, so the consumer must not rely on it to exclude blocks.
+   */
+  public BlockFileLoader setBlockFilter(final BlockFileIndex.Filter blockFilter) {
+    this.blockFilter = blockFilter;
+    return this;
+  }
+
+  public boolean isRaw() {
+    return raw;
+  }
+
+  /**
+   * Returns the blocks as {@link BlockView} over their bytes instead of parsing them with bitcoinj. See
+   * {@link BitcoinBlock#getView()}. Must be set before starting the iteration.
+   */
+  public BlockFileLoader setRaw(final boolean raw) {
+    this.raw = raw;
+    return this;
+  }
+
   /**
    * Gets the list of files which contain blocks from Bitcoin Core.
    */
@@ -113,17 +222,23 @@ public class BlockFileLoader implements Iterable<BitcoinBlock>, Iterator<Bitcoin
     return defaultBlocksDir;
   }
 
-  private Iterator<File>    fileIt;
-  private File              file              = null;
-  private FileInputStream   currentFileStream = null;
-  private BitcoinBlock      nextBlock         = null;
-  private NetworkParameters params;
+  private final List<File>           files;
+  private       Iterator<File>       fileIt;
+  private       File                 file              = null;
+  private       FileInputStream      currentFileStream = null;
+  private       BlockFileReader      currentReader     = null;
+  private       byte[]               blockBuffer       = null;
+  private       boolean              endNotified       = false;
+  private       ParallelBlockDecoder decoder           = null;
+  private       BitcoinBlock         nextBlock         = null;
+  private       NetworkParameters    params;
 
   public BlockFileLoader(NetworkParameters params, File blocksDir) {
     this(params, getReferenceClientBlockFileList(blocksDir));
   }
 
   public BlockFileLoader(NetworkParameters params, List<File> files) {
+    this.files = files;
     fileIt = files.iterator();
     this.params = params;
   }
@@ -145,6 +260,98 @@ public class BlockFileLoader implements Iterable<BitcoinBlock>, Iterator<Bitcoin
   }
 
   private void loadNextBlock() {
+    if (parallelWorkers > 1)
+      loadNextBlockInParallel();
+    else if (memoryMapped)
+      loadNextBlockFromMappedFile();
+    else
+      loadNextBlockFromStream();
+  }
+
+  private void loadNextBlockFromMappedFile() {
+    while (true) {
+      if (currentReader != null) {
+        nextBlock = currentReader.next();
+        if (nextBlock != null) {
+          if (prevFileFirstBlock == null)
+            prevFileFirstBlock = nextBlock;
+          prevFileLastBlock = nextBlock;
+          return;
+        }
+
+        closeCurrentReader();
+      }
+
+      if (!fileIt.hasNext()) {
+        // END
+        if (onNewFile != null && file != null && !endNotified) {
+          endNotified = true;
+          onNewFile.onNewFile(file, prevFileFirstBlock, prevFileLastBlock);
+        }
+        return;
+      }
+
+      if (file != null)
+        totalParsedSize += file.length();
+
+      final File prevFile = file;
+
+      file = fileIt.next();
+      ++currentFileIndex;
+
+      if (onNewFile != null && prevFile != null)
+        onNewFile.onNewFile(prevFile, prevFileFirstBlock, prevFileLastBlock);
+
+      prevFileFirstBlock = null;
+      prevFileLastBlock = null;
+
+      try {
+        currentReader = new BlockFileReader(params, file, 0, blockBuffer).setRaw(raw);
+        if (useIndex)
+          currentReader.useIndex(indexDirectory, blockFilter);
+      } catch (IOException e) {
+        currentReader = null;
+      }
+    }
+  }
+
+  private void loadNextBlockInParallel() {
+    if (decoder == null)
+      decoder = new ParallelBlockDecoder(params, files, parallelWorkers, ordered, queueSize).setIndex(useIndex, indexDirectory, blockFilter).setRaw(raw)
+          .start();
+
+    while (true) {
+      final ParallelBlockDecoder.Entry entry = decoder.take();
+      if (entry == null)
+        // END
+        return;
+
+      if (!entry.isEndOfFile()) {
+        nextBlock = entry.block;
+        file = entry.file;
+        return;
+      }
+
+      ++currentFileIndex;
+      totalParsedSize += entry.file.length();
+
+      if (onNewFile != null)
+        onNewFile.onNewFile(entry.file, entry.firstBlock, entry.lastBlock);
+    }
+  }
+
+  private void closeCurrentReader() {
+    // KEEP THE BUFFER (POSSIBLY ENLARGED) FOR THE NEXT FILE
+    blockBuffer = currentReader.getBlockBuffer();
+    try {
+      currentReader.close();
+    } catch (IOException e) {
+      // IGNORE IT
+    }
+    currentReader = null;
+  }
+
+  private void loadNextBlockFromStream() {
     while (true) {
       try {
         if (!fileIt.hasNext() && (currentFileStream == null || currentFileStream.available() < 1))
@@ -219,7 +426,9 @@ public class BlockFileLoader implements Iterable<BitcoinBlock>, Iterator<Bitcoin
         bytes = new byte[(int) size];
         currentFileStream.read(bytes, 0, (int) size);
         try {
-          nextBlock = new BitcoinBlock(file, blockOffset, params.getDefaultSerializer().makeBlock(bytes));
+          nextBlock = raw ?
+              new BitcoinBlock(file, blockOffset, new BlockView(bytes)) :
+              new BitcoinBlock(file, blockOffset, params.getDefaultSerializer().makeBlock(bytes));
 
           if (prevFileFirstBlock == null)
             prevFileFirstBlock = nextBlock;
@@ -239,6 +448,27 @@ public class BlockFileLoader implements Iterable<BitcoinBlock>, Iterator<Bitcoin
     }
   }
 
+  /**
+   * Stops the parallel workers and releases the current file. Call it when the iteration is interrupted before the end.
+   */
+  @Override
+  public void close() {
+    if (decoder != null) {
+      decoder.close();
+      decoder = null;
+    }
+    if (currentReader != null)
+      closeCurrentReader();
+    if (currentFileStream != null) {
+      try {
+        currentFileStream.close();
+      } catch (IOException e) {
+        // IGNORE IT
+      }
+      currentFileStream = null;
+    }
+  }
+
   @Override
   public void remove() throws UnsupportedOperationException {
     throw new UnsupportedOperationException();
@@ -0,0 +1,265 @@
+package com.plutohub.server;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.MessageSerializer;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the blocks of a single block file in the Bitcoin Core format by memory mapping it. The magic and the length prefix are
+ * found directly in the mapped region and the block bytes are copied with a single bulk copy into a reusable buffer before being
+ * passed to the deserializer, so no allocation is done per block apart from the parsed {@link Block} itself.
+ * <p>
+ * The offset of each block is the position of its length prefix (right after the magic), like {@link BlockFileLoader} always did.
+ * A partially written block at the end of the file is never returned: {@link #getPosition()} stays on its magic, so a new reader
+ * can resume from there once the file has grown.
+ */
+public class BlockFileReader implements Closeable {
+  public static final  int HEADER_SIZE         = 80;
+  private static final int DEFAULT_BUFFER_SIZE = 2 * 1024 * 1024;
+  private static final int FRAME_HEADER_SIZE   = 8;
+
+  private final File                  file;
+  private final NetworkParameters     params;
+  private final MessageSerializer     serializer;
+  private final int                   magic;
+  private final FileChannel           channel;
+  private final MappedByteBuffer      buffer;
+  private final ByteBuffer            copyBuffer;
+  private final int                   limit;
+  private       byte[]                blockBuffer;
+  private       int                   position;
+  private       long                  blockOffset = -1;
+  private       int                   blockSize   = 0;
+  private final byte[]                header      = new byte[HEADER_SIZE];
+  private       BlockFileIndex        index;
+  private       BlockFileIndex.Filter indexFilter;
+  private       int                   indexEntry;
+  private       boolean               raw         = false;
+
+  public BlockFileReader(final NetworkParameters params, final File file) throws IOException {
+    this(params, file, 0, null);
+  }
+
+  /**
+   * @param fromOffset  position in the file where to start scanning for the magic
+   * @param blockBuffer buffer to reuse to deserialize the blocks. It is enlarged if a block does not fit. Pass null to allocate a
+   *                    new one
+   */
+  public BlockFileReader(final NetworkParameters params, final File file, final long fromOffset, final byte[] blockBuffer) throws IOException {
+    this.file = file;
+    this.params = params;
+    this.serializer = params.getDefaultSerializer();
+    this.magic = (int) params.getPacketMagic();
+    this.blockBuffer = blockBuffer != null ? blockBuffer : new byte[DEFAULT_BUFFER_SIZE];
+
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      // BITCOIN CORE NEVER WRITES FILES BIGGER THAN 128MB, SO A SINGLE MAPPING IS ALWAYS ENOUGH
+      final long fileSize = channel.size();
+      if (fileSize > Integer.MAX_VALUE)
+        throw new IOException("Block file '" + file + "' is too big to be mapped (" + fileSize + " bytes)");
+
+      this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+      this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+      this.copyBuffer = buffer.duplicate();
+      this.limit = (int) fileSize;
+      this.position = (int) Math.min(Math.max(fromOffset, 0), fileSize);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Reads the block locations from the sidecar index of the file instead of scanning for the magic, building the index if it does not
+   * exist or it is stale. If the index cannot be built, the file is scanned as usual.
+   *
+   * @param indexDirectory directory of the index files. If null the directory of the block file is used
+   * @param filter         optional filter to skip blocks without reading them
+   *
+   * @return true if the index is used
+   */
+  public boolean useIndex(final File indexDirectory, final BlockFileIndex.Filter filter) {
+    try {
+      index = BlockFileIndex.getOrBuild(params, file, indexDirectory);
+      indexFilter = filter;
+      indexEntry = index.indexOfOffset(position);
+      return true;
+    } catch (IOException e) {
+      System.err.println("Cannot use the index of block file '" + file + "', scanning the file: " + e);
+      index = null;
+      return false;
+    }
+  }
+
+  /**
+   * In raw mode the blocks are not parsed by bitcoinj: every block gets its own copy of the bytes and is returned as a {@link BlockView}.
+   */
+  public BlockFileReader setRaw(final boolean raw) {
+    this.raw = raw;
+    return this;
+  }
+
+  public boolean isRaw() {
+    return raw;
+  }
+
+  public BlockFileIndex getIndex() {
+    return index;
+  }
+
+  /**
+   * Moves to the next block frame (magic + length prefix + block bytes) without deserializing it.
+   *
+   * @return false if there are no more complete blocks in the file
+   */
+  public boolean nextFrame() {
+    if (index != null)
+      return nextIndexedFrame();
+
+    while (limit - position >= FRAME_HEADER_SIZE) {
+      final int word = Integer.reverseBytes(buffer.getInt(position));
+      if (word != magic) {
+        // IF THE 4 BYTES ARE ALL ZEROS (PRE-ALLOCATED SPACE AT THE END OF THE FILE) THE MAGIC CANNOT START IN ANY OF THEM
+        position += word == 0 ? 4 : 1;
+        continue;
+      }
+
+      final long size = buffer.getInt(position + 4) & 0xFFFFFFFFL;
+      // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
+      if (size > Block.MAX_BLOCK_SIZE * 5 || size <= 0) {
+        position += FRAME_HEADER_SIZE;
+        continue;
+      }
+
+      if (position + FRAME_HEADER_SIZE + size > limit)
+        // PARTIALLY WRITTEN BLOCK
+        return false;
+
+      blockOffset = position + 4;
+      blockSize = (int) size;
+      position += FRAME_HEADER_SIZE + blockSize;
+      return true;
+    }
+    return false;
+  }
+
+  private boolean nextIndexedFrame() {
+    while (indexEntry < index.size()) {
+      final int entry = indexEntry++;
+      if (indexFilter != null && !indexFilter.accept(index, entry))
+        continue;
+
+      blockOffset = index.getOffset(entry);
+      blockSize = index.getSize(entry);
+      position = (int) blockOffset + 4 + blockSize;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns the 80 bytes header of the block of the current frame. The returned array is reused at every call.
+   */
+  public byte[] readHeader() {
+    copyBuffer.position((int) blockOffset + 4);
+    copyBuffer.get(header, 0, Math.min(HEADER_SIZE, blockSize));
+    return header;
+  }
+
+  /**
+   * Returns a copy of the bytes of the block of the current frame, to be deserialized later or by another thread.
+   */
+  public byte[] readBlockBytes() {
+    final byte[] bytes = new byte[blockSize];
+    copyBuffer.position((int) blockOffset + 4);
+    copyBuffer.get(bytes, 0, blockSize);
+    return bytes;
+  }
+
+  /**
+   * Deserializes the block of the current frame, or wraps its bytes in a {@link BlockView} in raw mode.
+   *
+   * @throws ProtocolException if the block is not valid
+   */
+  public BitcoinBlock readBlock() throws ProtocolException {
+    if (raw)
+      return new BitcoinBlock(file, blockOffset, new BlockView(readBlockBytes()));
+
+    if (blockBuffer.length < blockSize)
+      blockBuffer = new byte[blockSize];
+
+    copyBuffer.position((int) blockOffset + 4);
+    copyBuffer.get(blockBuffer, 0, blockSize);
+
+    // THE SERIALIZER DOES NOT RETAIN THE PAYLOAD, SO THE BUFFER CAN BE REUSED FOR THE NEXT BLOCK
+    return new BitcoinBlock(file, blockOffset, serializer.makeBlock(blockBuffer, 0, blockSize));
+  }
+
+  /**
+   * Returns the next valid block in the file, skipping the ones that cannot be parsed.
+   *
+   * @return null if there are no more complete blocks in the file
+   */
+  public BitcoinBlock next() {
+    while (nextFrame()) {
+      try {
+        return readBlock();
+      } catch (ProtocolException e) {
+        continue;
+      } catch (Exception e) {
+        throw new RuntimeException("unexpected problem with block in " + file, e);
+      }
+    }
+    return null;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public NetworkParameters getParams() {
+    return params;
+  }
+
+  /**
+   * Returns the position in the file where the scanning of the next block starts.
+   */
+  public long getPosition() {
+    return position;
+  }
+
+  /**
+   * Returns the offset of the current frame, that is the position of its length prefix.
+   */
+  public long getBlockOffset() {
+    return blockOffset;
+  }
+
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  public long getFileSize() {
+    return limit;
+  }
+
+  public byte[] getBlockBuffer() {
+    return blockBuffer;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,223 @@
+package com.plutohub.server;
+
+import com.arcadedb.database.Database;
+import com.arcadedb.database.Document;
+import com.arcadedb.database.RID;
+import com.arcadedb.index.IndexCursor;
+import com.arcadedb.graph.MutableVertex;
+import com.arcadedb.graph.Vertex;
+import org.bitcoinj.core.Utils;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Assigns to the blocks their height and their cumulative work ("chainWork", the sum of the work of the block and of all the previous
+ * ones, as 64 hex digits like Bitcoin Core, so the strings compare like the numbers). The tail of the chain is the block with the most
+ * cumulative work, not the most recent one: the blocks of the chain from the genesis block to the tail have "mainChain" set to true and
+ * are indexed by height and by time in the {@link BitcoinSchema#DOCUMENT_BLOCK_HEIGHT} documents.
+ * <p>
+ * The new blocks are added while they are saved, then {@link #assign()} walks the {@link BitcoinSchema#EDGE_PREVIOUS_BLOCK} edges from
+ * every new block whose previous block has already a height, propagating the height to the next blocks. A block whose previous block
+ * is not linked yet waits for the next call. When the tail moves to another branch (reorganization), the blocks of the old branch up to
+ * the fork are removed from the main chain.
+ */
+public class BlockHeights {
+  private static final BigInteger TWO_POW_256 = BigInteger.ONE.shiftLeft(256);
+
+  private final Database   database;
+  private final int        commitEvery;
+  private final Runnable   commit;
+  private final Queue<RID> pending  = new ConcurrentLinkedQueue<>();
+  private final List<RID>  waiting  = new ArrayList<>();
+  private       RID        tail     = null;
+  private       BigInteger tailWork = BigInteger.ZERO;
+  private       long       modified = 0;
+
+  /**
+   * @param commitEvery number of blocks modified before calling the commit callback
+   * @param commit      commits the current transaction and starts a new one, to keep the transactions small on the first import
+   */
+  public BlockHeights(final Database database, final int commitEvery, final Runnable commit) {
+    this.database = database;
+    this.commitEvery = commitEvery;
+    this.commit = commit;
+  }
+
+  /**
+   * Adds a new block to assign. It can be called by the threads of the async executor.
+   */
+  public void add(final RID block) {
+    pending.add(block);
+  }
+
+  /**
+   * Sets the tail of the previous import, the starting point of an incremental import.
+   */
+  public void setTail(final Vertex tail) {
+    final String chainWork = tail.getString("chainWork");
+    if (chainWork == null)
+      // IMPORTED BY AN OLDER VERSION: THE HEIGHTS ARE ASSIGNED AGAIN FROM THE GENESIS BLOCK
+      return;
+
+    this.tail = tail.getIdentity();
+    this.tailWork = new BigInteger(chainWork, 16);
+  }
+
+  /**
+   * Returns the block with the most cumulative work, or null if no block has a height yet.
+   */
+  public RID getTail() {
+    return tail;
+  }
+
+  /**
+   * Assigns the height to the blocks added and to the blocks after them, then moves the main chain to the new tail. It must be called
+   * in a transaction, once the blocks are linked.
+   *
+   * @return the number of blocks modified
+   */
+  public long assign() {
+    final long modifiedBefore = modified;
+    final RID previousTail = tail;
+
+    final List<RID> toAssign = new ArrayList<>(waiting);
+    waiting.clear();
+    for (RID rid; (rid = pending.poll()) != null; )
+      toAssign.add(rid);
+
+    for (RID rid : toAssign) {
+      final Vertex block = rid.asVertex();
+      if (block.getLong("height") != null)
+        // ALREADY REACHED FROM ITS PREVIOUS BLOCK
+        continue;
+
+      final Vertex previous = getPrevious(block);
+      if (previous == null) {
+        if (BitcoinDatafileUtils.FIRST_BLOCK_HASH.equals(block.getString("prevBlockHash")))
+          propagate(rid, 0, getWork(block));
+        else
+          waiting.add(rid);
+      } else if (previous.getLong("height") == null)
+        waiting.add(rid);
+      else
+        propagate(rid, previous.getLong("height") + 1, new BigInteger(previous.getString("chainWork"), 16).add(getWork(block)));
+    }
+
+    if (tail != null && !tail.equals(previousTail))
+      moveMainChain(previousTail);
+
+    return modified - modifiedBefore;
+  }
+
+  /**
+   * Returns the work of a block: the expected number of hashes to find it, 2^256 / (target + 1).
+   */
+  public static BigInteger getWork(final Vertex block) {
+    final BigInteger target = Utils.decodeCompactBits(block.getLong("difficultyTarget"));
+    return TWO_POW_256.divide(target.add(BigInteger.ONE));
+  }
+
+  /**
+   * Sets height and cumulative work of a block and of the blocks after it, stopping on the blocks that have them already.
+   */
+  private void propagate(final RID start, final long startHeight, final BigInteger startWork) {
+    final Deque<Object[]> toVisit = new ArrayDeque<>();
+    toVisit.push(new Object[] { start, startHeight, startWork });
+
+    while (!toVisit.isEmpty()) {
+      final Object[] entry = toVisit.pop();
+      final RID rid = (RID) entry[0];
+      final long height = (Long) entry[1];
+      final BigInteger chainWork = (BigInteger) entry[2];
+      final String chainWorkHex = String.format(Locale.US, "%064x", chainWork);
+
+      final Vertex block = rid.asVertex();
+      if (Long.valueOf(height).equals(block.getLong("height")) && chainWorkHex.equals(block.getString("chainWork")))
+        continue;
+
+      final MutableVertex modifiedBlock = block.modify();
+      modifiedBlock.set("height", height);
+      modifiedBlock.set("chainWork", chainWorkHex);
+
+      for (Vertex next : block.getVertices(Vertex.DIRECTION.IN, BitcoinSchema.EDGE_PREVIOUS_BLOCK)) {
+        toVisit.push(new Object[] { next.getIdentity(), height + 1, chainWork.add(getWork(next)) });
+        if (Boolean.TRUE.equals(next.getBoolean("mainChain"))) {
+          // BLOCK IMPORTED AGAIN IN THE MIDDLE OF THE MAIN CHAIN
+          modifiedBlock.set("mainChain", true);
+          setMainChainBlock(height, block);
+        }
+      }
+      modifiedBlock.save();
+
+      if (chainWork.compareTo(tailWork) > 0) {
+        tail = rid;
+        tailWork = chainWork;
+      }
+
+      onModified();
+    }
+  }
+
+  /**
+   * Sets "mainChain" on the blocks from the new tail back to the fork with the current main chain, then removes it from the blocks of
+   * the old branch, from the previous tail back to the fork. The heights of the old branch not reached by the new one are removed from
+   * the index, the others point to the blocks of the new branch.
+   */
+  private void moveMainChain(final RID previousTail) {
+    final Vertex newTail = tail.asVertex();
+    final long newTailHeight = newTail.getLong("height");
+
+    RID fork = null;
+    for (Vertex block = newTail; block != null; block = getPrevious(block)) {
+      if (Boolean.TRUE.equals(block.getBoolean("mainChain"))) {
+        fork = block.getIdentity();
+        break;
+      }
+      block.modify().set("mainChain", true).save();
+      setMainChainBlock(block.getLong("height"), block);
+      onModified();
+    }
+
+    if (previousTail == null)
+      return;
+
+    for (Vertex block = previousTail.asVertex(); block != null && !block.getIdentity().equals(fork); block = getPrevious(block)) {
+      if (!Boolean.TRUE.equals(block.getBoolean("mainChain")))
+        break;
+      block.modify().set("mainChain", false).save();
+      if (block.getLong("height") > newTailHeight)
+        setMainChainBlock(block.getLong("height"), null);
+      onModified();
+    }
+  }
+
+  /**
+   * Sets the block of the main chain at a height, with its time, updating the index entry in place if it exists.
+   *
+   * @param block the block, or null to remove the height
+   */
+  private void setMainChainBlock(final long height, final Vertex block) {
+    final IndexCursor cursor = database.lookupByKey(BitcoinSchema.DOCUMENT_BLOCK_HEIGHT, "height", height);
+    if (cursor.hasNext()) {
+      final Document entry = cursor.next().asDocument();
+      if (block == null)
+        entry.delete();
+      else
+        entry.modify().set("block", block.getIdentity()).set("timeSeconds", block.getLong("timeSeconds")).save();
+    } else if (block != null)
+      database.newDocument(BitcoinSchema.DOCUMENT_BLOCK_HEIGHT).set("height", height).set("block", block.getIdentity())
+          .set("timeSeconds", block.getLong("timeSeconds")).save();
+  }
+
+  private void onModified() {
+    if (++modified % commitEvery == 0)
+      commit.run();
+  }
+
+  private static Vertex getPrevious(final Vertex block) {
+    final Iterator<Vertex> previous = block.getVertices(Vertex.DIRECTION.OUT, BitcoinSchema.EDGE_PREVIOUS_BLOCK).iterator();
+    return previous.hasNext() ? previous.next() : null;
+  }
+}
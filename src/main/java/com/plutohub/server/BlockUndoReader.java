@@ -0,0 +1,334 @@
+package com.plutohub.server;
+
+import org.bitcoinj.core.*;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Reads the undo files (revNNNNN.dat) that Bitcoin Core writes next to the block files: for every block connected to the chain they
+ * contain the outputs spent by its inputs, with amount and script. With them the value and the address of every input are known
+ * without keeping the unspent outputs, and the blocks can be resolved in any order and by any thread.
+ * <p>
+ * The undo data of a block is in the rev file with the same number of its block file, but in the order the blocks were connected, not
+ * in the order they were written, and without the hash of the block. A record is matched to a block by its checksum, the double
+ * SHA-256 of the hash of the previous block followed by the undo data, after checking that the number of transactions matches. The
+ * record following the last matched one is tried first, so when the blocks are read in chain order one hash is enough.
+ * <p>
+ * File layout: for each block magic, size (4 bytes little endian), undo data, checksum (32 bytes). The undo data is a vector with an
+ * entry for every transaction but the coinbase, in turn a vector with an entry for every input: height and coinbase flag, a dummy
+ * version, the compressed amount and the compressed script, as serialized by Bitcoin Core (see undo.h and compressor.h).
+ */
+public class BlockUndoReader implements Closeable {
+  private static final int FRAME_HEADER_SIZE = 8;
+  private static final int CHECKSUM_SIZE     = 32;
+
+  private final int                           magic;
+  private       int                           maxOpenFiles = 4;
+  private final LinkedHashMap<File, UndoFile> openFiles    = new LinkedHashMap<>(16, 0.75F, true);
+  private       long                          resolvedBlocks;
+  private       long                          missingBlocks;
+
+  /**
+   * Records of a rev file. Thread safe.
+   */
+  private class UndoFile {
+    private final File       file;
+    private final long       fileSize;
+    private final ByteBuffer buffer;
+    private final int[]      offsets;
+    private final int[]      sizes;
+    private final boolean[]  matched;
+    private       int        next = 0;
+
+    private UndoFile(final File file) throws IOException {
+      this.file = file;
+
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+        fileSize = channel.size();
+        if (fileSize > Integer.MAX_VALUE)
+          throw new IOException("Undo file '" + file + "' is too big to be mapped (" + fileSize + " bytes)");
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize).order(ByteOrder.LITTLE_ENDIAN);
+      }
+
+      int[] offsets = new int[256];
+      int[] sizes = new int[256];
+      int count = 0;
+
+      int position = 0;
+      while (fileSize - position >= FRAME_HEADER_SIZE) {
+        final int word = Integer.reverseBytes(buffer.getInt(position));
+        if (word != magic) {
+          // SAME SCAN OF THE BLOCK FILES: THE END OF THE FILE IS PRE-ALLOCATED WITH ZEROS
+          position += word == 0 ? 4 : 1;
+          continue;
+        }
+
+        final long size = buffer.getInt(position + 4) & 0xFFFFFFFFL;
+        if (position + FRAME_HEADER_SIZE + size + CHECKSUM_SIZE > fileSize)
+          // PARTIALLY WRITTEN RECORD
+          break;
+
+        if (count == offsets.length) {
+          offsets = Arrays.copyOf(offsets, count * 2);
+          sizes = Arrays.copyOf(sizes, count * 2);
+        }
+        offsets[count] = position + FRAME_HEADER_SIZE;
+        sizes[count] = (int) size;
+        ++count;
+
+        position += FRAME_HEADER_SIZE + size + CHECKSUM_SIZE;
+      }
+
+      this.offsets = Arrays.copyOf(offsets, count);
+      this.sizes = Arrays.copyOf(sizes, count);
+      this.matched = new boolean[count];
+    }
+
+    /**
+     * Returns the position of the undo data of a block, or -1 if not found.
+     */
+    private synchronized int find(final Sha256Hash prevHash, final int transactions) {
+      final MessageDigest digest = Sha256Hash.newDigest();
+      final byte[] prevHashBytes = prevHash.getReversedBytes();
+
+      for (int i = 0; i < offsets.length; i++) {
+        final int record = (next + i) % offsets.length;
+        if (matched[record])
+          continue;
+
+        final ByteBuffer data = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        data.position(offsets[record]);
+        if (readCompactSize(data) != transactions - 1)
+          continue;
+
+        data.position(offsets[record]).limit(offsets[record] + sizes[record]);
+        digest.reset();
+        digest.update(prevHashBytes);
+        digest.update(data);
+        final byte[] checksum = digest.digest(digest.digest());
+
+        boolean equals = true;
+        for (int k = 0; k < CHECKSUM_SIZE && equals; k++)
+          equals = checksum[k] == buffer.get(offsets[record] + sizes[record] + k);
+
+        if (equals) {
+          matched[record] = true;
+          next = record + 1;
+          return offsets[record];
+        }
+      }
+      return -1;
+    }
+  }
+
+  public BlockUndoReader(final NetworkParameters params) {
+    this.magic = (int) params.getPacketMagic();
+  }
+
+  /**
+   * Sets the maximum number of rev files kept mapped. It should be at least the number of threads resolving blocks.
+   */
+  public BlockUndoReader setMaxOpenFiles(final int maxOpenFiles) {
+    this.maxOpenFiles = maxOpenFiles;
+    return this;
+  }
+
+  /**
+   * Resolves the value and the address of the outputs spent by the inputs of the block from its undo data, setting them with
+   * {@link BitcoinBlock#setSpentOutputs(long[], byte[][])}.
+   *
+   * @return false if the undo data of the block is not available, like for a block not connected to the chain (yet)
+   */
+  public boolean resolve(final BitcoinBlock block) throws IOException {
+    final int[] inputCounts = getInputCounts(block);
+
+    UndoFile undoFile = getFile(BitcoinDatafileUtils.getUndoFile(block.getOriginFile()), false);
+    int position = undoFile != null ? undoFile.find(block.getPrevBlockHash(), inputCounts.length) : -1;
+    if (position < 0 && undoFile != null && undoFile.file.length() != undoFile.fileSize) {
+      // THE FILE HAS BEEN APPENDED BY BITCOIN CORE: MAP IT AGAIN
+      undoFile = getFile(undoFile.file, true);
+      position = undoFile.find(block.getPrevBlockHash(), inputCounts.length);
+    }
+
+    if (position < 0) {
+      synchronized (this) {
+        ++missingBlocks;
+      }
+      return false;
+    }
+
+    int totalInputs = 0;
+    for (int inputCount : inputCounts)
+      totalInputs += inputCount;
+
+    final long[] values = new long[totalInputs];
+    final byte[][] addressKeys = new byte[totalInputs][];
+
+    final ByteBuffer data = undoFile.buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    data.position(position);
+    readCompactSize(data);
+
+    int input = 0;
+    for (int tx = 0; tx < inputCounts.length; tx++) {
+      if (tx == 0) {
+        // THE COINBASE HAS NO UNDO DATA
+        for (int k = 0; k < inputCounts[0]; k++)
+          values[input++] = BitcoinBlock.UNRESOLVED;
+        continue;
+      }
+
+      if (readCompactSize(data) != inputCounts[tx])
+        throw new IOException("Undo data of block " + block.getHashAsString() + " in '" + undoFile.file + "' does not match the inputs of transaction " + tx);
+
+      for (int k = 0; k < inputCounts[tx]; k++, input++) {
+        final long code = readVarInt(data);
+        if (code >> 1 > 0)
+          // DUMMY VERSION, ALWAYS 0
+          readVarInt(data);
+
+        values[input] = decompressAmount(readVarInt(data));
+        addressKeys[input] = readCompressedScript(data);
+      }
+    }
+
+    block.setSpentOutputs(values, addressKeys);
+
+    synchronized (this) {
+      ++resolvedBlocks;
+    }
+    return true;
+  }
+
+  public synchronized long getResolvedBlocks() {
+    return resolvedBlocks;
+  }
+
+  public synchronized long getMissingBlocks() {
+    return missingBlocks;
+  }
+
+  public synchronized String getStats() {
+    return String.format("%,d blocks resolved, %,d without undo data, %d files mapped", resolvedBlocks, missingBlocks, openFiles.size());
+  }
+
+  @Override
+  public synchronized void close() {
+    openFiles.clear();
+  }
+
+  private synchronized UndoFile getFile(final File file, final boolean reload) throws IOException {
+    UndoFile undoFile = reload ? null : openFiles.get(file);
+    if (undoFile == null) {
+      if (!file.exists())
+        return null;
+
+      undoFile = new UndoFile(file);
+      openFiles.put(file, undoFile);
+      if (openFiles.size() > maxOpenFiles)
+        openFiles.remove(openFiles.keySet().iterator().next());
+    }
+    return undoFile;
+  }
+
+  /**
+   * Returns the number of inputs of every transaction of the block.
+   */
+  private static int[] getInputCounts(final BitcoinBlock block) {
+    if (block.getView() != null) {
+      final BlockView view = block.getView();
+      final TransactionView tx = new TransactionView();
+      final int[] counts = new int[view.getTransactionCount()];
+      for (int i = 0; i < counts.length; i++)
+        counts[i] = view.getTransaction(i, tx).getInputCount();
+      return counts;
+    }
+
+    final List<Transaction> transactions = block.getOriginBlock().getTransactions();
+    final int[] counts = new int[transactions != null ? transactions.size() : 0];
+    for (int i = 0; i < counts.length; i++)
+      counts[i] = transactions.get(i).getInputs().size();
+    return counts;
+  }
+
+  /**
+   * Reads a compressed script, returning its address key: the standard P2PKH and P2SH scripts are stored as their hash, the P2PK
+   * scripts as their public key (without address) and the other scripts in full, with their length + 6.
+   */
+  static byte[] readCompressedScript(final ByteBuffer data) {
+    final long type = readVarInt(data);
+    if (type == 0 || type == 1) {
+      final byte[] hash = new byte[20];
+      data.get(hash);
+      return AddressKey.create(type == 0 ? AddressKey.TYPE_P2PKH : AddressKey.TYPE_P2SH, hash);
+    } else if (type < 6) {
+      data.position(data.position() + 32);
+      return null;
+    }
+
+    final int length = (int) (type - 6);
+    final int offset = data.position();
+    data.position(offset + length);
+
+    if (data.hasArray())
+      return AddressKey.fromScript(data.array(), data.arrayOffset() + offset, length);
+
+    final byte[] script = new byte[length];
+    data.duplicate().position(offset).get(script);
+    return AddressKey.fromScript(script, 0, length);
+  }
+
+  /**
+   * Decodes an amount compressed by Bitcoin Core, where the trailing zeros are removed and the last digit before them is stored apart.
+   */
+  static long decompressAmount(long x) {
+    if (x == 0)
+      return 0;
+    x--;
+    int e = (int) (x % 10);
+    x /= 10;
+    long n;
+    if (e < 9) {
+      final long d = (x % 9) + 1;
+      x /= 9;
+      n = x * 10 + d;
+    } else
+      n = x + 1;
+    while (e-- > 0)
+      n *= 10;
+    return n;
+  }
+
+  /**
+   * Reads a VARINT of Bitcoin Core (serialize.h): 7 bits per byte, most significant first, with the high bit set on all the bytes but
+   * the last one and 1 subtracted from every byte but the last one so every number has a single encoding.
+   */
+  static long readVarInt(final ByteBuffer data) {
+    long n = 0;
+    while (true) {
+      final int b = data.get() & 0xFF;
+      n = (n << 7) | (b & 0x7F);
+      if ((b & 0x80) == 0)
+        return n;
+      n++;
+    }
+  }
+
+  private static long readCompactSize(final ByteBuffer data) {
+    final int first = data.get() & 0xFF;
+    if (first < 0xFD)
+      return first;
+    else if (first == 0xFD)
+      return data.getShort() & 0xFFFF;
+    else if (first == 0xFE)
+      return data.getInt() & 0xFFFFFFFFL;
+    return data.getLong();
+  }
+}
@@ -0,0 +1,168 @@
+package com.plutohub.server;
+
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * View of a raw block that reads the header fields directly from its bytes and knows where every transaction starts, without building
+ * any bitcoinj object. The transactions are read through a {@link TransactionView}, that can be reused across transactions and blocks.
+ * The bytes must not be modified while the view is used.
+ */
+public class BlockView {
+  private final byte[]     bytes;
+  private final int        offset;
+  private final int        limit;
+  private       int[]      txOffsets;
+  private       int        txCount;
+  private       Sha256Hash hash;
+
+  public BlockView(final byte[] bytes) throws ProtocolException {
+    this(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Walks all the transactions of the block once to find their boundaries.
+   *
+   * @throws ProtocolException if the block is truncated
+   */
+  public BlockView(final byte[] bytes, final int offset, final int length) throws ProtocolException {
+    if (length < BlockFileReader.HEADER_SIZE)
+      throw new ProtocolException("Block of " + length + " bytes is too short");
+
+    this.bytes = bytes;
+    this.offset = offset;
+    this.limit = offset + length;
+
+    final TransactionView tx = new TransactionView();
+
+    int cursor = offset + BlockFileReader.HEADER_SIZE;
+    if (cursor == limit) {
+      // HEADER ONLY
+      txOffsets = new int[0];
+      return;
+    }
+
+    final int first = bytes[cursor] & 0xFF;
+    final long count;
+    if (first < 0xfd) {
+      count = first;
+      cursor += 1;
+    } else if (first == 0xfd && cursor + 3 <= limit) {
+      count = readUint16(cursor + 1);
+      cursor += 3;
+    } else if (first == 0xfe && cursor + 5 <= limit) {
+      count = readUint32(cursor + 1);
+      cursor += 5;
+    } else
+      throw new ProtocolException("Invalid transaction count in block");
+
+    if (count > limit - cursor)
+      throw new ProtocolException("Invalid transaction count " + count + " in block");
+
+    txOffsets = new int[(int) count];
+    for (txCount = 0; txCount < count; txCount++) {
+      txOffsets[txCount] = cursor;
+      cursor += tx.wrap(bytes, cursor, offset, limit).getLength();
+    }
+  }
+
+  public Sha256Hash getHash() {
+    if (hash == null)
+      hash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bytes, offset, BlockFileReader.HEADER_SIZE));
+    return hash;
+  }
+
+  public String getHashAsString() {
+    return getHash().toString();
+  }
+
+  public long getVersion() {
+    return readUint32(offset);
+  }
+
+  public Sha256Hash getPrevBlockHash() {
+    return readHash(offset + 4);
+  }
+
+  public Sha256Hash getMerkleRoot() {
+    return readHash(offset + 36);
+  }
+
+  public long getTimeSeconds() {
+    return readUint32(offset + 68);
+  }
+
+  public long getDifficultyTarget() {
+    return readUint32(offset + 72);
+  }
+
+  public long getNonce() {
+    return readUint32(offset + 76);
+  }
+
+  public int getTransactionCount() {
+    return txCount;
+  }
+
+  /**
+   * Positions the passed view on a transaction of the block.
+   */
+  public TransactionView getTransaction(final int index, final TransactionView view) {
+    return view.wrap(bytes, txOffsets[index], offset, limit);
+  }
+
+  /**
+   * Computes the merkle root of the witness ids, where the coinbase counts as zero, like bitcoinj's Block.getWitnessRoot() does.
+   */
+  public Sha256Hash getWitnessRoot() {
+    final TransactionView tx = new TransactionView();
+
+    List<byte[]> level = new ArrayList<>(txCount);
+    for (int i = 0; i < txCount; i++)
+      level.add(i == 0 ? new byte[Sha256Hash.LENGTH] : getTransaction(i, tx).getWTxId().getReversedBytes());
+
+    if (level.isEmpty())
+      return Sha256Hash.ZERO_HASH;
+
+    while (level.size() > 1) {
+      final List<byte[]> next = new ArrayList<>((level.size() + 1) / 2);
+      for (int i = 0; i < level.size(); i += 2) {
+        final byte[] left = level.get(i);
+        // AN ODD NODE IS PAIRED WITH ITSELF
+        final byte[] right = i + 1 < level.size() ? level.get(i + 1) : left;
+        next.add(Sha256Hash.hashTwice(left, 0, Sha256Hash.LENGTH, right, 0, Sha256Hash.LENGTH));
+      }
+      level = next;
+    }
+    return Sha256Hash.wrapReversed(level.get(0));
+  }
+
+  public byte[] getBytes() {
+    return bytes;
+  }
+
+  public int getOffset() {
+    return offset;
+  }
+
+  public int getLength() {
+    return limit - offset;
+  }
+
+  private Sha256Hash readHash(final int position) {
+    final byte[] hash = new byte[Sha256Hash.LENGTH];
+    System.arraycopy(bytes, position, hash, 0, Sha256Hash.LENGTH);
+    return Sha256Hash.wrapReversed(hash);
+  }
+
+  private int readUint16(final int position) {
+    return (bytes[position] & 0xFF) | (bytes[position + 1] & 0xFF) << 8;
+  }
+
+  private long readUint32(final int position) {
+    return (bytes[position] & 0xFFL) | (bytes[position + 1] & 0xFFL) << 8 | (bytes[position + 2] & 0xFFL) << 16 | (bytes[position + 3] & 0xFFL) << 24;
+  }
+}
@@ -2,50 +2,69 @@ package com.plutohub.server;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
 
+/**
+ * Compresses and decompresses with the deflate algorithm. Every thread uses its own compressor, decompressor and buffer, reset after
+ * every call, so concurrent callers do not wait for each other and nothing is allocated but the result.
+ */
 public class CompressionUtils {
-  public static long count       = 0;
-  public static long totalInput  = 0;
-  public static long totalOutput = 0;
+  public static final AtomicLong count       = new AtomicLong();
+  public static final AtomicLong totalInput  = new AtomicLong();
+  public static final AtomicLong totalOutput = new AtomicLong();
 
-  final static byte[] buffer = new byte[1024 * 10];
+  private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(Deflater::new);
+  private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+  private static final ThreadLocal<byte[]>   buffers   = ThreadLocal.withInitial(() -> new byte[1024 * 10]);
 
-  public static synchronized byte[] compress(final byte[] data) throws IOException {
-    final Deflater deflater = new Deflater();
-    deflater.setInput(data);
+  public static byte[] compress(final byte[] data) throws IOException {
+    final Deflater deflater = deflaters.get();
+    final byte[] buffer = buffers.get();
+    try {
+      deflater.setInput(data);
 
-    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length);
+      final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length);
 
-    deflater.finish();
-    while (!deflater.finished()) {
-      final int count = deflater.deflate(buffer); // returns the generated code... index
-      outputStream.write(buffer, 0, count);
-    }
-    outputStream.close();
-    final byte[] output = outputStream.toByteArray();
+      deflater.finish();
+      while (!deflater.finished()) {
+        final int count = deflater.deflate(buffer); // returns the generated code... index
+        outputStream.write(buffer, 0, count);
+      }
+      outputStream.close();
+      final byte[] output = outputStream.toByteArray();
 
-    ++count;
-    totalInput += data.length;
-    totalOutput += output.length;
+      count.incrementAndGet();
+      totalInput.addAndGet(data.length);
+      totalOutput.addAndGet(output.length);
 
-    return output;
+      return output;
+    } finally {
+      deflater.reset();
+    }
   }
 
-  public static synchronized byte[] decompress(final byte[] data) throws IOException, DataFormatException {
-    Inflater inflater = new Inflater();
-    inflater.setInput(data);
+  public static byte[] decompress(final byte[] data) throws IOException, DataFormatException {
+    final Inflater inflater = inflaters.get();
+    final byte[] buffer = buffers.get();
+    try {
+      inflater.setInput(data);
 
-    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length);
-    while (!inflater.finished()) {
-      final int count = inflater.inflate(buffer);
-      outputStream.write(buffer, 0, count);
-    }
-    outputStream.close();
-    final byte[] output = outputStream.toByteArray();
+      final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length);
+      while (!inflater.finished()) {
+        final int count = inflater.inflate(buffer);
+        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+          throw new DataFormatException("Truncated compressed data");
+        outputStream.write(buffer, 0, count);
+      }
+      outputStream.close();
+      final byte[] output = outputStream.toByteArray();
 
-    return output;
+      return output;
+    } finally {
+      inflater.reset();
+    }
   }
-}
\ No newline at end of file
+}
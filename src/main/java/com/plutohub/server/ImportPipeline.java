@@ -0,0 +1,319 @@
+package com.plutohub.server;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Linear pipeline of stages connected by queues bounded in bytes. Every stage has its own threads, takes the items from its queue and
+ * emits zero or more items, with their weight in bytes, into the queue of the next stage. A stage blocks when the queue of the next
+ * stage is full, so the memory used by the items waiting to be processed never exceeds the sum of the queue sizes. The weight is
+ * declared by who emits the item, so it can be the size of the raw block for all the stages that work on the same block.
+ * <p>
+ * Work done outside the pipeline, like the asynchronous persistence, can be bounded too with {@link #acquireInFlight(long)} and
+ * {@link #releaseInFlight(long)}.
+ */
+public class ImportPipeline {
+  private static final Object END = new Object();
+
+  private final long                       queueBytes;
+  private final List<Stage>                stages   = new ArrayList<>();
+  private final ByteBudget                 inFlight;
+  private final AtomicReference<Throwable> error    = new AtomicReference<>();
+  private volatile boolean                 stopped  = false;
+  private volatile boolean                 draining = false;
+  private       long                       beginTime;
+
+  public interface Emitter<O> {
+    void emit(O item, long bytes) throws InterruptedException;
+  }
+
+  public interface Processor<I, O> {
+    void process(I item, long bytes, Emitter<O> output) throws Exception;
+  }
+
+  public class Stage {
+    private final String                    name;
+    private final int                       threads;
+    private final Processor<Object, Object> processor;
+    private final Runnable                  onThreadStart;
+    private final Runnable                  onThreadEnd;
+    private final ByteBudget                queue;
+    private final Deque<Object[]>           items          = new ArrayDeque<>();
+    private final AtomicInteger             activeThreads  = new AtomicInteger();
+    private final AtomicLong                processedItems = new AtomicLong();
+    private final AtomicLong                processedBytes = new AtomicLong();
+    private       Stage                     next;
+
+    private Stage(final String name, final int threads, final Processor<Object, Object> processor, final Runnable onThreadStart,
+        final Runnable onThreadEnd) {
+      this.name = name;
+      this.threads = Math.max(1, threads);
+      this.processor = processor;
+      this.onThreadStart = onThreadStart;
+      this.onThreadEnd = onThreadEnd;
+      this.queue = new ByteBudget(queueBytes);
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getThreads() {
+      return threads;
+    }
+
+    public long getProcessedItems() {
+      return processedItems.get();
+    }
+
+    public long getProcessedBytes() {
+      return processedBytes.get();
+    }
+
+    public int getQueueItems() {
+      synchronized (items) {
+        return items.size();
+      }
+    }
+
+    public long getQueueBytes() {
+      return queue.getUsed();
+    }
+
+    private void put(final Object item, final long bytes) throws InterruptedException {
+      queue.acquire(bytes);
+      synchronized (items) {
+        items.addLast(new Object[] { item, bytes });
+        items.notifyAll();
+      }
+    }
+
+    private Object[] take() throws InterruptedException {
+      synchronized (items) {
+        while (items.isEmpty()) {
+          if (stopped)
+            return null;
+          items.wait(100);
+        }
+        final Object[] entry = items.removeFirst();
+        queue.release((Long) entry[1]);
+        return entry;
+      }
+    }
+
+    private void run() {
+      try {
+        if (onThreadStart != null)
+          onThreadStart.run();
+
+        final Emitter<Object> output = next != null ? next::put : (item, bytes) -> {
+        };
+
+        while (!stopped) {
+          if (draining && this == stages.get(0))
+            break;
+
+          final Object[] entry = take();
+          if (entry == null || entry[0] == END)
+            break;
+
+          final long bytes = (Long) entry[1];
+          processor.process(entry[0], bytes, output);
+          processedItems.incrementAndGet();
+          processedBytes.addAndGet(bytes);
+        }
+
+        if (onThreadEnd != null)
+          onThreadEnd.run();
+
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        stop();
+      } catch (Throwable t) {
+        error.compareAndSet(null, t);
+        stop();
+      } finally {
+        if (activeThreads.decrementAndGet() == 0 && next != null)
+          // LAST THREAD OF THE STAGE: SIGNAL THE END TO ALL THE THREADS OF THE NEXT STAGE
+          try {
+            for (int i = 0; i < next.threads; i++)
+              next.put(END, 0);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+      }
+    }
+  }
+
+  /**
+   * Counts bytes up to a maximum, blocking who wants to acquire more. A single acquisition bigger than the maximum is allowed if
+   * nothing else is acquired, so a huge item never blocks forever.
+   */
+  private class ByteBudget {
+    private final long max;
+    private       long used = 0;
+
+    private ByteBudget(final long max) {
+      this.max = max;
+    }
+
+    private synchronized void acquire(final long bytes) throws InterruptedException {
+      while (used > 0 && used + bytes > max) {
+        if (stopped)
+          throw new InterruptedException("Pipeline stopped");
+        wait(100);
+      }
+      used += bytes;
+    }
+
+    private synchronized void release(final long bytes) {
+      used -= bytes;
+      notifyAll();
+    }
+
+    private synchronized long getUsed() {
+      return used;
+    }
+  }
+
+  /**
+   * @param queueBytes maximum bytes waiting in the queue of each stage and in flight outside the pipeline
+   */
+  public ImportPipeline(final long queueBytes) {
+    this.queueBytes = queueBytes;
+    this.inFlight = new ByteBudget(queueBytes);
+  }
+
+  public <I, O> ImportPipeline addStage(final String name, final int threads, final Processor<I, O> processor) {
+    return addStage(name, threads, processor, null, null);
+  }
+
+  /**
+   * Adds a stage at the end of the pipeline.
+   *
+   * @param onThreadStart optional callback executed by every thread of the stage before processing any item
+   * @param onThreadEnd   optional callback executed by every thread of the stage after the last item, unless an error occurred
+   */
+  public <I, O> ImportPipeline addStage(final String name, final int threads, final Processor<I, O> processor, final Runnable onThreadStart,
+      final Runnable onThreadEnd) {
+    // THE STAGES ARE CHAINED BY THE ORDER THEY ARE ADDED: THE TYPES BETWEEN TWO STAGES ARE NOT CHECKED
+    @SuppressWarnings("unchecked")
+    final Processor<Object, Object> untypedProcessor = (Processor<Object, Object>) processor;
+    final Stage stage = new Stage(name, threads, untypedProcessor, onThreadStart, onThreadEnd);
+    if (!stages.isEmpty())
+      stages.get(stages.size() - 1).next = stage;
+    stages.add(stage);
+    return this;
+  }
+
+  /**
+   * Starts all the stages and feeds the first one with the inputs, with no weight.
+   */
+  public ImportPipeline start(final Collection<?> inputs) {
+    beginTime = System.currentTimeMillis();
+
+    for (Stage stage : stages) {
+      stage.activeThreads.set(stage.threads);
+      for (int i = 0; i < stage.threads; i++) {
+        final Thread thread = new Thread(stage::run, "pluto-pipeline-" + stage.name + "-" + i);
+        thread.setDaemon(true);
+        thread.start();
+      }
+    }
+
+    final Stage first = stages.get(0);
+    try {
+      for (Object input : inputs)
+        first.put(input, 0);
+      for (int i = 0; i < first.threads; i++)
+        first.put(END, 0);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      stop();
+    }
+    return this;
+  }
+
+  /**
+   * Stops all the stages as soon as they finish the current item. Items still in the queues are discarded.
+   */
+  public void stop() {
+    stopped = true;
+  }
+
+  public boolean isStopped() {
+    return stopped;
+  }
+
+  /**
+   * Stops feeding the pipeline: the first stage takes no more inputs, while the next stages complete the items already in their queue.
+   */
+  public void drain() {
+    draining = true;
+  }
+
+  /**
+   * Returns true if the pipeline has been stopped or it is draining, so the processor of the first stage should stop emitting.
+   */
+  public boolean isDraining() {
+    return draining || stopped;
+  }
+
+  /**
+   * Waits until all the stages have terminated.
+   *
+   * @throws RuntimeException if a stage failed
+   */
+  public void waitCompletion() {
+    try {
+      for (Stage stage : stages)
+        while (stage.activeThreads.get() > 0)
+          Thread.sleep(50);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      stop();
+    }
+
+    final Throwable exception = error.get();
+    if (exception != null)
+      throw new RuntimeException("Error in import pipeline", exception);
+  }
+
+  /**
+   * Waits until the specified bytes can be kept in flight outside the pipeline.
+   */
+  public void acquireInFlight(final long bytes) throws InterruptedException {
+    inFlight.acquire(bytes);
+  }
+
+  public void releaseInFlight(final long bytes) {
+    inFlight.release(bytes);
+  }
+
+  public long getInFlightBytes() {
+    return inFlight.getUsed();
+  }
+
+  public List<Stage> getStages() {
+    return Collections.unmodifiableList(stages);
+  }
+
+  /**
+   * Returns a line with the throughput and the queue depth of every stage.
+   */
+  public String getStatus() {
+    final float elapsedInSec = Math.max(1, System.currentTimeMillis() - beginTime) / 1000F;
+    final StringBuilder buffer = new StringBuilder();
+    for (Stage stage : stages) {
+      if (buffer.length() > 0)
+        buffer.append(" | ");
+      buffer.append(String.format("%s x%d: %,d items (%,.0f/sec %.2f MB/sec) queue %,d items %.2f MB", stage.name, stage.threads, stage.getProcessedItems(),
+          stage.getProcessedItems() / elapsedInSec, stage.getProcessedBytes() / elapsedInSec / 1024F / 1024F, stage.getQueueItems(),
+          stage.getQueueBytes() / 1024F / 1024F));
+    }
+    buffer.append(String.format(" | in flight %.2f MB", getInFlightBytes() / 1024F / 1024F));
+    return buffer.toString();
+  }
+}
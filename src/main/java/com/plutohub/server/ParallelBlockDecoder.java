@@ -0,0 +1,206 @@
+package com.plutohub.server;
+
+import org.bitcoinj.core.NetworkParameters;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Decodes block files in parallel. Every worker takes the next file not yet assigned, reads it with a {@link BlockFileReader} and
+ * pushes the deserialized blocks into a bounded queue, followed by an end of file entry. In ordered mode every file has its own
+ * queue and the consumer drains them in file order, so the blocks are returned in the same order as the sequential reader. In
+ * unordered mode all the workers share one queue and the blocks are returned as soon as they are decoded.
+ * <p>
+ * Since the files are assigned in order, in ordered mode the file the consumer is waiting for is always being decoded by a worker,
+ * while the workers ahead of it block as soon as their queue is full.
+ */
+public class ParallelBlockDecoder implements Closeable {
+  private final NetworkParameters                               params;
+  private final List<File>                                      files;
+  private final int                                             workers;
+  private final boolean                                         ordered;
+  private final int                                             queueSize;
+  private final AtomicInteger                                   nextFileToDecode  = new AtomicInteger();
+  private final AtomicReference<Throwable>                      error             = new AtomicReference<>();
+  private final ConcurrentHashMap<Integer, BlockingQueue<Entry>> fileQueues        = new ConcurrentHashMap<>();
+  private       BlockingQueue<Entry>                            sharedQueue;
+  private       ExecutorService                                 executor;
+  private       int                                             nextFileToDeliver = 0;
+  private       int                                             completedFiles    = 0;
+  private volatile boolean                                      closed            = false;
+  private       boolean                                         useIndex          = false;
+  private       File                                            indexDirectory    = null;
+  private       BlockFileIndex.Filter                           indexFilter       = null;
+  private       boolean                                         raw               = false;
+
+  public static class Entry {
+    public final int          fileIndex;
+    public final File         file;
+    public final BitcoinBlock block;
+    public final BitcoinBlock firstBlock;
+    public final BitcoinBlock lastBlock;
+
+    private Entry(final int fileIndex, final File file, final BitcoinBlock block, final BitcoinBlock firstBlock, final BitcoinBlock lastBlock) {
+      this.fileIndex = fileIndex;
+      this.file = file;
+      this.block = block;
+      this.firstBlock = firstBlock;
+      this.lastBlock = lastBlock;
+    }
+
+    public boolean isEndOfFile() {
+      return block == null;
+    }
+  }
+
+  /**
+   * @param workers   number of threads decoding the files
+   * @param ordered   true to return the blocks in file/offset order, false to return them as soon as they are decoded
+   * @param queueSize maximum number of decoded blocks waiting to be consumed for each worker
+   */
+  public ParallelBlockDecoder(final NetworkParameters params, final List<File> files, final int workers, final boolean ordered, final int queueSize) {
+    this.params = params;
+    this.files = new ArrayList<>(files);
+    this.workers = Math.max(1, Math.min(workers, files.size()));
+    this.ordered = ordered;
+    this.queueSize = Math.max(1, queueSize);
+  }
+
+  /**
+   * Reads the block locations from the sidecar index of each file. See {@link BlockFileReader#useIndex(File, BlockFileIndex.Filter)}.
+   */
+  public ParallelBlockDecoder setIndex(final boolean useIndex, final File indexDirectory, final BlockFileIndex.Filter filter) {
+    this.useIndex = useIndex;
+    this.indexDirectory = indexDirectory;
+    this.indexFilter = filter;
+    return this;
+  }
+
+  /**
+   * Returns the blocks as views over their bytes. See {@link BlockFileReader#setRaw(boolean)}.
+   */
+  public ParallelBlockDecoder setRaw(final boolean raw) {
+    this.raw = raw;
+    return this;
+  }
+
+  public ParallelBlockDecoder start() {
+    if (!ordered)
+      sharedQueue = new ArrayBlockingQueue<>(queueSize * workers);
+
+    final AtomicInteger threadCounter = new AtomicInteger();
+    executor = Executors.newFixedThreadPool(workers, (r) -> {
+      final Thread t = new Thread(r, "pluto-block-decoder-" + threadCounter.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+
+    for (int i = 0; i < workers; i++)
+      executor.execute(this::decodeFiles);
+
+    return this;
+  }
+
+  /**
+   * Returns the next decoded block or the end of a file, waiting for a worker to produce it.
+   *
+   * @return null when all the files have been consumed
+   */
+  public Entry take() {
+    try {
+      if (ordered) {
+        if (nextFileToDeliver >= files.size())
+          return null;
+
+        final Entry entry = poll(getFileQueue(nextFileToDeliver));
+        if (entry.isEndOfFile())
+          fileQueues.remove(nextFileToDeliver++);
+        return entry;
+      }
+
+      if (completedFiles >= files.size())
+        return null;
+
+      final Entry entry = poll(sharedQueue);
+      if (entry.isEndOfFile())
+        ++completedFiles;
+      return entry;
+
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for decoded blocks", e);
+    }
+  }
+
+  public int getWorkers() {
+    return workers;
+  }
+
+  public boolean isOrdered() {
+    return ordered;
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    if (executor != null)
+      executor.shutdownNow();
+  }
+
+  private Entry poll(final BlockingQueue<Entry> queue) throws InterruptedException {
+    while (true) {
+      final Entry entry = queue.poll(100, TimeUnit.MILLISECONDS);
+      if (entry != null)
+        return entry;
+
+      final Throwable exception = error.get();
+      if (exception != null)
+        throw new RuntimeException("Error on decoding block files", exception);
+    }
+  }
+
+  private BlockingQueue<Entry> getFileQueue(final int fileIndex) {
+    return fileQueues.computeIfAbsent(fileIndex, (k) -> new ArrayBlockingQueue<>(queueSize));
+  }
+
+  private void decodeFiles() {
+    byte[] blockBuffer = null;
+    try {
+      int fileIndex;
+      while (!closed && (fileIndex = nextFileToDecode.getAndIncrement()) < files.size()) {
+        final File file = files.get(fileIndex);
+        final BlockingQueue<Entry> queue = ordered ? getFileQueue(fileIndex) : sharedQueue;
+
+        BitcoinBlock firstBlock = null;
+        BitcoinBlock lastBlock = null;
+
+        try (BlockFileReader reader = new BlockFileReader(params, file, 0, blockBuffer).setRaw(raw)) {
+          if (useIndex)
+            reader.useIndex(indexDirectory, indexFilter);
+
+          for (BitcoinBlock block; !closed && (block = reader.next()) != null; ) {
+            if (firstBlock == null)
+              firstBlock = block;
+            lastBlock = block;
+            queue.put(new Entry(fileIndex, file, block, null, null));
+          }
+          blockBuffer = reader.getBlockBuffer();
+        } catch (IOException e) {
+          // SKIP THE FILE, LIKE THE SEQUENTIAL READER DOES
+        }
+
+        queue.put(new Entry(fileIndex, file, null, firstBlock, lastBlock));
+      }
+    } catch (InterruptedException e) {
+      // CLOSED
+    } catch (Throwable t) {
+      error.compareAndSet(null, t);
+    }
+  }
+}
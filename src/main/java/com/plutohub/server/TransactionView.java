@@ -0,0 +1,314 @@
+package com.plutohub.server;
+
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+
+import java.security.MessageDigest;
+
+/**
+ * Flyweight view of a raw transaction inside the bytes of a block. {@link #wrap(byte[], int, int, int)} walks the transaction once and
+ * records the offsets of its parts, then the accessors read the fields directly from the bytes. The same instance can be reused for all
+ * the transactions of all the blocks parsed by a thread, so no object is created per input or output.
+ * <p>
+ * All the offsets returned are relative to the beginning of the block, like the offsets of the bitcoinj messages parsed from the same
+ * block.
+ */
+public class TransactionView {
+  private final MessageDigest digest              = Sha256Hash.newDigest();
+  private       byte[]        bytes;
+  private       int           base;
+  private       int           offset;
+  private       int           length;
+  private       boolean       segwit;
+  private       int           inputsOffset;
+  private       int           outputsEnd;
+  private       int           lockTimeOffset;
+  private       int           inputCount;
+  private       int[]         inputOffsets        = new int[16];
+  private       int[]         inputScriptOffsets  = new int[16];
+  private       int[]         inputScriptLengths  = new int[16];
+  private       int           outputCount;
+  private       int[]         outputOffsets       = new int[16];
+  private       int[]         outputScriptOffsets = new int[16];
+  private       int[]         outputScriptLengths = new int[16];
+  private       int           cursor;
+  private       int           limit;
+
+  /**
+   * Positions the view on the transaction starting at the specified offset.
+   *
+   * @param bytes  bytes of the block
+   * @param offset absolute position of the transaction in the array
+   * @param base   absolute position of the block in the array, used to compute the relative offsets
+   * @param limit  absolute position where the block ends
+   *
+   * @throws ProtocolException if the transaction is truncated
+   */
+  public TransactionView wrap(final byte[] bytes, final int offset, final int base, final int limit) throws ProtocolException {
+    this.bytes = bytes;
+    this.offset = offset;
+    this.base = base;
+    this.limit = limit;
+    this.cursor = offset;
+
+    skip(4); // VERSION
+
+    segwit = cursor + 1 < limit && bytes[cursor] == 0 && bytes[cursor + 1] != 0;
+    if (segwit)
+      skip(2); // MARKER + FLAG
+
+    inputsOffset = cursor;
+
+    inputCount = readCount();
+    ensureInputCapacity(inputCount);
+    for (int i = 0; i < inputCount; i++) {
+      inputOffsets[i] = cursor;
+      skip(36); // OUTPOINT
+      inputScriptLengths[i] = readCount();
+      inputScriptOffsets[i] = cursor;
+      skip(inputScriptLengths[i]);
+      skip(4); // SEQUENCE
+    }
+
+    outputCount = readCount();
+    ensureOutputCapacity(outputCount);
+    for (int i = 0; i < outputCount; i++) {
+      outputOffsets[i] = cursor;
+      skip(8); // VALUE
+      outputScriptLengths[i] = readCount();
+      outputScriptOffsets[i] = cursor;
+      skip(outputScriptLengths[i]);
+    }
+
+    outputsEnd = cursor;
+
+    if (segwit)
+      for (int i = 0; i < inputCount; i++) {
+        final int items = readCount();
+        for (int k = 0; k < items; k++)
+          skip(readCount());
+      }
+
+    lockTimeOffset = cursor;
+    skip(4);
+
+    length = cursor - offset;
+    return this;
+  }
+
+  public Sha256Hash getTxId() {
+    if (!segwit)
+      return getWTxId();
+
+    // THE ID DOES NOT INCLUDE MARKER, FLAG AND WITNESSES
+    digest.reset();
+    digest.update(bytes, offset, 4);
+    digest.update(bytes, inputsOffset, outputsEnd - inputsOffset);
+    digest.update(bytes, lockTimeOffset, 4);
+    return Sha256Hash.wrapReversed(digest.digest(digest.digest()));
+  }
+
+  public Sha256Hash getWTxId() {
+    return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bytes, offset, length));
+  }
+
+  public long getVersion() {
+    return readUint32(offset);
+  }
+
+  public long getLockTime() {
+    return readUint32(lockTimeOffset);
+  }
+
+  public boolean hasWitnesses() {
+    return segwit;
+  }
+
+  public int getOffset() {
+    return offset - base;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  public boolean isCoinBase() {
+    if (inputCount != 1 || readUint32(inputOffsets[0] + 32) != 0xFFFFFFFFL)
+      return false;
+    for (int i = 0; i < 32; i++)
+      if (bytes[inputOffsets[0] + i] != 0)
+        return false;
+    return true;
+  }
+
+  public int getInputCount() {
+    return inputCount;
+  }
+
+  public int getInputOffset(final int input) {
+    return inputOffsets[input] - base;
+  }
+
+  public Sha256Hash getInputOutpointHash(final int input) {
+    final byte[] hash = new byte[32];
+    System.arraycopy(bytes, inputOffsets[input], hash, 0, 32);
+    return Sha256Hash.wrapReversed(hash);
+  }
+
+  public long getInputOutpointIndex(final int input) {
+    return readUint32(inputOffsets[input] + 32);
+  }
+
+  public int getInputScriptOffset(final int input) {
+    return inputScriptOffsets[input] - base;
+  }
+
+  public int getInputScriptLength(final int input) {
+    return inputScriptLengths[input];
+  }
+
+  public long getInputSequence(final int input) {
+    return readUint32(inputScriptOffsets[input] + inputScriptLengths[input]);
+  }
+
+  public int getOutputCount() {
+    return outputCount;
+  }
+
+  public int getOutputOffset(final int output) {
+    return outputOffsets[output] - base;
+  }
+
+  public long getOutputValue(final int output) {
+    return readUint32(outputOffsets[output]) | (readUint32(outputOffsets[output] + 4) << 32);
+  }
+
+  public int getOutputScriptOffset(final int output) {
+    return outputScriptOffsets[output] - base;
+  }
+
+  public int getOutputScriptLength(final int output) {
+    return outputScriptLengths[output];
+  }
+
+  public long getOutputSum() {
+    long sum = 0;
+    for (int i = 0; i < outputCount; i++)
+      sum += getOutputValue(i);
+    return sum;
+  }
+
+  /**
+   * Returns the bytes of the block the view is positioned on. Script offsets must be added to {@link #getBlockOffset()} to read them.
+   */
+  public byte[] getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Returns the absolute position of the block in the array returned by {@link #getBytes()}.
+   */
+  public int getBlockOffset() {
+    return base;
+  }
+
+  /**
+   * Counts the signature operations in the scripts of inputs and outputs, like bitcoinj's Transaction.getSigOpCount() does.
+   */
+  public int getSigOpCount() {
+    int count = 0;
+    for (int i = 0; i < inputCount; i++)
+      count += countSigOps(bytes, inputScriptOffsets[i], inputScriptLengths[i]);
+    for (int i = 0; i < outputCount; i++)
+      count += countSigOps(bytes, outputScriptOffsets[i], outputScriptLengths[i]);
+    return count;
+  }
+
+  /**
+   * Counts the signature operations in a script without parsing it into chunks. Multisig operations count as 20 and the count stops at
+   * the first truncated push, like the not accurate count of bitcoinj.
+   */
+  public static int countSigOps(final byte[] script, final int offset, final int length) {
+    final int end = offset + length;
+    int count = 0;
+    int i = offset;
+    while (i < end) {
+      final int opcode = script[i++] & 0xFF;
+      if (opcode > 0 && opcode < 0x4c)
+        i += opcode;
+      else if (opcode == 0x4c) { // OP_PUSHDATA1
+        if (i + 1 > end)
+          break;
+        i += 1 + (script[i] & 0xFF);
+      } else if (opcode == 0x4d) { // OP_PUSHDATA2
+        if (i + 2 > end)
+          break;
+        i += 2 + ((script[i] & 0xFF) | (script[i + 1] & 0xFF) << 8);
+      } else if (opcode == 0x4e) { // OP_PUSHDATA4
+        if (i + 4 > end)
+          break;
+        i += 4 + (int) ((script[i] & 0xFFL) | (script[i + 1] & 0xFFL) << 8 | (script[i + 2] & 0xFFL) << 16 | (script[i + 3] & 0xFFL) << 24);
+      } else if (opcode == 0xac || opcode == 0xad) // OP_CHECKSIG, OP_CHECKSIGVERIFY
+        count++;
+      else if (opcode == 0xae || opcode == 0xaf) // OP_CHECKMULTISIG, OP_CHECKMULTISIGVERIFY
+        count += 20;
+
+      if (i > end || i < offset)
+        // TRUNCATED PUSH
+        break;
+    }
+    return count;
+  }
+
+  private long readUint32(final int position) {
+    return (bytes[position] & 0xFFL) | (bytes[position + 1] & 0xFFL) << 8 | (bytes[position + 2] & 0xFFL) << 16 | (bytes[position + 3] & 0xFFL) << 24;
+  }
+
+  private void skip(final long count) {
+    if (count < 0 || cursor + count > limit)
+      throw new ProtocolException("Transaction at offset " + (offset - base) + " is truncated");
+    cursor += count;
+  }
+
+  private int readCount() {
+    if (cursor >= limit)
+      throw new ProtocolException("Transaction at offset " + (offset - base) + " is truncated");
+
+    final int first = bytes[cursor] & 0xFF;
+    final long value;
+    if (first < 0xfd) {
+      value = first;
+      cursor += 1;
+    } else if (first == 0xfd) {
+      skip(3);
+      value = (bytes[cursor - 2] & 0xFF) | (bytes[cursor - 1] & 0xFF) << 8;
+    } else if (first == 0xfe) {
+      skip(5);
+      value = readUint32(cursor - 4);
+    } else {
+      skip(9);
+      value = readUint32(cursor - 8) | (readUint32(cursor - 4) << 32);
+    }
+
+    if (value < 0 || value > limit - cursor)
+      // A COUNT CANNOT BE BIGGER THAN THE REMAINING BYTES
+      throw new ProtocolException("Invalid count " + value + " in transaction at offset " + (offset - base));
+    return (int) value;
+  }
+
+  private void ensureInputCapacity(final int count) {
+    if (inputOffsets.length < count) {
+      inputOffsets = new int[count];
+      inputScriptOffsets = new int[count];
+      inputScriptLengths = new int[count];
+    }
+  }
+
+  private void ensureOutputCapacity(final int count) {
+    if (outputOffsets.length < count) {
+      outputOffsets = new int[count];
+      outputScriptOffsets = new int[count];
+      outputScriptLengths = new int[count];
+    }
+  }
+}
@@ -0,0 +1,226 @@
+package com.plutohub.server;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.script.ScriptException;
+import org.bitcoinj.script.ScriptOpCodes;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Resolves the value and the address of every input of the loaded blocks through a {@link UtxoSet}: the outputs of every block are
+ * added to the set and its inputs spend them. The block files are not in chain order, so a block is resolved only after its previous
+ * block, and the blocks arriving before their previous block are parked. To keep the memory bounded, when more than
+ * {@link #setMaxParkedBlocks(int)} blocks are parked the oldest is resolved anyway: its inputs spending outputs not resolved yet remain
+ * unresolved.
+ * <p>
+ * The resolver is thread safe, but it resolves one block at a time.
+ */
+public class UtxoResolver implements Closeable {
+  private static final int RESOLVED_HISTORY = 10_000;
+
+  private final UtxoSet                              utxoSet;
+  private       int                                  maxParkedBlocks = 1024;
+  private final Map<Sha256Hash, List<BitcoinBlock>>  parked          = new HashMap<>();
+  private final LinkedHashMap<BitcoinBlock, Boolean> parkedOrder     = new LinkedHashMap<>();
+  private final Set<Sha256Hash>                      resolved        = Collections.newSetFromMap(new LinkedHashMap<Sha256Hash, Boolean>() {
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<Sha256Hash, Boolean> eldest) {
+      // A BLOCK WHOSE PREVIOUS BLOCK IS SO OLD IS A STALE FORK: IT IS PARKED AND RESOLVED LATER ANYWAY
+      return size() > RESOLVED_HISTORY;
+    }
+  });
+  private final UtxoSet.Output                       spent           = new UtxoSet.Output();
+  private       long                                 resolvedInputs  = 0;
+  private       long                                 forcedBlocks    = 0;
+
+  public UtxoResolver(final UtxoSet utxoSet) {
+    this.utxoSet = utxoSet;
+  }
+
+  /**
+   * Sets the maximum number of blocks waiting for their previous block. During the initial download Bitcoin Core writes the blocks up
+   * to 1024 blocks out of order.
+   */
+  public UtxoResolver setMaxParkedBlocks(final int maxParkedBlocks) {
+    this.maxParkedBlocks = maxParkedBlocks;
+    return this;
+  }
+
+  /**
+   * Offers a loaded block and returns the blocks resolved, in chain order: none if the block has been parked, otherwise the block
+   * itself followed by the parked blocks that were waiting for it.
+   */
+  public synchronized List<BitcoinBlock> offer(final BitcoinBlock block) throws IOException {
+    final Sha256Hash prevHash = block.getPrevBlockHash();
+    if (resolved.isEmpty() || prevHash.equals(Sha256Hash.ZERO_HASH) || resolved.contains(prevHash)) {
+      // THE FIRST BLOCK IS THE GENESIS OR THE BLOCK WHERE AN INCREMENTAL IMPORT RESUMES
+      final List<BitcoinBlock> result = new ArrayList<>();
+      resolveChain(block, result);
+      return result;
+    }
+
+    parked.computeIfAbsent(prevHash, k -> new ArrayList<>(1)).add(block);
+    parkedOrder.put(block, Boolean.TRUE);
+
+    if (parkedOrder.size() <= maxParkedBlocks)
+      return Collections.emptyList();
+
+    return forceOldest();
+  }
+
+  /**
+   * Resolves all the parked blocks. It is called when no more blocks are coming.
+   */
+  public synchronized List<BitcoinBlock> flush() throws IOException {
+    final List<BitcoinBlock> result = new ArrayList<>();
+    while (!parkedOrder.isEmpty())
+      result.addAll(forceOldest());
+    return result;
+  }
+
+  public synchronized int getParkedBlocks() {
+    return parkedOrder.size();
+  }
+
+  public synchronized long getResolvedInputs() {
+    return resolvedInputs;
+  }
+
+  public synchronized long getForcedBlocks() {
+    return forcedBlocks;
+  }
+
+  public synchronized String getStats() {
+    return utxoSet.getStats() + ", " + parkedOrder.size() + " blocks parked, " + forcedBlocks + " resolved out of order";
+  }
+
+  @Override
+  public synchronized void close() {
+    utxoSet.close();
+  }
+
+  private List<BitcoinBlock> forceOldest() throws IOException {
+    final BitcoinBlock oldest = parkedOrder.keySet().iterator().next();
+    final List<BitcoinBlock> siblings = parked.get(oldest.getPrevBlockHash());
+    siblings.remove(oldest);
+    if (siblings.isEmpty())
+      parked.remove(oldest.getPrevBlockHash());
+    parkedOrder.remove(oldest);
+    ++forcedBlocks;
+
+    final List<BitcoinBlock> result = new ArrayList<>();
+    resolveChain(oldest, result);
+    return result;
+  }
+
+  private void resolveChain(final BitcoinBlock first, final List<BitcoinBlock> result) throws IOException {
+    final Deque<BitcoinBlock> ready = new ArrayDeque<>();
+    ready.add(first);
+    while (!ready.isEmpty()) {
+      final BitcoinBlock block = ready.poll();
+      resolve(block);
+      result.add(block);
+
+      final Sha256Hash hash = block.getHash();
+      resolved.add(hash);
+
+      final List<BitcoinBlock> children = parked.remove(hash);
+      if (children != null)
+        for (BitcoinBlock child : children) {
+          parkedOrder.remove(child);
+          ready.add(child);
+        }
+    }
+  }
+
+  private void resolve(final BitcoinBlock block) throws IOException {
+    if (block.getView() != null)
+      resolve(block, block.getView());
+    else
+      resolve(block, block.getOriginBlock());
+  }
+
+  private void resolve(final BitcoinBlock block, final BlockView view) throws IOException {
+    final TransactionView tx = new TransactionView();
+
+    int totalInputs = 0;
+    for (int i = 0; i < view.getTransactionCount(); i++)
+      totalInputs += view.getTransaction(i, tx).getInputCount();
+
+    final long[] values = new long[totalInputs];
+    final byte[][] addressKeys = new byte[totalInputs][];
+
+    int input = 0;
+    for (int i = 0; i < view.getTransactionCount(); i++) {
+      view.getTransaction(i, tx);
+
+      // THE OUTPOINT HASH IS IN THE SAME BYTE ORDER OF THE TXID
+      for (int k = 0; k < tx.getInputCount(); k++, input++)
+        spend(tx.isCoinBase() ? null : tx.getInputOutpointHash(k), tx.getInputOutpointIndex(k), values, addressKeys, input);
+
+      final byte[] txId = tx.getTxId().getBytes();
+      final byte[] bytes = tx.getBytes();
+      for (int k = 0; k < tx.getOutputCount(); k++) {
+        final int scriptOffset = tx.getBlockOffset() + tx.getOutputScriptOffset(k);
+        final int scriptLength = tx.getOutputScriptLength(k);
+        if (scriptLength > 0 && bytes[scriptOffset] == ScriptOpCodes.OP_RETURN)
+          // PROVABLY UNSPENDABLE
+          continue;
+
+        utxoSet.put(txId, k, tx.getOutputValue(k), AddressKey.fromScript(bytes, scriptOffset, scriptLength));
+      }
+    }
+
+    block.setSpentOutputs(values, addressKeys);
+  }
+
+  private void resolve(final BitcoinBlock block, final Block origin) throws IOException {
+    final List<Transaction> transactions = origin.getTransactions() != null ? origin.getTransactions() : Collections.emptyList();
+
+    int totalInputs = 0;
+    for (Transaction tx : transactions)
+      totalInputs += tx.getInputs().size();
+
+    final long[] values = new long[totalInputs];
+    final byte[][] addressKeys = new byte[totalInputs][];
+
+    int input = 0;
+    for (Transaction tx : transactions) {
+      for (TransactionInput txInput : tx.getInputs()) {
+        final TransactionOutPoint outpoint = txInput.getOutpoint();
+        spend(txInput.isCoinBase() ? null : outpoint.getHash(), outpoint.getIndex(), values, addressKeys, input++);
+      }
+
+      final byte[] txId = tx.getTxId().getBytes();
+      for (TransactionOutput txOutput : tx.getOutputs()) {
+        final byte[] script = txOutput.getScriptBytes();
+        if (script.length > 0 && script[0] == ScriptOpCodes.OP_RETURN)
+          // PROVABLY UNSPENDABLE
+          continue;
+
+        byte[] addressKey;
+        try {
+          addressKey = AddressKey.fromScript(txOutput.getScriptPubKey());
+        } catch (ScriptException e) {
+          addressKey = null;
+        }
+        utxoSet.put(txId, txOutput.getIndex(), txOutput.getValue().value, addressKey);
+      }
+    }
+
+    block.setSpentOutputs(values, addressKeys);
+  }
+
+  private void spend(final Sha256Hash outpointHash, final long outpointIndex, final long[] values, final byte[][] addressKeys,
+      final int input) {
+    if (outpointHash != null && utxoSet.spend(outpointHash.getBytes(), outpointIndex, spent)) {
+      values[input] = spent.value;
+      addressKeys[input] = spent.addressKey;
+      ++resolvedInputs;
+    } else
+      // COINBASE OR OUTPUT NOT FOUND
+      values[input] = BitcoinBlock.UNRESOLVED;
+  }
+}
@@ -0,0 +1,269 @@
+package com.plutohub.server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Set of the unspent transaction outputs, keyed by outpoint (txid + output index), with the value and the address key (see
+ * {@link AddressKey}) of every output. Mainnet has tens of millions of unspent outputs, so the set is an open addressing hash table
+ * stored in a temporary memory mapped file: it costs no heap, and the operating system spills to disk the pages not used recently.
+ * The file is split in segments of at most {@link #MAX_SEGMENT_SLOTS} slots, because a single mapping cannot exceed 2GB.
+ * <p>
+ * Only the first {@link #TXID_LENGTH} bytes of the txid are stored: 160 bits, like the hashes of the addresses, are enough to never
+ * confuse two transactions. Spent outputs leave a tombstone that is removed when the table is rehashed. The set is not thread safe.
+ */
+public class UtxoSet implements Closeable {
+  public static final  int   TXID_LENGTH        = 20;
+  public static final  int   MAX_ADDRESS_LENGTH = 33;
+  private static final int   MAX_SEGMENT_SLOTS  = 1 << 24;
+  private static final float LOAD_FACTOR        = 0.75F;
+  private static final byte  FREE               = 0;
+  private static final byte  USED               = 1;
+  private static final byte  DELETED            = 2;
+  private static final int   OFFSET_STATE       = 0;
+  private static final int   OFFSET_ADDRESS_LEN = 1;
+  private static final int   OFFSET_INDEX       = 4;
+  private static final int   OFFSET_VALUE       = 8;
+  private static final int   OFFSET_TXID        = 16;
+  private static final int   OFFSET_ADDRESS     = OFFSET_TXID + TXID_LENGTH;
+  private static final int   SLOT_SIZE          = 72;
+
+  private final File               directory;
+  private       File               file;
+  private       MappedByteBuffer[] segments;
+  private       int                segmentShift;
+  private       long               capacity;
+  private       long               size       = 0;
+  private       long               tombstones = 0;
+  private       long               hits       = 0;
+  private       long               misses     = 0;
+
+  /**
+   * A spent output, reused across calls.
+   */
+  public static class Output {
+    public long   value;
+    public byte[] addressKey;
+  }
+
+  /**
+   * @param directory directory of the temporary file. If null the default temporary directory is used
+   * @param capacity  initial number of outputs, rounded up to a power of 2. The set grows if needed
+   */
+  public UtxoSet(final File directory, final long capacity) throws IOException {
+    this.directory = directory;
+    long c = 1024;
+    while (c * LOAD_FACTOR < capacity)
+      c <<= 1;
+    allocate(c);
+  }
+
+  /**
+   * Adds an unspent output.
+   *
+   * @param addressKey null if the output has no address
+   */
+  public void put(final byte[] txId, final long index, final long value, final byte[] addressKey) throws IOException {
+    if (size + tombstones + 1 > capacity * LOAD_FACTOR)
+      // GROW IF FULL OF LIVE OUTPUTS, OTHERWISE JUST REMOVE THE TOMBSTONES
+      rehash(size + 1 > capacity / 2 ? capacity * 2 : capacity);
+
+    insert(txId, index, value, addressKey);
+  }
+
+  /**
+   * Removes an output from the set, returning its value and address.
+   *
+   * @param result filled with the value and the address of the output
+   *
+   * @return false if the output is not in the set
+   */
+  public boolean spend(final byte[] txId, final long index, final Output result) {
+    for (long slot = firstSlot(txId, index); ; slot = (slot + 1) & (capacity - 1)) {
+      final MappedByteBuffer segment = segment(slot);
+      final int pos = position(slot);
+      final byte state = segment.get(pos + OFFSET_STATE);
+      if (state == FREE) {
+        ++misses;
+        return false;
+      }
+
+      if (state == USED && matches(segment, pos, txId, index)) {
+        result.value = segment.getLong(pos + OFFSET_VALUE);
+        final int addressLength = segment.get(pos + OFFSET_ADDRESS_LEN);
+        if (addressLength > 0) {
+          result.addressKey = new byte[addressLength];
+          for (int i = 0; i < addressLength; i++)
+            result.addressKey[i] = segment.get(pos + OFFSET_ADDRESS + i);
+        } else
+          result.addressKey = null;
+
+        segment.put(pos + OFFSET_STATE, DELETED);
+        --size;
+        ++tombstones;
+        ++hits;
+        return true;
+      }
+    }
+  }
+
+  public long size() {
+    return size;
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+  public long getHits() {
+    return hits;
+  }
+
+  public long getMisses() {
+    return misses;
+  }
+
+  public String getStats() {
+    return String.format("%,d/%,d unspent outputs (%s on disk), %,d spent, %,d not found", size, capacity, file.length() / 1024 / 1024 + "MB",
+        hits, misses);
+  }
+
+  /**
+   * Releases the set and deletes its file.
+   */
+  @Override
+  public void close() {
+    segments = null;
+    if (file != null && !file.delete())
+      file.deleteOnExit();
+    file = null;
+  }
+
+  private void insert(final byte[] txId, final long index, final long value, final byte[] addressKey) {
+    long target = -1;
+    for (long slot = firstSlot(txId, index); ; slot = (slot + 1) & (capacity - 1)) {
+      final MappedByteBuffer segment = segment(slot);
+      final int pos = position(slot);
+      final byte state = segment.get(pos + OFFSET_STATE);
+      if (state == FREE) {
+        if (target < 0)
+          target = slot;
+        break;
+      }
+
+      if (state == DELETED) {
+        if (target < 0)
+          target = slot;
+      } else if (matches(segment, pos, txId, index)) {
+        // DUPLICATED TRANSACTION (BIP30): THE NEW OUTPUT REPLACES THE OLD ONE
+        target = slot;
+        --size;
+        break;
+      }
+    }
+
+    final MappedByteBuffer segment = segment(target);
+    final int pos = position(target);
+    if (segment.get(pos + OFFSET_STATE) == DELETED)
+      --tombstones;
+
+    final int addressLength = addressKey != null && addressKey.length <= MAX_ADDRESS_LENGTH ? addressKey.length : 0;
+    segment.put(pos + OFFSET_STATE, USED);
+    segment.put(pos + OFFSET_ADDRESS_LEN, (byte) addressLength);
+    segment.putInt(pos + OFFSET_INDEX, (int) index);
+    segment.putLong(pos + OFFSET_VALUE, value);
+    for (int i = 0; i < TXID_LENGTH; i++)
+      segment.put(pos + OFFSET_TXID + i, txId[i]);
+    for (int i = 0; i < addressLength; i++)
+      segment.put(pos + OFFSET_ADDRESS + i, addressKey[i]);
+    ++size;
+  }
+
+  private boolean matches(final MappedByteBuffer segment, final int pos, final byte[] txId, final long index) {
+    if (segment.getInt(pos + OFFSET_INDEX) != (int) index)
+      return false;
+    for (int i = 0; i < TXID_LENGTH; i++)
+      if (segment.get(pos + OFFSET_TXID + i) != txId[i])
+        return false;
+    return true;
+  }
+
+  private void rehash(final long newCapacity) throws IOException {
+    final File oldFile = file;
+    final MappedByteBuffer[] oldSegments = segments;
+    final long oldCapacity = capacity;
+    final int oldSegmentShift = segmentShift;
+
+    allocate(newCapacity);
+    size = 0;
+    tombstones = 0;
+
+    final byte[] txId = new byte[TXID_LENGTH];
+    final byte[] addressKey = new byte[MAX_ADDRESS_LENGTH];
+    for (long slot = 0; slot < oldCapacity; slot++) {
+      final MappedByteBuffer segment = oldSegments[(int) (slot >>> oldSegmentShift)];
+      final int pos = (int) (slot & ((1L << oldSegmentShift) - 1)) * SLOT_SIZE;
+      if (segment.get(pos + OFFSET_STATE) != USED)
+        continue;
+
+      for (int i = 0; i < TXID_LENGTH; i++)
+        txId[i] = segment.get(pos + OFFSET_TXID + i);
+      final int addressLength = segment.get(pos + OFFSET_ADDRESS_LEN);
+      for (int i = 0; i < addressLength; i++)
+        addressKey[i] = segment.get(pos + OFFSET_ADDRESS + i);
+
+      insert(txId, segment.getInt(pos + OFFSET_INDEX) & 0xFFFFFFFFL, segment.getLong(pos + OFFSET_VALUE),
+          addressLength > 0 ? Arrays.copyOf(addressKey, addressLength) : null);
+    }
+
+    if (!oldFile.delete())
+      oldFile.deleteOnExit();
+  }
+
+  private void allocate(final long newCapacity) throws IOException {
+    final long segmentSlots = Math.min(newCapacity, MAX_SEGMENT_SLOTS);
+
+    file = File.createTempFile("utxo", ".set", directory);
+    file.deleteOnExit();
+
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      // THE FILE IS SPARSE: THE ZEROS OF THE FREE SLOTS DO NOT TAKE SPACE ON DISK UNTIL WRITTEN
+      raf.setLength(newCapacity * SLOT_SIZE);
+
+      final MappedByteBuffer[] newSegments = new MappedByteBuffer[(int) (newCapacity / segmentSlots)];
+      for (int i = 0; i < newSegments.length; i++) {
+        newSegments[i] = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, i * segmentSlots * SLOT_SIZE, segmentSlots * SLOT_SIZE);
+        newSegments[i].order(ByteOrder.nativeOrder());
+      }
+      // THE MAPPINGS STAY VALID AFTER THE CHANNEL IS CLOSED
+      segments = newSegments;
+    }
+
+    capacity = newCapacity;
+    segmentShift = Long.numberOfTrailingZeros(segmentSlots);
+  }
+
+  private MappedByteBuffer segment(final long slot) {
+    return segments[(int) (slot >>> segmentShift)];
+  }
+
+  private int position(final long slot) {
+    return (int) (slot & ((1L << segmentShift) - 1)) * SLOT_SIZE;
+  }
+
+  private long firstSlot(final byte[] txId, final long index) {
+    // THE TXID IS ALREADY A HASH: MIX ITS FIRST 8 BYTES WITH THE INDEX
+    long h = 0;
+    for (int i = 0; i < 8; i++)
+      h = (h << 8) | (txId[i] & 0xFF);
+    h ^= index * 0x9E3779B97F4A7C15L;
+    h ^= h >>> 29;
+    return h & (capacity - 1);
+  }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2021 Arcade Data Ltd
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.plutohub.server.plugin;
+
+import com.arcadedb.database.Database;
+import com.arcadedb.database.DatabaseInternal;
+import com.arcadedb.database.RID;
+import com.arcadedb.graph.EdgeLinkedList;
+import com.arcadedb.graph.Vertex;
+import com.arcadedb.graph.VertexInternal;
+import com.arcadedb.utility.Pair;
+import com.plutohub.server.BitcoinSchema;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ * Walks a page of the inputs and outputs of an address, one entry at a time, so the memory used is bounded by the page and not by the
+ * number of transactions of the address.
+ * <p>
+ * The entries are read from the edge lists of the address in this order: the inputs ({@link BitcoinSchema#EDGE_HAS_IN_ADDRESS}), the
+ * inputs of the databases imported by older versions ({@link BitcoinSchema#EDGE_HAS_ADDRESS} to an {@link BitcoinSchema#VERTEX_INPUT_TX}),
+ * then the same for the outputs. The edge lists are walked by RID, so the skipped entries are never loaded. The continuation cursor is
+ * opaque for the client: it contains the list, the position in the list and the RID of the last entry read. If new entries are added
+ * to the address while paging, the position is recovered from the RID.
+ */
+public class AddressHistory {
+  public static final int DEFAULT_LIMIT = 1_000;
+  public static final int MAX_LIMIT     = 10_000;
+
+  private static final int INPUTS         = 0;
+  private static final int LEGACY_INPUTS  = 1;
+  private static final int OUTPUTS        = 2;
+  private static final int LEGACY_OUTPUTS = 3;
+  private static final int LISTS          = 4;
+
+  private final Database        database;
+  private final Vertex          address;
+  private       boolean         withInputs  = true;
+  private       boolean         withOutputs = true;
+  private       long            fromTime    = Long.MIN_VALUE;
+  private       long            toTime      = Long.MAX_VALUE;
+  private       int             limit       = DEFAULT_LIMIT;
+  private       RequestDeadline deadline    = RequestDeadline.NONE;
+  private       int             list        = INPUTS;
+  private       long            offset      = 0;
+  private       RID             last        = null;
+  private       String          next        = null;
+
+  /**
+   * Receives the entries of the page, in order: first the inputs, then the outputs.
+   */
+  public interface Visitor {
+    void visit(boolean input, Vertex txPart, Vertex transaction) throws Exception;
+  }
+
+  public AddressHistory(final Database database, final Vertex address) {
+    this.database = database;
+    this.address = address;
+  }
+
+  public AddressHistory setSides(final boolean withInputs, final boolean withOutputs) {
+    this.withInputs = withInputs;
+    this.withOutputs = withOutputs;
+    return this;
+  }
+
+  /**
+   * Returns only the entries of the blocks with time (in seconds) in the range, both inclusive. Filtering by time loads the block of
+   * every entry visited.
+   */
+  public AddressHistory setTimeRange(final long fromTime, final long toTime) {
+    this.fromTime = fromTime;
+    this.toTime = toTime;
+    return this;
+  }
+
+  /**
+   * Sets the maximum number of entries of the page. The requests should be limited to {@link #MAX_LIMIT}.
+   */
+  public AddressHistory setLimit(final int limit) {
+    if (limit < 1)
+      throw new IllegalArgumentException("limit must be greater than 0");
+    this.limit = limit;
+    return this;
+  }
+
+  /**
+   * Stops the walk with a {@link com.arcadedb.exception.TimeoutException} when the deadline expires.
+   */
+  public AddressHistory setDeadline(final RequestDeadline deadline) {
+    this.deadline = deadline;
+    return this;
+  }
+
+  /**
+   * Resumes from a cursor returned by {@link #getNext()}.
+   *
+   * @throws IllegalArgumentException if the cursor is not valid
+   */
+  public AddressHistory setCursor(final String cursor) {
+    try {
+      final String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":", 3);
+      list = Integer.parseInt(parts[0]);
+      offset = Long.parseLong(parts[1]);
+      last = parts[2].isEmpty() ? null : new RID(database, parts[2]);
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("cursor is not valid");
+    }
+    if (list < 0 || list >= LISTS || offset < 0 || (offset > 0) != (last != null))
+      throw new IllegalArgumentException("cursor is not valid");
+    return this;
+  }
+
+  /**
+   * Visits the entries of the page.
+   *
+   * @return the number of entries visited
+   */
+  public int walk(final Visitor visitor) throws Exception {
+    int visited = 0;
+    next = null;
+
+    for (; list < LISTS; list++, offset = 0, last = null) {
+      final boolean input = list == INPUTS || list == LEGACY_INPUTS;
+      if (input ? !withInputs : !withOutputs)
+        continue;
+
+      final Iterator<Pair<RID, RID>> entries = resume();
+      while (entries.hasNext()) {
+        final RID rid = entries.next().getSecond();
+        ++offset;
+        deadline.check();
+
+        if (!isOfList(rid)) {
+          last = rid;
+          continue;
+        }
+
+        if (visited == limit) {
+          // MORE ENTRIES: THE NEXT PAGE STARTS AFTER THE LAST ENTRY READ
+          --offset;
+          next = Base64.getUrlEncoder().withoutPadding()
+              .encodeToString((list + ":" + offset + ":" + (last != null ? last.toString() : "")).getBytes(StandardCharsets.UTF_8));
+          return visited;
+        }
+
+        last = rid;
+
+        final Vertex txPart = rid.asVertex();
+        final Iterator<Vertex> transactions = txPart.getVertices(Vertex.DIRECTION.IN).iterator();
+        final Vertex transaction = transactions.hasNext() ? transactions.next() : null;
+
+        if (fromTime != Long.MIN_VALUE || toTime != Long.MAX_VALUE) {
+          final long time = getBlockTime(transaction);
+          if (time < fromTime || time > toTime)
+            continue;
+        }
+
+        visitor.visit(input, txPart, transaction);
+        ++visited;
+      }
+    }
+    return visited;
+  }
+
+  /**
+   * Counts the inputs and outputs of the address up to a maximum, reading only its edge list: the cost of a walk is estimated before
+   * walking.
+   */
+  public long countEntries(final long max) {
+    final EdgeLinkedList edges = ((DatabaseInternal) database).getGraphEngine()
+        .getEdgeHeadChunk((VertexInternal) address, Vertex.DIRECTION.IN);
+    if (edges == null)
+      return 0;
+
+    long count = 0;
+    for (Iterator<Pair<RID, RID>> entries = edges.entryIterator(); count < max && entries.hasNext(); entries.next())
+      ++count;
+    return count;
+  }
+
+  /**
+   * Returns the cursor of the next page, or null if the last page has been walked.
+   */
+  public String getNext() {
+    return next;
+  }
+
+  /**
+   * Returns the entries of the current list, positioned after the last entry read.
+   */
+  private Iterator<Pair<RID, RID>> resume() {
+    if (offset == 0)
+      return entries();
+
+    // FAST PATH: NO ENTRIES ADDED BEFORE THE LAST ONE READ
+    Iterator<Pair<RID, RID>> entries = entries();
+    for (long i = 1; i < offset && entries.hasNext(); i++)
+      entries.next();
+    if (entries.hasNext() && last.equals(entries.next().getSecond()))
+      return entries;
+
+    // LOOK FOR THE LAST ENTRY READ
+    entries = entries();
+    for (long i = 1; entries.hasNext(); i++)
+      if (last.equals(entries.next().getSecond())) {
+        offset = i;
+        return entries;
+      }
+
+    // THE LAST ENTRY HAS BEEN REMOVED: RESUME FROM THE SAME POSITION
+    entries = entries();
+    for (long i = 0; i < offset && entries.hasNext(); i++)
+      entries.next();
+    return entries;
+  }
+
+  private Iterator<Pair<RID, RID>> entries() {
+    final String edgeType = list == INPUTS ?
+        BitcoinSchema.EDGE_HAS_IN_ADDRESS :
+        list == OUTPUTS ? BitcoinSchema.EDGE_HAS_OUT_ADDRESS : BitcoinSchema.EDGE_HAS_ADDRESS;
+    if (!database.getSchema().existsType(edgeType))
+      // DATABASE IMPORTED BY AN OLDER (OR NEWER) VERSION
+      return Collections.emptyIterator();
+
+    final EdgeLinkedList edges = ((DatabaseInternal) database).getGraphEngine()
+        .getEdgeHeadChunk((VertexInternal) address, Vertex.DIRECTION.IN);
+    return edges != null ? edges.entryIterator(edgeType) : Collections.emptyIterator();
+  }
+
+  /**
+   * The legacy edges link both inputs and outputs: they are split by the type of the vertex, known from its RID without loading it.
+   */
+  private boolean isOfList(final RID rid) {
+    if (list == INPUTS || list == OUTPUTS)
+      return true;
+    final String typeName = database.getSchema().getTypeNameByBucketId(rid.getBucketId());
+    return list == LEGACY_INPUTS ? BitcoinSchema.VERTEX_INPUT_TX.equals(typeName) : BitcoinSchema.VERTEX_OUTPUT_TX.equals(typeName);
+  }
+
+  private static long getBlockTime(final Vertex transaction) {
+    if (transaction == null)
+      return Long.MIN_VALUE;
+    final Iterator<Vertex> blocks = transaction.getVertices(Vertex.DIRECTION.IN, BitcoinSchema.EDGE_BLOCK_TX).iterator();
+    return blocks.hasNext() ? blocks.next().getLong("timeSeconds") : Long.MIN_VALUE;
+  }
+}
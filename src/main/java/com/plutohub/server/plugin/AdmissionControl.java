@@ -0,0 +1,219 @@
+/*
+ * Copyright 2021 Arcade Data Ltd
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.plutohub.server.plugin;
+
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Admission control of the requests by cost. Every user has a bucket of tokens refilled at the rate of its budget, and every request
+ * spends the tokens of its cost, estimated before executing it (see {@link PlutoHttpHandler#estimateCost}): a token is about one record
+ * read. A request that costs more than the tokens left is answered with 429 and Retry-After, the seconds until the bucket has enough
+ * tokens, so a client scanning the biggest addresses slows down only itself.
+ * <p>
+ * The buckets hold the tokens of some seconds of budget, so the short bursts are admitted. The cost of a request is capped to the
+ * capacity of the bucket: any valid request is admitted when the bucket is full. The users are identified by name, the anonymous
+ * clients by their address. A bucket full again is the same as a new one: the full buckets are removed when there are too many.
+ */
+public class AdmissionControl {
+  private static final int  MAX_BUCKETS    = 10_000;
+  private static final long CLEANUP_PERIOD = 1_000;
+
+  private final    long                              rate;
+  private final    long                              burstSeconds;
+  private final    Map<String, Long>                 userRates;
+  private final    ConcurrentHashMap<String, Bucket> buckets   = new ConcurrentHashMap<>();
+  private final    AtomicLong                        admitted  = new AtomicLong();
+  private final    AtomicLong                        throttled = new AtomicLong();
+  private final    AtomicLong                        spent     = new AtomicLong();
+  private volatile long                              nextCleanup;
+  private          LongSupplier                      clock     = System::currentTimeMillis;
+
+  private static class Bucket {
+    private final double rate;
+    private final double capacity;
+    private       double tokens;
+    private       long   lastRefill;
+
+    private Bucket(final long rate, final long burstSeconds, final long now) {
+      this.rate = rate / 1_000D;
+      this.capacity = Math.max(1, rate * burstSeconds);
+      this.tokens = capacity;
+      this.lastRefill = now;
+    }
+
+    /**
+     * Spends the tokens of a request.
+     *
+     * @return 0 if the request is admitted, otherwise the milliseconds to wait for the missing tokens
+     */
+    private synchronized long spend(final long cost, final long now) {
+      refill(now);
+      final double toSpend = Math.min(cost, capacity);
+      if (tokens >= toSpend) {
+        tokens -= toSpend;
+        return 0;
+      }
+      return Math.max(1, (long) Math.ceil((toSpend - tokens) / rate));
+    }
+
+    private synchronized double getTokens(final long now) {
+      refill(now);
+      return tokens;
+    }
+
+    private synchronized boolean isFull(final long now) {
+      refill(now);
+      return tokens >= capacity;
+    }
+
+    private void refill(final long now) {
+      if (now > lastRefill) {
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * rate);
+        lastRefill = now;
+      }
+    }
+  }
+
+  /**
+   * @param rate         tokens per second of every user. 0 disables the admission control
+   * @param burstSeconds seconds of budget a bucket can hold
+   * @param userRates    tokens per second of specific users, as "name:rate" separated by commas. A rate of 0 does not limit the user
+   */
+  public AdmissionControl(final long rate, final long burstSeconds, final String userRates) {
+    if (rate < 0 || burstSeconds < 1)
+      throw new IllegalArgumentException("The rate cannot be negative and the burst must be at least 1 second");
+    this.rate = rate;
+    this.burstSeconds = burstSeconds;
+    this.userRates = parseUserRates(userRates);
+  }
+
+  /**
+   * Sets the source of the current time in milliseconds. Used by the tests.
+   */
+  AdmissionControl setClock(final LongSupplier clock) {
+    this.clock = clock;
+    return this;
+  }
+
+  public boolean isEnabled() {
+    return rate > 0 || !userRates.isEmpty();
+  }
+
+  /**
+   * Returns the seconds to wait before the bucket of a user has a token again, or 0 if it is not empty. It is called before dispatching
+   * the request, so the clients over budget do not fill the queues of the executor: the name is not authenticated yet, so the bucket is
+   * not created.
+   */
+  public long getRetryAfter(final String user) {
+    final Bucket bucket = buckets.get(user);
+    if (bucket == null)
+      return 0;
+
+    final double tokens = bucket.getTokens(clock.getAsLong());
+    if (tokens >= 1)
+      return 0;
+    throttled.incrementAndGet();
+    return Math.max(1, (long) Math.ceil((1 - tokens) / bucket.rate / 1_000));
+  }
+
+  /**
+   * Returns the tokens a user can spend now, or {@link Long#MAX_VALUE} if the user is not limited: the estimates of the cost of the
+   * requests can stop counting past them, since the request is rejected anyway.
+   */
+  public long getAvailable(final String user) {
+    final long userRate = userRates.getOrDefault(user, rate);
+    if (userRate == 0)
+      return Long.MAX_VALUE;
+
+    final Bucket bucket = buckets.get(user);
+    return bucket != null ? (long) bucket.getTokens(clock.getAsLong()) : Math.max(1, userRate * burstSeconds);
+  }
+
+  /**
+   * Spends the cost of a request from the bucket of a user.
+   *
+   * @return 0 if the request is admitted, otherwise the seconds to wait before retrying
+   */
+  public long admit(final String user, final long cost) {
+    final long userRate = userRates.getOrDefault(user, rate);
+    if (userRate == 0) {
+      admitted.incrementAndGet();
+      return 0;
+    }
+
+    final long now = clock.getAsLong();
+    cleanup(now);
+
+    final Bucket bucket = buckets.computeIfAbsent(user, k -> new Bucket(userRate, burstSeconds, now));
+    final long wait = bucket.spend(cost, now);
+    if (wait > 0) {
+      throttled.incrementAndGet();
+      return (wait + 999) / 1_000;
+    }
+    admitted.incrementAndGet();
+    spent.addAndGet((long) Math.min(cost, bucket.capacity));
+    return 0;
+  }
+
+  public JSONObject getStats() {
+    final JSONObject stats = new JSONObject();
+    stats.put("enabled", isEnabled());
+    stats.put("rate", rate);
+    stats.put("burstSeconds", burstSeconds);
+    stats.put("users", buckets.size());
+    stats.put("admitted", admitted.get());
+    stats.put("throttled", throttled.get());
+    stats.put("spent", spent.get());
+    return stats;
+  }
+
+  private void cleanup(final long now) {
+    if (buckets.size() <= MAX_BUCKETS || now < nextCleanup)
+      return;
+    nextCleanup = now + CLEANUP_PERIOD;
+    buckets.values().removeIf(bucket -> bucket.isFull(now));
+  }
+
+  private static Map<String, Long> parseUserRates(final String userRates) {
+    final Map<String, Long> rates = new HashMap<>();
+    if (userRates == null || userRates.isBlank())
+      return rates;
+
+    for (String entry : userRates.split(",")) {
+      final int separator = entry.lastIndexOf(':');
+      if (separator < 1)
+        throw new IllegalArgumentException("The rate of a user must be set as 'name:rate', found '" + entry + "'");
+      final long userRate = Long.parseLong(entry.substring(separator + 1).trim());
+      if (userRate < 0)
+        throw new IllegalArgumentException("The rate of the user '" + entry.substring(0, separator).trim() + "' cannot be negative");
+      rates.put(entry.substring(0, separator).trim(), userRate);
+    }
+    return rates;
+  }
+}
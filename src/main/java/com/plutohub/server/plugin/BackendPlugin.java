@@ -11,13 +11,24 @@ import com.arcadedb.server.http.HttpServer;
 import io.undertow.Handlers;
 import io.undertow.server.handlers.PathHandler;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
+import java.util.zip.Deflater;
 
 public class BackendPlugin implements ServerPlugin {
   private ArcadeDBServer       server;
   private ContextConfiguration configuration;
   private Database             database;
   private HttpServer           httpServer;
+  private ResponseCompression  compression;
+  private ResponseCache        responseCache;
+  private int                  batchThreads;
+  private ExecutorService      batchExecutor;
+  private HandlerExecutor      handlerExecutor;
+  private long                 requestTimeout;
+  private AdmissionControl     admissionControl;
 
   @Override
   public void configure(final ArcadeDBServer arcadeDBServer, final ContextConfiguration configuration) {
@@ -32,11 +43,45 @@ public class BackendPlugin implements ServerPlugin {
 
     database = new DatabaseFactory(databasePath).open(PaginatedFile.MODE.READ_ONLY);
 
+    compression = new ResponseCompression(//
+        Boolean.parseBoolean(System.getProperty("pluto.compression", "true")),//
+        Integer.parseInt(System.getProperty("pluto.compressionMinSize", "1024")),//
+        Integer.parseInt(System.getProperty("pluto.compressionLevel", "" + Deflater.DEFAULT_COMPRESSION)));
+
+    responseCache = new ResponseCache(//
+        Long.parseLong(System.getProperty("pluto.cacheSize", "" + 64 * 1024 * 1024)),//
+        Long.parseLong(System.getProperty("pluto.cacheCheckInterval", "10000")),//
+        compression);
+
+    batchThreads = Integer.parseInt(System.getProperty("pluto.batchThreads", "" + Runtime.getRuntime().availableProcessors()));
+    final AtomicInteger batchThreadCount = new AtomicInteger();
+    batchExecutor = Executors.newFixedThreadPool(Math.max(1, batchThreads), task -> {
+      final Thread thread = new Thread(task, "pluto-batch-" + batchThreadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    final int processors = Runtime.getRuntime().availableProcessors();
+    handlerExecutor = new HandlerExecutor(//
+        Integer.parseInt(System.getProperty("pluto.cheapThreads", "" + processors * 4)),//
+        Integer.parseInt(System.getProperty("pluto.expensiveThreads", "" + processors)),//
+        Integer.parseInt(System.getProperty("pluto.queueSize", "1000")),//
+        Boolean.parseBoolean(System.getProperty("pluto.virtualThreads", "false")));
+    requestTimeout = Long.parseLong(System.getProperty("pluto.requestTimeout", "30000"));
+
+    admissionControl = new AdmissionControl(//
+        Long.parseLong(System.getProperty("pluto.userBudget", "20000")),//
+        Long.parseLong(System.getProperty("pluto.userBurst", "5")),//
+        System.getProperty("pluto.userBudgets", ""));
+
     LogManager.instance().log(this, Level.INFO, "Opened database '%s'", null, databasePath);
   }
 
   @Override
   public void stopService() {
+    handlerExecutor.shutdown();
+    batchExecutor.shutdownNow();
+
     LogManager.instance().log(this, Level.INFO, "Closing database '%s'...", null, database.getName());
     database.close();
   }
@@ -47,9 +92,17 @@ public class BackendPlugin implements ServerPlugin {
     routes.addPrefixPath("/pluto",//
         Handlers.routing()//
             .get("/block/{id}", new GetBlockHandler(this))//
+            .get("/block/height/{height}", new GetBlockByHeightHandler(this))//
+            .get("/blocks", new GetBlocksHandler(this))//
             .get("/transaction/{id}", new GetTransactionHandler(this))//
+            .get("/transactions", new GetTransactionsHandler(this))//
             .get("/address/{id}", new GetAddressHandler(this))//
+            .get("/address/{id}/summary", new GetAddressSummaryHandler(this))//
             .get("/addresses", new GetAddressesHandler(this))//
+            .get("/stats", new GetStatsHandler(this))//
+            .post("/blocks", new PostBlocksHandler(this))//
+            .post("/transactions", new PostTransactionsHandler(this))//
+            .post("/addresses/lookup", new PostAddressesLookupHandler(this))//
     );
   }
 
@@ -57,6 +110,40 @@ public class BackendPlugin implements ServerPlugin {
     return database;
   }
 
+  public ResponseCompression getCompression() {
+    return compression;
+  }
+
+  public ResponseCache getResponseCache() {
+    return responseCache;
+  }
+
+  /**
+   * Returns the maximum number of threads used to look up the ids of a batch request (see {@link PostBatchHandler}).
+   */
+  public int getBatchThreads() {
+    return batchThreads;
+  }
+
+  public ExecutorService getBatchExecutor() {
+    return batchExecutor;
+  }
+
+  public HandlerExecutor getHandlerExecutor() {
+    return handlerExecutor;
+  }
+
+  public AdmissionControl getAdmissionControl() {
+    return admissionControl;
+  }
+
+  /**
+   * Returns the deadline of a request received now.
+   */
+  public RequestDeadline newRequestDeadline() {
+    return requestTimeout > 0 ? new RequestDeadline(requestTimeout) : RequestDeadline.NONE;
+  }
+
   public HttpServer getHttpServer() {
     return httpServer;
   }
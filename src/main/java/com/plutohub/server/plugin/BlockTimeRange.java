@@ -0,0 +1,240 @@
+/*
+ * Copyright 2021 Arcade Data Ltd
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.plutohub.server.plugin;
+
+import com.arcadedb.database.Database;
+import com.arcadedb.database.DatabaseInternal;
+import com.arcadedb.database.Document;
+import com.arcadedb.database.Identifiable;
+import com.arcadedb.database.RID;
+import com.arcadedb.graph.EdgeLinkedList;
+import com.arcadedb.graph.Vertex;
+import com.arcadedb.graph.VertexInternal;
+import com.arcadedb.index.IndexCursor;
+import com.arcadedb.index.RangeIndex;
+import com.arcadedb.utility.Pair;
+import com.plutohub.server.BitcoinSchema;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ * Walks a page of the blocks of the main chain, or of their transactions, with time (in seconds) in a range, both inclusive, in time
+ * order. The blocks are read from the index of the times of the {@link BitcoinSchema#DOCUMENT_BLOCK_HEIGHT} documents, so only the
+ * blocks in the range are loaded, and the transactions from the {@link BitcoinSchema#EDGE_BLOCK_TX} edge list of every block, walked by
+ * RID.
+ * <p>
+ * More blocks can have the same time. The continuation cursor is opaque for the client: it contains the time of the next block, the
+ * number of blocks with the same time to skip and, for the transactions, the position in the edge list of the next block.
+ */
+public class BlockTimeRange {
+  public static final int DEFAULT_LIMIT = 1_000;
+  public static final int MAX_LIMIT     = 10_000;
+
+  private final Database        database;
+  private final long            fromTime;
+  private final long            toTime;
+  private       int             limit    = DEFAULT_LIMIT;
+  private       RequestDeadline deadline = RequestDeadline.NONE;
+  private       long            time;
+  private       long            skip     = 0;
+  private       long            txOffset = 0;
+  private       String          next     = null;
+
+  /**
+   * Receives the blocks of the page.
+   */
+  public interface BlockVisitor {
+    void visit(Vertex block) throws Exception;
+  }
+
+  /**
+   * Receives the transactions of the page with their block.
+   */
+  public interface TransactionVisitor {
+    void visit(Vertex block, Vertex transaction) throws Exception;
+  }
+
+  /**
+   * @throws IllegalArgumentException if the range is not valid
+   */
+  public BlockTimeRange(final Database database, final long fromTime, final long toTime) {
+    if (toTime < fromTime)
+      throw new IllegalArgumentException("the range of times is not valid");
+    this.database = database;
+    this.fromTime = fromTime;
+    this.toTime = toTime;
+    this.time = fromTime;
+  }
+
+  /**
+   * Sets the maximum number of blocks or transactions of the page. The requests should be limited to {@link #MAX_LIMIT}.
+   */
+  public BlockTimeRange setLimit(final int limit) {
+    if (limit < 1)
+      throw new IllegalArgumentException("limit must be greater than 0");
+    this.limit = limit;
+    return this;
+  }
+
+  /**
+   * Stops the walk with a {@link com.arcadedb.exception.TimeoutException} when the deadline expires.
+   */
+  public BlockTimeRange setDeadline(final RequestDeadline deadline) {
+    this.deadline = deadline;
+    return this;
+  }
+
+  /**
+   * Resumes from a cursor returned by {@link #getNext()}.
+   *
+   * @throws IllegalArgumentException if the cursor is not valid
+   */
+  public BlockTimeRange setCursor(final String cursor) {
+    try {
+      final String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":", 3);
+      time = Long.parseLong(parts[0]);
+      skip = Long.parseLong(parts[1]);
+      txOffset = Long.parseLong(parts[2]);
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("cursor is not valid");
+    }
+    if (time < fromTime || time > toTime || skip < 0 || txOffset < 0)
+      throw new IllegalArgumentException("cursor is not valid");
+    return this;
+  }
+
+  /**
+   * Visits the blocks of the page.
+   *
+   * @return the number of blocks visited
+   */
+  public int walkBlocks(final BlockVisitor visitor) throws Exception {
+    int visited = 0;
+    next = null;
+
+    final IndexCursor entries = resume();
+    while (entries.hasNext()) {
+      final Document entry = next(entries);
+      if (entry == null)
+        continue;
+      if (visited == limit) {
+        setNext(0);
+        return visited;
+      }
+      visitor.visit(((RID) entry.get("block")).asVertex());
+      ++visited;
+      ++skip;
+    }
+    return visited;
+  }
+
+  /**
+   * Visits the transactions of the page, block by block.
+   *
+   * @return the number of transactions visited
+   */
+  public int walkTransactions(final TransactionVisitor visitor) throws Exception {
+    int visited = 0;
+    next = null;
+
+    final IndexCursor entries = resume();
+    for (long offset = txOffset; entries.hasNext(); offset = 0) {
+      final Document entry = next(entries);
+      if (entry == null)
+        continue;
+      final Vertex block = ((RID) entry.get("block")).asVertex();
+
+      final Iterator<Pair<RID, RID>> transactions = transactions(block);
+      for (long i = 0; i < offset && transactions.hasNext(); i++)
+        transactions.next();
+
+      for (; transactions.hasNext(); offset++) {
+        deadline.check();
+        final RID transaction = transactions.next().getSecond();
+        if (visited == limit) {
+          setNext(offset);
+          return visited;
+        }
+        visitor.visit(block, transaction.asVertex());
+        ++visited;
+      }
+      ++skip;
+    }
+    return visited;
+  }
+
+  /**
+   * Returns the cursor of the next page, or null if the last page has been walked.
+   */
+  public String getNext() {
+    return next;
+  }
+
+  /**
+   * Returns the entries of the index from the time of the cursor, skipping the blocks with the same time already walked.
+   */
+  private IndexCursor resume() {
+    final RangeIndex index = (RangeIndex) database.getSchema().getType(BitcoinSchema.DOCUMENT_BLOCK_HEIGHT)
+        .getPolymorphicIndexByProperties("timeSeconds");
+    final IndexCursor entries = index.range(true, new Object[] { time }, true, new Object[] { toTime }, true);
+
+    // THE INDEX IS SORTED BY TIME: THE ENTRIES TO SKIP ARE THE FIRST ONES
+    for (long i = 0; i < skip && entries.hasNext(); i++)
+      entries.next();
+    return entries;
+  }
+
+  /**
+   * Moves to the next entry of the index, setting the position to its time and the number of entries with the same time before it.
+   * The entries removed are counted like the others, so the cursor skips the same entries when the next page is read.
+   *
+   * @return the entry, or null if it has been removed
+   */
+  private Document next(final IndexCursor entries) {
+    deadline.check();
+    final Identifiable rid = entries.next();
+    final long entryTime = (Long) entries.getKeys()[0];
+    if (entryTime != time) {
+      time = entryTime;
+      skip = 0;
+    }
+
+    final Document entry = IndexEntries.load(entries, rid, "timeSeconds");
+    if (entry == null)
+      ++skip;
+    return entry;
+  }
+
+  private void setNext(final long offset) {
+    next = Base64.getUrlEncoder().withoutPadding().encodeToString((time + ":" + skip + ":" + offset).getBytes(StandardCharsets.UTF_8));
+  }
+
+  private Iterator<Pair<RID, RID>> transactions(final Vertex block) {
+    final EdgeLinkedList edges = ((DatabaseInternal) database).getGraphEngine()
+        .getEdgeHeadChunk((VertexInternal) block, Vertex.DIRECTION.OUT);
+    return edges != null ? edges.entryIterator(BitcoinSchema.EDGE_BLOCK_TX) : Collections.emptyIterator();
+  }
+}
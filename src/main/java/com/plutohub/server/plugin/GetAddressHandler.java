@@ -23,22 +23,52 @@ package com.plutohub.server.plugin;
 
 import com.arcadedb.database.Database;
 import com.arcadedb.graph.Vertex;
-import com.arcadedb.index.IndexCursor;
 import com.arcadedb.server.security.ServerSecurityUser;
-import com.plutohub.server.BitcoinSchema;
 import io.undertow.server.HttpServerExchange;
-import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.util.*;
+import java.util.Deque;
 
+/**
+ * Returns an address with a page of its inputs and outputs. The page is streamed to the client while the edges of the address are
+ * walked (see {@link AddressHistory}), so the memory used by a request is bounded by the page size and not by the number of
+ * transactions of the address. When there are more entries the response contains the "next" cursor to pass to the next request.
+ */
 public class GetAddressHandler extends PlutoHttpHandler {
   public GetAddressHandler(final BackendPlugin backend) {
     super(backend);
   }
 
   @Override
-  protected void execute(final HttpServerExchange exchange, final ServerSecurityUser user) throws Exception {
+  protected HandlerExecutor.Lane getLane() {
+    return HandlerExecutor.Lane.EXPENSIVE;
+  }
+
+  /**
+   * The cost is the number of entries of the page, counted on the edge list of the address. Filtering by time visits all the entries.
+   */
+  @Override
+  protected long estimateCost(final HttpServerExchange exchange, final long maxCost) {
+    final Deque<String> idParam = exchange.getQueryParameters().get("id");
+    if (idParam == null || idParam.isEmpty())
+      return 1;
+
+    final boolean byTime = exchange.getQueryParameters().containsKey("from") || exchange.getQueryParameters().containsKey("to");
+    final long limit = byTime ? maxCost : getEstimatedLimit(exchange, AddressHistory.DEFAULT_LIMIT, AddressHistory.MAX_LIMIT);
+
+    final Database database = backend.getDatabase();
+
+    database.begin();
+    try {
+      final Vertex address = lookupAddress(database, idParam.getFirst());
+      return address != null ? 1 + new AddressHistory(database, address).countEntries(Math.min(limit, maxCost)) : 1;
+    } finally {
+      database.rollbackAllNested();
+    }
+  }
+
+  @Override
+  protected void execute(final HttpServerExchange exchange, final ServerSecurityUser user, final RequestDeadline deadline) throws Exception {
     final Deque<String> idParam = exchange.getQueryParameters().get("id");
     if (idParam == null || idParam.isEmpty()) {
       exchange.setStatusCode(400);
@@ -46,59 +76,45 @@ public class GetAddressHandler extends PlutoHttpHandler {
       return;
     }
 
+    final boolean withInputs = isSideRequested(exchange, "inputs");
+    final boolean withOutputs = isSideRequested(exchange, "outputs");
+    final Deque<String> cursorParam = exchange.getQueryParameters().get("cursor");
+
     final Database database = backend.getDatabase();
 
     database.begin();
     try {
-      final IndexCursor cursor = database.lookupByKey(BitcoinSchema.VERTEX_ADDRESS, "hash", idParam.getFirst());
-      if (cursor.hasNext()) {
-        final Vertex address = cursor.next().asVertex();
-
-        final JSONObject ret = new JSONObject();
-
-        final JSONObject result = httpServer.getJsonSerializer().serializeDocument(address);
-        ret.put("result", result);
-
-        final JSONArray inputs = new JSONArray();
-        result.put("inputs", inputs);
-        final JSONArray outputs = new JSONArray();
-        result.put("outputs", outputs);
-
-        // TODO: USER HASINADDRESS AND HASOUTADDRESS
-        for (Vertex connectedTx : address.getVertices(Vertex.DIRECTION.IN, "HasAddress")) {
-          final JSONObject tx = new JSONObject();
-          tx.put("value", connectedTx.getLong("value"));
-
-          Iterator<Vertex> transaction;
-          switch (connectedTx.getTypeName()) {
-          case "InputTx":
-            inputs.put(tx);
-            break;
-          case "OutputTx":
-            outputs.put(tx);
-            break;
-          }
-
-          transaction = connectedTx.getVertices(Vertex.DIRECTION.IN).iterator();
-          if (transaction.hasNext()) {
-            final Vertex transactionVertex = transaction.next();
-            tx.put("id", transactionVertex.getString("id"));
-            tx.put("purpose", transactionVertex.getString("purpose"));
-            tx.put("confidence", transactionVertex.getString("confidence"));
-            tx.put("inputSum", transactionVertex.getLong("inputSum"));
-            tx.put("outputSum", transactionVertex.getLong("outputSum"));
-            tx.put("coinbase", transactionVertex.getBoolean("coinbase"));
-            tx.put("lockTime", transactionVertex.getLong("lockTime"));
-            tx.put("wtxid", transactionVertex.getString("wtxid"));
-          }
-        }
-
-        exchange.setStatusCode(200);
-        exchange.getResponseSender().send(ret.toString(isCompressOutput(exchange) ? 0 : 2));
-      } else {
+      final Vertex address = lookupAddress(database, idParam.getFirst());
+      if (address == null) {
         exchange.setStatusCode(404);
         exchange.getResponseSender().send("{ \"error\" : \"address not found\"}");
+        return;
       }
+
+      final AddressHistory history = new AddressHistory(database, address);
+      try {
+        final long limit = getLongParameter(exchange, "limit", AddressHistory.DEFAULT_LIMIT);
+        if (limit < 1 || limit > AddressHistory.MAX_LIMIT)
+          throw new IllegalArgumentException("limit must be between 1 and " + AddressHistory.MAX_LIMIT);
+        history.setLimit((int) limit).setDeadline(deadline);
+        history.setTimeRange(getLongParameter(exchange, "from", Long.MIN_VALUE), getLongParameter(exchange, "to", Long.MAX_VALUE));
+        if (cursorParam != null && !cursorParam.isEmpty())
+          history.setCursor(cursorParam.getFirst());
+      } catch (IllegalArgumentException e) {
+        // ALSO NumberFormatException
+        exchange.setStatusCode(400);
+        exchange.getResponseSender().send("{ \"error\" : " + JSONObject.quote("invalid parameter: " + e.getMessage()) + "}");
+        return;
+      }
+
+      try (JsonResponseWriter out = startResponse(exchange, 200)) {
+        out.beginResult();
+        writeAddress(out, address, history, withInputs, withOutputs);
+        if (history.getNext() != null)
+          out.name("next").value(history.getNext());
+        out.endResult();
+      }
+
     } finally {
       database.rollbackAllNested();
     }
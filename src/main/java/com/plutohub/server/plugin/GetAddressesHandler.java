@@ -22,98 +22,248 @@
 package com.plutohub.server.plugin;
 
 import com.arcadedb.database.Database;
+import com.arcadedb.database.Document;
 import com.arcadedb.graph.Vertex;
-import com.arcadedb.query.sql.executor.ResultSet;
+import com.arcadedb.index.IndexCursor;
+import com.arcadedb.index.RangeIndex;
+import com.arcadedb.schema.DocumentType;
 import com.arcadedb.server.security.ServerSecurityUser;
 import com.plutohub.server.BitcoinSchema;
 import io.undertow.server.HttpServerExchange;
-import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
+/**
+ * Returns a page of the addresses, optionally with a label. The labeled addresses are read from the directory of the labels (see
+ * {@link BitcoinSchema#syncAddressLabels(com.arcadedb.database.Database)}), sorted by label in lower case and by address: the label can
+ * match exactly or as prefix ("match=prefix"), also ignoring the case ("ignoreCase=true"). Without label the addresses are read from the
+ * index of the addresses, in address order.
+ * <p>
+ * The pages use keyset pagination: when there are more addresses the response contains "next", the opaque cursor with the key of the
+ * last address returned, to pass as "cursor" with the same parameters. "fields" restricts the properties of the addresses returned:
+ * the inputs and outputs are read only if "inputs" or "outputs" are requested, and if only "hash" and "label" are requested the labeled
+ * addresses are not even loaded. The page is resolved before expanding its addresses.
+ */
 public class GetAddressesHandler extends PlutoHttpHandler {
+  public static final int DEFAULT_LIMIT = 100;
+  public static final int MAX_LIMIT     = 10_000;
+
+  private static final Set<String> LABEL_FIELDS = new HashSet<>(Arrays.asList("hash", "label"));
+
   public GetAddressesHandler(final BackendPlugin backend) {
     super(backend);
   }
 
   @Override
-  protected void execute(final HttpServerExchange exchange, final ServerSecurityUser user) throws Exception {
+  protected HandlerExecutor.Lane getLane() {
+    return HandlerExecutor.Lane.EXPENSIVE;
+  }
+
+  /**
+   * The cost is the number of addresses of the page. The histories are not known before reading the page: every history requested is
+   * estimated as a full page of {@link GetAddressHandler}.
+   */
+  @Override
+  protected long estimateCost(final HttpServerExchange exchange, final long maxCost) {
+    final long limit = getEstimatedLimit(exchange, DEFAULT_LIMIT, MAX_LIMIT);
+
+    final Deque<String> fieldsParam = exchange.getQueryParameters().get("fields");
+    final boolean withHistory;
+    if (fieldsParam == null || fieldsParam.isEmpty())
+      withHistory = isSideRequested(exchange, "inputs") || isSideRequested(exchange, "outputs");
+    else {
+      final Set<String> fields = new HashSet<>(Arrays.asList(fieldsParam.getFirst().split(",")));
+      withHistory = fields.contains("inputs") || fields.contains("outputs");
+    }
+    return withHistory ? limit * (1 + AddressHistory.DEFAULT_LIMIT) : limit;
+  }
+
+  @Override
+  protected void execute(final HttpServerExchange exchange, final ServerSecurityUser user, final RequestDeadline deadline) throws Exception {
     final Deque<String> labelParam = exchange.getQueryParameters().get("label");
     final String label = labelParam == null || labelParam.isEmpty() ? null : labelParam.getFirst();
 
-    final Deque<String> limitParam = exchange.getQueryParameters().get("limit");
-    final int limit = limitParam == null || limitParam.isEmpty() ? 100 : Integer.parseInt(limitParam.getFirst());
+    final Deque<String> matchParam = exchange.getQueryParameters().get("match");
+    final String match = matchParam == null || matchParam.isEmpty() ? "exact" : matchParam.getFirst();
+    final Deque<String> ignoreCaseParam = exchange.getQueryParameters().get("ignoreCase");
+    final boolean ignoreCase = ignoreCaseParam != null && !ignoreCaseParam.isEmpty() && Boolean.parseBoolean(ignoreCaseParam.getFirst());
+    final Deque<String> cursorParam = exchange.getQueryParameters().get("cursor");
+    final Deque<String> fieldsParam = exchange.getQueryParameters().get("fields");
 
-    final int timeout = 10_000;
+    final long limit;
+    final String[] cursor;
+    try {
+      limit = getLongParameter(exchange, "limit", DEFAULT_LIMIT);
+      if (limit < 1 || limit > MAX_LIMIT)
+        throw new IllegalArgumentException("limit must be between 1 and " + MAX_LIMIT);
+      if (!match.equals("exact") && !match.equals("prefix"))
+        throw new IllegalArgumentException("match must be exact or prefix");
+      cursor = cursorParam == null || cursorParam.isEmpty() ? null : decodeCursor(cursorParam.getFirst(), label != null);
+    } catch (IllegalArgumentException e) {
+      // ALSO NumberFormatException
+      exchange.setStatusCode(400);
+      exchange.getResponseSender().send("{ \"error\" : " + JSONObject.quote("invalid parameter: " + e.getMessage()) + "}");
+      return;
+    }
+
+    final Set<String> fields;
+    final boolean withInputs;
+    final boolean withOutputs;
+    if (fieldsParam == null || fieldsParam.isEmpty()) {
+      fields = null;
+      withInputs = isSideRequested(exchange, "inputs");
+      withOutputs = isSideRequested(exchange, "outputs");
+    } else {
+      fields = new HashSet<>(Arrays.asList(fieldsParam.getFirst().split(",")));
+      withInputs = fields.remove("inputs");
+      withOutputs = fields.remove("outputs");
+    }
 
     final Database database = backend.getDatabase();
 
     database.begin();
     try {
-      final ResultSet cursor;
-
-      if (label != null)
-        cursor = database.query("sql", "select from " + BitcoinSchema.VERTEX_ADDRESS + " where label = ? limit " + limit + " timeout " + timeout, label);
-      else
-        cursor = database.query("sql", "select from " + BitcoinSchema.VERTEX_ADDRESS + " limit " + limit + " timeout " + timeout);
-
-      if (cursor.hasNext()) {
-        final JSONObject ret = new JSONObject();
-
-        final JSONArray result = new JSONArray();
-        ret.put("result", result);
-
-        while (cursor.hasNext()) {
-          final Vertex address = cursor.next().getVertex().get();
-
-          final JSONObject addressJson = httpServer.getJsonSerializer().serializeDocument(address);
-          result.put(addressJson);
-
-          final JSONArray inputs = new JSONArray();
-          addressJson.put("inputs", inputs);
-          final JSONArray outputs = new JSONArray();
-          addressJson.put("outputs", outputs);
-
-          // TODO: USER HASINADDRESS AND HASOUTADDRESS
-          for (Vertex connectedTx : address.getVertices(Vertex.DIRECTION.IN, "HasAddress")) {
-            final JSONObject tx = new JSONObject();
-            tx.put("value", connectedTx.getLong("value"));
-
-            Iterator<Vertex> transaction;
-            switch (connectedTx.getTypeName()) {
-            case "InputTx":
-              inputs.put(tx);
-              break;
-            case "OutputTx":
-              outputs.put(tx);
-              break;
-            }
-
-            transaction = connectedTx.getVertices(Vertex.DIRECTION.IN).iterator();
-            if (transaction.hasNext()) {
-              final Vertex transactionVertex = transaction.next();
-              tx.put("id", transactionVertex.getString("id"));
-              tx.put("purpose", transactionVertex.getString("purpose"));
-              tx.put("confidence", transactionVertex.getString("confidence"));
-              tx.put("inputSum", transactionVertex.getLong("inputSum"));
-              tx.put("outputSum", transactionVertex.getLong("outputSum"));
-              tx.put("coinbase", transactionVertex.getBoolean("coinbase"));
-              tx.put("lockTime", transactionVertex.getLong("lockTime"));
-              tx.put("wtxid", transactionVertex.getString("wtxid"));
-            }
-          }
+      final List<Document> page = new ArrayList<>((int) Math.min(limit, 1024));
+      final String next;
+      if (label != null) {
+        if (!database.getSchema().existsType(BitcoinSchema.DOCUMENT_ADDRESS_LABEL)) {
+          exchange.setStatusCode(404);
+          exchange.getResponseSender().send("{ \"error\" : \"the database has no directory of the labels, import the labels again\"}");
+          return;
         }
+        next = readLabels(database, label, match.equals("prefix"), ignoreCase, cursor, limit, page, deadline);
+      } else
+        next = readAddresses(database, cursor, limit, page, deadline);
 
-        exchange.setStatusCode(200);
-        exchange.getResponseSender().send(ret.toString(isCompressOutput(exchange) ? 0 : 2));
-      } else {
+      if (page.isEmpty() && cursor == null) {
         exchange.setStatusCode(404);
         exchange.getResponseSender().send("{ \"error\" : \"addresses not found\"}");
+        return;
+      }
+
+      final boolean onlyLabels = label != null && fields != null && !withInputs && !withOutputs && LABEL_FIELDS.containsAll(fields);
+
+      try (JsonResponseWriter out = startResponse(exchange, 200)) {
+        out.beginResult().beginArray();
+        for (Document record : page) {
+          deadline.check();
+          if (onlyLabels) {
+            out.value(project(record.toJSON(), fields));
+            continue;
+          }
+
+          final Vertex address = label != null ? lookupAddress(database, record.getString("hash")) : record.asVertex();
+          if (address == null)
+            // LABEL OF AN ADDRESS NOT IMPORTED YET
+            continue;
+
+          if (fields == null)
+            // ALL THE INPUTS AND OUTPUTS: THE PAGINATED HISTORY IS AVAILABLE WITH /address/{id}
+            writeAddress(out, address, new AddressHistory(database, address).setLimit(Integer.MAX_VALUE).setDeadline(deadline), withInputs,
+                withOutputs);
+          else if (!withInputs && !withOutputs)
+            out.value(project(serializeAddress(address), fields));
+          else {
+            out.beginObject();
+            out.members(project(serializeAddress(address), fields));
+            writeHistory(out, new AddressHistory(database, address).setLimit(Integer.MAX_VALUE).setDeadline(deadline), withInputs, withOutputs);
+            out.endObject();
+          }
+        }
+        out.endArray();
+        if (next != null)
+          out.name("next").value(next);
+        out.endResult();
       }
     } finally {
       database.rollbackAllNested();
     }
   }
 
+  /**
+   * Reads a page of the directory of the labels. The case-sensitive matches are filtered on the entries matching ignoring the case.
+   *
+   * @return the cursor of the next page, or null if this is the last page
+   */
+  private String readLabels(final Database database, final String label, final boolean prefix, final boolean ignoreCase,
+      final String[] cursor, final long limit, final List<Document> page, final RequestDeadline deadline) {
+    final String key = BitcoinSchema.getLabelKey(label);
+    final RangeIndex index = (RangeIndex) database.getSchema().getType(BitcoinSchema.DOCUMENT_ADDRESS_LABEL)
+        .getPolymorphicIndexByProperties("labelKey", "hash");
+    final IndexCursor entries = cursor != null ?
+        index.range(true, cursor, false, new Object[] { prefix ? key + '\uffff' : key }, true) :
+        index.range(true, new Object[] { key }, true, new Object[] { prefix ? key + '\uffff' : key }, true);
+
+    while (entries.hasNext()) {
+      deadline.check();
+      final Document entry = IndexEntries.load(entries, entries.next(), "labelKey", "hash");
+      if (entry == null)
+        continue;
+      final String entryLabel = entry.getString("label");
+      if (!ignoreCase && !(prefix ? entryLabel.startsWith(label) : entryLabel.equals(label)))
+        continue;
+
+      if (page.size() == limit) {
+        final Document last = page.get(page.size() - 1);
+        return encodeCursor(last.getString("hash") + ":" + last.getString("labelKey"));
+      }
+      page.add(entry);
+    }
+    return null;
+  }
+
+  /**
+   * Reads a page of the addresses from the index of their keys.
+   *
+   * @return the cursor of the next page, or null if this is the last page
+   */
+  private String readAddresses(final Database database, final String[] cursor, final long limit, final List<Document> page,
+      final RequestDeadline deadline) {
+    final DocumentType type = database.getSchema().getType(BitcoinSchema.VERTEX_ADDRESS);
+    final String keyProperty = type.existsProperty("key") ? "key" : "hash";
+    final RangeIndex index = (RangeIndex) type.getPolymorphicIndexByProperties(keyProperty);
+    final IndexCursor entries = cursor != null ? index.iterator(true, cursor, false) : index.iterator(true);
+
+    while (entries.hasNext()) {
+      deadline.check();
+      final Document entry = entries.next().asDocument();
+      if (page.size() == limit)
+        return encodeCursor(page.get(page.size() - 1).getString(keyProperty));
+      page.add(entry);
+    }
+    return null;
+  }
+
+  private static JSONObject project(final JSONObject json, final Set<String> fields) {
+    final JSONObject projection = new JSONObject();
+    for (String field : fields)
+      if (json.has(field))
+        projection.put(field, json.get(field));
+    return projection;
+  }
+
+  private static String encodeCursor(final String value) {
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Returns the keys of the last address of the previous page: the label key and the address for the labels, the address otherwise.
+   */
+  private static String[] decodeCursor(final String cursor, final boolean label) {
+    final String value;
+    try {
+      value = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("cursor is not valid");
+    }
+    if (!label)
+      return new String[] { value };
+
+    final int separator = value.indexOf(':');
+    if (separator < 1)
+      throw new IllegalArgumentException("cursor is not valid");
+    return new String[] { value.substring(separator + 1), value.substring(0, separator) };
+  }
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2021 Arcade Data Ltd
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.plutohub.server.plugin;
+
+import com.arcadedb.database.Database;
+import com.arcadedb.graph.Vertex;
+import com.arcadedb.server.security.ServerSecurityUser;
+import io.undertow.server.HttpServerExchange;
+
+import java.util.Deque;
+
+/**
+ * Returns the block of the main chain at a height, with a single lookup on the index of the heights.
+ */
+public class GetBlockByHeightHandler extends PlutoHttpHandler {
+  public GetBlockByHeightHandler(final BackendPlugin backend) {
+    super(backend);
+  }
+
+  @Override
+  protected void execute(final HttpServerExchange exchange, final ServerSecurityUser user, final RequestDeadline deadline) throws Exception {
+    final Deque<String> heightParam = exchange.getQueryParameters().get("height");
+    final long height;
+    try {
+      height = heightParam == null || heightParam.isEmpty() ? -1 : Long.parseLong(heightParam.getFirst());
+    } catch (NumberFormatException e) {
+      exchange.setStatusCode(400);
+      exchange.getResponseSender().send("{ \"error\" : \"height must be a number\"}");
+      return;
+    }
+    if (height < 0) {
+      exchange.setStatusCode(400);
+      exchange.getResponseSender().send("{ \"error\" : \"height must be 0 or greater\"}");
+      return;
+    }
+
+    final Database database = backend.getDatabase();
+
+    final String cacheKey = getCacheKey(exchange, "block/height", "" + height);
+    if (sendCached(exchange, database, cacheKey))
+      return;
+
+    database.begin();
+    try {
+      final Vertex block = lookupBlockByHeight(database, height);
+      if (block != null) {
+        sendResult(exchange, httpServer.getJsonSerializer().serializeDocument(block), cacheKey, backend.getResponseCache().isImmutable(block));
+      } else {
+        exchange.setStatusCode(404);
+        exchange.getResponseSender().send("{ \"error\" : \"block not found\"}");
+      }
+    } finally {
+      database.rollbackAllNested();
+    }
+  }
+}
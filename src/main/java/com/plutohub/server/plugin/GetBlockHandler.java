@@ -27,7 +27,6 @@ import com.arcadedb.index.IndexCursor;
 import com.arcadedb.server.security.ServerSecurityUser;
 import com.plutohub.server.BitcoinSchema;
 import io.undertow.server.HttpServerExchange;
-import org.json.JSONObject;
 
 import java.util.Deque;
 
@@ -37,7 +36,7 @@ public class GetBlockHandler extends PlutoHttpHandler {
   }
 
   @Override
-  protected void execute(final HttpServerExchange exchange, final ServerSecurityUser user) throws Exception {
+  protected void execute(final HttpServerExchange exchange, final ServerSecurityUser user, final RequestDeadline deadline) throws Exception {
     final Deque<String> idParam = exchange.getQueryParameters().get("id");
     if (idParam == null || idParam.isEmpty()) {
       exchange.setStatusCode(400);
@@ -47,15 +46,17 @@ public class GetBlockHandler extends PlutoHttpHandler {
 
     final Database database = backend.getDatabase();
 
+    final String cacheKey = getCacheKey(exchange, "block", idParam.getFirst());
+    if (sendCached(exchange, database, cacheKey))
+      return;
+
     database.begin();
     try {
       final IndexCursor cursor = database.lookupByKey(BitcoinSchema.VERTEX_BLOCK, "hash", idParam.getFirst());
       if (cursor.hasNext()) {
         final Vertex block = cursor.next().asVertex();
 
-        exchange.setStatusCode(200);
-        final JSONObject response = new JSONObject().put("result", httpServer.getJsonSerializer().serializeDocument(block));
-        exchange.getResponseSender().send(response.toString(isCompressOutput(exchange) ? 0 : 2));
+        sendResult(exchange, httpServer.getJsonSerializer().serializeDocument(block), cacheKey, backend.getResponseCache().isImmutable(block));
 
       } else {
         exchange.setStatusCode(404);
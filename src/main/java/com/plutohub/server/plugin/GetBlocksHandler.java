@@ -0,0 +1,182 @@
+/*
+ * Copyright 2021 Arcade Data Ltd
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.plutohub.server.plugin;
+
+import com.arcadedb.database.Database;
+import com.arcadedb.database.Document;
+import com.arcadedb.database.RID;
+import com.arcadedb.index.IndexCursor;
+import com.arcadedb.index.RangeIndex;
+import com.arcadedb.server.security.ServerSecurityUser;
+import com.plutohub.server.BitcoinSchema;
+import io.undertow.server.HttpServerExchange;
+import org.json.JSONObject;
+
+import java.util.Deque;
+import java.util.Map;
+
+/**
+ * Returns the blocks of the main chain in a range of heights, both inclusive, in height order. The blocks are read from the index of the
+ * heights and streamed to the client. At most "limit" blocks are returned: if the range has more blocks the response contains "next",
+ * the height to pass as "fromHeight" to get the next page.
+ * <p>
+ * With "from" and/or "to" the range is of times (in seconds), both inclusive, and the blocks are in time order (see
+ * {@link BlockTimeRange}): "next" is then the cursor to pass as "cursor" with the same range.
+ */
+public class GetBlocksHandler extends PlutoHttpHandler {
+  public static final int DEFAULT_LIMIT = 1_000;
+  public static final int MAX_LIMIT     = 10_000;
+
+  public GetBlocksHandler(final BackendPlugin backend) {
+    super(backend);
+  }
+
+  @Override
+  protected HandlerExecutor.Lane getLane() {
+    return HandlerExecutor.Lane.EXPENSIVE;
+  }
+
+  /**
+   * The cost is the number of blocks of the page.
+   */
+  @Override
+  protected long estimateCost(final HttpServerExchange exchange, final long maxCost) {
+    final long limit = getEstimatedLimit(exchange, DEFAULT_LIMIT, MAX_LIMIT);
+    try {
+      final long heights = getLongParameter(exchange, "toHeight", Long.MAX_VALUE) - getLongParameter(exchange, "fromHeight", 0);
+      return heights >= 0 && heights < limit ? heights + 1 : limit;
+    } catch (NumberFormatException e) {
+      return limit;
+    }
+  }
+
+  @Override
+  protected void execute(final HttpServerExchange exchange, final ServerSecurityUser user, final RequestDeadline deadline) throws Exception {
+    final Map<String, Deque<String>> parameters = exchange.getQueryParameters();
+    if (parameters.containsKey("from") || parameters.containsKey("to") || parameters.containsKey("cursor")) {
+      if (parameters.containsKey("fromHeight") || parameters.containsKey("toHeight")) {
+        exchange.setStatusCode(400);
+        exchange.getResponseSender().send("{ \"error\" : \"a range of heights and a range of times cannot be combined\"}");
+        return;
+      }
+      executeByTime(exchange, deadline);
+      return;
+    }
+
+    final long fromHeight;
+    final long toHeight;
+    final long limit;
+    try {
+      fromHeight = getLongParameter(exchange, "fromHeight", 0);
+      toHeight = getLongParameter(exchange, "toHeight", Long.MAX_VALUE);
+      limit = getLongParameter(exchange, "limit", DEFAULT_LIMIT);
+    } catch (NumberFormatException e) {
+      exchange.setStatusCode(400);
+      exchange.getResponseSender().send("{ \"error\" : \"fromHeight, toHeight and limit must be numbers\"}");
+      return;
+    }
+    if (fromHeight < 0 || toHeight < fromHeight) {
+      exchange.setStatusCode(400);
+      exchange.getResponseSender().send("{ \"error\" : \"the range of heights is not valid\"}");
+      return;
+    }
+    if (limit < 1 || limit > MAX_LIMIT) {
+      exchange.setStatusCode(400);
+      exchange.getResponseSender().send("{ \"error\" : \"limit must be between 1 and " + MAX_LIMIT + "\"}");
+      return;
+    }
+
+    final Database database = backend.getDatabase();
+
+    database.begin();
+    try {
+      if (!database.getSchema().existsType(BitcoinSchema.DOCUMENT_BLOCK_HEIGHT)) {
+        exchange.setStatusCode(404);
+        exchange.getResponseSender().send("{ \"error\" : \"the database has no block heights, import it again\"}");
+        return;
+      }
+
+      final RangeIndex index = (RangeIndex) database.getSchema().getType(BitcoinSchema.DOCUMENT_BLOCK_HEIGHT)
+          .getPolymorphicIndexByProperties("height");
+      final IndexCursor cursor = index.range(true, new Object[] { fromHeight }, true, new Object[] { toHeight }, true);
+
+      try (JsonResponseWriter out = startResponse(exchange, 200)) {
+        out.beginResult().beginArray();
+
+        long next = -1;
+        for (long count = 0; cursor.hasNext(); ) {
+          deadline.check();
+          final Document entry = IndexEntries.load(cursor, cursor.next(), "height");
+          if (entry == null)
+            continue;
+          if (count == limit) {
+            next = entry.getLong("height");
+            break;
+          }
+          out.value(httpServer.getJsonSerializer().serializeDocument(((RID) entry.get("block")).asVertex()));
+          ++count;
+        }
+
+        out.endArray();
+        if (next > -1)
+          out.name("next").value(next);
+        out.endResult();
+      }
+    } finally {
+      database.rollbackAllNested();
+    }
+  }
+
+  private void executeByTime(final HttpServerExchange exchange, final RequestDeadline deadline) throws Exception {
+    final Database database = backend.getDatabase();
+
+    database.begin();
+    try {
+      if (!database.getSchema().existsType(BitcoinSchema.DOCUMENT_BLOCK_HEIGHT)) {
+        exchange.setStatusCode(404);
+        exchange.getResponseSender().send("{ \"error\" : \"the database has no block heights, import it again\"}");
+        return;
+      }
+
+      final BlockTimeRange range;
+      try {
+        range = createTimeRange(exchange, database, deadline);
+      } catch (IllegalArgumentException e) {
+        // ALSO NumberFormatException
+        exchange.setStatusCode(400);
+        exchange.getResponseSender().send("{ \"error\" : " + JSONObject.quote("invalid parameter: " + e.getMessage()) + "}");
+        return;
+      }
+
+      try (JsonResponseWriter out = startResponse(exchange, 200)) {
+        out.beginResult().beginArray();
+        range.walkBlocks(block -> out.value(httpServer.getJsonSerializer().serializeDocument(block)));
+        out.endArray();
+        if (range.getNext() != null)
+          out.name("next").value(range.getNext());
+        out.endResult();
+      }
+    } finally {
+      database.rollbackAllNested();
+    }
+  }
+}
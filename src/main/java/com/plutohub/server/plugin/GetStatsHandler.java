@@ -0,0 +1,48 @@
+/*
+ * Copyright 2021 Arcade Data Ltd
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.plutohub.server.plugin;
+
+import com.arcadedb.server.security.ServerSecurityUser;
+import io.undertow.server.HttpServerExchange;
+import org.json.JSONObject;
+
+/**
+ * Returns the counters of the plugin.
+ */
+public class GetStatsHandler extends PlutoHttpHandler {
+  public GetStatsHandler(final BackendPlugin backend) {
+    super(backend);
+  }
+
+  @Override
+  protected void execute(final HttpServerExchange exchange, final ServerSecurityUser user, final RequestDeadline deadline) throws Exception {
+    final JSONObject result = new JSONObject();
+    result.put("compression", backend.getCompression().getStats());
+    result.put("cache", backend.getResponseCache().getStats());
+    result.put("executor", backend.getHandlerExecutor().getStats());
+    result.put("admission", backend.getAdmissionControl().getStats());
+
+    try (JsonResponseWriter out = startResponse(exchange, 200)) {
+      out.beginResult().value(result).endResult();
+    }
+  }
+}
@@ -25,19 +25,30 @@ import com.arcadedb.database.Database;
 import com.arcadedb.graph.Vertex;
 import com.arcadedb.index.IndexCursor;
 import com.arcadedb.server.security.ServerSecurityUser;
+import com.plutohub.server.AddressKey;
 import com.plutohub.server.BitcoinSchema;
 import io.undertow.server.HttpServerExchange;
+import org.bitcoinj.params.MainNetParams;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.util.*;
 
+/**
+ * Returns a transaction by id. With "expand=io" the response contains also the "inputs" and the "outputs" of the transaction, ordered by
+ * index and with their address, and with "expand=block" the "block" that contains it: everything is read in the same transaction,
+ * following the edges of the transaction, so one request replaces the requests of every input and output.
+ */
 public class GetTransactionHandler extends PlutoHttpHandler {
+  private static final String[] IN_ADDRESS_EDGES  = { BitcoinSchema.EDGE_HAS_IN_ADDRESS, BitcoinSchema.EDGE_HAS_ADDRESS };
+  private static final String[] OUT_ADDRESS_EDGES = { BitcoinSchema.EDGE_HAS_OUT_ADDRESS, BitcoinSchema.EDGE_HAS_ADDRESS };
+
   public GetTransactionHandler(final BackendPlugin backend) {
     super(backend);
   }
 
   @Override
-  protected void execute(final HttpServerExchange exchange, final ServerSecurityUser user) {
+  protected void execute(final HttpServerExchange exchange, final ServerSecurityUser user, final RequestDeadline deadline) throws Exception {
     final Deque<String> idParam = exchange.getQueryParameters().get("id");
     if (idParam == null || idParam.isEmpty()) {
       exchange.setStatusCode(400);
@@ -45,17 +56,52 @@ public class GetTransactionHandler extends PlutoHttpHandler {
       return;
     }
 
+    boolean expandIO = false;
+    boolean expandBlock = false;
+    final Deque<String> expandParam = exchange.getQueryParameters().get("expand");
+    if (expandParam != null)
+      for (String values : expandParam)
+        for (String value : values.split(","))
+          switch (value.trim()) {
+          case "io":
+            expandIO = true;
+            break;
+          case "block":
+            expandBlock = true;
+            break;
+          case "":
+            break;
+          default:
+            exchange.setStatusCode(400);
+            exchange.getResponseSender().send("{ \"error\" : \"expand must be 'io' and/or 'block'\"}");
+            return;
+          }
+
     final Database database = backend.getDatabase();
 
+    final String cacheKey = getCacheKey(exchange, "transaction", idParam.getFirst() + (expandIO ? "/io" : "") + (expandBlock ? "/block" : ""));
+    if (sendCached(exchange, database, cacheKey))
+      return;
+
     database.begin();
     try {
-      final IndexCursor cursor = database.lookupByKey(BitcoinSchema.VERTEX_TRANSACTION, "hash", idParam.getFirst());
+      final IndexCursor cursor = database.lookupByKey(BitcoinSchema.VERTEX_TRANSACTION, "id", idParam.getFirst());
       if (cursor.hasNext()) {
         final Vertex transaction = cursor.next().asVertex();
 
-        exchange.setStatusCode(200);
-        final JSONObject response = new JSONObject().put("result", httpServer.getJsonSerializer().serializeDocument(transaction));
-        exchange.getResponseSender().send(response.toString(isCompressOutput(exchange) ? 0 : 2));
+        final Iterator<Vertex> blocks = transaction.getVertices(Vertex.DIRECTION.IN, BitcoinSchema.EDGE_BLOCK_TX).iterator();
+        final Vertex block = blocks.hasNext() ? blocks.next() : null;
+        final boolean immutable = block != null && backend.getResponseCache().isImmutable(block);
+
+        final JSONObject result = httpServer.getJsonSerializer().serializeDocument(transaction);
+        if (expandIO) {
+          result.put("inputs", serializeTxParts(database, transaction, BitcoinSchema.EDGE_INPUT, IN_ADDRESS_EDGES));
+          result.put("outputs", serializeTxParts(database, transaction, BitcoinSchema.EDGE_OUTPUT, OUT_ADDRESS_EDGES));
+        }
+        if (expandBlock)
+          result.put("block", block != null ? httpServer.getJsonSerializer().serializeDocument(block) : JSONObject.NULL);
+
+        sendResult(exchange, result, cacheKey, immutable);
       } else {
         exchange.setStatusCode(404);
         exchange.getResponseSender().send("{ \"error\" : \"transaction not found\"}");
@@ -64,4 +110,38 @@ public class GetTransactionHandler extends PlutoHttpHandler {
       database.rollbackAllNested();
     }
   }
+
+  /**
+   * Serializes the inputs or the outputs of a transaction ordered by index, with the Base58/Bech32 form of their address.
+   */
+  private JSONArray serializeTxParts(final Database database, final Vertex transaction, final String edgeType, final String[] addressEdges) {
+    final List<Vertex> txParts = new ArrayList<>();
+    for (Vertex txPart : transaction.getVertices(Vertex.DIRECTION.OUT, edgeType))
+      txParts.add(txPart);
+    txParts.sort(Comparator.comparingInt(txPart -> txPart.getInteger("index")));
+
+    final String[] existingAddressEdges = Arrays.stream(addressEdges).filter(database.getSchema()::existsType).toArray(String[]::new);
+
+    final JSONArray array = new JSONArray();
+    for (Vertex txPart : txParts) {
+      final JSONObject json = httpServer.getJsonSerializer().serializeDocument(txPart);
+
+      final Object addressKey = txPart.get("addressKey");
+      if (addressKey instanceof byte[]) {
+        // BINARY ADDRESS STORED IN THE INPUT/OUTPUT
+        json.remove("addressKey");
+        json.put("address", AddressKey.toString((byte[]) addressKey, MainNetParams.get()));
+      } else if (!txPart.has("address") && existingAddressEdges.length > 0) {
+        // ADDRESS STORED AS VERTEX
+        final Iterator<Vertex> addresses = txPart.getVertices(Vertex.DIRECTION.OUT, existingAddressEdges).iterator();
+        if (addresses.hasNext()) {
+          final Vertex address = addresses.next();
+          final String key = address.getString("key");
+          json.put("address", key != null ? AddressKey.toString(AddressKey.decode(key), MainNetParams.get()) : address.getString("hash"));
+        }
+      }
+      array.put(json);
+    }
+    return array;
+  }
 }
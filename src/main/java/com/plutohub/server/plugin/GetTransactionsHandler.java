@@ -0,0 +1,94 @@
+/*
+ * Copyright 2021 Arcade Data Ltd
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.plutohub.server.plugin;
+
+import com.arcadedb.database.Database;
+import com.arcadedb.server.security.ServerSecurityUser;
+import com.plutohub.server.BitcoinSchema;
+import io.undertow.server.HttpServerExchange;
+import org.json.JSONObject;
+
+/**
+ * Returns the transactions of the blocks of the main chain with time (in seconds) between "from" and "to", both inclusive, block by block
+ * in time order (see {@link BlockTimeRange}). Every transaction has also the hash ("block") and the time ("timeSeconds") of its block. At
+ * most "limit" transactions are returned: if the range has more transactions the response contains "next", the cursor to pass as
+ * "cursor" with the same range.
+ */
+public class GetTransactionsHandler extends PlutoHttpHandler {
+  public GetTransactionsHandler(final BackendPlugin backend) {
+    super(backend);
+  }
+
+  @Override
+  protected HandlerExecutor.Lane getLane() {
+    return HandlerExecutor.Lane.EXPENSIVE;
+  }
+
+  /**
+   * The cost is the number of transactions of the page.
+   */
+  @Override
+  protected long estimateCost(final HttpServerExchange exchange, final long maxCost) {
+    return getEstimatedLimit(exchange, BlockTimeRange.DEFAULT_LIMIT, BlockTimeRange.MAX_LIMIT);
+  }
+
+  @Override
+  protected void execute(final HttpServerExchange exchange, final ServerSecurityUser user, final RequestDeadline deadline) throws Exception {
+    final Database database = backend.getDatabase();
+
+    database.begin();
+    try {
+      if (!database.getSchema().existsType(BitcoinSchema.DOCUMENT_BLOCK_HEIGHT)) {
+        exchange.setStatusCode(404);
+        exchange.getResponseSender().send("{ \"error\" : \"the database has no block heights, import it again\"}");
+        return;
+      }
+
+      final BlockTimeRange range;
+      try {
+        range = createTimeRange(exchange, database, deadline);
+      } catch (IllegalArgumentException e) {
+        // ALSO NumberFormatException
+        exchange.setStatusCode(400);
+        exchange.getResponseSender().send("{ \"error\" : " + JSONObject.quote("invalid parameter: " + e.getMessage()) + "}");
+        return;
+      }
+
+      try (JsonResponseWriter out = startResponse(exchange, 200)) {
+        out.beginResult().beginArray();
+        range.walkTransactions((block, transaction) -> {
+          final JSONObject tx = httpServer.getJsonSerializer().serializeDocument(transaction);
+          tx.put("block", block.getString("hash"));
+          tx.put("timeSeconds", block.getLong("timeSeconds"));
+          out.value(tx);
+        });
+        out.endArray();
+        if (range.getNext() != null)
+          out.name("next").value(range.getNext());
+        out.endResult();
+      }
+    } finally {
+      database.rollbackAllNested();
+    }
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2021 Arcade Data Ltd
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.plutohub.server.plugin;
+
+import com.arcadedb.log.LogManager;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import org.json.JSONObject;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Executes the requests of the Pluto handlers out of the worker threads of the HTTP server, in 2 lanes: the cheap lookups of a single
+ * record and the expensive traversals and scans, so a slow request can only delay the requests of its lane. Every lane runs at most
+ * its number of threads at the same time and queues a limited number of requests: when the queue is full the request is rejected with
+ * 503 and a Retry-After header.
+ * <p>
+ * With virtual threads every request runs in its own virtual thread, with the same limits: the option needs a JDK with virtual
+ * threads (21+), otherwise the platform threads are used.
+ */
+public class HandlerExecutor {
+  private static final String RETRY_AFTER_SECONDS = "1";
+
+  public enum Lane {
+    CHEAP("cheap"), EXPENSIVE("expensive");
+
+    private final String name;
+
+    Lane(final String name) {
+      this.name = name;
+    }
+
+    public String getName() {
+      return name;
+    }
+  }
+
+  private final Pool cheap;
+  private final Pool expensive;
+
+  private static class Pool {
+    private final Lane            lane;
+    private final int             threads;
+    private final int             queueSize;
+    private final ExecutorService executor;
+    private final Semaphore       running;
+    private final AtomicInteger   admitted = new AtomicInteger();
+    private final AtomicLong      executed = new AtomicLong();
+    private final AtomicLong      rejected = new AtomicLong();
+    private final AtomicLong      timeouts = new AtomicLong();
+
+    private Pool(final Lane lane, final int threads, final int queueSize, final ExecutorService virtualExecutor) {
+      this.lane = lane;
+      this.threads = threads;
+      this.queueSize = queueSize;
+      if (virtualExecutor != null) {
+        this.executor = virtualExecutor;
+        this.running = new Semaphore(threads);
+      } else {
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+            task -> {
+              final Thread thread = new Thread(task, "pluto-" + lane.getName() + "-" + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+        this.running = null;
+      }
+    }
+
+    private void execute(final Runnable task) {
+      // THE RUNNING REQUESTS AND THE QUEUED ONES
+      if (admitted.incrementAndGet() > threads + queueSize) {
+        admitted.decrementAndGet();
+        throw new RejectedExecutionException("Too many " + lane.getName() + " requests");
+      }
+
+      try {
+        executor.execute(() -> {
+          try {
+            if (running != null)
+              running.acquireUninterruptibly();
+            try {
+              task.run();
+            } finally {
+              if (running != null)
+                running.release();
+            }
+          } finally {
+            admitted.decrementAndGet();
+            executed.incrementAndGet();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        admitted.decrementAndGet();
+        throw e;
+      }
+    }
+
+    private JSONObject getStats() {
+      final int current = admitted.get();
+      final JSONObject stats = new JSONObject();
+      stats.put("threads", threads);
+      stats.put("queueSize", queueSize);
+      stats.put("running", Math.min(current, threads));
+      stats.put("queued", Math.max(0, current - threads));
+      stats.put("executed", executed.get());
+      stats.put("rejected", rejected.get());
+      stats.put("timeouts", timeouts.get());
+      return stats;
+    }
+  }
+
+  /**
+   * @param cheapThreads     maximum number of cheap requests executed at the same time
+   * @param expensiveThreads maximum number of expensive requests executed at the same time
+   * @param queueSize        maximum number of requests waiting in every lane
+   * @param virtualThreads   true to run every request in a virtual thread, if the JDK supports them
+   */
+  public HandlerExecutor(final int cheapThreads, final int expensiveThreads, final int queueSize, final boolean virtualThreads) {
+    final ExecutorService virtualExecutor = virtualThreads ? newVirtualThreadExecutor() : null;
+    this.cheap = new Pool(Lane.CHEAP, Math.max(1, cheapThreads), Math.max(0, queueSize), virtualExecutor);
+    this.expensive = new Pool(Lane.EXPENSIVE, Math.max(1, expensiveThreads), Math.max(0, queueSize), virtualExecutor);
+  }
+
+  /**
+   * Returns the executor to dispatch a request to. When the lane is full the request is rejected: the HTTP server answers 503.
+   */
+  public Executor getExecutor(final HttpServerExchange exchange, final Lane lane) {
+    final Pool pool = getPool(lane);
+    return task -> {
+      try {
+        pool.execute(task);
+      } catch (RejectedExecutionException e) {
+        pool.rejected.incrementAndGet();
+        exchange.getResponseHeaders().put(Headers.RETRY_AFTER, RETRY_AFTER_SECONDS);
+        throw e;
+      }
+    };
+  }
+
+  public void onTimeout(final Lane lane) {
+    getPool(lane).timeouts.incrementAndGet();
+  }
+
+  public boolean isVirtualThreads() {
+    return cheap.running != null;
+  }
+
+  public void shutdown() {
+    cheap.executor.shutdownNow();
+    expensive.executor.shutdownNow();
+  }
+
+  public JSONObject getStats() {
+    final JSONObject stats = new JSONObject();
+    stats.put("virtualThreads", isVirtualThreads());
+    stats.put(Lane.CHEAP.getName(), cheap.getStats());
+    stats.put(Lane.EXPENSIVE.getName(), expensive.getStats());
+    return stats;
+  }
+
+  private Pool getPool(final Lane lane) {
+    return lane == Lane.CHEAP ? cheap : expensive;
+  }
+
+  /**
+   * The project targets Java 11: the executor of the virtual threads is looked up at runtime.
+   */
+  private ExecutorService newVirtualThreadExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      LogManager.instance().log(this, Level.WARNING, "Virtual threads are not supported by this JDK, using platform threads");
+      return null;
+    }
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2021 Arcade Data Ltd
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.plutohub.server.plugin;
+
+import com.arcadedb.database.Document;
+import com.arcadedb.database.Identifiable;
+import com.arcadedb.exception.RecordNotFoundException;
+import com.arcadedb.index.IndexCursor;
+
+import java.util.Objects;
+
+/**
+ * The range scans of the LSM indexes also return the entries removed by the updates and the deletes of the records, like the heights
+ * removed by a reorganization of the chain or a label changed: the entries are checked against the current records.
+ */
+final class IndexEntries {
+  private IndexEntries() {
+  }
+
+  /**
+   * Returns the record of the current entry of the cursor, or null if the record has been deleted or its indexed properties do not
+   * match the keys of the entry anymore.
+   */
+  static Document load(final IndexCursor cursor, final Identifiable entry, final String... properties) {
+    final Document record;
+    try {
+      record = entry.asDocument(true);
+    } catch (RecordNotFoundException e) {
+      return null;
+    }
+
+    final Object[] keys = cursor.getKeys();
+    for (int i = 0; i < properties.length; i++)
+      if (!Objects.equals(keys[i], record.get(properties[i])))
+        return null;
+    return record;
+  }
+}
@@ -0,0 +1,521 @@
+/*
+ * Copyright 2021 Arcade Data Ltd
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.plutohub.server.plugin;
+
+import com.arcadedb.exception.TimeoutException;
+import io.undertow.connector.PooledByteBuffer;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.xnio.IoUtils;
+import org.xnio.channels.Channels;
+import org.xnio.channels.StreamSinkChannel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a JSON response while it is built, without keeping the whole tree or the whole text in memory. The text is encoded in UTF-8
+ * straight into a buffer of the pool of the connection and written to the response channel every time the buffer is full. The channel
+ * is non-blocking: when the client is slow, the worker thread executing the handler waits for the channel to be writable, no IO thread
+ * is ever blocked. The response is compressed on the fly with the encoding negotiated by {@link ResponseCompression}, unless it is
+ * complete in the first buffer and smaller than the minimum size.
+ * <p>
+ * The layout is the same of {@link JSONObject#toString(int)}: with an indent factor greater than 0 every member of an object and every
+ * element of an array goes on its own line, but when there is only one. The first member or element written as a complete value is kept
+ * until the next one or the end of its container, so the same rule applies. The containers written member by member, like the
+ * transactions of an address, are always written with a member per line.
+ * <p>
+ * The deadline of the request is checked every time a buffer is written. A response closed before its result is ended, because the
+ * handler stopped with a timeout or an error, is aborted: the connection is closed when the response has been started, so the client
+ * does not receive a truncated response as if it was complete, otherwise the text is discarded and the handler can send an error. A
+ * complete response is always sent, even if the deadline expired while it was written.
+ */
+public class JsonResponseWriter implements Closeable {
+  private final Writer          writer;
+  private final int             indentFactor;
+  private final RequestDeadline deadline;
+  private final Deque<Frame>    frames = new ArrayDeque<>();
+  private       boolean         complete;
+
+  private static class Frame {
+    private final boolean object;
+    private final boolean result;
+    private final int     indent;
+    private       int     members;
+    private       String  pendingName;
+    private       Object  pendingValue;
+    private       boolean hasPending;
+    private       String  name;
+
+    private Frame(final boolean object, final boolean result, final int indent) {
+      this.object = object;
+      this.result = result;
+      this.indent = indent;
+    }
+  }
+
+  /**
+   * @param compression settings of the compression of the response, or null to never compress it
+   */
+  public JsonResponseWriter(final HttpServerExchange exchange, final int indentFactor, final ResponseCompression compression) {
+    this(exchange, indentFactor, compression, RequestDeadline.NONE);
+  }
+
+  /**
+   * @param compression settings of the compression of the response, or null to never compress it
+   * @param deadline    deadline of the request
+   */
+  public JsonResponseWriter(final HttpServerExchange exchange, final int indentFactor, final ResponseCompression compression,
+      final RequestDeadline deadline) {
+    this.writer = new ChannelWriter(exchange, compression, deadline);
+    this.indentFactor = indentFactor;
+    this.deadline = deadline;
+  }
+
+  /**
+   * Writes the response to a writer. Used by the tests.
+   */
+  JsonResponseWriter(final Writer writer, final int indentFactor) {
+    this(writer, indentFactor, RequestDeadline.NONE);
+  }
+
+  JsonResponseWriter(final Writer writer, final int indentFactor, final RequestDeadline deadline) {
+    this.writer = writer;
+    this.indentFactor = indentFactor;
+    this.deadline = deadline;
+  }
+
+  /**
+   * Starts the response object <code>{"result": ...}</code>. The result is the value written next.
+   */
+  public JsonResponseWriter beginResult() throws IOException {
+    writer.write("{");
+    writer.write(JSONObject.quote("result"));
+    writer.write(indentFactor > 0 ? ": " : ":");
+    final Frame frame = new Frame(true, true, 0);
+    frame.name = "result";
+    frames.push(frame);
+    return this;
+  }
+
+  public JsonResponseWriter endResult() throws IOException {
+    final Frame frame = frames.pop();
+    if (!frame.result)
+      throw new IllegalStateException("Result not started");
+    if (frame.members > 1)
+      newLine(0);
+    writer.write("}");
+    complete = true;
+    return this;
+  }
+
+  public JsonResponseWriter beginObject() throws IOException {
+    final int indent = beginMember();
+    writer.write("{");
+    frames.push(new Frame(true, false, indent));
+    return this;
+  }
+
+  public JsonResponseWriter endObject() throws IOException {
+    endContainer(true);
+    writer.write("}");
+    return this;
+  }
+
+  public JsonResponseWriter beginArray() throws IOException {
+    final int indent = beginMember();
+    writer.write("[");
+    frames.push(new Frame(false, false, indent));
+    return this;
+  }
+
+  public JsonResponseWriter endArray() throws IOException {
+    endContainer(false);
+    writer.write("]");
+    return this;
+  }
+
+  /**
+   * Sets the name of the next member of the current object.
+   */
+  public JsonResponseWriter name(final String name) {
+    final Frame frame = frames.peek();
+    if (frame == null || !frame.object)
+      throw new IllegalStateException("Not in an object");
+    frame.name = name;
+    return this;
+  }
+
+  /**
+   * Writes a complete value: a string, a number, a boolean, null, a {@link JSONObject} or a {@link JSONArray}.
+   */
+  public JsonResponseWriter value(final Object value) throws IOException {
+    final Frame frame = frames.peek();
+    if (frame == null)
+      throw new IllegalStateException("No container started");
+
+    if (!frame.result && frame.members == 0 && !frame.hasPending) {
+      // KEEP THE FIRST MEMBER UNTIL IT IS KNOWN IF IT IS THE ONLY ONE
+      frame.pendingName = frame.name;
+      frame.pendingValue = value;
+      frame.hasPending = true;
+      frame.name = null;
+      return this;
+    }
+
+    writeValue(value, beginMember());
+    return this;
+  }
+
+  /**
+   * Writes all the members of an object in the current object.
+   */
+  public JsonResponseWriter members(final JSONObject object) throws IOException {
+    for (String key : object.keySet())
+      name(key).value(object.get(key));
+    return this;
+  }
+
+  /**
+   * Flushes the pending text and ends the response if the result has been ended, otherwise aborts it.
+   *
+   * @throws TimeoutException if the response is aborted before being started because the deadline is expired, so the handler answers
+   *                          503 instead of an empty response
+   */
+  @Override
+  public void close() throws IOException {
+    if (complete) {
+      writer.close();
+      return;
+    }
+
+    final boolean started = writer instanceof ChannelWriter && ((ChannelWriter) writer).abort();
+    if (!started)
+      deadline.check();
+  }
+
+  /**
+   * Writes the separator and the name of the next member of the current container, returning the indentation of its value.
+   */
+  private int beginMember() throws IOException {
+    final Frame frame = frames.peek();
+    if (frame == null)
+      return 0;
+
+    if (frame.hasPending) {
+      frame.hasPending = false;
+      final String name = frame.name;
+      frame.name = frame.pendingName;
+      writeValue(frame.pendingValue, beginMember());
+      frame.pendingValue = null;
+      frame.name = name;
+    }
+
+    if (frame.result) {
+      if (frame.members++ == 0)
+        // THE RESULT IS THE ONLY MEMBER: SAME INDENTATION OF THE RESPONSE OBJECT
+        return 0;
+      writer.write(",");
+      newLine(indentFactor);
+    } else {
+      if (frame.members++ > 0)
+        writer.write(",");
+      newLine(frame.indent + indentFactor);
+    }
+
+    if (frame.object) {
+      if (frame.name == null)
+        throw new IllegalStateException("Member without name");
+      writer.write(JSONObject.quote(frame.name));
+      writer.write(indentFactor > 0 ? ": " : ":");
+      frame.name = null;
+    }
+    return frame.result ? indentFactor : frame.indent + indentFactor;
+  }
+
+  private void endContainer(final boolean object) throws IOException {
+    final Frame frame = frames.pop();
+    if (frame.object != object || frame.result)
+      throw new IllegalStateException("Unbalanced " + (object ? "object" : "array"));
+
+    if (frame.hasPending) {
+      // ONLY ONE MEMBER: ON THE SAME LINE
+      if (object) {
+        writer.write(JSONObject.quote(frame.pendingName));
+        writer.write(indentFactor > 0 ? ": " : ":");
+      }
+      writeValue(frame.pendingValue, frame.indent);
+    } else if (frame.members > 0)
+      newLine(frame.indent);
+  }
+
+  private void writeValue(final Object value, final int indent) throws IOException {
+    if (value instanceof JSONObject)
+      ((JSONObject) value).write(writer, indentFactor, indent);
+    else if (value instanceof JSONArray)
+      ((JSONArray) value).write(writer, indentFactor, indent);
+    else
+      writer.write(JSONObject.valueToString(value));
+  }
+
+  private void newLine(final int indent) throws IOException {
+    if (indentFactor == 0)
+      return;
+    writer.write('\n');
+    for (int i = 0; i < indent; i++)
+      writer.write(' ');
+  }
+
+  /**
+   * Encodes the text in UTF-8 into a pooled buffer, writing it to the response channel when full. When the response is compressed the
+   * buffer is compressed into a second pooled buffer, written to the channel when full.
+   */
+  private static class ChannelWriter extends Writer {
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private final HttpServerExchange           exchange;
+    private final ResponseCompression          compression;
+    private final ResponseCompression.Encoding encoding;
+    private final RequestDeadline              deadline;
+    private       StreamSinkChannel            channel;
+    private       PooledByteBuffer             pooled;
+    private       ByteBuffer                   buffer;
+    private       char                         highSurrogate;
+    private       boolean                      started;
+    private       Deflater                     deflater;
+    private       CRC32                        checksum;
+    private       PooledByteBuffer             pooledOutput;
+    private       ByteBuffer                   output;
+    private       long                         inputBytes;
+    private       long                         outputBytes;
+
+    private ChannelWriter(final HttpServerExchange exchange, final ResponseCompression compression, final RequestDeadline deadline) {
+      this.exchange = exchange;
+      this.compression = compression;
+      this.deadline = deadline;
+      this.encoding = compression != null ? compression.negotiate(exchange) : null;
+      this.pooled = exchange.getConnection().getByteBufferPool().allocate();
+      this.buffer = pooled.getBuffer();
+      this.buffer.clear();
+    }
+
+    @Override
+    public void write(final int c) throws IOException {
+      if (buffer.remaining() < 4)
+        flushBuffer(false);
+      put((char) c);
+    }
+
+    @Override
+    public void write(final String str, final int off, final int len) throws IOException {
+      for (int i = off; i < off + len; i++) {
+        if (buffer.remaining() < 4)
+          flushBuffer(false);
+        put(str.charAt(i));
+      }
+    }
+
+    @Override
+    public void write(final char[] cbuf, final int off, final int len) throws IOException {
+      for (int i = off; i < off + len; i++) {
+        if (buffer.remaining() < 4)
+          flushBuffer(false);
+        put(cbuf[i]);
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      flushBuffer(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (pooled == null)
+        return;
+      try {
+        if (highSurrogate != 0) {
+          // UNPAIRED SURROGATE
+          highSurrogate = 0;
+          buffer.put((byte) '?');
+        }
+        flushBuffer(true);
+        if (channel == null)
+          channel = exchange.getResponseChannel();
+        channel.shutdownWrites();
+        Channels.flushBlocking(channel);
+      } finally {
+        release();
+      }
+    }
+
+    /**
+     * Releases the buffers without ending the response. If the response has been started the connection is closed.
+     *
+     * @return true if the response had been started
+     */
+    private boolean abort() {
+      if (pooled == null)
+        return started;
+      release();
+      if (started)
+        IoUtils.safeClose(exchange.getConnection());
+      return started;
+    }
+
+    private void release() {
+      if (deflater != null) {
+        compression.release(encoding, deflater);
+        deflater = null;
+      }
+      if (pooledOutput != null) {
+        pooledOutput.close();
+        pooledOutput = null;
+      }
+      pooled.close();
+      pooled = null;
+      buffer = null;
+    }
+
+    private void put(final char c) {
+      if (highSurrogate != 0) {
+        final char high = highSurrogate;
+        highSurrogate = 0;
+        if (Character.isLowSurrogate(c)) {
+          final int codePoint = Character.toCodePoint(high, c);
+          buffer.put((byte) (0xF0 | (codePoint >> 18)));
+          buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+          buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+          buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+          return;
+        }
+        // UNPAIRED SURROGATE
+        buffer.put((byte) '?');
+      }
+
+      if (c < 0x80)
+        buffer.put((byte) c);
+      else if (c < 0x800) {
+        buffer.put((byte) (0xC0 | (c >> 6)));
+        buffer.put((byte) (0x80 | (c & 0x3F)));
+      } else if (Character.isHighSurrogate(c))
+        highSurrogate = c;
+      else if (Character.isLowSurrogate(c))
+        buffer.put((byte) '?');
+      else {
+        buffer.put((byte) (0xE0 | (c >> 12)));
+        buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+        buffer.put((byte) (0x80 | (c & 0x3F)));
+      }
+    }
+
+    private void flushBuffer(final boolean last) throws IOException {
+      if (!last)
+        deadline.check();
+      if (!started)
+        start(last);
+
+      if (deflater == null) {
+        if (buffer.position() > 0) {
+          buffer.flip();
+          Channels.writeBlocking(channel, buffer);
+          buffer.clear();
+        }
+        return;
+      }
+
+      buffer.flip();
+      inputBytes += buffer.remaining();
+      if (checksum != null)
+        checksum.update(buffer.duplicate());
+      deflater.setInput(buffer);
+      if (last)
+        deflater.finish();
+      // THE COMPRESSOR KEEPS THE BUFFER AS INPUT: IT MUST BE CONSUMED BEFORE CLEARING IT
+      while (last ? !deflater.finished() : !deflater.needsInput())
+        deflate();
+      buffer.clear();
+
+      if (last) {
+        if (checksum != null) {
+          // GZIP TRAILER: CRC-32 AND SIZE, LITTLE ENDIAN
+          if (output.remaining() < 8)
+            writeOutput();
+          output.putInt(Integer.reverseBytes((int) checksum.getValue()));
+          output.putInt(Integer.reverseBytes((int) inputBytes));
+        }
+        writeOutput();
+        compression.onCompressed(inputBytes, outputBytes);
+      }
+    }
+
+    /**
+     * Decides whether to compress the response, when the first buffer is full or the response is complete, and sends the headers.
+     */
+    private void start(final boolean last) throws IOException {
+      started = true;
+
+      if (compression != null && compression.isEnabled())
+        exchange.getResponseHeaders().add(Headers.VARY, Headers.ACCEPT_ENCODING_STRING);
+
+      if (encoding != null && !(last && buffer.position() < compression.getMinSize())) {
+        exchange.getResponseHeaders().put(Headers.CONTENT_ENCODING, encoding.getName());
+        deflater = compression.acquire(encoding);
+        pooledOutput = exchange.getConnection().getByteBufferPool().allocate();
+        output = pooledOutput.getBuffer();
+        output.clear();
+        if (encoding == ResponseCompression.Encoding.GZIP) {
+          checksum = compression.getChecksum();
+          output.put(GZIP_HEADER);
+        }
+      } else {
+        if (last)
+          exchange.getResponseHeaders().put(Headers.CONTENT_LENGTH, buffer.position());
+        if (compression != null)
+          compression.onUncompressed();
+      }
+
+      channel = exchange.getResponseChannel();
+    }
+
+    private void deflate() throws IOException {
+      if (!output.hasRemaining())
+        writeOutput();
+      deflater.deflate(output);
+    }
+
+    private void writeOutput() throws IOException {
+      output.flip();
+      outputBytes += output.remaining();
+      Channels.writeBlocking(channel, output);
+      output.clear();
+    }
+  }
+}
@@ -21,9 +21,31 @@
 
 package com.plutohub.server.plugin;
 
+import com.arcadedb.database.Database;
+import com.arcadedb.database.Document;
+import com.arcadedb.database.RID;
+import com.arcadedb.exception.TimeoutException;
+import com.arcadedb.graph.Vertex;
+import com.arcadedb.index.IndexCursor;
+import com.arcadedb.schema.DocumentType;
 import com.arcadedb.server.http.handler.AbstractHandler;
+import com.arcadedb.server.security.ServerSecurityUser;
+import com.plutohub.server.AddressKey;
+import com.plutohub.server.BitcoinSchema;
 import io.undertow.server.HttpServerExchange;
 import io.undertow.util.HeaderValues;
+import io.undertow.util.Headers;
+import org.bitcoinj.core.AddressFormatException;
+import org.bitcoinj.params.MainNetParams;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.function.BiFunction;
 
 public abstract class PlutoHttpHandler extends AbstractHandler {
   protected final BackendPlugin backend;
@@ -33,9 +55,402 @@ public abstract class PlutoHttpHandler extends AbstractHandler {
     this.backend = backend;
   }
 
+  /**
+   * Executes the requests in the lane of the handler of the plugin executor (see {@link HandlerExecutor}): the handlers read from the
+   * database and can stream their response with blocking IO, that is not allowed in the IO threads. The deadline of the request starts
+   * now, so it includes the time in the queue. The requests of the clients with an empty budget are answered with 429 here, so they do
+   * not fill the queues of the other clients (see {@link AdmissionControl}).
+   */
+  @Override
+  public void handleRequest(final HttpServerExchange exchange) {
+    if (exchange.isInIoThread()) {
+      final AdmissionControl admissionControl = backend.getAdmissionControl();
+      if (admissionControl.isEnabled()) {
+        final long retryAfter = admissionControl.getRetryAfter(getClientName(exchange, null));
+        if (retryAfter > 0) {
+          sendTooManyRequests(exchange, retryAfter);
+          return;
+        }
+      }
+
+      exchange.putAttachment(RequestDeadline.ATTACHMENT, backend.newRequestDeadline());
+      exchange.dispatch(backend.getHandlerExecutor().getExecutor(exchange, getLane()), this);
+      return;
+    }
+    super.handleRequest(exchange);
+  }
+
+  /**
+   * Executes the request with its deadline, if the user has the budget for its estimated cost (see {@link AdmissionControl}): otherwise
+   * the request is answered with 429. When the deadline expires before the response is started the request is answered with 503,
+   * otherwise the streamed response is aborted (see {@link JsonResponseWriter#close()}).
+   */
+  @Override
+  protected final void execute(final HttpServerExchange exchange, final ServerSecurityUser user) throws Exception {
+    final RequestDeadline attached = exchange.getAttachment(RequestDeadline.ATTACHMENT);
+    final RequestDeadline deadline = attached != null ? attached : RequestDeadline.NONE;
+    try {
+      // EXPIRED IN THE QUEUE
+      deadline.check();
+      if (admit(exchange, user))
+        execute(exchange, user, deadline);
+    } catch (TimeoutException e) {
+      backend.getHandlerExecutor().onTimeout(getLane());
+      if (!exchange.isResponseStarted()) {
+        exchange.setStatusCode(503);
+        exchange.getResponseHeaders().put(Headers.RETRY_AFTER, "1");
+        exchange.getResponseSender().send("{ \"error\" : " + JSONObject.quote(e.getMessage()) + "}");
+      }
+    }
+  }
+
+  /**
+   * Executes the request. The handlers that read more than a few records check the deadline while reading.
+   */
+  protected abstract void execute(HttpServerExchange exchange, ServerSecurityUser user, RequestDeadline deadline) throws Exception;
+
+  /**
+   * Returns the estimated cost of the request, about the number of records it reads, for the admission control. The estimate is computed
+   * before validating the request, so it must not fail on invalid parameters, and it must be cheap compared to the request: the
+   * handlers that count the records to read stop counting at the maximum cost, past the tokens left to the client.
+   */
+  protected long estimateCost(final HttpServerExchange exchange, final long maxCost) {
+    return 1;
+  }
+
+  /**
+   * Returns the lane of the requests of the handler: the handlers that scan or traverse many records are {@link HandlerExecutor.Lane#EXPENSIVE}.
+   */
+  protected HandlerExecutor.Lane getLane() {
+    return HandlerExecutor.Lane.CHEAP;
+  }
+
+  /**
+   * Spends the estimated cost of the request from the budget of the user, or of the client address for the anonymous requests. The
+   * budget is checked again before estimating the cost, since the estimate can read the database.
+   *
+   * @return false if the budget is exhausted and the request has been answered with 429
+   */
+  private boolean admit(final HttpServerExchange exchange, final ServerSecurityUser user) {
+    final AdmissionControl admissionControl = backend.getAdmissionControl();
+    if (!admissionControl.isEnabled())
+      return true;
+
+    final String client = getClientName(exchange, user);
+    long retryAfter = admissionControl.getRetryAfter(client);
+    if (retryAfter == 0) {
+      final long available = admissionControl.getAvailable(client);
+      retryAfter = admissionControl.admit(client, estimateCost(exchange, available < Long.MAX_VALUE ? available + 1 : available));
+      if (retryAfter == 0)
+        return true;
+    }
+
+    sendTooManyRequests(exchange, retryAfter);
+    return false;
+  }
+
+  private static void sendTooManyRequests(final HttpServerExchange exchange, final long retryAfter) {
+    exchange.setStatusCode(429);
+    exchange.getResponseHeaders().put(Headers.RETRY_AFTER, retryAfter);
+    exchange.getResponseSender().send("{ \"error\" : \"request budget exceeded, retry in " + retryAfter + " seconds\"}");
+  }
+
+  /**
+   * Returns the name of the client for the admission control: the name of the user, the name in the Basic authorization header before
+   * the user is authenticated, otherwise the address of the client. A client sending the name of another user can only be rejected
+   * earlier, the budget is spent only once the user is authenticated.
+   */
+  private static String getClientName(final HttpServerExchange exchange, final ServerSecurityUser user) {
+    if (user != null)
+      return user.getName();
+
+    final String authorization = exchange.getRequestHeaders().getFirst(Headers.AUTHORIZATION);
+    if (authorization != null && authorization.regionMatches(true, 0, "Basic ", 0, 6)) {
+      try {
+        final String credentials = new String(Base64.getDecoder().decode(authorization.substring(6).trim()), StandardCharsets.UTF_8);
+        final int separator = credentials.indexOf(':');
+        if (separator > 0)
+          return credentials.substring(0, separator);
+      } catch (IllegalArgumentException e) {
+        // NOT VALID: THE AUTHENTICATION FAILS LATER
+      }
+    }
+    return exchange.getSourceAddress().getAddress().toString();
+  }
+
+  /**
+   * Returns true if the client set the header "pluto-compress: true" to receive the JSON without indentation. The compression of the
+   * response is negotiated with the Accept-Encoding header instead (see {@link ResponseCompression}).
+   */
   protected boolean isCompressOutput(final HttpServerExchange exchange) {
     HeaderValues compressParam = exchange.getRequestHeaders().get("pluto-compress");
     final boolean compress = compressParam == null ? false : Boolean.parseBoolean(compressParam.getFirst());
     return compress;
   }
+
+  /**
+   * Looks up an address by its Base58/Bech32 form. If the addresses are stored as binary keys the address is converted to its key first.
+   *
+   * @return null if the address is not found or it is not valid
+   */
+  protected Vertex lookupAddress(final Database database, final String address) {
+    final Document record = lookupByAddress(database, BitcoinSchema.VERTEX_ADDRESS, address);
+    return record != null ? record.asVertex() : null;
+  }
+
+  /**
+   * Looks up a record of a type indexed by address like {@link BitcoinSchema#VERTEX_ADDRESS}, by the Base58/Bech32 form of the address.
+   *
+   * @return null if the record is not found or the address is not valid
+   */
+  protected Document lookupByAddress(final Database database, final String typeName, final String address) {
+    if (!database.getSchema().existsType(typeName))
+      // DATABASE IMPORTED BY AN OLDER VERSION
+      return null;
+
+    final DocumentType type = database.getSchema().getType(typeName);
+
+    if (type.existsProperty("key")) {
+      try {
+        final byte[] key = AddressKey.fromString(address, MainNetParams.get());
+        if (key != null) {
+          final IndexCursor cursor = database.lookupByKey(typeName, "key", AddressKey.encode(key));
+          if (cursor.hasNext())
+            return cursor.next().asDocument();
+        }
+      } catch (AddressFormatException e) {
+        // NOT A VALID ADDRESS, IT COULD STILL BE STORED AS STRING
+      }
+    }
+
+    if (type.existsProperty("hash")) {
+      final IndexCursor cursor = database.lookupByKey(typeName, "hash", address);
+      if (cursor.hasNext())
+        return cursor.next().asDocument();
+    }
+    return null;
+  }
+
+  /**
+   * Looks up the block of the main chain at a height.
+   *
+   * @return null if there is no block at the height or the database has been imported without heights
+   */
+  protected Vertex lookupBlockByHeight(final Database database, final long height) {
+    if (!database.getSchema().existsType(BitcoinSchema.DOCUMENT_BLOCK_HEIGHT))
+      // DATABASE IMPORTED BY AN OLDER VERSION
+      return null;
+
+    final IndexCursor cursor = database.lookupByKey(BitcoinSchema.DOCUMENT_BLOCK_HEIGHT, "height", height);
+    return cursor.hasNext() ? ((RID) cursor.next().asDocument().get("block")).asVertex() : null;
+  }
+
+  /**
+   * Serializes an address vertex, replacing the binary key with the Base58/Bech32 form.
+   */
+  protected JSONObject serializeAddress(final Vertex address) {
+    final JSONObject json = httpServer.getJsonSerializer().serializeDocument(address);
+    final String key = address.getString("key");
+    if (key != null) {
+      json.remove("key");
+      json.put("hash", AddressKey.toString(AddressKey.decode(key), MainNetParams.get()));
+    }
+    return json;
+  }
+
+  /**
+   * Returns true if the side of an address ("inputs" or "outputs") is requested by the "side" parameter. Without the parameter both the
+   * sides are returned.
+   */
+  protected boolean isSideRequested(final HttpServerExchange exchange, final String side) {
+    final Deque<String> sideParam = exchange.getQueryParameters().get("side");
+    return sideParam == null || sideParam.isEmpty() || side.equals(sideParam.getFirst());
+  }
+
+  /**
+   * Writes an address with the "inputs" and "outputs" arrays of its inputs and outputs in the page of the history, visiting only the
+   * edges of the requested sides.
+   */
+  protected void writeAddress(final JsonResponseWriter out, final Vertex address, final AddressHistory history, final boolean withInputs,
+      final boolean withOutputs) throws Exception {
+    out.beginObject();
+    out.members(serializeAddress(address));
+    writeHistory(out, history, withInputs, withOutputs);
+    out.endObject();
+  }
+
+  /**
+   * Writes the "inputs" and "outputs" arrays of the page of the history of an address, in the object of the address.
+   */
+  protected void writeHistory(final JsonResponseWriter out, final AddressHistory history, final boolean withInputs,
+      final boolean withOutputs) throws Exception {
+    writeHistory(out, history, withInputs, withOutputs, this::serializeTxPart);
+  }
+
+  static void writeHistory(final JsonResponseWriter out, final AddressHistory history, final boolean withInputs, final boolean withOutputs,
+      final BiFunction<Vertex, Vertex, JSONObject> txPartSerializer) throws Exception {
+    if (withInputs)
+      out.name("inputs").beginArray();
+
+    // THE "inputs" ARRAY IS OPEN UNTIL THE "outputs" ONE IS OPENED
+    final boolean[] outputsOpen = { false };
+    history.setSides(withInputs, withOutputs).walk((input, txPart, transaction) -> {
+      if (!input && !outputsOpen[0]) {
+        if (withInputs)
+          out.endArray();
+        out.name("outputs").beginArray();
+        outputsOpen[0] = true;
+      }
+      out.value(txPartSerializer.apply(txPart, transaction));
+    });
+
+    if (withOutputs && !outputsOpen[0]) {
+      if (withInputs)
+        out.endArray();
+      out.name("outputs").beginArray();
+      outputsOpen[0] = true;
+    }
+    if (withInputs || outputsOpen[0])
+      out.endArray();
+  }
+
+  /**
+   * Starts a JSON response streamed to the client, compressed if the client accepts it. Errors must be sent before, since the status
+   * code cannot be changed anymore.
+   */
+  protected JsonResponseWriter startResponse(final HttpServerExchange exchange, final int statusCode) {
+    exchange.setStatusCode(statusCode);
+    final RequestDeadline deadline = exchange.getAttachment(RequestDeadline.ATTACHMENT);
+    return new JsonResponseWriter(exchange, isCompressOutput(exchange) ? 0 : 2, backend.getCompression(),
+        deadline != null ? deadline : RequestDeadline.NONE);
+  }
+
+  /**
+   * Sends the cached response of the key, if any (see {@link ResponseCache}).
+   *
+   * @return false if the response is not cached
+   */
+  protected boolean sendCached(final HttpServerExchange exchange, final Database database, final String cacheKey) {
+    final ResponseCache cache = backend.getResponseCache();
+    if (!cache.isEnabled())
+      return false;
+
+    cache.refresh(database);
+    final ResponseCache.Entry entry = cache.get(cacheKey);
+    if (entry == null)
+      return false;
+
+    cache.send(exchange, entry);
+    return true;
+  }
+
+  /**
+   * Sends the response of a result. If the result cannot change anymore it is cached.
+   */
+  protected void sendResult(final HttpServerExchange exchange, final JSONObject result, final String cacheKey, final boolean immutable)
+      throws Exception {
+    if (immutable) {
+      final String response = new JSONObject().put("result", result).toString(isCompressOutput(exchange) ? 0 : 2);
+      final ResponseCache cache = backend.getResponseCache();
+      cache.send(exchange, cache.put(cacheKey, response));
+      return;
+    }
+
+    try (JsonResponseWriter out = startResponse(exchange, 200)) {
+      out.beginResult().value(result).endResult();
+    }
+  }
+
+  /**
+   * Returns the key of a cached response: the same resource is cached with and without indentation.
+   */
+  protected String getCacheKey(final HttpServerExchange exchange, final String type, final String id) {
+    return type + "/" + id + (isCompressOutput(exchange) ? "/compact" : "/indented");
+  }
+
+  /**
+   * Reads the body of the request as UTF-8, blocking the worker thread.
+   *
+   * @return null if the body is larger than the maximum size
+   */
+  protected String readRequestBody(final HttpServerExchange exchange, final int maxSize) throws IOException {
+    if (exchange.getRequestContentLength() > maxSize)
+      return null;
+
+    if (!exchange.isBlocking())
+      exchange.startBlocking();
+
+    final ByteArrayOutputStream body = new ByteArrayOutputStream(
+        exchange.getRequestContentLength() > 0 ? (int) exchange.getRequestContentLength() : 1024);
+    final byte[] buffer = new byte[8192];
+    final InputStream in = exchange.getInputStream();
+    for (int read; (read = in.read(buffer)) > -1; ) {
+      if (body.size() + read > maxSize)
+        return null;
+      body.write(buffer, 0, read);
+    }
+    return body.toString(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Returns the value of a numeric parameter, or the default value if the parameter is not present.
+   *
+   * @throws NumberFormatException if the parameter is not a number
+   */
+  protected long getLongParameter(final HttpServerExchange exchange, final String name, final long defaultValue) {
+    final Deque<String> param = exchange.getQueryParameters().get(name);
+    return param == null || param.isEmpty() ? defaultValue : Long.parseLong(param.getFirst());
+  }
+
+  /**
+   * Returns the "limit" parameter for the estimate of the cost of a request, or the default limit if it is not present or not valid.
+   */
+  protected long getEstimatedLimit(final HttpServerExchange exchange, final long defaultLimit, final long maxLimit) {
+    try {
+      final long limit = getLongParameter(exchange, "limit", defaultLimit);
+      return limit < 1 || limit > maxLimit ? defaultLimit : limit;
+    } catch (NumberFormatException e) {
+      return defaultLimit;
+    }
+  }
+
+  /**
+   * Creates the walker of a range of times from the parameters "from", "to", "limit" and "cursor".
+   *
+   * @throws IllegalArgumentException if a parameter is not valid
+   */
+  protected BlockTimeRange createTimeRange(final HttpServerExchange exchange, final Database database, final RequestDeadline deadline) {
+    final long limit = getLongParameter(exchange, "limit", BlockTimeRange.DEFAULT_LIMIT);
+    if (limit < 1 || limit > BlockTimeRange.MAX_LIMIT)
+      throw new IllegalArgumentException("limit must be between 1 and " + BlockTimeRange.MAX_LIMIT);
+
+    final BlockTimeRange range = new BlockTimeRange(database, getLongParameter(exchange, "from", 0),
+        getLongParameter(exchange, "to", Long.MAX_VALUE)).setLimit((int) limit).setDeadline(deadline);
+
+    final Deque<String> cursorParam = exchange.getQueryParameters().get("cursor");
+    if (cursorParam != null && !cursorParam.isEmpty())
+      range.setCursor(cursorParam.getFirst());
+    return range;
+  }
+
+  /**
+   * Serializes an input or an output with the value and the transaction.
+   */
+  protected JSONObject serializeTxPart(final Vertex txPart, final Vertex transactionVertex) {
+    final JSONObject tx = new JSONObject();
+    tx.put("value", txPart.getLong("value"));
+
+    if (transactionVertex != null) {
+      tx.put("id", transactionVertex.getString("id"));
+      tx.put("purpose", transactionVertex.getString("purpose"));
+      tx.put("confidence", transactionVertex.getString("confidence"));
+      tx.put("inputSum", transactionVertex.getLong("inputSum"));
+      tx.put("outputSum", transactionVertex.getLong("outputSum"));
+      tx.put("fee", transactionVertex.getLong("fee"));
+      tx.put("coinbase", transactionVertex.getBoolean("coinbase"));
+      tx.put("lockTime", transactionVertex.getLong("lockTime"));
+      tx.put("wtxid", transactionVertex.getString("wtxid"));
+    }
+    return tx;
+  }
 }
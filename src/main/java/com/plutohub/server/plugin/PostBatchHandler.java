@@ -0,0 +1,191 @@
+/*
+ * Copyright 2021 Arcade Data Ltd
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.plutohub.server.plugin;
+
+import com.arcadedb.database.Database;
+import com.arcadedb.exception.TimeoutException;
+import com.arcadedb.server.security.ServerSecurityUser;
+import io.undertow.server.HttpServerExchange;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks up many records with one request. The body is the JSON array of the ids, or an object with the array in "ids". The response
+ * contains one entry per requested id, in the same order and with the duplicates, as {"id": ..., "result": {...}} or
+ * {"id": ..., "error": "not found"}.
+ * <p>
+ * The ids are sorted and deduplicated, then split in contiguous ranges looked up in parallel by the batch executor of the plugin, so
+ * every thread reads the index in key order.
+ */
+public abstract class PostBatchHandler extends PlutoHttpHandler {
+  public static final int MAX_IDS = 10_000;
+
+  private static final int MIN_IDS_PER_THREAD = 64;
+  private static final int MAX_ID_LENGTH      = 256;
+  private static final int MIN_ID_LENGTH      = 26;
+
+  protected PostBatchHandler(final BackendPlugin backend) {
+    super(backend);
+  }
+
+  @Override
+  protected HandlerExecutor.Lane getLane() {
+    return HandlerExecutor.Lane.EXPENSIVE;
+  }
+
+  /**
+   * The cost is the number of ids, estimated from the length of the body before reading it, as if all the ids were the shortest
+   * addresses.
+   */
+  @Override
+  protected long estimateCost(final HttpServerExchange exchange, final long maxCost) {
+    final long length = exchange.getRequestContentLength();
+    return length < 0 ? MAX_IDS : Math.max(1, Math.min(MAX_IDS, length / (MIN_ID_LENGTH + 3)));
+  }
+
+  /**
+   * Looks up a record by id, in the transaction of the current thread.
+   *
+   * @return the serialized record or null if it is not found
+   */
+  protected abstract JSONObject lookup(Database database, String id);
+
+  @Override
+  protected void execute(final HttpServerExchange exchange, final ServerSecurityUser user, final RequestDeadline deadline) throws Exception {
+    final String body = readRequestBody(exchange, MAX_IDS * (MAX_ID_LENGTH + 4) + 64);
+    if (body == null) {
+      exchange.setStatusCode(413);
+      exchange.getResponseSender().send("{ \"error\" : \"request too large\"}");
+      return;
+    }
+
+    final List<String> ids = parseIds(body);
+    if (ids == null) {
+      exchange.setStatusCode(400);
+      exchange.getResponseSender().send("{ \"error\" : \"the body must be an array of ids\"}");
+      return;
+    }
+    if (ids.size() > MAX_IDS) {
+      exchange.setStatusCode(400);
+      exchange.getResponseSender().send("{ \"error\" : \"too many ids, the maximum is " + MAX_IDS + "\"}");
+      return;
+    }
+
+    final String[] keys = new TreeSet<>(ids).toArray(new String[0]);
+    final JSONObject[] results = lookupAll(keys, deadline);
+
+    try (JsonResponseWriter out = startResponse(exchange, 200)) {
+      out.beginResult().beginArray();
+      for (String id : ids) {
+        final JSONObject result = results[Arrays.binarySearch(keys, id)];
+        out.beginObject().name("id").value(id);
+        if (result != null)
+          out.name("result").value(result);
+        else
+          out.name("error").value("not found");
+        out.endObject();
+      }
+      out.endArray().endResult();
+    }
+  }
+
+  /**
+   * Looks up the sorted keys, splitting them among the threads of the batch executor. The small batches are looked up by the current
+   * thread. When the deadline expires the lookups still running are stopped.
+   */
+  private JSONObject[] lookupAll(final String[] keys, final RequestDeadline deadline) throws Exception {
+    final JSONObject[] results = new JSONObject[keys.length];
+
+    final int threads = Math.max(1, Math.min(backend.getBatchThreads(), keys.length / MIN_IDS_PER_THREAD));
+    if (threads == 1) {
+      lookupRange(keys, results, 0, keys.length, deadline);
+      return results;
+    }
+
+    final int rangeSize = (keys.length + threads - 1) / threads;
+    final List<Future<?>> futures = new ArrayList<>(threads);
+    for (int from = 0; from < keys.length; from += rangeSize) {
+      final int start = from;
+      final int end = Math.min(keys.length, from + rangeSize);
+      futures.add(backend.getBatchExecutor().submit(() -> lookupRange(keys, results, start, end, deadline)));
+    }
+
+    try {
+      for (Future<?> future : futures)
+        future.get(deadline.getRemaining(), TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+    } catch (java.util.concurrent.TimeoutException e) {
+      throw new TimeoutException("The request exceeded the timeout of " + deadline.getTimeout() + "ms");
+    } finally {
+      // THE LOOKUPS NOT STARTED YET ARE ONLY DEQUEUED, THE RUNNING ONES STOP AT THEIR NEXT DEADLINE CHECK: THE STORAGE THREADS ARE NEVER
+      // INTERRUPTED
+      for (Future<?> future : futures)
+        future.cancel(false);
+    }
+    return results;
+  }
+
+  private void lookupRange(final String[] keys, final JSONObject[] results, final int from, final int to, final RequestDeadline deadline) {
+    final Database database = backend.getDatabase();
+
+    database.begin();
+    try {
+      for (int i = from; i < to; i++) {
+        deadline.check();
+        results[i] = lookup(database, keys[i]);
+      }
+    } finally {
+      database.rollbackAllNested();
+    }
+  }
+
+  /**
+   * @return null if the body is not an array of strings
+   */
+  private static List<String> parseIds(final String body) {
+    try {
+      final String trimmed = body.trim();
+      final JSONArray array = trimmed.startsWith("{") ? new JSONObject(trimmed).getJSONArray("ids") : new JSONArray(trimmed);
+
+      final List<String> ids = new ArrayList<>(array.length());
+      for (int i = 0; i < array.length(); i++) {
+        final Object id = array.get(i);
+        if (!(id instanceof String) || ((String) id).length() > MAX_ID_LENGTH)
+          return null;
+        ids.add((String) id);
+      }
+      return ids;
+    } catch (JSONException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2021 Arcade Data Ltd
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.plutohub.server.plugin;
+
+import com.arcadedb.database.Database;
+import com.arcadedb.index.IndexCursor;
+import com.plutohub.server.BitcoinSchema;
+import org.json.JSONObject;
+
+/**
+ * Looks up many blocks by hash (see {@link PostBatchHandler}).
+ */
+public class PostBlocksHandler extends PostBatchHandler {
+  public PostBlocksHandler(final BackendPlugin backend) {
+    super(backend);
+  }
+
+  @Override
+  protected JSONObject lookup(final Database database, final String id) {
+    final IndexCursor cursor = database.lookupByKey(BitcoinSchema.VERTEX_BLOCK, "hash", id);
+    return cursor.hasNext() ? httpServer.getJsonSerializer().serializeDocument(cursor.next().asVertex()) : null;
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2021 Arcade Data Ltd
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.plutohub.server.plugin;
+
+import com.arcadedb.exception.TimeoutException;
+import io.undertow.util.AttachmentKey;
+
+/**
+ * Deadline of a request, counted from when it is received, so the time waiting in the queue of the executor is included. The handlers
+ * check it while they read the database: when it expires the work of the request is stopped with a {@link TimeoutException}, not only
+ * its response.
+ */
+public class RequestDeadline {
+  public static final RequestDeadline NONE = new RequestDeadline(0);
+
+  static final AttachmentKey<RequestDeadline> ATTACHMENT = AttachmentKey.create(RequestDeadline.class);
+
+  private final long timeout;
+  private final long expiresAt;
+
+  /**
+   * @param timeout milliseconds from now. 0 means no deadline
+   */
+  public RequestDeadline(final long timeout) {
+    this.timeout = timeout;
+    this.expiresAt = System.nanoTime() + timeout * 1_000_000L;
+  }
+
+  public long getTimeout() {
+    return timeout;
+  }
+
+  public boolean isExpired() {
+    return timeout > 0 && System.nanoTime() - expiresAt > 0;
+  }
+
+  /**
+   * Returns the milliseconds left, Long.MAX_VALUE if there is no deadline.
+   */
+  public long getRemaining() {
+    return timeout > 0 ? Math.max(0, (expiresAt - System.nanoTime()) / 1_000_000L) : Long.MAX_VALUE;
+  }
+
+  /**
+   * @throws TimeoutException if the deadline is expired
+   */
+  public void check() {
+    if (isExpired())
+      throw new TimeoutException("The request exceeded the timeout of " + timeout + "ms");
+  }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2021 Arcade Data Ltd
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.plutohub.server.plugin;
+
+import com.arcadedb.database.Database;
+import com.arcadedb.database.RID;
+import com.arcadedb.graph.Vertex;
+import com.arcadedb.query.sql.executor.ResultSet;
+import com.plutohub.server.BitcoinSchema;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.HeaderValues;
+import io.undertow.util.Headers;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cache of the serialized responses of the blocks and the transactions that cannot change anymore, the ones below the safe tail
+ * recorded by the last import (see {@link BitcoinSchema#EDGE_SAFE_TAIL_BLOCK}). The responses are kept as bytes, also gzipped when big
+ * enough, with a strong ETag computed from their content: a request with a matching If-None-Match header is answered with 304 without
+ * reading the database. The gzipped representation has the same ETag with the suffix "-gzip", since a strong validator must differ
+ * between representations: both forms match If-None-Match, whatever representation is sent.
+ * <p>
+ * A block is below the safe tail if it is fully parsed, in the main chain and not higher than the safe tail. In the databases imported
+ * without heights, if its time is older than the time of the safe tail by more than the 2 hours a block time can be in the future. The
+ * latest import is checked at most every check interval: when its tail changes the whole cache is invalidated. The least recently used
+ * responses are evicted when the size of the cached bytes exceeds the maximum size.
+ */
+public class ResponseCache {
+  private static final long   MAX_FUTURE_BLOCK_TIME = 2 * 60 * 60;
+  private static final int    ENTRY_OVERHEAD        = 96;
+  private static final String CACHE_CONTROL         = "public, max-age=31536000, immutable";
+  private static final String GZIP_ETAG_SUFFIX      = "-gzip";
+
+  private final    long                         maxSize;
+  private final    long                         checkInterval;
+  private final    ResponseCompression          compression;
+  private final    LinkedHashMap<String, Entry> entries    = new LinkedHashMap<>(1024, 0.75F, true);
+  private          long                         size       = 0;
+  private volatile long                         nextCheck  = 0;
+  private volatile long                         safeHeight = -1;
+  private volatile long                         safeTime   = Long.MIN_VALUE;
+  private          RID                          tail       = null;
+  private          long                         hits;
+  private          long                         misses;
+  private          long                         notModified;
+  private          long                         evictions;
+  private          long                         invalidations;
+
+  public static class Entry {
+    private final String etag;
+    private final byte[] plain;
+    private final byte[] gzipped;
+
+    private Entry(final String etag, final byte[] plain, final byte[] gzipped) {
+      this.etag = etag;
+      this.plain = plain;
+      this.gzipped = gzipped;
+    }
+
+    private int getWeight(final String key) {
+      return ENTRY_OVERHEAD + key.length() * 2 + etag.length() * 2 + plain.length + (gzipped != null ? gzipped.length : 0);
+    }
+  }
+
+  /**
+   * @param maxSize       maximum size in bytes of the cached responses. 0 disables the cache
+   * @param checkInterval milliseconds between the checks of the latest import
+   * @param compression   settings of the compression, used to gzip the responses in advance
+   */
+  public ResponseCache(final long maxSize, final long checkInterval, final ResponseCompression compression) {
+    this.maxSize = maxSize;
+    this.checkInterval = checkInterval;
+    this.compression = compression;
+  }
+
+  public boolean isEnabled() {
+    return maxSize > 0;
+  }
+
+  /**
+   * Reloads the safe tail of the latest import if the check interval is elapsed, invalidating the cache if the tail has changed.
+   */
+  public void refresh(final Database database) {
+    if (System.currentTimeMillis() < nextCheck)
+      return;
+
+    synchronized (this) {
+      if (System.currentTimeMillis() < nextCheck)
+        return;
+
+      RID newTail = null;
+      long newSafeHeight = -1;
+      long newSafeTime = Long.MIN_VALUE;
+
+      database.begin();
+      try {
+        final ResultSet lastImports = database.query("sql",
+            "select from " + BitcoinSchema.VERTEX_IMPORT + " where status in ['completed', 'following'] and type is null order by endTime desc limit 1");
+        if (lastImports.hasNext()) {
+          final Vertex lastImport = lastImports.next().getVertex().get();
+
+          final Iterator<Vertex> tails = lastImport.getVertices(Vertex.DIRECTION.OUT, BitcoinSchema.EDGE_TAIL_BLOCK).iterator();
+          if (tails.hasNext())
+            newTail = tails.next().getIdentity();
+
+          final Iterator<Vertex> safeTails = lastImport.getVertices(Vertex.DIRECTION.OUT, BitcoinSchema.EDGE_SAFE_TAIL_BLOCK).iterator();
+          if (safeTails.hasNext()) {
+            final Vertex safeTail = safeTails.next();
+            if (safeTail.getLong("height") != null)
+              newSafeHeight = safeTail.getLong("height");
+            else
+              newSafeTime = safeTail.getLong("timeSeconds") - MAX_FUTURE_BLOCK_TIME;
+          }
+        }
+      } finally {
+        database.rollbackAllNested();
+      }
+
+      if (newTail == null ? tail != null : !newTail.equals(tail)) {
+        entries.clear();
+        size = 0;
+        ++invalidations;
+      }
+      tail = newTail;
+      safeHeight = newSafeHeight;
+      safeTime = newSafeTime;
+      nextCheck = System.currentTimeMillis() + checkInterval;
+    }
+  }
+
+  /**
+   * Returns true if the block cannot change anymore.
+   */
+  public boolean isImmutable(final Vertex block) {
+    if (!isEnabled() || Boolean.FALSE.equals(block.get("fullyParsed")))
+      return false;
+
+    final Long height = block.getLong("height");
+    if (safeHeight > -1)
+      return height != null && height <= safeHeight && Boolean.TRUE.equals(block.getBoolean("mainChain"));
+
+    final Long time = block.getLong("timeSeconds");
+    return time != null && time <= safeTime;
+  }
+
+  public synchronized Entry get(final String key) {
+    final Entry entry = entries.get(key);
+    if (entry != null)
+      ++hits;
+    else
+      ++misses;
+    return entry;
+  }
+
+  /**
+   * Caches a response, returning its entry.
+   */
+  public Entry put(final String key, final String response) throws IOException {
+    final byte[] plain = response.getBytes(StandardCharsets.UTF_8);
+
+    byte[] gzipped = null;
+    if (compression.isEnabled() && plain.length >= compression.getMinSize()) {
+      final ByteArrayOutputStream buffer = new ByteArrayOutputStream(plain.length / 4);
+      try (GZIPOutputStream gzip = new GZIPOutputStream(buffer)) {
+        gzip.write(plain);
+      }
+      gzipped = buffer.toByteArray();
+    }
+
+    final Entry entry = new Entry(computeETag(plain), plain, gzipped);
+    final int weight = entry.getWeight(key);
+    if (weight > maxSize / 8)
+      // TOO BIG TO BE WORTH EVICTING MANY OTHER RESPONSES
+      return entry;
+
+    synchronized (this) {
+      final Entry previous = entries.put(key, entry);
+      if (previous != null)
+        size -= previous.getWeight(key);
+      size += weight;
+
+      final Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+      while (size > maxSize && eldest.hasNext()) {
+        final Map.Entry<String, Entry> e = eldest.next();
+        size -= e.getValue().getWeight(e.getKey());
+        eldest.remove();
+        ++evictions;
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * Sends a cached response: 304 if the client has it already, otherwise the gzipped bytes if the client accepts gzip or the plain ones.
+   */
+  public void send(final HttpServerExchange exchange, final Entry entry) {
+    final boolean gzipped = entry.gzipped != null && compression.negotiate(exchange) == ResponseCompression.Encoding.GZIP;
+    final String gzipETag = getGzipETag(entry.etag);
+
+    exchange.getResponseHeaders().put(Headers.ETAG, gzipped ? gzipETag : entry.etag);
+    exchange.getResponseHeaders().put(Headers.CACHE_CONTROL, CACHE_CONTROL);
+    exchange.getResponseHeaders().add(Headers.VARY, Headers.ACCEPT_ENCODING_STRING);
+
+    if (matchesETag(exchange, entry.etag, gzipETag)) {
+      synchronized (this) {
+        ++notModified;
+      }
+      exchange.setStatusCode(304);
+      exchange.endExchange();
+      return;
+    }
+
+    exchange.setStatusCode(200);
+    if (gzipped) {
+      exchange.getResponseHeaders().put(Headers.CONTENT_ENCODING, ResponseCompression.Encoding.GZIP.getName());
+      exchange.getResponseHeaders().put(Headers.CONTENT_LENGTH, entry.gzipped.length);
+      exchange.getResponseSender().send(ByteBuffer.wrap(entry.gzipped));
+    } else {
+      exchange.getResponseHeaders().put(Headers.CONTENT_LENGTH, entry.plain.length);
+      exchange.getResponseSender().send(ByteBuffer.wrap(entry.plain));
+    }
+  }
+
+  public synchronized JSONObject getStats() {
+    final JSONObject stats = new JSONObject();
+    stats.put("enabled", isEnabled());
+    stats.put("maxSize", maxSize);
+    stats.put("size", size);
+    stats.put("entries", entries.size());
+    stats.put("hits", hits);
+    stats.put("misses", misses);
+    stats.put("notModified", notModified);
+    stats.put("evictions", evictions);
+    stats.put("invalidations", invalidations);
+    stats.put("safeHeight", safeHeight);
+    stats.put("safeTime", safeTime);
+    return stats;
+  }
+
+  private static boolean matchesETag(final HttpServerExchange exchange, final String etag, final String gzipETag) {
+    final HeaderValues ifNoneMatch = exchange.getRequestHeaders().get(Headers.IF_NONE_MATCH);
+    if (ifNoneMatch == null)
+      return false;
+    for (String header : ifNoneMatch)
+      for (String token : header.split(",")) {
+        String tag = token.trim();
+        if (tag.equals("*"))
+          return true;
+        if (tag.startsWith("W/"))
+          // WEAK COMPARISON, AS REQUIRED FOR IF-NONE-MATCH
+          tag = tag.substring(2);
+        if (tag.equals(etag) || tag.equals(gzipETag))
+          return true;
+      }
+    return false;
+  }
+
+  /**
+   * Returns the ETag of the gzipped representation: the suffix goes inside the quotes.
+   */
+  private static String getGzipETag(final String etag) {
+    return etag.substring(0, etag.length() - 1) + GZIP_ETAG_SUFFIX + '"';
+  }
+
+  private static String computeETag(final byte[] content) {
+    try {
+      final byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+      final StringBuilder etag = new StringBuilder(34).append('"');
+      for (int i = 0; i < 16; i++)
+        etag.append(Character.forDigit((digest[i] >> 4) & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+      return etag.append('"').toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+  }
+}
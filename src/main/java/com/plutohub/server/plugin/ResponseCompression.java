@@ -0,0 +1,210 @@
+/*
+ * Copyright 2021 Arcade Data Ltd
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.plutohub.server.plugin;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.HeaderValues;
+import io.undertow.util.Headers;
+import org.json.JSONObject;
+
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Settings, compressors and counters of the compression of the responses (HTTP content encoding). The encoding is negotiated with the
+ * Accept-Encoding header of the request: gzip and deflate are supported. The responses smaller than the minimum size are not compressed.
+ * <p>
+ * The compressors are native zlib streams: they are kept in a small pool shared by all the threads and reset after every response, so
+ * they are reused also when every request runs in a new virtual thread. The compressors returned when the pool is full are ended.
+ */
+public class ResponseCompression {
+  private static final int MAX_POOLED = 64;
+
+  public enum Encoding {
+    GZIP("gzip"), DEFLATE("deflate");
+
+    private final String name;
+
+    Encoding(final String name) {
+      this.name = name;
+    }
+
+    public String getName() {
+      return name;
+    }
+  }
+
+  private final boolean         enabled;
+  private final int             minSize;
+  private final int             level;
+  private final Queue<Deflater> gzipDeflaters         = new ConcurrentLinkedQueue<>();
+  private final Queue<Deflater> deflateDeflaters      = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger   pooled                = new AtomicInteger();
+  private final AtomicLong      compressedResponses   = new AtomicLong();
+  private final AtomicLong      uncompressedResponses = new AtomicLong();
+  private final AtomicLong      inputBytes            = new AtomicLong();
+  private final AtomicLong      outputBytes           = new AtomicLong();
+
+  /**
+   * @param enabled false to never compress
+   * @param minSize minimum size in bytes of a response to compress. Sizes greater than the buffers of the connections are treated as the
+   *                size of the buffers
+   * @param level   compression level, from 1 (fastest) to 9 (smallest), or -1 for the default
+   */
+  public ResponseCompression(final boolean enabled, final int minSize, final int level) {
+    this.enabled = enabled;
+    this.minSize = minSize;
+    this.level = level;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public int getMinSize() {
+    return minSize;
+  }
+
+  /**
+   * Returns the encoding preferred by the client among the supported ones, or null if the response must not be compressed.
+   */
+  public Encoding negotiate(final HttpServerExchange exchange) {
+    if (!enabled)
+      return null;
+
+    final HeaderValues acceptEncoding = exchange.getRequestHeaders().get(Headers.ACCEPT_ENCODING);
+    if (acceptEncoding == null)
+      return null;
+
+    float gzip = -1;
+    float deflate = -1;
+    float any = -1;
+    for (String header : acceptEncoding)
+      for (String token : header.split(",")) {
+        final String[] parts = token.split(";");
+        final String coding = parts[0].trim().toLowerCase(Locale.ENGLISH);
+
+        float quality = 1;
+        for (int i = 1; i < parts.length; i++) {
+          final String param = parts[i].trim();
+          if (param.startsWith("q="))
+            try {
+              quality = Float.parseFloat(param.substring(2));
+            } catch (NumberFormatException e) {
+              quality = 0;
+            }
+        }
+
+        switch (coding) {
+        case "gzip":
+        case "x-gzip":
+          gzip = Math.max(gzip, quality);
+          break;
+        case "deflate":
+          deflate = Math.max(deflate, quality);
+          break;
+        case "*":
+          any = Math.max(any, quality);
+          break;
+        }
+      }
+
+    // THE WILDCARD APPLIES TO THE ENCODINGS NOT LISTED
+    if (gzip < 0)
+      gzip = any;
+    if (deflate < 0)
+      deflate = any;
+
+    if (gzip <= 0 && deflate <= 0)
+      return null;
+    return gzip >= deflate ? Encoding.GZIP : Encoding.DEFLATE;
+  }
+
+  /**
+   * Borrows a compressor for the encoding from the pool. It must be returned with {@link #release(Encoding, Deflater)}. For gzip the
+   * compressor writes the raw deflate format: header and trailer are written by the caller.
+   */
+  Deflater acquire(final Encoding encoding) {
+    Deflater deflater = getPool(encoding).poll();
+    if (deflater != null)
+      pooled.decrementAndGet();
+    else
+      deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, encoding == Encoding.GZIP);
+    deflater.setLevel(level);
+    return deflater;
+  }
+
+  /**
+   * Returns a compressor to the pool, or ends it if the pool is full.
+   */
+  void release(final Encoding encoding, final Deflater deflater) {
+    if (pooled.incrementAndGet() > MAX_POOLED) {
+      pooled.decrementAndGet();
+      deflater.end();
+      return;
+    }
+    deflater.reset();
+    getPool(encoding).offer(deflater);
+  }
+
+  /**
+   * Returns a new checksum for the gzip trailer: it is not native, so it is not pooled.
+   */
+  CRC32 getChecksum() {
+    return new CRC32();
+  }
+
+  void onCompressed(final long input, final long output) {
+    compressedResponses.incrementAndGet();
+    inputBytes.addAndGet(input);
+    outputBytes.addAndGet(output);
+  }
+
+  void onUncompressed() {
+    uncompressedResponses.incrementAndGet();
+  }
+
+  private Queue<Deflater> getPool(final Encoding encoding) {
+    return encoding == Encoding.GZIP ? gzipDeflaters : deflateDeflaters;
+  }
+
+  public JSONObject getStats() {
+    final long input = inputBytes.get();
+    final long output = outputBytes.get();
+
+    final JSONObject stats = new JSONObject();
+    stats.put("enabled", enabled);
+    stats.put("minSize", minSize);
+    stats.put("level", level);
+    stats.put("compressedResponses", compressedResponses.get());
+    stats.put("uncompressedResponses", uncompressedResponses.get());
+    stats.put("inputBytes", input);
+    stats.put("outputBytes", output);
+    stats.put("ratio", input > 0 ? (double) output / input : 0D);
+    return stats;
+  }
+}
@@ -0,0 +1,132 @@
+package com.plutohub.server;
+
+import com.google.common.io.BaseEncoding;
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.params.TestNet3Params;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class AddressKeyTest {
+  private static final NetworkParameters PARAMS = MainNetParams.get();
+  private static final byte[]            HASH   = hex("751e76e8199196d454941c45d1b3a323f1433bd6");
+
+  @Test
+  public void knownAddresses() {
+    assertRoundTrip("1BgGZ9tcN4rm9KBzDn7KprQz87SZ26SAMH", AddressKey.create(AddressKey.TYPE_P2PKH, HASH));
+    assertRoundTrip("bc1qw508d6qejxtdg4y5r3zarvary0c5xw7kv8f3t4", AddressKey.create(AddressKey.TYPE_P2WPKH, HASH));
+    assertRoundTrip("bc1qrp33g0q5c5txsp9arysrx4k6zdkfs4nce4xj0gdcccefvpysxf3qccfmv3",
+        AddressKey.create(AddressKey.TYPE_P2WSH, hex("1863143c14c5166804bd19203356da136c985678cd4d27a1b8c6329604903262")));
+
+    // THE BECH32 ADDRESSES ARE CASE INSENSITIVE, THE KEY IS THE SAME
+    assertArrayEquals(AddressKey.fromString("bc1qw508d6qejxtdg4y5r3zarvary0c5xw7kv8f3t4", PARAMS),
+        AddressKey.fromString("BC1QW508D6QEJXTDG4Y5R3ZARVARY0C5XW7KV8F3T4", PARAMS));
+  }
+
+  @Test
+  public void allTypes() {
+    final ECKey ecKey = new ECKey();
+    assertRoundTrip(LegacyAddress.fromKey(PARAMS, ecKey).toString(), AddressKey.create(AddressKey.TYPE_P2PKH, ecKey.getPubKeyHash()));
+    assertRoundTrip(LegacyAddress.fromScriptHash(PARAMS, HASH).toString(), AddressKey.create(AddressKey.TYPE_P2SH, HASH));
+    assertRoundTrip(SegwitAddress.fromKey(PARAMS, ecKey).toString(), AddressKey.create(AddressKey.TYPE_P2WPKH, ecKey.getPubKeyHash()));
+
+    final byte[] program = Sha256Hash.hash(HASH);
+    assertRoundTrip(SegwitAddress.fromHash(PARAMS, program).toString(), AddressKey.create(AddressKey.TYPE_P2WSH, program));
+  }
+
+  @Test
+  public void otherNetwork() {
+    final NetworkParameters testnet = TestNet3Params.get();
+    final byte[] key = AddressKey.create(AddressKey.TYPE_P2PKH, HASH);
+    final String address = AddressKey.toString(key, testnet);
+    assertEquals(LegacyAddress.fromPubKeyHash(testnet, HASH).toString(), address);
+    assertArrayEquals(key, AddressKey.fromString(address, testnet));
+
+    try {
+      AddressKey.fromString(address, PARAMS);
+      fail();
+    } catch (AddressFormatException e) {
+      // EXPECTED
+    }
+  }
+
+  @Test
+  public void notStoredTypes() {
+    // SEGWIT VERSION > 0
+    assertNull(AddressKey.fromString(SegwitAddress.fromProgram(PARAMS, 1, Sha256Hash.hash(HASH)).toString(), PARAMS));
+  }
+
+  @Test(expected = AddressFormatException.class)
+  public void invalidAddress() {
+    AddressKey.fromString("1BgGZ9tcN4rm9KBzDn7KprQz87SZ26SAMI", PARAMS);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidKey() {
+    AddressKey.toString(new byte[] { 9, 1, 2 }, PARAMS);
+  }
+
+  @Test
+  public void encode() {
+    final byte[] shortKey = AddressKey.create(AddressKey.TYPE_P2PKH, HASH);
+    final byte[] longKey = AddressKey.create(AddressKey.TYPE_P2WSH, Sha256Hash.hash(HASH));
+    assertEquals(28, AddressKey.encode(shortKey).length());
+    assertEquals(44, AddressKey.encode(longKey).length());
+    assertArrayEquals(shortKey, AddressKey.decode(AddressKey.encode(shortKey)));
+    assertArrayEquals(longKey, AddressKey.decode(AddressKey.encode(longKey)));
+
+    // THE TYPE IS PART OF THE KEY
+    assertNotEquals(AddressKey.encode(shortKey), AddressKey.encode(AddressKey.create(AddressKey.TYPE_P2WPKH, HASH)));
+  }
+
+  @Test
+  public void fromScript() {
+    final ECKey ecKey = new ECKey();
+    assertScript(ScriptBuilder.createP2PKHOutputScript(ecKey), AddressKey.create(AddressKey.TYPE_P2PKH, ecKey.getPubKeyHash()));
+    assertScript(ScriptBuilder.createP2SHOutputScript(HASH), AddressKey.create(AddressKey.TYPE_P2SH, HASH));
+    assertScript(ScriptBuilder.createP2WPKHOutputScript(ecKey), AddressKey.create(AddressKey.TYPE_P2WPKH, ecKey.getPubKeyHash()));
+
+    final byte[] program = Sha256Hash.hash(HASH);
+    assertScript(ScriptBuilder.createP2WSHOutputScript(program), AddressKey.create(AddressKey.TYPE_P2WSH, program));
+
+    // NO ADDRESS
+    assertScript(ScriptBuilder.createP2PKOutputScript(ecKey), null);
+    assertScript(ScriptBuilder.createOpReturnScript(HASH), null);
+    assertScript(ScriptBuilder.createMultiSigOutputScript(1, Arrays.asList(ecKey, new ECKey())), null);
+  }
+
+  @Test
+  public void fromScriptAtOffset() {
+    final byte[] script = ScriptBuilder.createP2SHOutputScript(HASH).getProgram();
+    final byte[] bytes = new byte[script.length + 10];
+    System.arraycopy(script, 0, bytes, 7, script.length);
+    assertArrayEquals(AddressKey.create(AddressKey.TYPE_P2SH, HASH), AddressKey.fromScript(bytes, 7, script.length));
+
+    // A TRUNCATED SCRIPT HAS NO ADDRESS
+    assertNull(AddressKey.fromScript(bytes, 7, script.length - 1));
+  }
+
+  private static void assertRoundTrip(final String address, final byte[] key) {
+    assertArrayEquals(key, AddressKey.fromString(address, PARAMS));
+    assertEquals(address, AddressKey.toString(key, PARAMS));
+    assertArrayEquals(key, AddressKey.decode(AddressKey.encode(key)));
+  }
+
+  /**
+   * Checks that the raw and the parsed script give the same key.
+   */
+  private static void assertScript(final Script script, final byte[] key) {
+    final byte[] program = script.getProgram();
+    assertArrayEquals(key, AddressKey.fromScript(program, 0, program.length));
+    assertArrayEquals(key, AddressKey.fromScript(script));
+  }
+
+  private static byte[] hex(final String hex) {
+    return BaseEncoding.base16().lowerCase().decode(hex);
+  }
+}
@@ -0,0 +1,236 @@
+package com.plutohub.server;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.MainNetParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class BlockUndoReaderTest {
+  private static final NetworkParameters PARAMS = MainNetParams.get();
+
+  private File directory;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("undo").toFile();
+  }
+
+  @After
+  public void tearDown() {
+    final File[] files = directory.listFiles();
+    if (files != null)
+      for (File file : files)
+        file.delete();
+    directory.delete();
+  }
+
+  @Test
+  public void decompressAmount() {
+    assertEquals(0L, BlockUndoReader.decompressAmount(0));
+    assertEquals(1L, BlockUndoReader.decompressAmount(1));
+    assertEquals(1_000_000L, BlockUndoReader.decompressAmount(7));
+    assertEquals(100_000_000L, BlockUndoReader.decompressAmount(9));
+    assertEquals(5_000_000_000L, BlockUndoReader.decompressAmount(50));
+    assertEquals(2_100_000_000_000_000L, BlockUndoReader.decompressAmount(21_000_000));
+  }
+
+  @Test
+  public void readVarInt() {
+    assertVarInt(0L, 0x00);
+    assertVarInt(127L, 0x7F);
+    assertVarInt(128L, 0x80, 0x00);
+    assertVarInt(255L, 0x80, 0x7F);
+    assertVarInt(256L, 0x81, 0x00);
+    assertVarInt(16383L, 0xFE, 0x7F);
+    assertVarInt(16384L, 0xFF, 0x00);
+    assertVarInt(16511L, 0xFF, 0x7F);
+    assertVarInt(65535L, 0x82, 0xFE, 0x7F);
+    assertVarInt(1L << 32, 0x8E, 0xFE, 0xFE, 0xFF, 0x00);
+  }
+
+  @Test
+  public void readCompressedScript() {
+    final byte[] hash = hash(20, 1);
+
+    // P2PKH AND P2SH: ONLY THE HASH
+    assertArrayEquals(AddressKey.create(AddressKey.TYPE_P2PKH, hash), readScript(concat(new byte[] { 0 }, hash)));
+    assertArrayEquals(AddressKey.create(AddressKey.TYPE_P2SH, hash), readScript(concat(new byte[] { 1 }, hash)));
+
+    // P2PK: THE PUBLIC KEY WITHOUT ADDRESS
+    for (int type = 2; type < 6; type++) {
+      final ByteBuffer data = ByteBuffer.wrap(concat(new byte[] { (byte) type }, hash(32, 2), new byte[] { 0x55 }));
+      assertNull(BlockUndoReader.readCompressedScript(data));
+      assertEquals(0x55, data.get());
+    }
+
+    // OTHER SCRIPTS IN FULL, WITH THEIR LENGTH + 6
+    final byte[] p2wpkh = concat(new byte[] { 0x00, 20 }, hash);
+    assertArrayEquals(AddressKey.create(AddressKey.TYPE_P2WPKH, hash), readScript(concat(new byte[] { 6 + 22 }, p2wpkh)));
+
+    final byte[] p2wsh = concat(new byte[] { 0x00, 32 }, hash(32, 3));
+    assertArrayEquals(AddressKey.create(AddressKey.TYPE_P2WSH, hash(32, 3)), readScript(concat(new byte[] { 6 + 34 }, p2wsh)));
+
+    final byte[] opReturn = { 0x6a, 0x01, 0x01 };
+    final ByteBuffer data = ByteBuffer.wrap(concat(new byte[] { 6 + 3 }, opReturn, new byte[] { 0x55 }));
+    assertNull(BlockUndoReader.readCompressedScript(data));
+    assertEquals(0x55, data.get());
+
+    // THE SAME FROM A DIRECT BUFFER, LIKE THE MAPPED FILES
+    final byte[] record = concat(new byte[] { 6 + 22 }, p2wpkh);
+    final ByteBuffer direct = ByteBuffer.allocateDirect(record.length);
+    direct.put(record).flip();
+    assertArrayEquals(AddressKey.create(AddressKey.TYPE_P2WPKH, hash), BlockUndoReader.readCompressedScript(direct));
+    assertFalse(direct.hasRemaining());
+  }
+
+  @Test
+  public void resolve() throws IOException {
+    final Sha256Hash prevHash = Sha256Hash.of(new byte[] { 1 });
+    final byte[] hash = hash(20, 4);
+
+    final ByteArrayOutputStream undo = new ByteArrayOutputStream();
+    undo.write(1); // TRANSACTIONS BUT THE COINBASE
+    undo.write(2); // INPUTS
+    writeVarInt(undo, 100 * 2);
+    writeVarInt(undo, 0);
+    writeVarInt(undo, 50);
+    writeVarInt(undo, 0);
+    undo.write(hash);
+    writeVarInt(undo, 101 * 2 + 1);
+    writeVarInt(undo, 0);
+    writeVarInt(undo, 7);
+    writeVarInt(undo, 6 + 22);
+    undo.write(concat(new byte[] { 0x00, 20 }, hash));
+
+    // A RECORD OF ANOTHER BLOCK WITH THE SAME NUMBER OF TRANSACTIONS COMES FIRST
+    final File revFile = new File(directory, "rev00000.dat");
+    try (FileOutputStream out = new FileOutputStream(revFile)) {
+      out.write(frame(Sha256Hash.of(new byte[] { 2 }), undo.toByteArray()));
+      out.write(frame(prevHash, undo.toByteArray()));
+      // PRE-ALLOCATED SPACE
+      out.write(new byte[64]);
+    }
+
+    try (BlockUndoReader reader = new BlockUndoReader(PARAMS)) {
+      final BitcoinBlock block = block(prevHash, 2);
+      assertTrue(reader.resolve(block));
+
+      // THE COINBASE IS NEVER RESOLVED
+      assertEquals(BitcoinBlock.UNRESOLVED, block.getSpentValue(0));
+      assertNull(block.getSpentAddressKey(0));
+
+      assertEquals(5_000_000_000L, block.getSpentValue(1));
+      assertArrayEquals(AddressKey.create(AddressKey.TYPE_P2PKH, hash), block.getSpentAddressKey(1));
+      assertEquals(1_000_000L, block.getSpentValue(2));
+      assertArrayEquals(AddressKey.create(AddressKey.TYPE_P2WPKH, hash), block.getSpentAddressKey(2));
+      assertEquals(5_001_000_000L, block.getSpentValueSum(1, 2));
+
+      // WRONG PREVIOUS HASH OR NUMBER OF TRANSACTIONS
+      assertFalse(reader.resolve(block(Sha256Hash.of(new byte[] { 3 }), 2)));
+      assertFalse(reader.resolve(block(prevHash, 1)));
+
+      assertEquals(1, reader.getResolvedBlocks());
+      assertEquals(2, reader.getMissingBlocks());
+    }
+  }
+
+  @Test
+  public void resolveWithoutUndoFile() throws IOException {
+    try (BlockUndoReader reader = new BlockUndoReader(PARAMS)) {
+      assertFalse(reader.resolve(block(Sha256Hash.of(new byte[] { 1 }), 2)));
+      assertEquals(1, reader.getMissingBlocks());
+    }
+  }
+
+  /**
+   * Returns a block of blk00000.dat with a coinbase followed by transactions with two inputs each.
+   */
+  private BitcoinBlock block(final Sha256Hash prevHash, final int transactions) {
+    final Transaction coinbase = new Transaction(PARAMS);
+    coinbase.addInput(new TransactionInput(PARAMS, coinbase, new byte[] { 0x01, 0x01 }));
+    coinbase.addOutput(Coin.COIN, new ECKey());
+
+    final Block block = new Block(PARAMS, 1, prevHash, Sha256Hash.ZERO_HASH, 0, 0x1d00ffffL, 0, Arrays.asList(coinbase));
+    for (int i = 1; i < transactions; i++) {
+      final Transaction tx = new Transaction(PARAMS);
+      for (int k = 0; k < 2; k++)
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[0], new TransactionOutPoint(PARAMS, k, Sha256Hash.of(new byte[] { (byte) i }))));
+      tx.addOutput(Coin.COIN, new ECKey());
+      block.addTransaction(tx);
+    }
+    return new BitcoinBlock(new File(directory, "blk00000.dat"), 0, block);
+  }
+
+  private static byte[] frame(final Sha256Hash prevHash, final byte[] undo) {
+    final ByteBuffer frame = ByteBuffer.allocate(8 + undo.length + 32).order(ByteOrder.LITTLE_ENDIAN);
+    frame.putInt(Integer.reverseBytes((int) PARAMS.getPacketMagic()));
+    frame.putInt(undo.length);
+    frame.put(undo);
+    frame.put(Sha256Hash.hashTwice(concat(prevHash.getReversedBytes(), undo)));
+    return frame.array();
+  }
+
+  /**
+   * Writes a VARINT like Bitcoin Core's WriteVarInt.
+   */
+  private static void writeVarInt(final ByteArrayOutputStream out, long n) {
+    final byte[] tmp = new byte[10];
+    int len = 0;
+    while (true) {
+      tmp[len] = (byte) ((n & 0x7F) | (len != 0 ? 0x80 : 0x00));
+      if (n <= 0x7F)
+        break;
+      n = (n >> 7) - 1;
+      len++;
+    }
+    for (; len >= 0; len--)
+      out.write(tmp[len]);
+  }
+
+  private static void assertVarInt(final long expected, final int... bytes) {
+    final byte[] encoded = new byte[bytes.length];
+    for (int i = 0; i < bytes.length; i++)
+      encoded[i] = (byte) bytes[i];
+
+    final ByteBuffer data = ByteBuffer.wrap(encoded);
+    assertEquals(expected, BlockUndoReader.readVarInt(data));
+    assertFalse(data.hasRemaining());
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeVarInt(out, expected);
+    assertArrayEquals(encoded, out.toByteArray());
+  }
+
+  private static byte[] readScript(final byte[] record) {
+    final ByteBuffer data = ByteBuffer.wrap(record);
+    final byte[] key = BlockUndoReader.readCompressedScript(data);
+    assertFalse(data.hasRemaining());
+    return key;
+  }
+
+  private static byte[] hash(final int length, final int seed) {
+    final byte[] hash = new byte[length];
+    for (int i = 0; i < length; i++)
+      hash[i] = (byte) (seed * 31 + i);
+    return hash;
+  }
+
+  private static byte[] concat(final byte[]... arrays) {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte[] array : arrays)
+      out.write(array, 0, array.length);
+    return out.toByteArray();
+  }
+}
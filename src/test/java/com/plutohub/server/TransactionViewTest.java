@@ -0,0 +1,156 @@
+package com.plutohub.server;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TransactionViewTest {
+  private static final NetworkParameters PARAMS = MainNetParams.get();
+  private static final int               PREFIX = 13;
+
+  private Block     block;
+  private byte[]    bytes;
+  private BlockView view;
+
+  @Before
+  public void setUp() {
+    final Transaction coinbase = new Transaction(PARAMS);
+    coinbase.addInput(new TransactionInput(PARAMS, coinbase, new byte[] { 0x03, 0x01, 0x02, 0x03 }));
+    coinbase.addOutput(Coin.FIFTY_COINS, new ECKey());
+
+    final Transaction legacy = new Transaction(PARAMS);
+    legacy.addInput(new TransactionInput(PARAMS, legacy, new byte[] { 0x01, 0x51 }, outpoint(1, 3)));
+    legacy.addInput(new TransactionInput(PARAMS, legacy, new byte[0], outpoint(2, 0)));
+    legacy.addOutput(Coin.valueOf(12_345), new ECKey());
+    legacy.addOutput(Coin.valueOf(Long.MAX_VALUE / 1_000_000), ScriptBuilder.createOpReturnScript(new byte[] { 1, 2, 3 }));
+    legacy.setLockTime(500_000);
+
+    final Transaction segwit = new Transaction(PARAMS);
+    segwit.setVersion(2);
+    final TransactionInput input = new TransactionInput(PARAMS, segwit, new byte[0], outpoint(3, 7));
+    input.setWitness(TransactionWitness.redeemP2WPKH(null, new ECKey()));
+    input.setSequenceNumber(0xFFFFFFFDL);
+    segwit.addInput(input);
+    segwit.addInput(new TransactionInput(PARAMS, segwit, new byte[] { 0x00 }, outpoint(4, 1)));
+    segwit.addOutput(Coin.valueOf(1_000), ScriptBuilder.createP2WPKHOutputScript(new ECKey()));
+
+    // WITHOUT MERKLE ROOT IT IS COMPUTED FROM THE TRANSACTIONS
+    block = new Block(PARAMS, 0x20000000L, Sha256Hash.of(new byte[] { 1 }), null, 1_600_000_000L, 0x1d00ffffL, 42,
+        Arrays.asList(coinbase, legacy, segwit));
+
+    // THE BLOCK IS NOT AT THE BEGINNING OF THE ARRAY, LIKE IN THE BUFFERS OF THE BLOCK FILES
+    final byte[] serialized = block.bitcoinSerialize();
+    bytes = new byte[PREFIX + serialized.length + 5];
+    System.arraycopy(serialized, 0, bytes, PREFIX, serialized.length);
+    view = new BlockView(bytes, PREFIX, serialized.length);
+  }
+
+  @Test
+  public void header() {
+    assertEquals(block.getHash(), view.getHash());
+    assertEquals(block.getVersion(), view.getVersion());
+    assertEquals(block.getPrevBlockHash(), view.getPrevBlockHash());
+    assertEquals(block.getMerkleRoot(), view.getMerkleRoot());
+    assertEquals(block.getTimeSeconds(), view.getTimeSeconds());
+    assertEquals(block.getDifficultyTarget(), view.getDifficultyTarget());
+    assertEquals(block.getNonce(), view.getNonce());
+    assertEquals(block.getWitnessRoot(), view.getWitnessRoot());
+    assertEquals(3, view.getTransactionCount());
+  }
+
+  @Test
+  public void ids() {
+    final List<Transaction> transactions = block.getTransactions();
+    final TransactionView tx = new TransactionView();
+    for (int i = 0; i < transactions.size(); i++) {
+      view.getTransaction(i, tx);
+      assertEquals(transactions.get(i).getTxId(), tx.getTxId());
+      assertEquals(transactions.get(i).getWTxId(), tx.getWTxId());
+      assertEquals(transactions.get(i).hasWitnesses(), tx.hasWitnesses());
+      assertEquals(i == 0, tx.isCoinBase());
+    }
+
+    // THE IDS OF A SEGWIT TRANSACTION ARE DIFFERENT, THOSE OF A LEGACY ONE ARE THE SAME
+    assertNotEquals(view.getTransaction(2, tx).getTxId(), tx.getWTxId());
+    assertEquals(view.getTransaction(1, tx).getTxId(), tx.getWTxId());
+  }
+
+  @Test
+  public void fields() {
+    final List<Transaction> transactions = block.getTransactions();
+    final TransactionView tx = new TransactionView();
+    for (int i = 0; i < transactions.size(); i++) {
+      final Transaction expected = transactions.get(i);
+      view.getTransaction(i, tx);
+
+      assertEquals(expected.getVersion(), tx.getVersion());
+      assertEquals(expected.getLockTime(), tx.getLockTime());
+      assertEquals(expected.getSigOpCount(), tx.getSigOpCount());
+
+      assertEquals(expected.getInputs().size(), tx.getInputCount());
+      for (int k = 0; k < tx.getInputCount(); k++) {
+        final TransactionInput input = expected.getInput(k);
+        assertEquals(input.getOutpoint().getHash(), tx.getInputOutpointHash(k));
+        assertEquals(input.getOutpoint().getIndex(), tx.getInputOutpointIndex(k));
+        assertEquals(input.getSequenceNumber(), tx.getInputSequence(k));
+      }
+
+      assertEquals(expected.getOutputs().size(), tx.getOutputCount());
+      for (int k = 0; k < tx.getOutputCount(); k++)
+        assertEquals(expected.getOutput(k).getValue().value, tx.getOutputValue(k));
+      assertEquals(expected.getOutputSum().value, tx.getOutputSum());
+    }
+  }
+
+  @Test
+  public void offsets() {
+    final List<Transaction> transactions = block.getTransactions();
+    final TransactionView tx = new TransactionView();
+
+    // THE OFFSETS ARE RELATIVE TO THE BLOCK AND THE TRANSACTIONS FOLLOW EACH OTHER
+    int expectedOffset = BlockFileReader.HEADER_SIZE + 1;
+    for (int i = 0; i < transactions.size(); i++) {
+      final Transaction expected = transactions.get(i);
+      view.getTransaction(i, tx);
+      assertEquals(PREFIX, tx.getBlockOffset());
+      assertSame(bytes, tx.getBytes());
+
+      assertEquals(expectedOffset, tx.getOffset());
+      assertArrayEquals(expected.bitcoinSerialize(), slice(tx.getOffset(), tx.getLength()));
+      expectedOffset += tx.getLength();
+
+      for (int k = 0; k < tx.getInputCount(); k++) {
+        final TransactionInput input = expected.getInput(k);
+        assertArrayEquals(input.getOutpoint().bitcoinSerialize(), slice(tx.getInputOffset(k), 36));
+        assertArrayEquals(input.getScriptBytes(), slice(tx.getInputScriptOffset(k), tx.getInputScriptLength(k)));
+      }
+
+      for (int k = 0; k < tx.getOutputCount(); k++) {
+        final TransactionOutput output = expected.getOutput(k);
+        assertArrayEquals(output.bitcoinSerialize(), slice(tx.getOutputOffset(k), 8 + 1 + output.getScriptBytes().length));
+        assertArrayEquals(output.getScriptBytes(), slice(tx.getOutputScriptOffset(k), tx.getOutputScriptLength(k)));
+      }
+    }
+    assertEquals(view.getLength(), expectedOffset);
+  }
+
+  @Test(expected = ProtocolException.class)
+  public void truncated() {
+    new BlockView(bytes, PREFIX, view.getLength() - 3);
+  }
+
+  private byte[] slice(final int offset, final int length) {
+    return Arrays.copyOfRange(bytes, PREFIX + offset, PREFIX + offset + length);
+  }
+
+  private static TransactionOutPoint outpoint(final int tx, final long index) {
+    return new TransactionOutPoint(PARAMS, index, Sha256Hash.of(new byte[] { (byte) tx }));
+  }
+}
@@ -0,0 +1,162 @@
+package com.plutohub.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class UtxoSetTest {
+  private File    directory;
+  private UtxoSet set;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("utxo").toFile();
+    set = new UtxoSet(directory, 0);
+  }
+
+  @After
+  public void tearDown() {
+    set.close();
+    assertEquals(0, directory.list().length);
+    directory.delete();
+  }
+
+  @Test
+  public void putAndSpend() throws IOException {
+    final byte[] addressKey = AddressKey.create(AddressKey.TYPE_P2WSH, txId(99, 32));
+    set.put(txId(1), 0, 1000, addressKey);
+    set.put(txId(1), 1, 2000, null);
+    set.put(txId(2), 0, 3000, new byte[UtxoSet.MAX_ADDRESS_LENGTH + 1]);
+    assertEquals(3, set.size());
+
+    final UtxoSet.Output output = new UtxoSet.Output();
+    assertTrue(set.spend(txId(1), 0, output));
+    assertEquals(1000, output.value);
+    assertArrayEquals(addressKey, output.addressKey);
+
+    assertTrue(set.spend(txId(1), 1, output));
+    assertEquals(2000, output.value);
+    assertNull(output.addressKey);
+
+    // THE ADDRESSES TOO LONG ARE NOT STORED
+    assertTrue(set.spend(txId(2), 0, output));
+    assertEquals(3000, output.value);
+    assertNull(output.addressKey);
+
+    assertEquals(0, set.size());
+    assertEquals(3, set.getHits());
+  }
+
+  @Test
+  public void spendMissing() throws IOException {
+    final UtxoSet.Output output = new UtxoSet.Output();
+    assertFalse(set.spend(txId(1), 0, output));
+
+    set.put(txId(1), 0, 1000, null);
+    assertFalse(set.spend(txId(1), 1, output));
+    assertFalse(set.spend(txId(2), 0, output));
+
+    assertTrue(set.spend(txId(1), 0, output));
+    assertFalse(set.spend(txId(1), 0, output));
+
+    assertEquals(1, set.getHits());
+    assertEquals(4, set.getMisses());
+  }
+
+  @Test
+  public void onlyTheTxIdPrefixIsStored() throws IOException {
+    final byte[] txId = txId(1, 32);
+    set.put(txId, 0, 1000, null);
+
+    final byte[] samePrefix = txId.clone();
+    samePrefix[31] ^= 1;
+    assertTrue(set.spend(samePrefix, 0, new UtxoSet.Output()));
+  }
+
+  @Test
+  public void duplicatedTransactionReplacesTheOutput() throws IOException {
+    set.put(txId(1), 0, 1000, null);
+    set.put(txId(1), 0, 2000, null);
+    assertEquals(1, set.size());
+
+    final UtxoSet.Output output = new UtxoSet.Output();
+    assertTrue(set.spend(txId(1), 0, output));
+    assertEquals(2000, output.value);
+    assertFalse(set.spend(txId(1), 0, output));
+  }
+
+  @Test
+  public void tombstones() throws IOException {
+    final long capacity = set.getCapacity();
+    final UtxoSet.Output output = new UtxoSet.Output();
+
+    // MANY MORE OUTPUTS THAN THE CAPACITY, BUT FEW UNSPENT AT THE SAME TIME: THE TOMBSTONES ARE REMOVED WITHOUT GROWING
+    for (int i = 0; i < (int) capacity * 4; i++) {
+      set.put(txId(i), i % 3, i, null);
+      if (i >= 10) {
+        assertTrue(set.spend(txId(i - 10), (i - 10) % 3, output));
+        assertEquals(i - 10, output.value);
+      }
+    }
+    assertEquals(10, set.size());
+    assertEquals(capacity, set.getCapacity());
+
+    for (int i = (int) capacity * 4 - 10; i < (int) capacity * 4; i++)
+      assertTrue(set.spend(txId(i), i % 3, output));
+    assertEquals(0, set.size());
+  }
+
+  @Test
+  public void growth() throws IOException {
+    final long capacity = set.getCapacity();
+    final int outputs = (int) capacity * 5;
+    for (int i = 0; i < outputs; i++)
+      set.put(txId(i), 0, i, AddressKey.create(AddressKey.TYPE_P2PKH, txId(i)));
+
+    assertEquals(outputs, set.size());
+    assertTrue(set.getCapacity() >= outputs);
+    assertEquals(1, Long.bitCount(set.getCapacity()));
+    // THE FILES OF THE OLD TABLES ARE DELETED
+    assertEquals(1, directory.list().length);
+
+    final UtxoSet.Output output = new UtxoSet.Output();
+    for (int i = 0; i < outputs; i++) {
+      assertTrue(set.spend(txId(i), 0, output));
+      assertEquals(i, output.value);
+      assertArrayEquals(AddressKey.create(AddressKey.TYPE_P2PKH, txId(i)), output.addressKey);
+    }
+    assertEquals(0, set.size());
+  }
+
+  @Test
+  public void initialCapacity() throws IOException {
+    try (UtxoSet sized = new UtxoSet(directory, 100_000)) {
+      assertEquals(1 << 18, sized.getCapacity());
+    }
+  }
+
+  private static byte[] txId(final int n) {
+    return txId(n, UtxoSet.TXID_LENGTH);
+  }
+
+  /**
+   * Returns a pseudo random txid, to spread the outputs like the real hashes.
+   */
+  private static byte[] txId(final int n, final int length) {
+    final byte[] txId = new byte[length];
+    long x = n * 0x9E3779B97F4A7C15L + 1;
+    for (int i = 0; i < length; i++) {
+      x ^= x << 13;
+      x ^= x >>> 7;
+      x ^= x << 17;
+      txId[i] = (byte) x;
+    }
+    return txId;
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2021 Arcade Data Ltd
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.plutohub.server.plugin;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdmissionControlTest {
+  private long now = 1_000_000;
+
+  @Test
+  public void refill() {
+    // 100 TOKENS PER SECOND, 200 IN THE BUCKET
+    final AdmissionControl control = create(100, 2, null);
+    assertEquals(200, control.getAvailable("a"));
+
+    assertEquals(0, control.admit("a", 150));
+    assertEquals(50, control.getAvailable("a"));
+
+    now += 250;
+    assertEquals(75, control.getAvailable("a"));
+    now += 250;
+    assertEquals(100, control.getAvailable("a"));
+    assertEquals(0, control.admit("a", 100));
+    assertEquals(0, control.getAvailable("a"));
+
+    // NEVER MORE THAN THE CAPACITY
+    now += 60_000;
+    assertEquals(200, control.getAvailable("a"));
+
+    // THE TIME GOING BACK DOES NOT REFILL
+    assertEquals(0, control.admit("a", 200));
+    now -= 10_000;
+    assertEquals(0, control.getAvailable("a"));
+  }
+
+  @Test
+  public void retryAfter() {
+    // 1 TOKEN PER SECOND, 10 IN THE BUCKET
+    final AdmissionControl control = create(1, 10, null);
+    assertEquals(0, control.getRetryAfter("a"));
+
+    assertEquals(0, control.admit("a", 10));
+    assertEquals(1, control.getRetryAfter("a"));
+    assertEquals(10, control.admit("a", 10));
+    assertEquals(1, control.admit("a", 1));
+
+    now += 5_000;
+    assertEquals(0, control.getRetryAfter("a"));
+    assertEquals(5, control.admit("a", 10));
+
+    // ROUNDED UP TO THE SECOND
+    now += 500;
+    assertEquals(5, control.admit("a", 10));
+    now += 400;
+    assertEquals(0, control.getRetryAfter("a"));
+    assertEquals(5, control.admit("a", 10));
+
+    // THE OTHER USERS ARE NOT AFFECTED
+    assertEquals(0, control.getRetryAfter("b"));
+    assertEquals(0, control.admit("b", 10));
+  }
+
+  @Test
+  public void retryAfterBelowOneToken() {
+    final AdmissionControl control = create(1, 10, null);
+    assertEquals(0, control.admit("a", 10));
+    now += 999;
+    assertEquals(1, control.getRetryAfter("a"));
+    now += 1;
+    assertEquals(0, control.getRetryAfter("a"));
+  }
+
+  @Test
+  public void costCappedToCapacity() {
+    final AdmissionControl control = create(100, 2, null);
+    assertEquals(0, control.admit("a", 1_000_000));
+    assertEquals(0, control.getAvailable("a"));
+    assertEquals(2, control.admit("a", 1_000_000));
+    assertEquals(200, control.getStats().getLong("spent"));
+  }
+
+  @Test
+  public void retryAfterDoesNotCreateBuckets() {
+    final AdmissionControl control = create(100, 2, null);
+    assertEquals(0, control.getRetryAfter("a"));
+    assertEquals(0, control.getStats().getInt("users"));
+
+    assertEquals(0, control.admit("a", 1));
+    assertEquals(1, control.getStats().getInt("users"));
+  }
+
+  @Test
+  public void userRates() {
+    final AdmissionControl control = create(100, 2, "vip:0, slow : 1");
+    assertTrue(control.isEnabled());
+
+    assertEquals(Long.MAX_VALUE, control.getAvailable("vip"));
+    for (int i = 0; i < 10; i++)
+      assertEquals(0, control.admit("vip", 1_000_000));
+
+    assertEquals(2, control.getAvailable("slow"));
+    assertEquals(0, control.admit("slow", 2));
+    assertEquals(1, control.admit("slow", 1));
+
+    assertEquals(200, control.getAvailable("other"));
+  }
+
+  @Test
+  public void disabled() {
+    final AdmissionControl control = create(0, 1, "");
+    assertFalse(control.isEnabled());
+    assertEquals(Long.MAX_VALUE, control.getAvailable("a"));
+    assertEquals(0, control.admit("a", Long.MAX_VALUE));
+    assertEquals(0, control.getRetryAfter("a"));
+
+    // ONLY THE LISTED USERS ARE LIMITED
+    final AdmissionControl onlyUsers = create(0, 1, "slow:1");
+    assertTrue(onlyUsers.isEnabled());
+    assertEquals(0, onlyUsers.admit("a", Long.MAX_VALUE));
+    assertEquals(0, onlyUsers.admit("slow", 1));
+    assertEquals(1, onlyUsers.admit("slow", 1));
+  }
+
+  @Test
+  public void stats() {
+    final AdmissionControl control = create(1, 10, null);
+    control.admit("a", 4);
+    control.admit("a", 6);
+    control.admit("a", 1);
+    control.getRetryAfter("a");
+
+    final JSONObject stats = control.getStats();
+    assertEquals(2, stats.getLong("admitted"));
+    assertEquals(2, stats.getLong("throttled"));
+    assertEquals(10, stats.getLong("spent"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidUserRate() {
+    create(1, 1, "slow");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void negativeUserRate() {
+    create(1, 1, "slow:-1");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidBurst() {
+    create(1, 0, null);
+  }
+
+  private AdmissionControl create(final long rate, final long burstSeconds, final String userRates) {
+    return new AdmissionControl(rate, burstSeconds, userRates).setClock(() -> now);
+  }
+}
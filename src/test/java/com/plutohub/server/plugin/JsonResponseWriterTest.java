@@ -0,0 +1,261 @@
+/*
+ * Copyright 2021 Arcade Data Ltd
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.plutohub.server.plugin;
+
+import com.arcadedb.exception.TimeoutException;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class JsonResponseWriterTest {
+  private final StringWriter       text = new StringWriter();
+  private final JsonResponseWriter out  = new JsonResponseWriter(text, 2);
+
+  @Test
+  public void completeValues() throws IOException {
+    final JSONObject result = address();
+    for (int indentFactor : new int[] { 0, 2 }) {
+      final StringWriter text = new StringWriter();
+      try (JsonResponseWriter out = new JsonResponseWriter(text, indentFactor)) {
+        out.beginResult().value(result).endResult();
+      }
+      assertEquals(new JSONObject().put("result", result).toString(indentFactor), text.toString());
+    }
+  }
+
+  @Test
+  public void streamedObject() throws IOException {
+    final JSONObject result = address();
+    out.beginResult().beginObject().members(result).endObject().endResult();
+    out.close();
+    assertEquals(new JSONObject().put("result", result).toString(2), text.toString());
+  }
+
+  @Test
+  public void sameLayoutOfJSONObject() throws IOException {
+    final JSONObject address = address();
+    final JSONArray single = new JSONArray().put(txPart(1));
+    final JSONArray many = new JSONArray().put(txPart(1)).put(txPart(2)).put(new JSONArray());
+
+    for (int indentFactor : new int[] { 0, 2 }) {
+      final StringWriter text = new StringWriter();
+      try (JsonResponseWriter out = new JsonResponseWriter(text, indentFactor)) {
+        out.beginResult().beginArray();
+        out.beginObject().members(address).endObject();
+        // ONE ELEMENT: ON THE SAME LINE
+        out.beginArray().value(single.get(0)).endArray();
+        out.beginArray();
+        for (Object element : many)
+          out.value(element);
+        out.endArray();
+        out.beginObject().endObject();
+        out.beginArray().endArray();
+        out.endArray().name("next").value("abc").endResult();
+      }
+
+      final JSONArray array = new JSONArray().put(address).put(single).put(many).put(new JSONObject()).put(new JSONArray());
+      final JSONObject expected = new JSONObject().put("result", array).put("next", "abc");
+      assertTrue(expected.similar(new JSONObject(text.toString())));
+
+      // THE CONTAINERS WRITTEN MEMBER BY MEMBER ARE LAID OUT LIKE JSONObject DOES
+      if (indentFactor == 0)
+        assertEquals(array.toString(0), text.toString().substring("{\"result\":".length(), text.toString().indexOf(",\"next\"")));
+    }
+  }
+
+  @Test
+  public void history() throws Exception {
+    // THE "side" PARAMETER: BOTH, INPUTS OR OUTPUTS
+    assertHistory(true, true, 2, 3);
+    assertHistory(true, true, 0, 0);
+    assertHistory(true, false, 2, 0);
+    assertHistory(false, true, 0, 3);
+    assertHistory(false, true, 0, 1);
+    assertHistory(false, true, 0, 0);
+  }
+
+  @Test
+  public void expiredCompleteResponseIsSent() throws Exception {
+    final JsonResponseWriter out = new JsonResponseWriter(text, 2, expiredDeadline());
+    out.beginResult().value(1).endResult();
+    out.close();
+    assertEquals(new JSONObject().put("result", 1).toString(2), text.toString());
+  }
+
+  @Test
+  public void expiredIncompleteResponse() throws Exception {
+    // NOT STARTED YET: THE HANDLER MUST ANSWER 503, NOT AN EMPTY RESPONSE
+    final JsonResponseWriter out = new JsonResponseWriter(text, 2, expiredDeadline());
+    out.beginResult().beginArray().value(1);
+    try {
+      out.close();
+      fail();
+    } catch (TimeoutException e) {
+      // EXPECTED
+    }
+  }
+
+  @Test
+  public void incompleteResponse() throws IOException {
+    // STOPPED BY AN ERROR: THE ERROR OF THE HANDLER IS SENT
+    out.beginResult().beginArray().value(1);
+    out.close();
+  }
+
+  @Test
+  public void memberWithoutName() throws IOException {
+    out.beginResult().beginObject();
+    assertThrows("Member without name", () -> out.value(1).value(2));
+  }
+
+  @Test
+  public void unbalanced() throws IOException {
+    out.beginResult().beginObject();
+    assertThrows("Unbalanced array", out::endArray);
+
+    final JsonResponseWriter other = new JsonResponseWriter(new StringWriter(), 2);
+    other.beginResult().beginArray();
+    assertThrows("Unbalanced object", other::endObject);
+
+    // AN ARRAY CLOSED ONCE MORE THAN OPENED
+    final JsonResponseWriter history = new JsonResponseWriter(new StringWriter(), 2);
+    history.beginResult().beginObject().name("outputs").beginArray().endArray();
+    history.endObject();
+    assertThrows("Unbalanced array", history::endArray);
+  }
+
+  @Test
+  public void notInAnObject() throws IOException {
+    assertThrows("Not in an object", () -> out.name("a"));
+    out.beginResult().beginArray();
+    assertThrows("Not in an object", () -> out.name("a"));
+  }
+
+  @Test
+  public void noContainer() {
+    assertThrows("No container started", () -> out.value(1));
+  }
+
+  @Test
+  public void resultNotStarted() throws IOException {
+    out.beginResult().beginObject();
+    assertThrows("Result not started", out::endResult);
+  }
+
+  /**
+   * Writes an address with the given number of inputs and outputs through PlutoHttpHandler.writeHistory(), comparing it with the same
+   * tree built as JSONObject.
+   */
+  private static void assertHistory(final boolean withInputs, final boolean withOutputs, final int inputs, final int outputs)
+      throws Exception {
+    final JSONObject expected = address();
+    if (withInputs)
+      expected.put("inputs", new JSONArray());
+    if (withOutputs)
+      expected.put("outputs", new JSONArray());
+    for (int i = 0; i < inputs; i++)
+      expected.getJSONArray("inputs").put(txPart(i));
+    for (int i = 0; i < outputs; i++)
+      expected.getJSONArray("outputs").put(txPart(inputs + i));
+
+    final StringWriter text = new StringWriter();
+    try (JsonResponseWriter out = new JsonResponseWriter(text, 2)) {
+      out.beginResult().beginObject().members(address());
+      final int[] serialized = { 0 };
+      PlutoHttpHandler.writeHistory(out, new StubHistory(inputs, outputs), withInputs, withOutputs,
+          (txPart, transaction) -> txPart(serialized[0]++));
+      out.endObject().endResult();
+    }
+
+    final JSONObject result = new JSONObject(text.toString()).getJSONObject("result");
+    assertTrue(result.toString(), expected.similar(result));
+  }
+
+  /**
+   * Visits the given number of inputs and outputs of the requested sides, without a database.
+   */
+  private static class StubHistory extends AddressHistory {
+    private final int     inputs;
+    private final int     outputs;
+    private       boolean withInputs;
+    private       boolean withOutputs;
+
+    private StubHistory(final int inputs, final int outputs) {
+      super(null, null);
+      this.inputs = inputs;
+      this.outputs = outputs;
+    }
+
+    @Override
+    public AddressHistory setSides(final boolean withInputs, final boolean withOutputs) {
+      this.withInputs = withInputs;
+      this.withOutputs = withOutputs;
+      return this;
+    }
+
+    @Override
+    public int walk(final Visitor visitor) throws Exception {
+      int visited = 0;
+      for (int i = 0; withInputs && i < inputs; i++, visited++)
+        visitor.visit(true, null, null);
+      for (int i = 0; withOutputs && i < outputs; i++, visited++)
+        visitor.visit(false, null, null);
+      return visited;
+    }
+  }
+
+  private static void assertThrows(final String message, final Action action) {
+    try {
+      action.run();
+      fail("Expected: " + message);
+    } catch (IllegalStateException e) {
+      assertEquals(message, e.getMessage());
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static RequestDeadline expiredDeadline() throws InterruptedException {
+    final RequestDeadline deadline = new RequestDeadline(1);
+    while (!deadline.isExpired())
+      Thread.sleep(1);
+    return deadline;
+  }
+
+  private interface Action {
+    void run() throws IOException;
+  }
+
+  private static JSONObject address() {
+    return new JSONObject().put("hash", "1BgGZ9tcN4rm9KBzDn7KprQz87SZ26SAMH").put("balance", 1_000L).put("labels", new JSONArray().put("\u00e9\ud83d\ude00"));
+  }
+
+  private static JSONObject txPart(final int i) {
+    return new JSONObject().put("tx", "tx" + i).put("value", i * 1_000L);
+  }
+}